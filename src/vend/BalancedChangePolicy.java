@@ -0,0 +1,310 @@
+package vend;
+
+import java.util.Arrays;
+
+/**
+ * This class gives change using the mix of coins that leaves the machine best able to give change later on.
+ *
+ * The policy remembers how often each amount of change has been needed by recent sales. Every mix of coins that
+ * makes up the change is tried, and the one chosen is the mix that leaves the machine able to give the most
+ * likely amounts of change afterwards. If two mixes are as good as each other, the one with fewer coins is used,
+ * and after that the one that keeps more of the coin that recent sales will run out of first.
+ * Before any sales have been made, every amount is treated as equally likely.
+ * 
+ * Unlike taking the largest coins first, a mix is always found if one exists, e.g. 60p can be given as three 20p
+ * coins when the machine has no 10p coins left.
+ *
+ * Amounts are worked out in steps of the smallest unit shared by every coin (5p for sterling), and change is never
+ * more than the largest note or coin, so each check covers at most a hundred or so amounts and is quick enough
+ * to use for every purchase.
+ * @author Fergal Bittles
+ *
+ */
+public class BalancedChangePolicy implements ChangePolicy {
+
+	// How quickly the expected amounts follow recent sales, from 0 (never) to 1 (only the last sale counts)
+	private static final double ALPHA = 0.05;
+	
+	// The most mixes of coins that are compared for one payment, in case a machine is holding a very large float
+	private static final int MAX_MIXES = 256;
+	
+	// How likely each amount of change is, indexed by the amount in units, or null before any change has been given
+	private double[] demand;
+	
+	// Used while comparing mixes
+	private int[] best;
+	private double bestScore;
+	private double bestSlack;
+	private int bestCoins;
+	private int mixesTried;
+	private double[] need;
+	
+	/**
+	 * This method is inherited from the 'ChangePolicy' interface.
+	 * A mix of coins is found if one exists, even when taking the largest coins first would not work.
+	 */
+	public boolean canGiveChange(int change, CurrencySet currency, int[] coinCounts) {
+		if (change < 0) {
+			return false;
+		}
+		
+		int unit = getUnit(currency);
+		if (unit == 0 || change % unit != 0) {
+			return change == 0;
+		}
+		
+		return canMake(currency, coinCounts, unit, change / unit)[change / unit];
+	}
+	
+	/**
+	 * This method is inherited from the 'ChangePolicy' interface.
+	 * Tries each mix of coins, starting with the largest coins first, and keeps the mix with the best score.
+	 */
+	public synchronized int[] chooseCoins(int change, CurrencySet currency, int[] coinCounts) {
+		if (!canGiveChange(change, currency, coinCounts)) {
+			return null;
+		}
+		
+		int[] coinsUsed = new int[coinCounts.length];
+		if (change == 0) {
+			return coinsUsed;
+		}
+		
+		this.best = null;
+		this.bestScore = -1;
+		this.bestSlack = -1;
+		this.bestCoins = 0;
+		this.mixesTried = 0;
+		this.need = getNeed(currency);
+		tryMixes(currency, coinCounts, coinCounts.length - 1, change, coinsUsed, 0);
+		
+		return this.best;
+	}
+	
+	/**
+	 * This method is inherited from the 'ChangePolicy' interface.
+	 * Makes the amount of change that was given more likely, and every other amount a little less likely.
+	 */
+	public synchronized void changeGiven(int change, CurrencySet currency, int[] coinsUsed) {
+		int unit = getUnit(currency);
+		if (unit == 0 || change <= 0 || change % unit != 0) {
+			return;
+		}
+		
+		int size = getLargestChange(currency) / unit;
+		if (this.demand == null || this.demand.length != size + 1) {
+			this.demand = new double[size + 1];
+			for (int a = 1; a <= size; a++) {
+				this.demand[a] = 1.0 / size;
+			}
+		}
+		
+		for (int a = 1; a <= size; a++) {
+			this.demand[a] *= (1 - ALPHA);
+		}
+		this.demand[Math.min(change / unit, size)] += ALPHA;
+	}
+	
+	/**
+	 * Returns how likely an amount of change is, from recent sales.
+	 * @param change - The change, in pence
+	 * @param currency - The currency of the machine
+	 * @return - A value between 0 and 1, where the values for every amount add up to 1
+	 */
+	public synchronized double getDemand(int change, CurrencySet currency) {
+		int unit = getUnit(currency);
+		int size = getLargestChange(currency) / unit;
+		if (change <= 0 || change % unit != 0 || change / unit > size) {
+			return 0;
+		}
+		
+		return getChance(change / unit, size);
+	}
+	
+	/**
+	 * Returns how likely an amount of change is, treating every amount as equally likely until change has been given.
+	 * @param amount - The change, in units
+	 * @param size - The largest change, in units
+	 * @return - A value between 0 and 1
+	 */
+	private double getChance(int amount, int size) {
+		if (this.demand == null || this.demand.length != size + 1) {
+			return 1.0 / size;
+		}
+		return this.demand[amount];
+	}
+	
+	/**
+	 * Tries every way of making up the remaining change from the coins at or below a position in the table.
+	 * @param currency - The currency of the machine
+	 * @param coinCounts - The amount of each coin in the machine
+	 * @param index - The position of the largest coin that may still be used
+	 * @param remaining - The change that is still to be made up, in pence
+	 * @param coinsUsed - The coins chosen so far, which is changed while trying mixes
+	 * @param coins - The number of coins chosen so far
+	 */
+	private void tryMixes(CurrencySet currency, int[] coinCounts, int index, int remaining, int[] coinsUsed, int coins) {
+		if (remaining == 0) {
+			scoreMix(currency, coinCounts, coinsUsed, coins);
+			return;
+		}
+		
+		if (index < 0 || this.mixesTried >= MAX_MIXES) {
+			return;
+		}
+		
+		Denomination coin = currency.getDenomination(index);
+		int most = coin.isNote() ? 0 : Math.min(coinCounts[index], remaining / coin.getValue());
+		
+		// The largest amount of each coin is tried first, so the first mix found is the largest-coin-first mix
+		for (int k = most; k >= 0; k--) {
+			coinsUsed[index] = k;
+			tryMixes(currency, coinCounts, index - 1, remaining - k * coin.getValue(), coinsUsed, coins + k);
+		}
+		coinsUsed[index] = 0;
+	}
+	
+	/**
+	 * Scores a complete mix of coins by how likely the machine is to be able to give the next amount of change.
+	 * @param currency - The currency of the machine
+	 * @param coinCounts - The amount of each coin in the machine
+	 * @param coinsUsed - The mix of coins being scored
+	 * @param coins - The number of coins in the mix
+	 */
+	private void scoreMix(CurrencySet currency, int[] coinCounts, int[] coinsUsed, int coins) {
+		this.mixesTried++;
+		
+		int[] left = new int[coinCounts.length];
+		for (int i = 0; i < left.length; i++) {
+			left[i] = coinCounts[i] - coinsUsed[i];
+		}
+		
+		int unit = getUnit(currency);
+		int size = getLargestChange(currency) / unit;
+		boolean[] possible = canMake(currency, left, unit, size);
+		
+		double score = 0;
+		for (int a = 1; a <= size; a++) {
+			if (possible[a]) {
+				score += getChance(a, size);
+			}
+		}
+		
+		// The coin that will run out first, compared with how many of it recent sales have needed
+		double slack = Double.MAX_VALUE;
+		for (int i = 0; i < left.length; i++) {
+			if (this.need[i] > 0) {
+				slack = Math.min(slack, left[i] / this.need[i]);
+			}
+		}
+		
+		boolean better;
+		if (Math.abs(score - this.bestScore) > 1e-9) {
+			better = score > this.bestScore;
+		} else if (coins != this.bestCoins) {
+			better = coins < this.bestCoins;
+		} else {
+			better = slack > this.bestSlack + 1e-9;
+		}
+		
+		if (better) {
+			this.best = coinsUsed.clone();
+			this.bestScore = score;
+			this.bestSlack = slack;
+			this.bestCoins = coins;
+		}
+	}
+	
+	/**
+	 * Works out how many of each coin an average sale needs for its change, from the likely amounts of change.
+	 * Each amount is made up using the largest coins first, as if the machine had plenty of every coin.
+	 * @param currency - The currency of the machine
+	 * @return - The average amount of each coin needed, in currency table order
+	 */
+	private double[] getNeed(CurrencySet currency) {
+		double[] res = new double[currency.size()];
+		int unit = getUnit(currency);
+		int size = getLargestChange(currency) / unit;
+		
+		for (int a = 1; a <= size; a++) {
+			double chance = getChance(a, size);
+			int remaining = a * unit;
+			for (int i = res.length - 1; i >= 0; i--) {
+				Denomination coin = currency.getDenomination(i);
+				if (!coin.isNote()) {
+					res[i] += chance * (remaining / coin.getValue());
+					remaining %= coin.getValue();
+				}
+			}
+		}
+		
+		return res;
+	}
+	
+	/**
+	 * Works out every amount up to a limit that can be made up from a set of coins.
+	 * Each coin type is added in turn, keeping track of how many of it each amount needed, so this takes
+	 * the amount of coin types multiplied by the number of amounts, however many coins there are.
+	 * @param currency - The currency of the machine
+	 * @param coinCounts - The amount of each coin
+	 * @param unit - The smallest unit shared by every coin, in pence
+	 * @param limit - The largest amount to check, in units
+	 * @return - An array where each position, in units, is true if that amount can be made up
+	 */
+	private static boolean[] canMake(CurrencySet currency, int[] coinCounts, int unit, int limit) {
+		boolean[] possible = new boolean[limit + 1];
+		int[] used = new int[limit + 1];
+		possible[0] = true;
+		
+		for (int i = 0; i < coinCounts.length; i++) {
+			Denomination coin = currency.getDenomination(i);
+			if (coin.isNote() || coinCounts[i] <= 0) {
+				continue;
+			}
+			
+			int steps = coin.getValue() / unit;
+			Arrays.fill(used, 0);
+			for (int a = steps; a <= limit; a++) {
+				if (!possible[a] && possible[a - steps] && used[a - steps] < coinCounts[i]) {
+					possible[a] = true;
+					used[a] = used[a - steps] + 1;
+				}
+			}
+		}
+		
+		return possible;
+	}
+	
+	/**
+	 * Returns the largest amount of change that a machine may need to give, which is
+	 * the largest note or coin when only the smallest coin was still owed.
+	 * @param currency - The currency of the machine
+	 * @return - The largest change, in pence
+	 */
+	private static int getLargestChange(CurrencySet currency) {
+		return currency.getDenomination(currency.size() - 1).getValue() - currency.getDenomination(0).getValue();
+	}
+	
+	/**
+	 * Finds the smallest unit shared by every coin, e.g. 5p, so that amounts can be counted in steps of that unit.
+	 * @param currency - The currency of the machine
+	 * @return - The unit, in pence, or 0 if the currency has no coins
+	 */
+	private static int getUnit(CurrencySet currency) {
+		int unit = 0;
+		for (int i = 0; i < currency.size(); i++) {
+			if (!currency.getDenomination(i).isNote()) {
+				int a = unit;
+				int b = currency.getDenomination(i).getValue();
+				while (b != 0) {
+					int t = a % b;
+					a = b;
+					b = t;
+				}
+				unit = a;
+			}
+		}
+		return unit;
+	}
+	
+}
@@ -0,0 +1,311 @@
+package vend;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * This class runs a script of commands against a VendingMachine without any prompts,
+ * so that a long list of transactions can be replayed quickly.
+ *
+ * Each line of the script holds one command. Blank lines and lines starting with # are skipped.
+ * insert (coin value in pence) - buy (item number) - cancel - restock (item number) (quantity)
+ * add (cost in pence) (quantity) (name) - status vending|service|offline - save (file)
+ *
+ * One result line is written for each command, followed by a summary line of name=value pairs.
+ * @author Fergal Bittles
+ *
+ */
+public class BatchRunner {
+
+	private final VendingMachine machine;
+	private final PrintWriter out;
+	
+	private int commands;
+	private int succeeded;
+	private int failed;
+	private int invalid;
+	private int sales;
+	private int takings; // In pence
+	
+	/**
+	 * Constructor for BatchRunner.
+	 * @param machine - The vending machine that the commands are run against
+	 * @param out - Where the results are written, which should be buffered
+	 */
+	public BatchRunner(VendingMachine machine, PrintWriter out) {
+		this.machine = machine;
+		this.out = out;
+	}
+	
+	/**
+	 * Runs every command in a script, then writes the summary and flushes the output.
+	 * @param script - The script to read
+	 * @return - 0 if every line was a valid command, 1 if any line was not, or 2 if the script could not be read
+	 */
+	public int run(BufferedReader script) {
+		int exitCode = 0;
+		
+		try {
+			int lineNum = 1;
+			String line = script.readLine();
+			while (line != null) {
+				line = line.trim();
+				if (!line.equals("") && !line.startsWith("#")) {
+					runCommand(lineNum, line);
+				}
+				line = script.readLine();
+				lineNum++;
+			}
+		} catch (IOException e) {
+			this.out.println("ERROR Unable to read script: " + e.getMessage());
+			exitCode = 2;
+		}
+		
+		if (exitCode == 0 && this.invalid > 0) {
+			exitCode = 1;
+		}
+		
+		this.out.println(getSummary());
+		this.out.flush();
+		return exitCode;
+	}
+	
+	/**
+	 * Returns the summary of the commands that have been run.
+	 * @return - A single line of name=value pairs
+	 */
+	public String getSummary() {
+		String res = "SUMMARY";
+		res += " commands=" + this.commands;
+		res += " ok=" + this.succeeded;
+		res += " failed=" + this.failed;
+		res += " invalid=" + this.invalid;
+		res += " sales=" + this.sales;
+		res += String.format(" takings=%.2f", this.takings / 100.0);
+		res += String.format(" userMoney=%.2f", this.machine.getUserMoney());
+		res += String.format(" totalMoney=%.2f", this.machine.getTotalMoney());
+		res += " status=" + this.machine.getMachineStatus().name();
+		return res;
+	}
+	
+	/**
+	 * Runs one command and writes its result.
+	 * @param lineNum - The line of the script that the command is on
+	 * @param line - The command
+	 */
+	private void runCommand(int lineNum, String line) {
+		this.commands++;
+		String[] parts = line.split("\\s+", 4);
+		String command = parts[0].toLowerCase();
+		String res;
+		
+		switch (command) {
+		case "insert":
+			res = (parts.length == 2) ? insert(parts[1]) : null;
+			break;
+		case "buy":
+			res = (parts.length == 2) ? buy(parts[1]) : null;
+			break;
+		case "cancel":
+			res = (parts.length == 1) ? cancel() : null;
+			break;
+		case "restock":
+			res = (parts.length == 3) ? restock(parts[1], parts[2]) : null;
+			break;
+		case "add":
+			res = (parts.length == 4) ? add(parts[1], parts[2], parts[3]) : null;
+			break;
+		case "status":
+			res = (parts.length == 2) ? status(parts[1]) : null;
+			break;
+		case "save":
+			res = (parts.length >= 2) ? save(line.substring(command.length()).trim()) : null;
+			break;
+		default:
+			res = null;
+		}
+		
+		if (res == null) {
+			this.invalid++;
+			this.out.println(lineNum + " INVALID " + line);
+		} else if (res.startsWith("OK")) {
+			this.succeeded++;
+			this.out.println(lineNum + " " + command + " " + res);
+		} else {
+			this.failed++;
+			this.out.println(lineNum + " " + command + " " + res);
+		}
+	}
+	
+	/**
+	 * Inserts a coin.
+	 * @param value - The value of the coin, in pence
+	 * @return - The result, or null if the command is not valid
+	 */
+	private String insert(String value) {
+		if (!MachineData.isInteger(value)) {
+			return null;
+		}
+		
+		int index = this.machine.getCurrency().indexOf(Integer.parseInt(value));
+		if (index < 0) {
+			return "FAIL Coin not accepted";
+		}
+		
+		if (!this.machine.insertCoin(index + 1)) {
+			return "FAIL Machine is not taking coins";
+		}
+		
+		return "OK Balance " + this.machine.getCurrency().format(this.machine.getUserMoney());
+	}
+	
+	/**
+	 * Purchases an item.
+	 * @param number - The item number, starting at 1 as shown in the menu
+	 * @return - The result, or null if the command is not valid
+	 */
+	private String buy(String number) {
+		if (!MachineData.isInteger(number)) {
+			return null;
+		}
+		
+		int item = Integer.parseInt(number) - 1;
+		double price = (item >= 0 && item < this.machine.getItemCount()) ? this.machine.getPrice(item) : 0;
+		String result = this.machine.purchaseItem(item);
+		
+		// Only the first line of the result is kept, so each command has one line of output
+		String first = result.split("\n")[0];
+		if (first.startsWith("Failure: ")) {
+			return "FAIL " + first.substring(9);
+		}
+		
+		this.sales++;
+		this.takings += Math.round(price * 100);
+		return "OK " + first;
+	}
+	
+	/**
+	 * Cancels the purchase and hands back the coins that were inserted.
+	 * @return - The result
+	 */
+	private String cancel() {
+		String result = this.machine.returnCoins();
+		String first = result.split("\n")[0];
+		if (first.startsWith("Failure: ")) {
+			return "FAIL " + first.substring(9);
+		}
+		return "OK " + first;
+	}
+	
+	/**
+	 * Restocks an item. As in the maintenance menu, the machine must be in Service Mode.
+	 * @param number - The item number, starting at 1 as shown in the menu
+	 * @param quantity - The quantity to add
+	 * @return - The result, or null if the command is not valid
+	 */
+	private String restock(String number, String quantity) {
+		if (!MachineData.isInteger(number) || !MachineData.isInteger(quantity)) {
+			return null;
+		}
+		
+		if (this.machine.getMachineStatus() != Status.SERVICE_MODE) {
+			return "FAIL Enable SERVICE MODE to restock items";
+		}
+		
+		int item = Integer.parseInt(number) - 1;
+		if (item < 0 || item >= this.machine.getItemCount()) {
+			return "FAIL Invalid item selected";
+		}
+		
+		if (!this.machine.restockItem(item, Integer.parseInt(quantity))) {
+			return "FAIL The maximum quantity for \"" + this.machine.getVendItem(item).getName() + "\" is 10";
+		}
+		
+		return "OK \"" + this.machine.getVendItem(item).getName() + "\" now has " + this.machine.getVendItem(item).getQty() + " in stock";
+	}
+	
+	/**
+	 * Adds a new item. As in the maintenance menu, the machine must be in Service Mode
+	 * and the cost must be valid in the machine's currency.
+	 * @param cost - The cost of the item, in pence
+	 * @param quantity - The quantity of the item
+	 * @param name - The name of the item
+	 * @return - The result, or null if the command is not valid
+	 */
+	private String add(String cost, String quantity, String name) {
+		if (!MachineData.isInteger(cost) || !MachineData.isInteger(quantity)) {
+			return null;
+		}
+		
+		if (this.machine.getMachineStatus() != Status.SERVICE_MODE) {
+			return "FAIL Enable SERVICE MODE to add items";
+		}
+		
+		int costInPence = Integer.parseInt(cost);
+		int qty = Integer.parseInt(quantity);
+		
+		CurrencySet currency = this.machine.getCurrency();
+		if (!currency.isValidPrice(costInPence)) {
+			return "FAIL The item cost must be " + currency.describePrices();
+		}
+		
+		if (qty < 0 || qty > 10) {
+			return "FAIL The new item must have a quantity between 0 and 10 (inclusive)";
+		}
+		
+		if (!this.machine.addNewItem(new VendItem(name, costInPence / 100.0, qty))) {
+			return "FAIL There is no room in the vending machine for more items";
+		}
+		
+		return "OK \"" + name + "\" added as item " + this.machine.getItemCount();
+	}
+	
+	/**
+	 * Changes the status of the machine. A customer who has already inserted money is allowed to finish first.
+	 * @param name - vending, service or offline
+	 * @return - The result, or null if the command is not valid
+	 */
+	private String status(String name) {
+		Status target;
+		switch (name.toLowerCase()) {
+		case "vending":
+			target = Status.VENDING_MODE;
+			break;
+		case "service":
+			target = Status.SERVICE_MODE;
+			break;
+		case "offline":
+			target = Status.OFFLINE;
+			break;
+		default:
+			return null;
+		}
+		
+		if (target == Status.VENDING_MODE) {
+			this.machine.setStatus(target);
+		} else {
+			this.machine.requestStatus(target);
+		}
+		
+		return "OK " + this.machine.getStatus();
+	}
+	
+	/**
+	 * Saves the machine to a CSV file.
+	 * @param path - The file to write
+	 * @return - The result
+	 */
+	private String save(String path) {
+		try {
+			MachineData.save(this.machine, new File(path));
+		} catch (FileNotFoundException e) {
+			return "FAIL Unable to write " + path;
+		}
+		
+		return "OK Saved to " + path;
+	}
+	
+}
@@ -0,0 +1,20 @@
+package vend;
+
+/**
+ * This interface is implemented by anything that needs to know straight away
+ * when the total money in a VendingMachine stops matching the value of its coins.
+ * @author Fergal Bittles
+ *
+ */
+public interface CashDriftListener {
+
+	/**
+	 * Called by a VendingMachine as soon as an operation leaves its cash out of balance.
+	 * @param machine - The vending machine
+	 * @param operation - The name of the operation that caused the drift, e.g. "purchaseItem"
+	 * @param totalMoney - The total money recorded by the machine
+	 * @param coinValue - The value of the coins inside the machine
+	 */
+	public void cashDrift(VendingMachine machine, String operation, double totalMoney, double coinValue);
+	
+}
@@ -0,0 +1,47 @@
+package vend;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * This class audits the cash of a whole fleet of vending machines.
+ * Each machine is checked using a consistent snapshot, so the audit runs in parallel
+ * without stopping any machine from trading.
+ * @author Fergal Bittles
+ *
+ */
+public class CashReconciler {
+
+	/**
+	 * Finds every machine whose total money does not match the value of its coins.
+	 * @param machines - The vending machines to audit
+	 * @return - The machines that are out of balance
+	 */
+	public static List<VendingMachine> audit(List<VendingMachine> machines) {
+		return machines.parallelStream()
+				.filter(machine -> !machine.getSnapshot().isBalanced())
+				.collect(Collectors.toList());
+	}
+	
+	/**
+	 * Describes every machine that is out of balance.
+	 * @param machines - The vending machines to audit
+	 * @return - One line for each machine that is out of balance, or an empty string if they all balance
+	 */
+	public static String report(List<VendingMachine> machines) {
+		String res = "";
+		
+		for (VendingMachine machine : audit(machines)) {
+			MachineSnapshot snap = machine.getSnapshot();
+			res += machine.getOwner() + ": Total money " + snap.getCurrency().format(snap.getTotalMoney());
+			res += " but coins add up to " + snap.getCurrency().format(snap.getCoinTotal());
+			if (machine.getCashDrift() != null) {
+				res += " (first drift: " + machine.getCashDrift() + ")";
+			}
+			res += "\n";
+		}
+		
+		return res;
+	}
+	
+}
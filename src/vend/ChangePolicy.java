@@ -0,0 +1,40 @@
+package vend;
+
+/**
+ * This interface is implemented by the different ways a VendingMachine can choose the coins to give as change.
+ * Each machine has its own policy, as a policy may learn from that machine's sales.
+ * @author Fergal Bittles
+ *
+ */
+public interface ChangePolicy {
+
+	/**
+	 * Checks if change can be given, without choosing the coins. This is called far more often than chooseCoins,
+	 * e.g. to warn users that the machine is low on coins, so should be quick.
+	 * It must agree with chooseCoins, so that a purchase is never let through and then left without change.
+	 * The answer must only depend on the change and the coins, as a VendingMachine reuses it until its coins change.
+	 * @param change - The change to be given, in pence
+	 * @param currency - The currency of the machine
+	 * @param coinCounts - The amount of each coin in the machine, in currency table order, which must not be changed
+	 * @return - A boolean is returned to indicate if the change can be given
+	 */
+	public boolean canGiveChange(int change, CurrencySet currency, int[] coinCounts);
+	
+	/**
+	 * Chooses the coins to give as change. Notes are never given as change.
+	 * @param change - The change to be given, in pence
+	 * @param currency - The currency of the machine
+	 * @param coinCounts - The amount of each coin in the machine, in currency table order, which must not be changed
+	 * @return - The amount of each coin to give, in currency table order, or null if the change can not be given
+	 */
+	public int[] chooseCoins(int change, CurrencySet currency, int[] coinCounts);
+	
+	/**
+	 * Called by a VendingMachine each time change has been given.
+	 * @param change - The change that was given, in pence
+	 * @param currency - The currency of the machine
+	 * @param coinsUsed - The amount of each coin that was given, in currency table order
+	 */
+	public void changeGiven(int change, CurrencySet currency, int[] coinsUsed);
+	
+}
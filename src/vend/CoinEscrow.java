@@ -0,0 +1,97 @@
+package vend;
+
+import java.util.Arrays;
+
+/**
+ * This class holds the coins inserted by the customer who is using a VendingMachine, apart from the machine's own coins.
+ * The coins stay here until a purchase commits them into the machine's coins, or they are handed back exactly
+ * as they were inserted. Only used while holding the machine's lock.
+ * @author Fergal Bittles
+ *
+ */
+class CoinEscrow {
+
+	private final int[] counts;
+	private int value; // In pence
+	
+	/**
+	 * Constructor for CoinEscrow. The escrow starts empty.
+	 * @param coinTypes - The number of coins in the machine's currency
+	 */
+	CoinEscrow(int coinTypes) {
+		this.counts = new int[coinTypes];
+	}
+	
+	/**
+	 * Adds an inserted coin.
+	 * @param index - The position of the coin in the currency table
+	 * @param coinValue - The value of the coin, in pence
+	 */
+	void add(int index, int coinValue) {
+		this.counts[index]++;
+		this.value += coinValue;
+	}
+	
+	/**
+	 * Checks if the escrow holds no coins.
+	 * @return - A boolean is returned to indicate if the escrow is empty
+	 */
+	boolean isEmpty() {
+		return this.value == 0;
+	}
+	
+	/**
+	 * Returns the value of the coins in the escrow.
+	 * @return - The value, in pence
+	 */
+	int getValue() {
+		return this.value;
+	}
+	
+	/**
+	 * Returns the number of each coin in the escrow.
+	 * @return - A copy of the counts, indexed by position in the currency
+	 */
+	int[] getCounts() {
+		return this.counts.clone();
+	}
+	
+	/**
+	 * Adds the coins in the escrow to a set of coin counts, without changing either.
+	 * Used to check what change could be given once the escrow is committed.
+	 * @param coinCounts - The machine's coin counts
+	 * @return - The combined counts
+	 */
+	int[] addTo(int[] coinCounts) {
+		int[] res = coinCounts.clone();
+		for (int i = 0; i < this.counts.length; i++) {
+			res[i] += this.counts[i];
+		}
+		return res;
+	}
+	
+	/**
+	 * Empties the escrow.
+	 * @return - The coins it held, indexed by position in the currency
+	 */
+	int[] take() {
+		int[] res = this.counts.clone();
+		Arrays.fill(this.counts, 0);
+		this.value = 0;
+		return res;
+	}
+	
+	/**
+	 * Replaces the coins in the escrow, e.g. when a machine is handed to another FleetNode mid-purchase.
+	 * @param coins - The number of each coin, indexed by position in the currency
+	 * @param currency - The machine's currency
+	 */
+	void set(int[] coins, CurrencySet currency) {
+		this.value = 0;
+		for (int i = 0; i < this.counts.length; i++) {
+			this.counts[i] = (i < coins.length) ? Math.max(0, coins[i]) : 0;
+			this.value += this.counts[i] * currency.getDenomination(i).getValue();
+		}
+	}
+	
+}
@@ -0,0 +1,155 @@
+package vend;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class watches a config file and applies it to a running VendingMachine each time the file is saved,
+ * so the owner, maximum items, prices and items can be changed without restarting the machine.
+ *
+ * The file is read and checked on the watcher's own thread, and the machine is only locked for the moment it
+ * takes to apply the changes, so customers part way through a purchase are not interrupted.
+ * A file that can not be read or applied is ignored, and the machine carries on with the last config that worked.
+ * @author Fergal Bittles
+ *
+ */
+public class ConfigWatcher {
+
+	// Editors often save a file in more than one step, so changes are only read once the file has been quiet this long
+	private static final long SETTLE_MILLIS = 200;
+	
+	private final File file;
+	private final VendingMachine machine;
+	private WatchService watcher;
+	private Thread thread;
+	private volatile String lastResult;
+	
+	/**
+	 * Constructor for ConfigWatcher. Call start to begin watching.
+	 * @param file - The config file, in the format read by MachineConfig
+	 * @param machine - The vending machine that the config is applied to
+	 */
+	public ConfigWatcher(File file, VendingMachine machine) {
+		this.file = file.getAbsoluteFile();
+		this.machine = machine;
+	}
+	
+	/**
+	 * Applies the config file once, then keeps watching it for changes on a background thread.
+	 * @throws IOException - If the folder holding the file can not be watched
+	 */
+	public synchronized void start() throws IOException {
+		if (this.thread != null) {
+			return;
+		}
+		
+		this.watcher = FileSystems.getDefault().newWatchService();
+		try {
+			// Only folders can be watched, so the events for the other files in the folder are filtered out later
+			this.file.getParentFile().toPath().register(this.watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (IOException e) {
+			this.watcher.close();
+			this.watcher = null;
+			throw e;
+		}
+		
+		reload();
+		
+		WatchService service = this.watcher;
+		this.thread = new Thread(() -> watch(service), "config-watcher");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+	
+	/**
+	 * Stops watching the config file. The machine keeps the last config that was applied.
+	 */
+	public synchronized void stop() {
+		if (this.thread == null) {
+			return;
+		}
+		
+		try {
+			this.watcher.close();
+		} catch (IOException e) {
+			// The thread is interrupted below anyway
+		}
+		this.thread.interrupt();
+		this.thread = null;
+		this.watcher = null;
+	}
+	
+	/**
+	 * Reads the config file and applies it to the machine straight away.
+	 * @return - The result, which starts with "Failure: " if nothing was changed
+	 */
+	public String reload() {
+		MachineConfig config = MachineConfig.load(this.file);
+		String res = config.isValid() ? this.machine.applyConfig(config) : "Failure: " + config.getError();
+		this.lastResult = res;
+		return res;
+	}
+	
+	/**
+	 * Returns the result of the last time the config file was applied.
+	 * @return - The result, or null if the file has not been read yet
+	 */
+	public String getLastResult() {
+		return this.lastResult;
+	}
+	
+	/**
+	 * Waits for the config file to change and applies it each time. Runs on the watcher thread until stopped.
+	 * @param service - The watch service
+	 */
+	private void watch(WatchService service) {
+		try {
+			while (true) {
+				if (!isConfigEvent(service.take())) {
+					continue;
+				}
+				
+				// Wait for the file to settle, taking in any further events so the file is only read once
+				WatchKey key = service.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+				while (key != null) {
+					isConfigEvent(key);
+					key = service.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+				}
+				
+				reload();
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// Stopped
+		}
+	}
+	
+	/**
+	 * Takes the events from a watch key and resets it so that it keeps watching.
+	 * @param key - The watch key
+	 * @return - A boolean is returned to indicate if any event was for the config file
+	 */
+	private boolean isConfigEvent(WatchKey key) {
+		boolean res = false;
+		
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				// Some events were lost, so the file may have changed
+				res = true;
+			} else if (((Path) event.context()).getFileName().toString().equals(this.file.getName())) {
+				res = true;
+			}
+		}
+		
+		key.reset();
+		return res;
+	}
+	
+}
@@ -0,0 +1,293 @@
+package vend;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class represents a currency that a VendingMachine can accept.
+ * Denominations are listed from the smallest value to the largest.
+ *
+ * Currencies are read from data, one per line, in the format:
+ * name,symbol,maximum price,value:label:float,value:label:float,...
+ * where a denomination ending in :note is a note, which is accepted but never given as change.
+ * The maximum price and values are in the minor unit of the currency (e.g. pence or cents).
+ * Sterling, euro and dollar are always available, and more can be added with load.
+ *
+ * @author Fergal Bittles
+ *
+ */
+public final class CurrencySet {
+
+	// Every currency that has been defined, by name. Declared before the built in currencies, which add themselves to it.
+	private static final Map<String, CurrencySet> CURRENCIES = new ConcurrentHashMap<String, CurrencySet>();
+	
+	public static final CurrencySet STERLING = define("STERLING,£,200,5:5p:10,10:10p:10,20:20p:10,50:50p:10,100:£1:5,200:£2:0");
+	public static final CurrencySet EURO = define("EURO,€,200,5:5c:10,10:10c:10,20:20c:10,50:50c:10,100:€1:5,200:€2:0");
+	public static final CurrencySet DOLLAR = define("DOLLAR,$,200,5:5¢:20,10:10¢:20,25:25¢:20,100:$1:0:note,500:$5:0:note");
+	
+	private final String name;
+	private final String symbol;
+	private final int maxPrice;
+	private final Denomination[] denominations;
+	private final int[] startingFloat;
+	private final int smallestCoin;
+	
+	/**
+	 * Constructor for CurrencySet. Use parse to read a currency from data.
+	 * @param name - The name of the currency
+	 * @param symbol - The currency symbol
+	 * @param maxPrice - The highest price an item can have, in the minor unit of the currency
+	 * @param denominations - The coins and notes, from the smallest value to the largest
+	 * @param startingFloat - The amount of each denomination that a new machine is given
+	 */
+	private CurrencySet(String name, String symbol, int maxPrice, Denomination[] denominations, int[] startingFloat) {
+		this.name = name;
+		this.symbol = symbol;
+		this.maxPrice = maxPrice;
+		this.denominations = denominations;
+		this.startingFloat = startingFloat;
+		
+		int smallest = 0;
+		for (int i = denominations.length - 1; i >= 0; i--) {
+			if (!denominations[i].isNote()) {
+				smallest = denominations[i].getValue();
+			}
+		}
+		this.smallestCoin = smallest;
+	}
+	
+	/**
+	 * Called when the class is loaded to add a built in currency.
+	 * @param line - The currency, in the format described above
+	 * @return - The currency
+	 */
+	private static CurrencySet define(String line) {
+		CurrencySet currency = parse(line);
+		CURRENCIES.put(currency.getName(), currency);
+		return currency;
+	}
+	
+	/**
+	 * Reads one currency from a line of data. The currency is not added to the list of currencies.
+	 * @param line - The currency, in the format described above
+	 * @return - The currency, or null if the line is not valid
+	 */
+	static CurrencySet parse(String line) {
+		String[] parts = line.split(",");
+		if (parts.length < 4) {
+			return null;
+		}
+		
+		String name = parts[0].trim();
+		String symbol = parts[1].trim();
+		if (name.equals("") || symbol.equals("") || !MachineData.isInteger(parts[2].trim())) {
+			return null;
+		}
+		
+		int maxPrice = Integer.parseInt(parts[2].trim());
+		if (maxPrice <= 0) {
+			return null;
+		}
+		
+		Denomination[] denominations = new Denomination[parts.length - 3];
+		int[] startingFloat = new int[denominations.length];
+		boolean hasCoin = false;
+		
+		for (int i = 0; i < denominations.length; i++) {
+			String[] fields = parts[i + 3].split(":");
+			if (fields.length != 3 && !(fields.length == 4 && fields[3].trim().equals("note"))) {
+				return null;
+			}
+			
+			if (!MachineData.isInteger(fields[0].trim()) || fields[1].trim().equals("") || !MachineData.isInteger(fields[2].trim())) {
+				return null;
+			}
+			
+			int value = Integer.parseInt(fields[0].trim());
+			int amount = Integer.parseInt(fields[2].trim());
+			
+			// Values must go up, so that index 0 is always the smallest
+			if (value <= 0 || amount < 0 || (i > 0 && value <= denominations[i - 1].getValue())) {
+				return null;
+			}
+			
+			boolean note = (fields.length == 4);
+			denominations[i] = new Denomination(value, fields[1].trim(), note);
+			startingFloat[i] = amount;
+			hasCoin = hasCoin || !note;
+		}
+		
+		// Prices are checked against the smallest coin, so there must be at least one
+		if (!hasCoin) {
+			return null;
+		}
+		
+		return new CurrencySet(name, symbol, maxPrice, denominations, startingFloat);
+	}
+	
+	/**
+	 * Reads a file of currencies and adds them to the list of currencies.
+	 * Blank lines and lines starting with # are skipped. Nothing is added unless every currency in the file is valid.
+	 * @param file - The currency file
+	 * @return - The reason the file could not be used, or null if every currency was added
+	 */
+	public static String load(File file) {
+		List<CurrencySet> loaded = new ArrayList<CurrencySet>();
+		
+		try (Scanner scan = new Scanner(file)) {
+			int lineNum = 0;
+			while (scan.hasNextLine()) {
+				String line = scan.nextLine().trim();
+				lineNum++;
+				if (line.equals("") || line.startsWith("#")) {
+					continue;
+				}
+				
+				CurrencySet currency = parse(line);
+				if (currency == null) {
+					return "Invalid currency on line " + lineNum;
+				}
+				
+				// Machines keep hold of their currency, so one that is already in use can not be replaced
+				if (CURRENCIES.containsKey(currency.getName())) {
+					return currency.getName() + " is already defined, on line " + lineNum;
+				}
+				for (CurrencySet other : loaded) {
+					if (other.getName().equals(currency.getName())) {
+						return currency.getName() + " is listed twice, on line " + lineNum;
+					}
+				}
+				
+				loaded.add(currency);
+			}
+		} catch (FileNotFoundException e) {
+			return "File not found";
+		}
+		
+		for (CurrencySet currency : loaded) {
+			CURRENCIES.put(currency.getName(), currency);
+		}
+		return null;
+	}
+	
+	/**
+	 * Finds a currency using its name.
+	 * @param name - The name of the currency (e.g. "STERLING")
+	 * @return - The currency, or null if there is no currency with that name
+	 */
+	public static CurrencySet forName(String name) {
+		return (name != null) ? CURRENCIES.get(name) : null;
+	}
+	
+	/**
+	 * Returns the name of the currency, which is saved with a machine.
+	 * @return - The currency name
+	 */
+	public String getName() {
+		return this.name;
+	}
+	
+	/**
+	 * Returns the symbol of the currency.
+	 * @return - The currency symbol
+	 */
+	public String getSymbol() {
+		return this.symbol;
+	}
+	
+	/**
+	 * Returns the number of denominations in the currency.
+	 * @return - The number of denominations
+	 */
+	public int size() {
+		return this.denominations.length;
+	}
+	
+	/**
+	 * Returns the denomination at a particular position in the table.
+	 * @param index - The position of the denomination, 0 being the smallest
+	 * @return - The denomination
+	 */
+	public Denomination getDenomination(int index) {
+		return this.denominations[index];
+	}
+	
+	/**
+	 * Returns the amount of each denomination that a new machine is given as a float.
+	 * @param index - The position of the denomination, 0 being the smallest
+	 * @return - The starting amount of the denomination
+	 */
+	public int getStartingFloat(int index) {
+		return this.startingFloat[index];
+	}
+	
+	/**
+	 * Returns the value of the smallest coin. Notes are never given as change, so they are not counted.
+	 * @return - The value in the minor unit of the currency
+	 */
+	public int getSmallestCoin() {
+		return this.smallestCoin;
+	}
+	
+	/**
+	 * Returns the highest price that an item can have.
+	 * @return - The maximum price in the minor unit of the currency
+	 */
+	public int getMaxPrice() {
+		return this.maxPrice;
+	}
+	
+	/**
+	 * Checks that a price can be sold in this currency. It must be greater than 0, no more than the maximum price,
+	 * and a multiple of the smallest coin, so that the exact change can always be made up.
+	 * @param price - The price in the minor unit of the currency
+	 * @return - A boolean is returned to indicate if the price is valid
+	 */
+	public boolean isValidPrice(int price) {
+		return price > 0 && price <= this.maxPrice && price % this.smallestCoin == 0;
+	}
+	
+	/**
+	 * Describes the prices that are valid in this currency, for showing to the user.
+	 * @return - A description such as "a multiple of 5p up to £2.00"
+	 */
+	public String describePrices() {
+		return "a multiple of " + this.denominations[indexOf(this.smallestCoin)].getLabel() + " up to " + format(this.maxPrice / 100.0);
+	}
+	
+	/**
+	 * Finds the position of a denomination using its value.
+	 * @param value - The value in the minor unit of the currency
+	 * @return - The position of the denomination, or -1 if there is no such denomination
+	 */
+	public int indexOf(int value) {
+		for (int i = 0; i < this.denominations.length; i++) {
+			if (this.denominations[i].getValue() == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Formats an amount of money using the currency symbol.
+	 * @param amount - The amount of money in whole units (e.g. pounds)
+	 * @return - The formatted amount
+	 */
+	public String format(double amount) {
+		return this.symbol + String.format("%.2f", amount);
+	}
+	
+	/**
+	 * Returns the name of the currency.
+	 */
+	public String toString() {
+		return this.name;
+	}
+	
+}
@@ -0,0 +1,57 @@
+package vend;
+
+/**
+ * This class represents a single coin or note that a vending machine accepts.
+ * @author Fergal Bittles
+ *
+ */
+public class Denomination {
+
+	private final int value;
+	private final String label;
+	private final boolean note;
+	
+	/**
+	 * Constructor for Denomination.
+	 * @param value - The value in the minor unit of the currency (e.g. pence or cents)
+	 * @param label - The label shown to the user (e.g. "50p")
+	 * @param note - True if this is a note, which can be accepted but is never given as change
+	 */
+	public Denomination(int value, String label, boolean note) {
+		this.value = value;
+		this.label = label;
+		this.note = note;
+	}
+	
+	/**
+	 * Returns the value of the denomination in the minor unit of the currency.
+	 * @return - The value of the denomination
+	 */
+	public int getValue() {
+		return this.value;
+	}
+	
+	/**
+	 * Returns the label of the denomination.
+	 * @return - The label of the denomination
+	 */
+	public String getLabel() {
+		return this.label;
+	}
+	
+	/**
+	 * Returns whether the denomination is a note.
+	 * @return - True if the denomination is a note, false if it is a coin
+	 */
+	public boolean isNote() {
+		return this.note;
+	}
+	
+	/**
+	 * Returns the label of the denomination.
+	 */
+	public String toString() {
+		return this.label;
+	}
+	
+}
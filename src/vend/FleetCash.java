@@ -0,0 +1,120 @@
+package vend;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class keeps running totals of the coins and money held across a fleet of vending machines.
+ * 
+ * Every coin inserted into, or given out by, any machine in the fleet updates these totals,
+ * so they are written by many threads at once. Each total is a LongAdder, which spreads updates
+ * over several padded cells instead of one shared counter and adds the cells up when it is read.
+ * A read taken while machines are trading may be part way through an update, so use
+ * getExactTotal when the figures must match the machines exactly.
+ * 
+ * @author Fergal Bittles
+ *
+ */
+public class FleetCash {
+
+	private final CurrencySet currency;
+	private final LongAdder[] coinCounts;
+	private final LongAdder totalMoney;
+	
+	/**
+	 * Constructor for FleetCash.
+	 * @param currency - The currency used by every machine in the fleet
+	 */
+	public FleetCash(CurrencySet currency) {
+		this.currency = (currency != null) ? currency : CurrencySet.STERLING;
+		this.coinCounts = new LongAdder[this.currency.size()];
+		for (int i = 0; i < this.coinCounts.length; i++) {
+			this.coinCounts[i] = new LongAdder();
+		}
+		this.totalMoney = new LongAdder();
+	}
+	
+	/**
+	 * Adds a vending machine to the fleet. The money already in the machine is added to the totals.
+	 * @param machine - The vending machine
+	 * @return - A boolean is returned to indicate failure or success
+	 */
+	public boolean addMachine(VendingMachine machine) {
+		if (machine == null || machine.getCurrency() != this.currency) {
+			return false;
+		}
+		return machine.joinFleetCash(this);
+	}
+	
+	/**
+	 * Records coins being added to, or removed from, a machine in the fleet.
+	 * @param index - The position of the coin in the currency table
+	 * @param count - The number of coins added, or a negative number if coins were removed
+	 */
+	void recordCoins(int index, int count) {
+		this.coinCounts[index].add(count);
+		this.totalMoney.add((long)count * this.currency.getDenomination(index).getValue());
+	}
+	
+	/**
+	 * Records a change to the total money of a machine that did not involve any coins.
+	 * @param pence - The change to the total money, in pence
+	 */
+	void recordMoney(int pence) {
+		this.totalMoney.add(pence);
+	}
+	
+	/**
+	 * Returns the currency used by the fleet.
+	 * @return - The currency
+	 */
+	public CurrencySet getCurrency() {
+		return this.currency;
+	}
+	
+	/**
+	 * Returns the total money across the fleet.
+	 * @return - The total money
+	 */
+	public double getTotalMoney() {
+		return this.totalMoney.sum() / 100.0;
+	}
+	
+	/**
+	 * Returns the amount of a coin across the fleet.
+	 * @param index - The position of the coin in the currency table
+	 * @return - The amount of the coin, or -1 if the position is invalid
+	 */
+	public long getCoinCount(int index) {
+		if (index < 0 || index >= this.coinCounts.length) {
+			return -1;
+		}
+		return this.coinCounts[index].sum();
+	}
+	
+	/**
+	 * Adds up the total money of each machine from a consistent snapshot of that machine.
+	 * This does not stop any machine from trading.
+	 * @param machines - The machines in the fleet
+	 * @return - The total money across the machines
+	 */
+	public static double getExactTotal(List<VendingMachine> machines) {
+		long total = 0;
+		for (VendingMachine machine : machines) {
+			total += Math.round(machine.getSnapshot().getTotalMoney() * 100);
+		}
+		return total / 100.0;
+	}
+	
+	/**
+	 * Returns a string containing the fleet totals. Useful for testing the FleetCash class.
+	 */
+	public String toString() {
+		String res = "Fleet Total: " + this.currency.format(this.getTotalMoney()) + "\n";
+		for (int i = 0; i < this.coinCounts.length; i++) {
+			res += "> " + this.currency.getDenomination(i) + ": " + this.coinCounts[i].sum() + "\n";
+		}
+		return res;
+	}
+	
+}
@@ -0,0 +1,61 @@
+package vend;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * This class moves a whole fleet of vending machines to Service Mode or Offline at once.
+ * Every machine is asked to drain before any waiting starts, so they all drain at the same time,
+ * and the caller then waits once, on a future that completes when every machine has finished,
+ * until it completes or the time limit is reached.
+ * @author Fergal Bittles
+ *
+ */
+public class FleetDrainer {
+
+	/**
+	 * Drains every machine in a fleet and moves it to the target status.
+	 * @param machines - The vending machines to drain
+	 * @param target - Status.SERVICE_MODE or Status.OFFLINE
+	 * @param timeoutMillis - The longest time to wait for the whole fleet, in milliseconds
+	 * @return - The machines that had not reached the target status when the time ran out
+	 * @throws InterruptedException - If the waiting thread is interrupted
+	 */
+	public static List<VendingMachine> drainAll(List<VendingMachine> machines, Status target, long timeoutMillis) throws InterruptedException {
+		List<VendingMachine> unfinished = new ArrayList<VendingMachine>();
+		if (machines.isEmpty()) {
+			return unfinished;
+		}
+		
+		// Asking a machine to drain does not block, so every machine starts draining straight away.
+		// The future is taken first, so a machine that finishes at once is never missed.
+		List<CompletableFuture<Void>> finished = new ArrayList<CompletableFuture<Void>>();
+		for (VendingMachine machine : machines) {
+			CompletableFuture<Void> done = machine.whenStatus(target);
+			if (machine.requestStatus(target)) {
+				finished.add(done);
+			}
+		}
+		
+		// The machines drain by themselves, so one wait covers the whole fleet however many machines it has
+		try {
+			CompletableFuture.allOf(finished.toArray(new CompletableFuture<?>[0])).get(Math.max(0, timeoutMillis), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			// The machines that have not finished are listed below
+		} catch (ExecutionException e) {
+			// The futures are only ever completed normally
+		}
+		
+		for (VendingMachine machine : machines) {
+			if (machine.getMachineStatus() != target) {
+				unfinished.add(machine);
+			}
+		}
+		return unfinished;
+	}
+	
+}
@@ -0,0 +1,168 @@
+package vend;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * This class restores every vending machine in a directory, with one CSV file per machine.
+ * The files are read in parallel on a fork-join pool. A corrupt file, or one that can not be read at all,
+ * is reported in its RestoreResult and does not stop the other machines from being restored.
+ * @author Fergal Bittles
+ *
+ */
+public class FleetLoader {
+
+	// Below this many files, a task reads them itself rather than splitting further
+	private static final int THRESHOLD = 16;
+	
+	private final ForkJoinPool pool;
+	
+	/**
+	 * Constructor for FleetLoader. Uses one thread per available processor.
+	 */
+	public FleetLoader() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Overloaded constructor for FleetLoader.
+	 * @param threads - The number of threads used to read files
+	 */
+	public FleetLoader(int threads) {
+		this.pool = new ForkJoinPool(Math.max(1, threads));
+	}
+	
+	/**
+	 * Finds every machine state file in a directory, in name order.
+	 * @param directory - The directory to search
+	 * @return - The CSV files in the directory, or an empty array if the directory can not be read
+	 */
+	public static File[] findMachineFiles(File directory) {
+		File[] files = directory.listFiles((dir, name) -> name.toLowerCase().endsWith(".csv"));
+		if (files == null) {
+			return new File[0];
+		}
+		
+		Arrays.sort(files);
+		return files;
+	}
+	
+	/**
+	 * Restores every machine state file in a directory.
+	 * @param directory - The directory holding one CSV file per machine
+	 * @return - One RestoreResult for each file, in name order
+	 */
+	public List<RestoreResult> loadAll(File directory) {
+		return loadAll(findMachineFiles(directory));
+	}
+	
+	/**
+	 * Restores a list of machine state files.
+	 * @param files - The CSV files to restore
+	 * @return - One RestoreResult for each file, in the same order as the files
+	 */
+	public List<RestoreResult> loadAll(File[] files) {
+		RestoreResult[] results = new RestoreResult[files.length];
+		this.pool.invoke(new RestoreTask(files, results, 0, files.length));
+		return new ArrayList<RestoreResult>(Arrays.asList(results));
+	}
+	
+	/**
+	 * Returns only the machines that were restored successfully.
+	 * @param results - The results returned by loadAll
+	 * @return - The restored vending machines
+	 */
+	public static List<VendingMachine> getMachines(List<RestoreResult> results) {
+		List<VendingMachine> machines = new ArrayList<VendingMachine>();
+		for (RestoreResult result : results) {
+			if (result.isRestored()) {
+				machines.add(result.getMachine());
+			}
+		}
+		return machines;
+	}
+	
+	/**
+	 * Returns only the results for files that could not be restored.
+	 * @param results - The results returned by loadAll
+	 * @return - The results for the corrupt files
+	 */
+	public static List<RestoreResult> getFailures(List<RestoreResult> results) {
+		List<RestoreResult> failures = new ArrayList<RestoreResult>();
+		for (RestoreResult result : results) {
+			if (!result.isRestored()) {
+				failures.add(result);
+			}
+		}
+		return failures;
+	}
+	
+	/**
+	 * Shuts down the threads used by the loader.
+	 */
+	public void shutdown() {
+		this.pool.shutdown();
+	}
+	
+	/**
+	 * Restores a range of files, splitting the range in half until it is small enough to read directly.
+	 */
+	private static class RestoreTask extends RecursiveTask<Integer> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final File[] files;
+		private final RestoreResult[] results;
+		private final int from;
+		private final int to;
+		
+		RestoreTask(File[] files, RestoreResult[] results, int from, int to) {
+			this.files = files;
+			this.results = results;
+			this.from = from;
+			this.to = to;
+		}
+		
+		/**
+		 * Restores the files in the range.
+		 * @return - The number of files that were restored successfully
+		 */
+		protected Integer compute() {
+			if (this.to - this.from <= THRESHOLD) {
+				int restored = 0;
+				for (int i = this.from; i < this.to; i++) {
+					this.results[i] = restore(this.files[i]);
+					if (this.results[i].isRestored()) {
+						restored++;
+					}
+				}
+				return restored;
+			}
+			
+			int middle = (this.from + this.to) >>> 1;
+			RestoreTask left = new RestoreTask(this.files, this.results, this.from, middle);
+			RestoreTask right = new RestoreTask(this.files, this.results, middle, this.to);
+			left.fork();
+			return right.compute() + left.join();
+		}
+		
+		/**
+		 * Restores one file. Anything unexpected thrown while reading it only fails that file.
+		 * @param file - The CSV file
+		 * @return - The RestoreResult for the file
+		 */
+		private static RestoreResult restore(File file) {
+			try {
+				return MachineData.restore(file);
+			} catch (RuntimeException e) {
+				return RestoreResult.corrupt(file, "Unable to read file: " + e);
+			}
+		}
+		
+	}
+	
+}
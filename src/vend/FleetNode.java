@@ -0,0 +1,640 @@
+package vend;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * This class is one controller node in a fleet that is too large for one process. Each node holds the
+ * vending machines that a HashRing assigns to it, and carries out coin and purchase requests for them
+ * sent by a FleetRouter over a local socket.
+ *
+ * Each request is one line, and each reply is one line:
+ * INSERT (machine) (coin option) - BUY (machine) (item number, starting at 0) - COUNT
+ * RING (node) (node) ... - PUT (machine) (hand-off) (inserted coins) (line count) (currency), followed by the machine's change lines,
+ * where the inserted coins are the number of each coin the current customer has inserted, joined by colons,
+ * and the currency is the name of the machine's currency, which may contain spaces
+ * CONFIRM (machine) (hand-off) - ABORT (machine) (hand-off)
+ * A reply starts with OK or FAIL, or is MOVED (node) if the machine belongs to another node,
+ * or MISSING if it belongs to this node but has not arrived yet.
+ *
+ * When the ring changes, each node hands every machine it no longer owns to its new owner, as the whole machine
+ * in the change lines written by MachineChanges. A machine is only ever held by one node at a time, and a
+ * customer's inserted money moves with it. Reservations are not moved. Items keep their IDs, even when a machine
+ * comes back to a node that has held it before.
+ * The machine keeps its currency, prices and cashless money, but settings that are objects in the old node's process
+ * are not moved: event listeners, the cash drift listener, the payment processor, the change policy,
+ * the reservation wheel and any PriceScheduler, MachineJournal or ReplicationPrimary. The new node's machine starts
+ * with the defaults, and is sold at the last prices it was sent until something on the new node sets them again.
+ *
+ * Each hand-off has its own ID and takes two steps. The new owner holds a machine sent by PUT aside, and only
+ * starts using it when the sender sends CONFIRM. Sending PUT or CONFIRM again for the same hand-off gets the same
+ * reply, so if the connection fails part way the sender keeps retrying in the background until it knows the result.
+ * Until then the machine is used by neither node. If the ring changes while retrying, the sender sends ABORT, and
+ * only takes the machine back if the other node had not already confirmed it.
+ * Run a node on its own with: java vend.FleetNode (port)
+ * @author Fergal Bittles
+ *
+ */
+public class FleetNode {
+
+	private static final long FIRST_RETRY_MILLIS = 100;
+	private static final long LAST_RETRY_MILLIS = 30000;
+	
+	
+	private final String name;
+	private final ServerSocket server;
+	private final Map<String, VendingMachine> machines;
+	private final Map<String, NodeConnection> peers;
+	
+	// Machines sent to this node that are not used until the sender confirms the hand-off, by machine ID
+	private final Map<String, Handoff> incoming;
+	
+	// The hand-off that each machine last arrived on this node in, so a repeated PUT or CONFIRM gets the same reply
+	private final Map<String, String> confirmed;
+	
+	// Machines taken off this node whose hand-off has not been confirmed yet, by machine ID
+	private final Map<String, Handoff> outgoing;
+	
+	private final ExecutorService pool;
+	private final ScheduledExecutorService retries;
+	private final AtomicInteger movedOut;
+	private volatile HashRing ring;
+	private volatile boolean closed;
+	
+	/**
+	 * A machine on its way between two nodes.
+	 */
+	private static class Handoff {
+		
+		private final String id;
+		private final String node;
+		private final VendingMachine machine;
+		private final List<String> request;
+		
+		// How long to wait before the next retry, which doubles after each failure
+		private long delayMillis;
+		
+		// False until a request for the hand-off may have reached the other node
+		private boolean sent;
+		
+		/**
+		 * Constructor for Handoff.
+		 * @param id - The ID of the hand-off
+		 * @param node - The node the machine is being sent to, or null if it is being received
+		 * @param machine - The vending machine
+		 * @param request - The PUT request, or null if the machine is being received
+		 */
+		private Handoff(String id, String node, VendingMachine machine, List<String> request) {
+			this.id = id;
+			this.node = node;
+			this.machine = machine;
+			this.request = request;
+			this.delayMillis = FIRST_RETRY_MILLIS;
+		}
+	}
+	
+	/**
+	 * Constructor for FleetNode. Use start to create one.
+	 * @param server - The socket that requests arrive on
+	 */
+	private FleetNode(ServerSocket server) {
+		this.server = server;
+		this.name = server.getInetAddress().getHostAddress() + ":" + server.getLocalPort();
+		this.machines = new ConcurrentHashMap<String, VendingMachine>();
+		this.peers = new ConcurrentHashMap<String, NodeConnection>();
+		this.incoming = new ConcurrentHashMap<String, Handoff>();
+		this.confirmed = new ConcurrentHashMap<String, String>();
+		this.outgoing = new ConcurrentHashMap<String, Handoff>();
+		this.pool = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "fleet-node");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.retries = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "fleet-node-retry");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.movedOut = new AtomicInteger();
+		this.ring = new HashRing(Arrays.asList(this.name));
+	}
+	
+	/**
+	 * Starts a node that only accepts connections from the same computer. Until it is sent a ring,
+	 * the node owns every machine.
+	 * @param port - The port to listen on, or 0 to use any free port
+	 * @return - The FleetNode
+	 * @throws IOException - If the port can not be opened
+	 */
+	public static FleetNode start(int port) throws IOException {
+		FleetNode node = new FleetNode(new ServerSocket(port, 50, InetAddress.getLoopbackAddress()));
+		node.pool.submit(node::acceptRequests);
+		return node;
+	}
+	
+	/**
+	 * Runs a node until the process is stopped.
+	 * @param args - The port to listen on
+	 * @throws Exception - If the node can not be started
+	 */
+	public static void main(String[] args) throws Exception {
+		FleetNode node = start((args.length > 0) ? Integer.parseInt(args[0]) : 0);
+		System.out.println("Fleet node " + node.getName() + " running");
+		Thread.sleep(Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Stops accepting requests. Machines that have not been handed to another node are lost,
+	 * so send a ring without this node first, and wait for getHandoffCount to reach 0.
+	 */
+	public void close() {
+		this.closed = true;
+		try {
+			this.server.close();
+		} catch (IOException e) {
+			// Already closed
+		}
+		for (NodeConnection peer : this.peers.values()) {
+			peer.close();
+		}
+		this.pool.shutdownNow();
+		this.retries.shutdownNow();
+	}
+	
+	/**
+	 * Returns the name of the node, which is used in the ring.
+	 * @return - The name, as host:port
+	 */
+	public String getName() {
+		return this.name;
+	}
+	
+	/**
+	 * Returns the number of machines held by this node.
+	 * @return - The number of machines
+	 */
+	public int getMachineCount() {
+		return this.machines.size();
+	}
+	
+	/**
+	 * Returns a machine held by this node.
+	 * @param id - The ID of the machine
+	 * @return - The vending machine, or null if this node does not hold it
+	 */
+	public VendingMachine getMachine(String id) {
+		return this.machines.get(id);
+	}
+	
+	/**
+	 * Returns the number of machines this node has handed to other nodes since it started.
+	 * @return - The number of machines moved
+	 */
+	public int getMovedCount() {
+		return this.movedOut.get();
+	}
+	
+	/**
+	 * Returns the number of machines this node has sent to another node but has not heard back about yet.
+	 * @return - The number of hand-offs still being retried
+	 */
+	public int getHandoffCount() {
+		return this.outgoing.size();
+	}
+	
+	/**
+	 * Adds a machine to this node, e.g. one restored by a FleetLoader. If it belongs to another node,
+	 * it is handed over straight away.
+	 * @param id - The ID of the machine, which must not contain spaces
+	 * @param machine - The vending machine
+	 */
+	public void addMachine(String id, VendingMachine machine) {
+		this.machines.put(id, machine);
+		String owner = this.ring.getNode(id);
+		if (!this.name.equals(owner)) {
+			moveMachine(id, owner);
+		}
+	}
+	
+	/**
+	 * Reads requests from one connection and replies to each. Runs on a pool thread until the connection closes.
+	 * @param socket - The connection
+	 */
+	private void serve(Socket socket) {
+		try (Socket s = socket) {
+			s.setTcpNoDelay(true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+			
+			String line = in.readLine();
+			while (line != null) {
+				out.write(handle(line, in));
+				out.write('\n');
+				out.flush();
+				line = in.readLine();
+			}
+		} catch (IOException e) {
+			// The other end has gone
+		}
+	}
+	
+	/**
+	 * Carries out one request.
+	 * @param line - The first line of the request
+	 * @param in - The connection, for requests that have more lines
+	 * @return - The reply
+	 * @throws IOException - If the rest of the request can not be read
+	 */
+	private String handle(String line, BufferedReader in) throws IOException {
+		String[] parts = line.split(" ");
+		
+		switch (parts[0]) {
+		case "INSERT":
+			if (parts.length != 3 || !MachineData.isInteger(parts[2])) {
+				return "FAIL Invalid request";
+			}
+			return onMachine(parts[1], machine -> "OK " + machine.insertCoin(Integer.parseInt(parts[2])));
+		case "BUY":
+			if (parts.length != 3 || !MachineData.isInteger(parts[2])) {
+				return "FAIL Invalid request";
+			}
+			// Each reply is one line, so the lines of the result are joined with tabs
+			return onMachine(parts[1], machine -> "OK " + machine.purchaseItem(Integer.parseInt(parts[2])).replace('\n', '\t'));
+		case "PUT":
+			if (parts.length < 6 || !MachineData.isInteger(parts[4])) {
+				return "FAIL Invalid request";
+			}
+			List<String> lines = new ArrayList<String>();
+			for (int i = 0; i < Integer.parseInt(parts[4]); i++) {
+				String next = in.readLine();
+				if (next == null) {
+					throw new IOException("Machine " + parts[1] + " was cut short");
+				}
+				lines.add(next);
+			}
+			// Checked once the lines have been read, so the next request starts in the right place
+			CurrencySet currency = CurrencySet.forName(String.join(" ", Arrays.copyOfRange(parts, 5, parts.length)));
+			int[] inserted = parseCoins(parts[3]);
+			if (currency == null) {
+				return "FAIL Unknown currency";
+			}
+			if (inserted == null || inserted.length != currency.size()) {
+				return "FAIL Invalid request";
+			}
+			return receiveMachine(parts[1], parts[2], currency, inserted, lines);
+		case "CONFIRM":
+			if (parts.length != 3) {
+				return "FAIL Invalid request";
+			}
+			return confirmMachine(parts[1], parts[2]);
+		case "ABORT":
+			if (parts.length != 3) {
+				return "FAIL Invalid request";
+			}
+			return abortMachine(parts[1], parts[2]);
+		case "RING":
+			setRing(new HashRing(Arrays.asList(parts).subList(1, parts.length)));
+			return "OK " + this.ring.getNodes().size();
+		case "COUNT":
+			return "OK " + this.machines.size();
+		default:
+			return "FAIL Invalid request";
+		}
+	}
+	
+	/**
+	 * Carries out a request on a machine held by this node, or says where the machine is.
+	 * @param id - The ID of the machine
+	 * @param request - The request, which is carried out while holding the machine's lock
+	 * @return - The reply
+	 */
+	private String onMachine(String id, Function<VendingMachine, String> request) {
+		VendingMachine machine = this.machines.get(id);
+		if (machine != null) {
+			synchronized (machine) {
+				// The machine may have been handed to another node while waiting for its lock
+				if (this.machines.get(id) == machine) {
+					return request.apply(machine);
+				}
+			}
+		}
+		
+		String owner = this.ring.getNode(id);
+		return this.name.equals(owner) ? "MISSING" : "MOVED " + owner;
+	}
+	
+	/**
+	 * Builds a machine handed over by another node and holds it aside until the hand-off is confirmed.
+	 * @param id - The ID of the machine
+	 * @param handoff - The ID of the hand-off
+	 * @param currency - The currency of the machine
+	 * @param inserted - The number of each coin inserted by the current customer
+	 * @param lines - The change lines that describe the whole machine
+	 * @return - The reply
+	 */
+	private String receiveMachine(String id, String handoff, CurrencySet currency, int[] inserted, List<String> lines) {
+		synchronized (this.incoming) {
+			// The sender did not hear the reply last time
+			if (handoff.equals(this.confirmed.get(id))) {
+				return "OK";
+			}
+			if (this.machines.containsKey(id)) {
+				return "FAIL Already held";
+			}
+			
+			// The change lines hold the coin counts by position, so they only make sense in the machine's own currency
+			VendingMachine machine = new VendingMachine(null, 1, currency);
+			String invalid = machine.applyChanges(lines);
+			if (invalid != null) {
+				return "FAIL Invalid change " + invalid;
+			}
+			machine.setInsertedCoins(inserted);
+			
+			// Replaces any earlier hand-off of the same machine that was never confirmed
+			this.incoming.put(id, new Handoff(handoff, null, machine, null));
+			return "OK";
+		}
+	}
+	
+	/**
+	 * Starts using a machine that was held aside by receiveMachine.
+	 * @param id - The ID of the machine
+	 * @param handoff - The ID of the hand-off
+	 * @return - The reply
+	 */
+	private String confirmMachine(String id, String handoff) {
+		synchronized (this.incoming) {
+			if (handoff.equals(this.confirmed.get(id))) {
+				return "OK";
+			}
+			
+			Handoff arrival = this.incoming.get(id);
+			if (arrival == null || !arrival.id.equals(handoff)) {
+				return "FAIL Unknown hand-off";
+			}
+			
+			this.incoming.remove(id);
+			this.confirmed.put(id, handoff);
+			
+			// The machine has come back before this node heard that its own hand-off of it was confirmed
+			if (this.outgoing.remove(id) != null) {
+				this.movedOut.incrementAndGet();
+			}
+			this.machines.put(id, arrival.machine);
+		}
+		
+		// The ring may have changed again while the machine was on its way
+		String owner = this.ring.getNode(id);
+		if (!this.name.equals(owner)) {
+			this.pool.submit(() -> moveMachine(id, owner));
+		}
+		return "OK";
+	}
+	
+	/**
+	 * Drops a machine that was held aside by receiveMachine, unless the hand-off has already been confirmed.
+	 * @param id - The ID of the machine
+	 * @param handoff - The ID of the hand-off
+	 * @return - The reply, which is OK if this node does not hold the machine
+	 */
+	private String abortMachine(String id, String handoff) {
+		synchronized (this.incoming) {
+			if (handoff.equals(this.confirmed.get(id))) {
+				return "FAIL Confirmed";
+			}
+			
+			Handoff arrival = this.incoming.get(id);
+			if (arrival != null && arrival.id.equals(handoff)) {
+				this.incoming.remove(id);
+			}
+			return "OK";
+		}
+	}
+	
+	/**
+	 * Uses a new ring, and hands every machine that now belongs to another node to that node in the background.
+	 * @param next - The new ring
+	 */
+	private void setRing(HashRing next) {
+		if (next.getNodes().isEmpty()) {
+			return;
+		}
+		
+		this.ring = next;
+		this.pool.submit(() -> {
+			for (String id : this.machines.keySet()) {
+				String owner = next.getNode(id);
+				if (!this.name.equals(owner)) {
+					moveMachine(id, owner);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Hands a machine to another node. The machine is taken off this node while holding its lock,
+	 * so no request can change it after it has been copied.
+	 * @param id - The ID of the machine
+	 * @param owner - The name of the node that now owns the machine
+	 */
+	private void moveMachine(String id, String owner) {
+		VendingMachine machine = this.machines.get(id);
+		if (machine == null || owner == null || this.name.equals(owner)) {
+			return;
+		}
+		
+		Handoff handoff;
+		synchronized (machine) {
+			if (!this.machines.remove(id, machine)) {
+				return;
+			}
+			String handoffId = UUID.randomUUID().toString();
+			handoff = new Handoff(handoffId, owner, machine, putRequest(id, handoffId, machine));
+			this.outgoing.put(id, handoff);
+		}
+		
+		sendHandoff(id, handoff);
+	}
+	
+	/**
+	 * Sends PUT and then CONFIRM for a hand-off. Both can be sent again safely, so this is also used to retry.
+	 * @param id - The ID of the machine
+	 * @param handoff - The hand-off
+	 */
+	private void sendHandoff(String id, Handoff handoff) {
+		String reply;
+		try {
+			NodeConnection peer = this.peers.computeIfAbsent(handoff.node, NodeConnection::new);
+			reply = peer.request(handoff.request);
+			handoff.sent = true;
+			if (reply.equals("OK")) {
+				reply = peer.request(Arrays.asList("CONFIRM " + id + " " + handoff.id));
+			}
+		} catch (ConnectException e) {
+			retryLater(() -> retryHandoff(id, handoff), handoff);
+			return;
+		} catch (IOException e) {
+			handoff.sent = true;
+			// The other node may or may not have the machine, so it stays with neither until the other node answers
+			retryLater(() -> retryHandoff(id, handoff), handoff);
+			return;
+		}
+		
+		if (reply.equals("OK")) {
+			if (this.outgoing.remove(id, handoff)) {
+				this.movedOut.incrementAndGet();
+			}
+		} else {
+			// The other node refused the machine, so it never used it
+			takeBack(id, handoff);
+		}
+	}
+	
+	/**
+	 * Carries on with a hand-off whose result is not known. If the machine still belongs to the same node the hand-off
+	 * is sent again, otherwise it is aborted so the machine can go to its new owner.
+	 * @param id - The ID of the machine
+	 * @param handoff - The hand-off
+	 */
+	private void retryHandoff(String id, Handoff handoff) {
+		if (this.closed || this.outgoing.get(id) != handoff) {
+			return;
+		}
+		
+		if (handoff.node.equals(this.ring.getNode(id))) {
+			sendHandoff(id, handoff);
+			return;
+		}
+		
+		// Nothing ever reached the other node, so there is nothing to abort
+		if (!handoff.sent) {
+			takeBack(id, handoff);
+			return;
+		}
+		
+		String reply;
+		try {
+			reply = this.peers.computeIfAbsent(handoff.node, NodeConnection::new).request(Arrays.asList("ABORT " + id + " " + handoff.id));
+		} catch (IOException e) {
+			// If the other node is gone for good, the machine stays with neither node, as it may have been confirmed there
+			retryLater(() -> retryHandoff(id, handoff), handoff);
+			return;
+		}
+		
+		if (reply.equals("OK")) {
+			takeBack(id, handoff);
+		} else if (this.outgoing.remove(id, handoff)) {
+			// The other node already uses the machine, and passes it on to the new owner itself
+			this.movedOut.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Holds a machine on this node again after the other node has refused it or aborted the hand-off,
+	 * and tries to move it again later if it still belongs to another node.
+	 * @param id - The ID of the machine
+	 * @param handoff - The hand-off
+	 */
+	private void takeBack(String id, Handoff handoff) {
+		if (!this.outgoing.remove(id, handoff)) {
+			return;
+		}
+		this.machines.putIfAbsent(id, handoff.machine);
+		
+		retryLater(() -> {
+			String owner = this.ring.getNode(id);
+			if (!this.closed && !this.name.equals(owner)) {
+				moveMachine(id, owner);
+			}
+		}, handoff);
+	}
+	
+	/**
+	 * Runs a retry after the hand-off's delay, and doubles the delay for next time.
+	 * @param retry - The retry
+	 * @param handoff - The hand-off
+	 */
+	private void retryLater(Runnable retry, Handoff handoff) {
+		if (this.closed) {
+			return;
+		}
+		long delay = handoff.delayMillis;
+		handoff.delayMillis = Math.min(delay * 2, LAST_RETRY_MILLIS);
+		this.retries.schedule(retry, delay, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Builds the request that hands a whole machine to a node. Must be called while holding the machine's lock.
+	 * @param id - The ID of the machine
+	 * @param handoff - The ID of the hand-off, which is unique to this attempt to move the machine
+	 * @param machine - The vending machine
+	 * @return - The lines of the request
+	 */
+	static List<String> putRequest(String id, String handoff, VendingMachine machine) {
+		List<String> lines = new ArrayList<String>();
+		lines.add("R");
+		lines.addAll(new MachineChanges(machine.getCurrency().size()).diff(machine));
+		
+		List<String> request = new ArrayList<String>();
+		int[] inserted = machine.getInsertedCoins();
+		String coins = "";
+		for (int i = 0; i < inserted.length; i++) {
+			coins += ((i > 0) ? ":" : "") + inserted[i];
+		}
+		request.add("PUT " + id + " " + handoff + " " + coins + " " + lines.size() + " " + machine.getCurrency().getName());
+		request.addAll(lines);
+		return request;
+	}
+	
+	/**
+	 * Reads the inserted coins sent with a PUT request.
+	 * @param text - The number of each coin, joined by colons
+	 * @return - The counts, or null if the text is not valid
+	 */
+	private static int[] parseCoins(String text) {
+		String[] parts = text.split(":");
+		int[] res = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			if (!MachineData.isInteger(parts[i])) {
+				return null;
+			}
+			res[i] = Integer.parseInt(parts[i]);
+		}
+		return res;
+	}
+	
+	/**
+	 * Accepts connections and serves each on a pool thread. Runs until the node is closed.
+	 */
+	private void acceptRequests() {
+		while (!this.closed) {
+			try {
+				Socket socket = this.server.accept();
+				this.pool.submit(() -> serve(socket));
+			} catch (IOException e) {
+				// The server socket has been closed, or one connection failed
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,209 @@
+package vend;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class sends coin and purchase requests for a fleet of vending machines to the FleetNode that holds
+ * each machine, using a HashRing to work out which node that is.
+ *
+ * When the nodes change, the new ring is sent to every old and new node, and the nodes move the machines
+ * between themselves. A request that arrives while its machine is moving is tried again, following the node
+ * that now has it, so callers do not need to know that anything has moved.
+ * @author Fergal Bittles
+ *
+ */
+public class FleetRouter {
+
+	// A moving machine normally arrives within a few milliseconds, so a request is only tried a few times
+	private static final int MAX_TRIES = 50;
+	private static final long RETRY_MILLIS = 10;
+	
+	private final Map<String, NodeConnection> connections;
+	private volatile HashRing ring;
+	
+	/**
+	 * Constructor for FleetRouter. The nodes are not told about each other until setNodes is called.
+	 * @param nodes - The names of the nodes, as host:port
+	 */
+	public FleetRouter(Collection<String> nodes) {
+		this.connections = new ConcurrentHashMap<String, NodeConnection>();
+		this.ring = new HashRing(nodes);
+	}
+	
+	/**
+	 * Changes the nodes of the fleet. Every old and new node is sent the new ring, and moves the machines that
+	 * now belong to another node. Only about one machine in every (number of nodes) moves when one node joins or leaves.
+	 * A node that is leaving should be kept running until it holds no machines.
+	 * @param nodes - The names of the nodes, as host:port
+	 * @return - The nodes that could not be reached
+	 */
+	public List<String> setNodes(Collection<String> nodes) {
+		HashRing next = new HashRing(nodes);
+		TreeSet<String> everyNode = new TreeSet<String>(this.ring.getNodes());
+		everyNode.addAll(next.getNodes());
+		this.ring = next;
+		
+		String request = "RING " + String.join(" ", next.getNodes());
+		List<String> failed = new ArrayList<String>();
+		for (String node : everyNode) {
+			try {
+				getConnection(node).request(Arrays.asList(request));
+			} catch (IOException e) {
+				failed.add(node);
+			}
+		}
+		return failed;
+	}
+	
+	/**
+	 * Returns the current ring.
+	 * @return - The HashRing
+	 */
+	public HashRing getRing() {
+		return this.ring;
+	}
+	
+	/**
+	 * Returns the node that a machine belongs to.
+	 * @param machineId - The ID of the machine
+	 * @return - The name of the node
+	 */
+	public String getNode(String machineId) {
+		return this.ring.getNode(machineId);
+	}
+	
+	/**
+	 * Sends a machine to the node that it belongs to, e.g. one restored by a FleetLoader.
+	 * The machine should not be used again by the caller, as the node holds its own copy.
+	 * @param machineId - The ID of the machine, which must not contain spaces
+	 * @param machine - The vending machine
+	 * @throws IOException - If the node could not be reached or did not accept the machine. If the node could not be reached,
+	 * it may have accepted the machine, and adding it again is refused
+	 */
+	public void addMachine(String machineId, VendingMachine machine) throws IOException {
+		if (machineId == null || machineId.equals("") || machineId.contains(" ")) {
+			throw new IllegalArgumentException("Invalid machine ID: " + machineId);
+		}
+		
+		String handoff = UUID.randomUUID().toString();
+		List<String> request;
+		synchronized (machine) {
+			request = FleetNode.putRequest(machineId, handoff, machine);
+		}
+		
+		String node = this.ring.getNode(machineId);
+		NodeConnection connection = getConnection(node);
+		String reply = connection.request(request);
+		if (reply.equals("OK")) {
+			reply = connection.request(Arrays.asList("CONFIRM " + machineId + " " + handoff));
+		}
+		if (!reply.equals("OK")) {
+			throw new IOException("Unable to add " + machineId + " to " + node + ": " + reply);
+		}
+	}
+	
+	/**
+	 * Inserts a coin into a machine, in the same way as VendingMachine.insertCoin.
+	 * @param machineId - The ID of the machine
+	 * @param option - The coin option, starting at 1
+	 * @return - A boolean is returned to indicate if the coin was accepted
+	 * @throws IOException - If the machine could not be reached
+	 */
+	public boolean insertCoin(String machineId, int option) throws IOException {
+		return Boolean.parseBoolean(route(machineId, "INSERT " + machineId + " " + option));
+	}
+	
+	/**
+	 * Purchases an item from a machine, in the same way as VendingMachine.purchaseItem.
+	 * @param machineId - The ID of the machine
+	 * @param item - The position of the item, starting at 0
+	 * @return - The result of the purchase
+	 * @throws IOException - If the machine could not be reached
+	 */
+	public String purchaseItem(String machineId, int item) throws IOException {
+		return route(machineId, "BUY " + machineId + " " + item).replace('\t', '\n');
+	}
+	
+	/**
+	 * Returns the number of machines held by a node.
+	 * @param node - The name of the node
+	 * @return - The number of machines
+	 * @throws IOException - If the node could not be reached
+	 */
+	public int getMachineCount(String node) throws IOException {
+		String reply = getConnection(node).request(Arrays.asList("COUNT"));
+		if (!reply.startsWith("OK ") || !MachineData.isInteger(reply.substring(3))) {
+			throw new IOException("Unexpected reply from " + node + ": " + reply);
+		}
+		return Integer.parseInt(reply.substring(3));
+	}
+	
+	/**
+	 * Closes every connection.
+	 */
+	public void close() {
+		for (NodeConnection connection : this.connections.values()) {
+			connection.close();
+		}
+	}
+	
+	/**
+	 * Sends a request to the node holding a machine, following the machine if it has moved.
+	 * @param machineId - The ID of the machine
+	 * @param request - The request
+	 * @return - The reply, without the leading OK
+	 * @throws IOException - If the machine could not be reached
+	 */
+	private String route(String machineId, String request) throws IOException {
+		if (machineId == null || machineId.equals("") || machineId.contains(" ")) {
+			throw new IllegalArgumentException("Invalid machine ID: " + machineId);
+		}
+		
+		String node = this.ring.getNode(machineId);
+		if (node == null) {
+			throw new IOException("No nodes");
+		}
+		
+		String reply = "";
+		for (int tries = 0; tries < MAX_TRIES; tries++) {
+			reply = getConnection(node).request(Arrays.asList(request));
+			
+			if (reply.startsWith("OK ")) {
+				return reply.substring(3);
+			} else if (reply.startsWith("MOVED ")) {
+				// The node has a newer ring than this router, or the machine has not been moved yet
+				node = reply.substring(6);
+			} else if (reply.equals("MISSING")) {
+				try {
+					Thread.sleep(RETRY_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while " + machineId + " was moving");
+				}
+				node = this.ring.getNode(machineId);
+			} else {
+				throw new IOException(reply);
+			}
+		}
+		
+		throw new IOException("Unable to find " + machineId + ": " + reply);
+	}
+	
+	/**
+	 * Returns the connection to a node, creating it if needed.
+	 * @param node - The name of the node
+	 * @return - The connection
+	 */
+	private NodeConnection getConnection(String node) {
+		return this.connections.computeIfAbsent(node, NodeConnection::new);
+	}
+	
+}
@@ -0,0 +1,49 @@
+package vend;
+
+/**
+ * This class gives change using the largest coins first, which is how change was always given before policies were added.
+ * It is quick, but can empty the machine of the middle coins and can miss a mix of coins that would have worked.
+ * @author Fergal Bittles
+ *
+ */
+public class GreedyChangePolicy implements ChangePolicy {
+
+	/**
+	 * This method is inherited from the 'ChangePolicy' interface.
+	 * There are only a handful of coin types, so the check takes the same amount of time for any amount of change.
+	 */
+	public boolean canGiveChange(int change, CurrencySet currency, int[] coinCounts) {
+		return chooseCoins(change, currency, coinCounts) != null;
+	}
+	
+	/**
+	 * This method is inherited from the 'ChangePolicy' interface.
+	 * Takes as many of the largest coin as possible, then moves on to the next largest.
+	 */
+	public int[] chooseCoins(int change, CurrencySet currency, int[] coinCounts) {
+		if (change < 0) {
+			return null;
+		}
+		
+		int[] coinsUsed = new int[coinCounts.length];
+		int remaining = change;
+		
+		for (int i = coinCounts.length - 1; i >= 0; i--) {
+			Denomination coin = currency.getDenomination(i);
+			if (!coin.isNote()) {
+				coinsUsed[i] = Math.min(remaining / coin.getValue(), coinCounts[i]);
+				remaining -= coinsUsed[i] * coin.getValue();
+			}
+		}
+		
+		return (remaining == 0) ? coinsUsed : null;
+	}
+	
+	/**
+	 * This method is inherited from the 'ChangePolicy' interface.
+	 * The greedy policy does not learn from sales.
+	 */
+	public void changeGiven(int change, CurrencySet currency, int[] coinsUsed) {
+	}
+	
+}
@@ -0,0 +1,140 @@
+package vend;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * This class shares a fleet of vending machines between controller nodes using consistent hashing.
+ *
+ * Each node is placed at many points (virtual nodes) around a ring of 64-bit hash values, and a machine belongs
+ * to the first node point at or after the hash of its ID. When a node joins, it only takes machines from the
+ * points just before its own, and when a node leaves, only its machines move, so roughly one machine in
+ * every (number of nodes) moves rather than almost all of them. Using many points per node keeps the share
+ * of each node close to even.
+ *
+ * A HashRing can not be changed once it has been created, so a new ring is built when the nodes change
+ * and can be swapped in at any time, in the same way as a PriceTable.
+ * @author Fergal Bittles
+ *
+ */
+public class HashRing {
+
+	public static final int DEFAULT_VIRTUAL_NODES = 128;
+	
+	private final TreeMap<Long, String> ring;
+	private final List<String> nodes;
+	private final int virtualNodes;
+	
+	/**
+	 * Constructor for HashRing, with 128 points for each node.
+	 * @param nodes - The names of the nodes, e.g. "127.0.0.1:7001"
+	 */
+	public HashRing(Collection<String> nodes) {
+		this(nodes, DEFAULT_VIRTUAL_NODES);
+	}
+	
+	/**
+	 * Overloaded constructor for HashRing.
+	 * @param nodes - The names of the nodes, e.g. "127.0.0.1:7001"
+	 * @param virtualNodes - The number of points on the ring for each node
+	 */
+	public HashRing(Collection<String> nodes, int virtualNodes) {
+		this.virtualNodes = Math.max(1, virtualNodes);
+		this.ring = new TreeMap<Long, String>();
+		
+		// Sorted, so that every process builds exactly the same ring from the same nodes
+		TreeSet<String> sorted = new TreeSet<String>();
+		if (nodes != null) {
+			for (String node : nodes) {
+				if (node != null && !node.equals("")) {
+					sorted.add(node);
+				}
+			}
+		}
+		
+		for (String node : sorted) {
+			for (int i = 0; i < this.virtualNodes; i++) {
+				this.ring.putIfAbsent(hash(node + "#" + i), node);
+			}
+		}
+		this.nodes = Collections.unmodifiableList(new ArrayList<String>(sorted));
+	}
+	
+	/**
+	 * Finds the node that a machine belongs to.
+	 * @param key - The ID of the machine
+	 * @return - The name of the node, or null if the ring has no nodes
+	 */
+	public String getNode(String key) {
+		if (this.ring.isEmpty()) {
+			return null;
+		}
+		
+		Map.Entry<Long, String> entry = this.ring.ceilingEntry(hash(key));
+		if (entry == null) {
+			// Past the last point, so go round to the first
+			entry = this.ring.firstEntry();
+		}
+		return entry.getValue();
+	}
+	
+	/**
+	 * Returns the names of the nodes in the ring, in name order.
+	 * @return - The nodes, which can not be changed
+	 */
+	public List<String> getNodes() {
+		return this.nodes;
+	}
+	
+	/**
+	 * Checks if a node is in the ring.
+	 * @param node - The name of the node
+	 * @return - A boolean is returned to indicate if the node is in the ring
+	 */
+	public boolean contains(String node) {
+		return this.nodes.contains(node);
+	}
+	
+	/**
+	 * Returns the number of points on the ring for each node.
+	 * @return - The number of virtual nodes
+	 */
+	public int getVirtualNodes() {
+		return this.virtualNodes;
+	}
+	
+	/**
+	 * Works out a 64-bit hash of a string that is spread evenly around the ring.
+	 * FNV-1a is used over the bytes, then the bits are mixed so that similar strings land far apart.
+	 * @param key - The string
+	 * @return - The hash
+	 */
+	static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+			h ^= (b & 0xff);
+			h *= 0x100000001b3L;
+		}
+		
+		h ^= (h >>> 33);
+		h *= 0xff51afd7ed558ccdL;
+		h ^= (h >>> 33);
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= (h >>> 33);
+		return h;
+	}
+	
+	/**
+	 * Returns a string containing the nodes of the ring. Useful for testing the HashRing class.
+	 */
+	public String toString() {
+		return "HashRing " + this.nodes;
+	}
+	
+}
@@ -0,0 +1,257 @@
+package vend;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class hands out unique IDs for VendItems.
+ * 
+ * Each thread leases a block of IDs and then hands them out with a single compare-and-set on its own block,
+ * so threads creating items at the same time do not slow each other down.
+ * IDs that were saved with a machine are passed to claim when it is restored,
+ * which moves the high-water mark past them so that they are never handed out again.
+ * If a claimed ID falls inside a block that a thread has leased, only that block is cut short,
+ * and the IDs after it are kept as a gap that can still be claimed.
+ * An ID that has already been handed out or claimed can not be claimed again, so two items never share an ID.
+ * 
+ * @author Fergal Bittles
+ *
+ */
+public class ItemIdAllocator {
+
+	private static final ItemIdAllocator DEFAULT = new ItemIdAllocator(64);
+	
+	private final int blockSize;
+	
+	// Guards the high-water mark and the map of leased blocks. Only taken to lease a block or to claim an ID.
+	private final Object leaseLock = new Object();
+	
+	// The lowest ID that has not been leased to any thread
+	private volatile int highWaterMark;
+	
+	// Every block currently leased to a thread, by the first ID in the block
+	private final TreeMap<Integer, Lease> leases;
+	
+	// IDs below the high-water mark that have never been handed out or claimed, as the first ID mapped to the first ID after the gap
+	private final TreeMap<Integer, Integer> gaps;
+	
+	// Each thread's current block
+	private final ThreadLocal<Lease> blocks;
+	
+	/**
+	 * A block of IDs leased to one thread.
+	 * The next ID and the end of the block are packed into one long, so that handing out an ID
+	 * and cutting the block short for a claim can never both succeed for the same ID.
+	 */
+	private static class Lease {
+		
+		// The first ID in the block, and the first ID after the block as it was leased
+		private final int start;
+		private final int limit;
+		
+		// The next ID in the high 32 bits and the end of the block (exclusive) in the low 32 bits
+		private final AtomicLong state;
+		
+		/**
+		 * Constructor for Lease.
+		 * @param start - The first ID in the block
+		 * @param limit - The first ID after the block
+		 */
+		private Lease(int start, int limit) {
+			this.start = start;
+			this.limit = limit;
+			this.state = new AtomicLong(pack(start, limit));
+		}
+		
+		/**
+		 * Hands out the next ID in the block.
+		 * @return - The ID, or 0 if the block is used up
+		 */
+		private int take() {
+			while (true) {
+				long current = this.state.get();
+				int next = (int) (current >>> 32);
+				int end = (int) current;
+				if (next >= end) {
+					return 0;
+				}
+				if (this.state.compareAndSet(current, pack(next + 1, end))) {
+					return next;
+				}
+			}
+		}
+		
+		/**
+		 * Cuts the block short so that a claimed ID, and everything after it, is never handed out.
+		 * @param id - The claimed ID
+		 * @return - The end of the block before it was cut, or 0 if the ID was already handed out or cut off
+		 */
+		private int cutAt(int id) {
+			while (true) {
+				long current = this.state.get();
+				int next = (int) (current >>> 32);
+				int end = (int) current;
+				if (id < next || id >= end) {
+					return 0;
+				}
+				if (this.state.compareAndSet(current, pack(next, id))) {
+					return end;
+				}
+			}
+		}
+		
+		/**
+		 * Checks if every ID in the block has been handed out or cut off.
+		 * @return - A boolean is returned to indicate if the block is used up
+		 */
+		private boolean isUsedUp() {
+			long current = this.state.get();
+			return (int) (current >>> 32) >= (int) current;
+		}
+		
+		/**
+		 * Packs the next ID and the end of a block into one long.
+		 * @param next - The next ID in the block
+		 * @param end - The end of the block (exclusive)
+		 * @return - The packed value
+		 */
+		private static long pack(int next, int end) {
+			return ((long) next << 32) | (end & 0xFFFFFFFFL);
+		}
+	}
+	
+	/**
+	 * Constructor for ItemIdAllocator.
+	 * @param blockSize - The number of IDs leased to a thread at a time
+	 */
+	public ItemIdAllocator(int blockSize) {
+		this.blockSize = (blockSize > 0) ? blockSize : 64;
+		this.highWaterMark = 1;
+		this.leases = new TreeMap<Integer, Lease>();
+		this.gaps = new TreeMap<Integer, Integer>();
+		this.blocks = new ThreadLocal<Lease>();
+	}
+	
+	/**
+	 * Returns the allocator used by every VendItem.
+	 * @return - The default ItemIdAllocator
+	 */
+	public static ItemIdAllocator getDefault() {
+		return DEFAULT;
+	}
+	
+	/**
+	 * Returns the next unused ID.
+	 * @return - A unique item ID
+	 */
+	public int nextId() {
+		Lease block = this.blocks.get();
+		
+		while (true) {
+			if (block != null) {
+				int id = block.take();
+				if (id != 0) {
+					return id;
+				}
+			}
+			block = leaseBlock(block);
+		}
+	}
+	
+	/**
+	 * Leases a new block to the calling thread, and forgets its old one.
+	 * @param old - The thread's used up block, or null if it has never had one
+	 * @return - The new block
+	 */
+	private Lease leaseBlock(Lease old) {
+		synchronized (this.leaseLock) {
+			if (old != null) {
+				this.leases.remove(old.start, old);
+			}
+			
+			int start = this.highWaterMark;
+			Lease block = new Lease(start, start + this.blockSize);
+			this.highWaterMark = start + this.blockSize;
+			this.leases.put(start, block);
+			this.blocks.set(block);
+			return block;
+		}
+	}
+	
+	/**
+	 * Records that an ID is already in use, normally because it was restored from a CSV file.
+	 * @param id - The ID that is in use
+	 * @return - A boolean is returned to indicate if the ID was claimed. False if it has already been handed out or claimed.
+	 */
+	public boolean claim(int id) {
+		if (id <= 0) {
+			return false;
+		}
+		
+		synchronized (this.leaseLock) {
+			if (id >= this.highWaterMark) {
+				// The IDs skipped over have never been used, so they can still be claimed later
+				if (id > this.highWaterMark) {
+					this.gaps.put(this.highWaterMark, id);
+				}
+				this.highWaterMark = id + 1;
+				return true;
+			}
+			
+			// Only the block the ID sits in, if any, needs to change
+			Map.Entry<Integer, Lease> entry = this.leases.floorEntry(id);
+			if (entry != null && id < entry.getValue().limit) {
+				Lease block = entry.getValue();
+				int end = block.cutAt(id);
+				if (block.isUsedUp()) {
+					// The owning thread will lease a new block next time, so the old one does not need to be kept
+					this.leases.remove(entry.getKey());
+				}
+				if (end == 0) {
+					return takeGap(id);
+				}
+				if (id + 1 < end) {
+					this.gaps.put(id + 1, end);
+				}
+				return true;
+			}
+			
+			return takeGap(id);
+		}
+	}
+	
+	/**
+	 * Called by claim to take an ID out of the gap it sits in, splitting the gap around it.
+	 * Must be called while holding the lease lock.
+	 * @param id - The ID being claimed
+	 * @return - A boolean is returned to indicate if the ID was in a gap
+	 */
+	private boolean takeGap(int id) {
+		Map.Entry<Integer, Integer> gap = this.gaps.floorEntry(id);
+		if (gap == null || id >= gap.getValue()) {
+			return false;
+		}
+		
+		int start = gap.getKey();
+		int end = gap.getValue();
+		this.gaps.remove(start);
+		if (start < id) {
+			this.gaps.put(start, id);
+		}
+		if (id + 1 < end) {
+			this.gaps.put(id + 1, end);
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the lowest ID that has not been leased.
+	 * Every ID handed out or claimed so far is lower than this.
+	 * @return - The high-water mark
+	 */
+	public int getHighWaterMark() {
+		return this.highWaterMark;
+	}
+	
+}
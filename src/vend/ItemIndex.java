@@ -0,0 +1,219 @@
+package vend;
+
+import java.util.Arrays;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * This class keeps the items of a VendingMachine sorted by price, by quantity and by name,
+ * so that they can be searched without scanning and sorting the whole stock array.
+ * The quantity is the number of units that can be bought, leaving out any that are reserved.
+ * Each index is updated when an item changes, and only holds the positions of the items.
+ * It is not thread safe, so is only used while holding the machine's lock.
+ * @author Fergal Bittles
+ *
+ */
+class ItemIndex {
+
+	// Price and quantity keys hold the value in the top 32 bits and the position in the bottom 32 bits
+	private final TreeSet<Long> byPrice;
+	private final TreeSet<Long> byQty;
+	
+	// Name keys are the lower case name, then a separator, then the position
+	private final TreeSet<String> byName;
+	private static final char SEPARATOR = '\u0000';
+	
+	// The values currently in the indexes for each position, needed to find an entry again
+	private int[] prices;
+	private int[] qtys;
+	private String[] names;
+	
+	// The prices that were used to build the price index, and the product edit count when the names and prices were read
+	private PriceTable table;
+	private long productEdits;
+	
+	/**
+	 * Constructor for ItemIndex.
+	 * @param capacity - The maximum amount of items in the machine
+	 */
+	ItemIndex(int capacity) {
+		this.byPrice = new TreeSet<Long>();
+		this.byQty = new TreeSet<Long>();
+		this.byName = new TreeSet<String>();
+		this.prices = new int[capacity];
+		this.qtys = new int[capacity];
+		this.names = new String[capacity];
+		this.table = PriceTable.BASE_PRICES;
+		this.productEdits = Product.getEditCount();
+	}
+	
+	/**
+	 * Adds a new item to the end of the indexes.
+	 * @param position - The position of the item within the stock array
+	 * @param item - The item
+	 * @param pence - The price of the item, in pence
+	 */
+	void add(int position, VendItem item, int pence) {
+		this.prices[position] = pence;
+		this.qtys[position] = item.getAvailableQty();
+		this.names[position] = item.getName().toLowerCase();
+		
+		this.byPrice.add(key(pence, position));
+		this.byQty.add(key(this.qtys[position], position));
+		this.byName.add(this.names[position] + SEPARATOR + position);
+	}
+	
+	/**
+	 * Changes the maximum amount of items. The positions already in use must still fit.
+	 * @param capacity - The new maximum amount of items in the machine
+	 */
+	void resize(int capacity) {
+		this.prices = Arrays.copyOf(this.prices, capacity);
+		this.qtys = Arrays.copyOf(this.qtys, capacity);
+		this.names = Arrays.copyOf(this.names, capacity);
+	}
+	
+	/**
+	 * Moves an item within the quantity index.
+	 * @param position - The position of the item within the stock array
+	 * @param qty - The new quantity of the item
+	 */
+	void setQty(int position, int qty) {
+		if (this.qtys[position] == qty) {
+			return;
+		}
+		
+		this.byQty.remove(key(this.qtys[position], position));
+		this.qtys[position] = qty;
+		this.byQty.add(key(qty, position));
+	}
+	
+	/**
+	 * Moves an item within the price index.
+	 * @param position - The position of the item within the stock array
+	 * @param pence - The new price of the item, in pence
+	 */
+	void setPrice(int position, int pence) {
+		if (this.prices[position] == pence) {
+			return;
+		}
+		
+		this.byPrice.remove(key(this.prices[position], position));
+		this.prices[position] = pence;
+		this.byPrice.add(key(pence, position));
+	}
+	
+	/**
+	 * Moves an item within the name index.
+	 * @param position - The position of the item within the stock array
+	 * @param name - The new name of the item
+	 */
+	void setName(int position, String name) {
+		String lower = name.toLowerCase();
+		if (lower.equals(this.names[position])) {
+			return;
+		}
+		
+		this.byName.remove(this.names[position] + SEPARATOR + position);
+		this.names[position] = lower;
+		this.byName.add(lower + SEPARATOR + position);
+	}
+	
+	/**
+	 * Returns the prices that the price index was built from.
+	 * @return - The PriceTable
+	 */
+	PriceTable getTable() {
+		return this.table;
+	}
+	
+	/**
+	 * Records the prices that the price index has been updated to.
+	 * @param table - The PriceTable
+	 */
+	void setTable(PriceTable table) {
+		this.table = table;
+	}
+	
+	/**
+	 * Returns the product edit count when the names and prices in the indexes were last read.
+	 * @return - The edit count, from Product.getEditCount
+	 */
+	long getProductEdits() {
+		return this.productEdits;
+	}
+	
+	/**
+	 * Records the product edit count that the names and prices have been updated to.
+	 * @param productEdits - The edit count, from Product.getEditCount
+	 */
+	void setProductEdits(long productEdits) {
+		this.productEdits = productEdits;
+	}
+	
+	/**
+	 * Finds the items that cost no more than a price, cheapest first.
+	 * @param maxPence - The highest price, in pence
+	 * @return - The positions of the items
+	 */
+	int[] findByPrice(int maxPence) {
+		return positions(this.byPrice.headSet(key(maxPence, -1), true));
+	}
+	
+	/**
+	 * Finds the items that have at least a certain quantity, lowest quantity first.
+	 * @param minQty - The lowest quantity
+	 * @return - The positions of the items
+	 */
+	int[] findByQty(int minQty) {
+		return positions(this.byQty.tailSet(key(minQty, 0), true));
+	}
+	
+	/**
+	 * Finds the items whose name begins with some text, in name order. Upper and lower case are treated the same.
+	 * @param prefix - The start of the name
+	 * @return - The positions of the items
+	 */
+	int[] findByName(String prefix) {
+		String from = prefix.toLowerCase();
+		NavigableSet<String> matches = this.byName.subSet(from, true, from + Character.MAX_VALUE, false);
+		int[] res = new int[matches.size()];
+		int found = 0;
+		
+		for (String key : matches) {
+			res[found] = Integer.parseInt(key.substring(key.lastIndexOf(SEPARATOR) + 1));
+			found++;
+		}
+		
+		return res;
+	}
+	
+	/**
+	 * Reads the positions out of a set of price or quantity keys.
+	 * @param keys - The keys, in order
+	 * @return - The positions, in the same order
+	 */
+	private static int[] positions(NavigableSet<Long> keys) {
+		int[] res = new int[keys.size()];
+		int found = 0;
+		
+		for (long key : keys) {
+			res[found] = (int) key;
+			found++;
+		}
+		
+		return res;
+	}
+	
+	/**
+	 * Combines a value and a position into one key, sorted by value and then by position.
+	 * A position of -1 sorts after every real position, so it can be used as an inclusive upper bound.
+	 * @param value - The price or quantity
+	 * @param position - The position of the item within the stock array
+	 * @return - The key
+	 */
+	private static long key(int value, int position) {
+		return ((long) value << 32) | (position & 0xFFFFFFFFL);
+	}
+	
+}
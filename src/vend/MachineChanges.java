@@ -0,0 +1,368 @@
+package vend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class works out how the state of a VendingMachine has changed since it was last looked at,
+ * as a list of change lines, and applies those lines to another machine.
+ * It is used by MachineJournal to log changes to disk, and by ReplicationPrimary to send them to replicas.
+ *
+ * Each line is one change:
+ * S,status - M,total in pence - C,coin index,amount - Q,position,quantity - A,item ID,quantity,price,name - R (reset)
+ * O,owner - K,maximum items - I,count of each coin inserted by the current customer - L,cashless money in pence
+ * P,position=price in pence;position=price in pence...,table name (P on its own for each item's own unit price)
+ *
+ * A PriceTable is written as the prices of the items in the machine, by position, as product IDs are only known
+ * to the catalog that gave them out. Reservations are not written, so a copy of a machine never holds any.
+ *
+ * It is not thread safe, so is only used while holding the lock of the machine being looked at.
+ * @author Fergal Bittles
+ *
+ */
+class MachineChanges {
+
+	// The state that was last looked at
+	private String lastOwner;
+	private int lastMaxItems;
+	private Status lastStatus;
+	private int lastTotal;
+	private int[] lastCoins;
+	private int[] lastInserted;
+	private int[] lastIds;
+	private int[] lastQtys;
+	private PriceTable lastPrices;
+	private int lastCashless;
+	
+	/**
+	 * Constructor for MachineChanges, starting from an empty machine, so the first changes describe the whole machine.
+	 * @param coinTypes - The number of coin types in the machine's currency
+	 */
+	MachineChanges(int coinTypes) {
+		this.lastCoins = new int[coinTypes];
+		this.lastInserted = new int[coinTypes];
+		this.lastIds = new int[0];
+		this.lastQtys = new int[0];
+		this.lastPrices = PriceTable.BASE_PRICES;
+	}
+	
+	/**
+	 * Overloaded constructor for MachineChanges, starting from the current state of a machine.
+	 * @param source - The vending machine
+	 */
+	MachineChanges(VendingMachine source) {
+		remember(source, source.getSnapshot());
+	}
+	
+	/**
+	 * Works out what has changed since the last call, and remembers the new state.
+	 * @param source - The vending machine
+	 * @return - The change lines, in the order they should be applied, which is empty if nothing changed
+	 */
+	List<String> diff(VendingMachine source) {
+		MachineSnapshot snap = source.getSnapshot();
+		List<String> lines = new ArrayList<String>();
+		
+		// Items are only ever added to the end, so anything else means the machine was reset
+		boolean reset = snap.getItemCount() < this.lastIds.length;
+		for (int i = 0; i < this.lastIds.length && !reset; i++) {
+			reset = snap.getItemId(i) != this.lastIds[i];
+		}
+		
+		if (reset) {
+			lines.add("R");
+			this.lastStatus = Status.VENDING_MODE;
+			this.lastTotal = 0;
+			this.lastCoins = new int[this.lastCoins.length];
+			this.lastInserted = new int[this.lastInserted.length];
+			this.lastIds = new int[0];
+			this.lastQtys = new int[0];
+		}
+		
+		// Written before any new items, which may need the extra room
+		if (!source.getOwner().equals(this.lastOwner)) {
+			lines.add("O," + source.getOwner());
+		}
+		
+		if (source.getMaxItems() != this.lastMaxItems) {
+			lines.add("K," + source.getMaxItems());
+		}
+		
+		Status status = Status.fromName(snap.getStatus());
+		if (status != this.lastStatus) {
+			lines.add("S," + status.getStatus());
+		}
+		
+		int total = (int) Math.round(snap.getTotalMoney() * 100);
+		if (total != this.lastTotal) {
+			lines.add("M," + total);
+		}
+		
+		for (int i = 0; i < this.lastCoins.length; i++) {
+			if (snap.getCoinCount(i) != this.lastCoins[i]) {
+				lines.add("C," + i + "," + snap.getCoinCount(i));
+			}
+		}
+		
+		// The customer's coins are held apart from the machine's, so a machine that takes over keeps them
+		int[] inserted = source.getInsertedCoins();
+		if (!Arrays.equals(inserted, this.lastInserted)) {
+			lines.add(insertedLine(inserted));
+		}
+		
+		for (int i = 0; i < snap.getItemCount(); i++) {
+			if (i >= this.lastIds.length) {
+				VendItem item = source.getVendItem(i);
+				lines.add("A," + item.getItemId() + "," + snap.getQty(i) + "," + item.getPrice() + "," + item.getName());
+			} else if (snap.getQty(i) != this.lastQtys[i]) {
+				lines.add("Q," + i + "," + snap.getQty(i));
+			}
+		}
+		
+		// Written after any new items, which the table may set a price for
+		PriceTable prices = source.getPriceTable();
+		if (prices != this.lastPrices || (prices != PriceTable.BASE_PRICES && snap.getItemCount() != this.lastIds.length)) {
+			lines.add(priceLine(source));
+		}
+		
+		int cashless = (int) Math.round(source.getCashlessMoney() * 100);
+		if (cashless != this.lastCashless) {
+			lines.add("L," + cashless);
+		}
+		
+		if (!lines.isEmpty()) {
+			remember(source, snap);
+		}
+		
+		return lines;
+	}
+	
+	/**
+	 * Builds the change line that sets the coins inserted by the current customer.
+	 * @param inserted - The number of each coin, indexed by position in the currency table
+	 * @return - The change line
+	 */
+	static String insertedLine(int[] inserted) {
+		String line = "I";
+		for (int count : inserted) {
+			line += "," + count;
+		}
+		return line;
+	}
+	
+	/**
+	 * Builds the change line that sets the PriceTable of a machine, as the price of each item the table includes.
+	 * @param source - The vending machine
+	 * @return - The change line
+	 */
+	static String priceLine(VendingMachine source) {
+		PriceTable prices = source.getPriceTable();
+		if (prices == PriceTable.BASE_PRICES) {
+			return "P";
+		}
+		
+		String line = "P,";
+		for (int i = 0; i < source.getItemCount(); i++) {
+			VendItem item = source.getVendItem(i);
+			if (prices.hasPrice(item)) {
+				line += (line.endsWith(",") ? "" : ";") + i + "=" + Math.round(prices.getPrice(item) * 100);
+			}
+		}
+		return line + "," + prices.getName();
+	}
+	
+	/**
+	 * Builds the change lines for the state of a machine that a MachineData file leaves out:
+	 * the customer's coins, the PriceTable and the cashless money. Only state that differs from a new machine is included.
+	 * @param source - The vending machine
+	 * @return - The change lines
+	 */
+	static List<String> unsavedLines(VendingMachine source) {
+		List<String> lines = new ArrayList<String>();
+		int[] inserted = source.getInsertedCoins();
+		for (int count : inserted) {
+			if (count > 0) {
+				lines.add(insertedLine(inserted));
+				break;
+			}
+		}
+		if (source.getPriceTable() != PriceTable.BASE_PRICES) {
+			lines.add(priceLine(source));
+		}
+		if (source.getCashlessMoney() > 0) {
+			lines.add("L," + Math.round(source.getCashlessMoney() * 100));
+		}
+		return lines;
+	}
+	
+	/**
+	 * Remembers the state that has been looked at, so that the next change can be compared against it.
+	 * @param source - The vending machine, which holds the owner and maximum items
+	 * @param snap - The state of the machine
+	 */
+	private void remember(VendingMachine source, MachineSnapshot snap) {
+		this.lastOwner = source.getOwner();
+		this.lastMaxItems = source.getMaxItems();
+		this.lastStatus = Status.fromName(snap.getStatus());
+		this.lastTotal = (int) Math.round(snap.getTotalMoney() * 100);
+		this.lastCoins = new int[snap.getCurrency().size()];
+		for (int i = 0; i < this.lastCoins.length; i++) {
+			this.lastCoins[i] = snap.getCoinCount(i);
+		}
+		this.lastInserted = source.getInsertedCoins();
+		this.lastIds = new int[snap.getItemCount()];
+		this.lastQtys = new int[snap.getItemCount()];
+		for (int i = 0; i < this.lastIds.length; i++) {
+			this.lastIds[i] = snap.getItemId(i);
+			this.lastQtys[i] = snap.getQty(i);
+		}
+		this.lastPrices = source.getPriceTable();
+		this.lastCashless = (int) Math.round(source.getCashlessMoney() * 100);
+	}
+	
+	/**
+	 * Applies one change line to a vending machine.
+	 * @param machine - The vending machine
+	 * @param line - The change line
+	 * @return - A boolean is returned to indicate if the change was valid
+	 */
+	static boolean apply(VendingMachine machine, String line) {
+		return apply(machine, line, ProductCatalog.getDefault(), ItemIdAllocator.getDefault(), true);
+	}
+	
+	/**
+	 * Overloaded apply, which takes the products and item IDs of new items from a particular catalog and allocator.
+	 * @param machine - The vending machine
+	 * @param line - The change line
+	 * @param catalog - The catalog that the products of new items are taken from
+	 * @param ids - The allocator that the IDs of new items are claimed from
+	 * @param copied - True if the machine is a copy of another machine, whose items keep their IDs even if the IDs have been claimed here before.
+	 *                 False if the IDs of new items must not have been handed out or claimed yet, e.g. when a journal is replayed.
+	 * @return - A boolean is returned to indicate if the change was valid
+	 */
+	static boolean apply(VendingMachine machine, String line, ProductCatalog catalog, ItemIdAllocator ids, boolean copied) {
+		// One count for every coin, so it can not be split in the same way as the other lines
+		if (line.startsWith("I,")) {
+			String[] counts = line.substring(2).split(",");
+			if (counts.length != machine.getCurrency().size()) {
+				return false;
+			}
+			int[] inserted = new int[counts.length];
+			for (int i = 0; i < counts.length; i++) {
+				if (!MachineData.isInteger(counts[i]) || Integer.parseInt(counts[i]) < 0) {
+					return false;
+				}
+				inserted[i] = Integer.parseInt(counts[i]);
+			}
+			machine.setInsertedCoins(inserted);
+			return true;
+		}
+		
+		// The table name may itself contain commas
+		if (line.equals("P") || line.startsWith("P,")) {
+			return applyPrices(machine, line);
+		}
+		
+		String[] parts = line.split(",", 5);
+		
+		switch (parts[0]) {
+		case "R":
+			machine.reset();
+			return parts.length == 1;
+		case "S":
+			Status status = (parts.length == 2) ? Status.fromName(parts[1]) : null;
+			if (status == null) {
+				return false;
+			}
+			machine.setStatus(status);
+			return true;
+		case "M":
+			if (parts.length != 2 || !MachineData.isInteger(parts[1])) {
+				return false;
+			}
+			machine.setTotalMoney(Integer.parseInt(parts[1]) / 100.0);
+			return true;
+		case "C":
+			if (parts.length != 3 || !MachineData.isInteger(parts[1]) || !MachineData.isInteger(parts[2])) {
+				return false;
+			}
+			machine.setCoinCount(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+			return true;
+		case "Q":
+			if (parts.length != 3 || !MachineData.isInteger(parts[1]) || !MachineData.isInteger(parts[2])) {
+				return false;
+			}
+			return machine.setItemQty(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+		case "O":
+			if (parts.length < 2) {
+				return false;
+			}
+			// The owner may itself contain commas
+			machine.changeOwner(line.substring(2));
+			return true;
+		case "K":
+			if (parts.length != 2 || !MachineData.isInteger(parts[1])) {
+				return false;
+			}
+			return machine.changeMaxItems(Integer.parseInt(parts[1]));
+		case "A":
+			if (parts.length != 5 || !MachineData.isInteger(parts[1]) || !MachineData.isInteger(parts[2]) || !MachineData.isDouble(parts[3])) {
+				return false;
+			}
+			Product product = catalog.getProduct(parts[4], Double.parseDouble(parts[3]));
+			VendItem item;
+			try {
+				item = new VendItem(product, Integer.parseInt(parts[2]), Integer.parseInt(parts[1]), ids, copied);
+			} catch (IllegalArgumentException e) {
+				return false; // The item's ID is used by another item
+			}
+			return machine.addNewItem(item);
+		case "L":
+			if (parts.length != 2 || !MachineData.isInteger(parts[1])) {
+				return false;
+			}
+			return machine.setCashlessMoney(Integer.parseInt(parts[1]));
+		default:
+			return false;
+		}
+	}
+	
+	/**
+	 * Called by apply to give a machine the PriceTable in a P line, using the product IDs of its own items.
+	 * @param machine - The vending machine
+	 * @param line - The change line
+	 * @return - A boolean is returned to indicate if the change was valid
+	 */
+	private static boolean applyPrices(VendingMachine machine, String line) {
+		if (line.equals("P")) {
+			machine.setPriceTable(null);
+			return true;
+		}
+		
+		String[] parts = line.split(",", 3);
+		if (parts.length != 3) {
+			return false;
+		}
+		
+		Map<Integer, Double> prices = new HashMap<Integer, Double>();
+		if (!parts[1].equals("")) {
+			for (String entry : parts[1].split(";")) {
+				String[] pair = entry.split("=");
+				if (pair.length != 2 || !MachineData.isInteger(pair[0]) || !MachineData.isInteger(pair[1])) {
+					return false;
+				}
+				int position = Integer.parseInt(pair[0]);
+				if (position < 0 || position >= machine.getItemCount()) {
+					return false;
+				}
+				prices.put(machine.getVendItem(position).getProduct().getProductId(), Integer.parseInt(pair[1]) / 100.0);
+			}
+		}
+		machine.setPriceTable(new PriceTable(parts[2], prices, machine.getCurrency()));
+		return true;
+	}
+	
+}
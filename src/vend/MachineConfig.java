@@ -0,0 +1,222 @@
+package vend;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * This class holds the configuration of a VendingMachine, read from a config file.
+ *
+ * The first line holds the owner and the maximum items.
+ * Every other line holds the name, price and (optionally) starting quantity of one item, in slot order.
+ * Blank lines and lines starting with # are skipped.
+ *
+ * A config can be applied to a running machine with VendingMachine.applyConfig.
+ *
+ * @author Fergal Bittles
+ *
+ */
+public class MachineConfig {
+
+	private final String owner;
+	private final int maxItems;
+	private final List<Entry> items;
+	private final String error;
+	
+	/**
+	 * This class holds the planned name, price and starting quantity of one slot.
+	 */
+	public static class Entry {
+		
+		private final String name;
+		private final double price;
+		private final int qty;
+		
+		/**
+		 * Constructor for Entry.
+		 * @param name - The name of the item
+		 * @param price - The price of the item
+		 * @param qty - The quantity of the item, used if the item is new
+		 */
+		private Entry(String name, double price, int qty) {
+			this.name = name;
+			this.price = price;
+			this.qty = qty;
+		}
+		
+		/**
+		 * Returns the name of the item.
+		 * @return - The name of the item
+		 */
+		public String getName() {
+			return this.name;
+		}
+		
+		/**
+		 * Returns the price of the item.
+		 * @return - The price of the item
+		 */
+		public double getPrice() {
+			return this.price;
+		}
+		
+		/**
+		 * Returns the starting quantity of the item, which is only used if the item is new.
+		 * @return - The quantity of the item
+		 */
+		public int getQty() {
+			return this.qty;
+		}
+		
+	}
+	
+	/**
+	 * Constructor for MachineConfig. Use load to read a config file.
+	 * @param owner - The owner of the machine
+	 * @param maxItems - The maximum items in the machine
+	 * @param items - The planned items, in slot order
+	 * @param error - The reason the file could not be used, or null if it is valid
+	 */
+	private MachineConfig(String owner, int maxItems, List<Entry> items, String error) {
+		this.owner = owner;
+		this.maxItems = maxItems;
+		this.items = Collections.unmodifiableList(items);
+		this.error = error;
+	}
+	
+	/**
+	 * Creates a config for a file that could not be used.
+	 * @param error - The reason the file could not be used
+	 * @return - The invalid MachineConfig
+	 */
+	private static MachineConfig invalid(String error) {
+		return new MachineConfig(null, 0, new ArrayList<Entry>(), error);
+	}
+	
+	/**
+	 * Reads a config file. Nothing is applied to any machine.
+	 * @param file - The config file
+	 * @return - The MachineConfig, which holds the reason the file could not be used if it is not valid
+	 */
+	public static MachineConfig load(File file) {
+		try (Scanner scan = new Scanner(file)) {
+			String owner = null;
+			int maxItems = 0;
+			List<Entry> items = new ArrayList<Entry>();
+			int lineNum = 0;
+			
+			while (scan.hasNextLine()) {
+				String line = scan.nextLine().trim();
+				lineNum++;
+				if (line.equals("") || line.startsWith("#")) {
+					continue;
+				}
+				
+				String[] parts = line.split(",");
+				
+				// The first line is the owner and maximum items
+				if (owner == null) {
+					if (parts.length != 2 || parts[0].trim().equals("")) {
+						return invalid("Invalid owner line on line " + lineNum);
+					}
+					if (!MachineData.isInteger(parts[1].trim()) || Integer.parseInt(parts[1].trim()) <= 0) {
+						return invalid("Invalid maximum items on line " + lineNum);
+					}
+					owner = parts[0].trim();
+					maxItems = Integer.parseInt(parts[1].trim());
+					continue;
+				}
+				
+				// Every other line is an item
+				if (parts.length != 2 && parts.length != 3) {
+					return invalid("Invalid item length on line " + lineNum);
+				}
+				
+				String name = parts[0].trim();
+				if (name.equals("")) {
+					return invalid("Invalid item name on line " + lineNum);
+				}
+				
+				// The price is checked against the machine's currency when the config is applied
+				if (!MachineData.isDouble(parts[1].trim()) || Double.parseDouble(parts[1].trim()) <= 0) {
+					return invalid("Invalid price for \"" + name + "\" on line " + lineNum);
+				}
+				
+				int qty = 0;
+				if (parts.length == 3) {
+					if (!MachineData.isInteger(parts[2].trim())) {
+						return invalid("Invalid quantity for \"" + name + "\" on line " + lineNum);
+					}
+					qty = Integer.parseInt(parts[2].trim());
+					if (qty < 0 || qty > 10) {
+						return invalid("Invalid quantity for \"" + name + "\" on line " + lineNum);
+					}
+				}
+				
+				for (Entry entry : items) {
+					if (entry.getName().equals(name)) {
+						return invalid("\"" + name + "\" is listed twice");
+					}
+				}
+				
+				items.add(new Entry(name, Double.parseDouble(parts[1].trim()), qty));
+			}
+			
+			if (owner == null) {
+				return invalid("No owner line");
+			}
+			
+			if (items.size() > maxItems) {
+				return invalid("More items are listed than the maximum items");
+			}
+			
+			return new MachineConfig(owner, maxItems, items, null);
+		} catch (FileNotFoundException e) {
+			return invalid("File not found");
+		}
+	}
+	
+	/**
+	 * Checks if the file could be used.
+	 * @return - A boolean is returned to indicate if the config is valid
+	 */
+	public boolean isValid() {
+		return this.error == null;
+	}
+	
+	/**
+	 * Returns the reason the file could not be used.
+	 * @return - The error, or null if the config is valid
+	 */
+	public String getError() {
+		return this.error;
+	}
+	
+	/**
+	 * Returns the owner of the machine.
+	 * @return - The owner
+	 */
+	public String getOwner() {
+		return this.owner;
+	}
+	
+	/**
+	 * Returns the maximum items in the machine.
+	 * @return - The maximum items
+	 */
+	public int getMaxItems() {
+		return this.maxItems;
+	}
+	
+	/**
+	 * Returns the planned items, in slot order.
+	 * @return - The items, which can not be changed
+	 */
+	public List<Entry> getItems() {
+		return this.items;
+	}
+	
+}
@@ -0,0 +1,284 @@
+package vend;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * This class saves a VendingMachine to a CSV file, and restores it again.
+ * 
+ * The first line holds the owner, maximum items, status, total money and currency.
+ * The second line holds the amount of each coin, from the smallest to the largest.
+ * Every other line holds the name, price, quantity and ID of one item.
+ * 
+ * @author Fergal Bittles
+ *
+ */
+public class MachineData {
+
+	// The largest maximum items a restored machine may have, so that a corrupt first line can not use up all the memory
+	private static final int MAX_ITEMS_LIMIT = 100000;
+	
+	/**
+	 * Saves the state/data of a vending machine to a CSV file (user money is not saved).
+	 * The whole file is built while holding the machine's lock, so it never mixes the state from before
+	 * and after a sale, but the lock is let go before anything is written to disk.
+	 * @param machine - The vending machine to be saved
+	 * @param file - The CSV file to write to
+	 * @throws FileNotFoundException - If the file can not be created
+	 */
+	public static void save(VendingMachine machine, File file) throws FileNotFoundException {
+		StringBuilder data = new StringBuilder();
+		
+		synchronized (machine) {
+			// The system information (user money is not restored)
+			data.append(machine.getOwner() + ", " + machine.getMaxItems() + ", " + machine.getStatus() + ", " + machine.getTotalMoney() + ", " + machine.getCurrency().getName() + "\n");
+			
+			// The coins inside the machine, from the smallest to the largest
+			for (int i = 0; i < machine.getCurrency().size(); i++) {
+				if (i > 0) {
+					data.append(", ");
+				}
+				data.append(machine.getCoinCount(i));
+			}
+			data.append("\n");
+			
+			// The items inside the machine
+			for (int i = 0; i < machine.getItemCount(); i++) {
+				VendItem item = machine.getVendItem(i);
+				data.append(item.getName() + ", ");
+				data.append(item.getPrice() + ", ");
+				data.append(item.getQty() + ", ");
+				data.append(item.getItemId() + "\n");
+			}
+		}
+		
+		PrintWriter myPw = new PrintWriter(file);
+		myPw.print(data);
+		myPw.close();
+	}
+	
+	/**
+	 * Restores a vending machine using data from a CSV file.
+	 * Items that can not be added, because their ID is already in use or the machine is full,
+	 * are left out and listed in the RestoreResult.
+	 * @param file - The CSV file to be read
+	 * @return - A RestoreResult holding either the restored machine, or the reason the file could not be used
+	 */
+	public static RestoreResult restore(File file) {
+		return restore(file, ProductCatalog.getDefault(), ItemIdAllocator.getDefault());
+	}
+	
+	/**
+	 * Overloaded restore, which takes the products and item IDs from a particular catalog and allocator.
+	 * Used by MachineJournal to rebuild a copy of a machine without changing the products or IDs of the machines in use.
+	 * @param file - The CSV file to be read
+	 * @param catalog - The catalog that the products are taken from
+	 * @param ids - The allocator that the saved item IDs are claimed from
+	 * @return - A RestoreResult holding either the restored machine, or the reason the file could not be used
+	 */
+	static RestoreResult restore(File file, ProductCatalog catalog, ItemIdAllocator ids) {
+		VendingMachine machine;
+		List<String> skipped = new ArrayList<String>();
+		
+		try (Scanner scan = new Scanner(file)) {
+			
+			// Check for first line
+			if (!scan.hasNextLine()) {
+				return RestoreResult.corrupt(file, "No first line");
+			}
+			
+			// The first line is system information
+			String info = scan.nextLine().trim();
+			if (!info.contains(",") || info.equals("")) {
+				return RestoreResult.corrupt(file, "Invalid first line format");
+			}
+			
+			// Split and validate the first line
+			String[] infoParts = info.split(",");
+			
+			// The currency was added as a fifth value, older files are always sterling
+			if (infoParts.length != 4 && infoParts.length != 5) {
+				return RestoreResult.corrupt(file, "Invalid first line length");
+			}
+			
+			if (infoParts[0].trim().equals("")) {
+				return RestoreResult.corrupt(file, "Invalid owner name on first line");
+			}
+			
+			if (!isInteger(infoParts[1].trim()) || !isDouble(infoParts[3].trim())) {
+				return RestoreResult.corrupt(file, "Invalid number value on first line");
+			}
+			
+			int maxItems = Integer.parseInt(infoParts[1].trim());
+			if (maxItems < 1 || maxItems > MAX_ITEMS_LIMIT) {
+				return RestoreResult.corrupt(file, "Invalid maximum items on first line");
+			}
+			
+			if (Status.fromName(infoParts[2].trim()) == null) {
+				return RestoreResult.corrupt(file, "Invalid status on first line");
+			}
+			
+			CurrencySet currency = CurrencySet.STERLING;
+			if (infoParts.length == 5) {
+				currency = CurrencySet.forName(infoParts[4].trim());
+				if (currency == null) {
+					return RestoreResult.corrupt(file, "Invalid currency on first line");
+				}
+			}
+			
+			// Initialise the VendingMachine
+			String owner = infoParts[0].trim();
+			machine = new VendingMachine(owner, maxItems, currency);
+			
+			// No customer survives a restart, so a machine that was draining has nothing left to wait for
+			Status status = Status.fromName(infoParts[2].trim());
+			if (status == Status.DRAINING) {
+				status = Status.SERVICE_MODE;
+			}
+			machine.setStatus(status);
+			
+			double totalMoney = Double.parseDouble(infoParts[3].trim());
+			
+			// Check for second line
+			if (!scan.hasNextLine()) {
+				return RestoreResult.corrupt(file, "No second line");
+			}
+			
+			// The second line is coin amounts
+			String coins = scan.nextLine().trim();
+			if (!coins.contains(",") || coins.equals("")) {
+				return RestoreResult.corrupt(file, "Invalid second line format");
+			}
+			
+			// Split and validate the second line	
+			String[] coinParts = coins.split(",");
+			
+			if (coinParts.length != currency.size()) {
+				return RestoreResult.corrupt(file, "Invalid second line length");
+			}
+			
+			for (int i = 0; i < coinParts.length; i++) {
+				if (!isInteger(coinParts[i].trim())) {
+					return RestoreResult.corrupt(file, "Invalid number value on second line");
+				}
+			}
+			
+			// Validate total money
+			int[] coinAmounts = new int[currency.size()];
+			int totalInPence = 0;
+			for (int i = 0; i < coinAmounts.length; i++) {
+				coinAmounts[i] = Integer.parseInt(coinParts[i].trim());
+				totalInPence += coinAmounts[i] * currency.getDenomination(i).getValue();
+			}
+			
+			if (totalInPence != Math.round(totalMoney * 100)) {
+				return RestoreResult.corrupt(file, "Total money is not correct");
+			}
+			
+			// Add the total money and coins to the VendingMachine
+			machine.setCash(totalMoney, coinAmounts);
+			
+			// The remaining lines of the CSV file contain VendItems
+			int lineNum = 3;
+			while(scan.hasNextLine()) {
+				// Scan the item
+				String item = scan.nextLine().trim();
+				if (!item.contains(",") || item.equals("")) {
+					return RestoreResult.corrupt(file, "Invalid vend item format on line " + lineNum);
+				}
+				
+				// Split and validate the line
+				String[] itemParts = item.split(",");
+				
+				// The item ID was added as a fourth value, items in older files are given a new ID
+				if (itemParts.length != 3 && itemParts.length != 4) {
+					return RestoreResult.corrupt(file, "Invalid vend item length on line " + lineNum);
+				}
+				
+				if (itemParts[0].trim().equals("")) {
+					return RestoreResult.corrupt(file, "Invalid vend item name on line " + lineNum);
+				}
+				
+				if (!isDouble(itemParts[1].trim()) || !isInteger(itemParts[2].trim())) {
+					return RestoreResult.corrupt(file, "Invalid number value for vend item on line " + lineNum);
+				}
+				
+				if (itemParts.length == 4 && (!isInteger(itemParts[3].trim()) || Integer.parseInt(itemParts[3].trim()) <= 0)) {
+					return RestoreResult.corrupt(file, "Invalid vend item ID on line " + lineNum);
+				}
+				
+				// Add the item to the VendingMachine
+				String itemName = itemParts[0].trim();
+				double itemPrice = Double.parseDouble(itemParts[1].trim());
+				int itemQty = Integer.parseInt(itemParts[2].trim());
+				int itemId = (itemParts.length == 4) ? Integer.parseInt(itemParts[3].trim()) : 0;
+				Product product = catalog.getProduct(itemName, itemPrice);
+				VendItem myItem;
+				try {
+					myItem = new VendItem(product, itemQty, itemId, ids);
+				} catch (IllegalArgumentException e) {
+					// Another item, in this machine or one restored earlier, already has the ID
+					skipped.add("Line " + lineNum + " (" + itemName + ") was left out, as item ID " + itemId + " has already been issued");
+					lineNum++;
+					continue;
+				}
+				if (!machine.addNewItem(myItem)) {
+					String reason;
+					if (machine.getItemCount() >= machine.getMaxItems()) {
+						reason = "the machine is full";
+					} else if (!Product.isValidPrice(myItem.getPrice(), machine.getCurrency())) {
+						reason = "its price can not be paid in " + machine.getCurrency().getName();
+					} else {
+						reason = "item ID " + itemId + " is already in use";
+					}
+					skipped.add("Line " + lineNum + " (" + itemName + ") was left out, as " + reason);
+				}
+				
+				lineNum++;
+			}
+			
+			return RestoreResult.restored(file, machine, skipped);
+		} catch (FileNotFoundException e) {
+			return RestoreResult.corrupt(file, "File not found");
+		}
+	}
+	
+	/**
+	 * Checks if a string can be converted to an integer.
+	 * @param s - The string to be checked
+	 * @return - A boolean is returned to indicate if the string can be parsed to a number
+	 */
+	public static boolean isInteger(String s) {
+	    try { 
+	        Integer.parseInt(s); 
+	    } catch(NumberFormatException e) { 
+	        return false; 
+	    } catch(NullPointerException e) {
+	        return false;
+	    }
+	
+	    return true;
+	}
+	
+	/**
+	 * Checks if a string can be converted to a double.
+	 * @param s - The string to be checked
+	 * @return - A boolean is returned to indicate if the string can be parsed to a number
+	 */
+	public static boolean isDouble(String s) {
+	    try { 
+	        Double.parseDouble(s); 
+	    } catch(NumberFormatException e) { 
+	        return false; 
+	    } catch(NullPointerException e) {
+	        return false;
+	    }
+	
+	    return true;
+	}
+	
+}
@@ -0,0 +1,28 @@
+package vend;
+
+/**
+ * This interface is implemented by anything that needs to count the sales and faults of a VendingMachine,
+ * e.g. to send telemetry. Both methods are called while the machine's lock is held, so they must return quickly.
+ * They are only called once the change that caused them has finished, so a listener may take a snapshot of the machine.
+ * @author Fergal Bittles
+ *
+ */
+public interface MachineEventListener {
+
+	/**
+	 * Called by a VendingMachine each time an item is sold.
+	 * @param machine - The vending machine
+	 * @param item - The item that was sold
+	 * @param pence - The price paid, in pence
+	 * @param cashless - True if the item was paid for by card or mobile
+	 */
+	public void sale(VendingMachine machine, VendItem item, int pence, boolean cashless);
+	
+	/**
+	 * Called by a VendingMachine when something stops a customer being served, or its cash first drifts out of balance.
+	 * @param machine - The vending machine
+	 * @param fault - A short description of the fault, e.g. "No change"
+	 */
+	public void fault(VendingMachine machine, String fault);
+	
+}
@@ -0,0 +1,563 @@
+package vend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps a history of the total money, coin counts and item quantities of a fleet of vending machines,
+ * for drawing dashboards.
+ *
+ * Each machine is sampled at a fixed rate from a snapshot, so sampling never holds up a purchase. Every sample is
+ * kept for a short time, and is also rolled up straight away into one-minute and one-hour periods, which keep the
+ * lowest, highest and last value of each period for longer. Each of the three is a ring of primitive arrays, with
+ * one row for each period, which is overwritten once it is older than the ring holds, so the memory used never grows.
+ * A query uses the finest of the three that still goes back far enough, and reads the rows it needs directly.
+ *
+ * The history of an item follows its position in the machine, as a physical slot, rather than the product in it.
+ * When a machine is given room for more items, each of its rings is widened at the next sample, so the new slots are
+ * recorded from then on. Slots are never taken away, so their history can still be queried after the machine shrinks.
+ * @author Fergal Bittles
+ *
+ */
+public class MachineHistory {
+
+	/**
+	 * The value given for a period with no sample, or a slot with no item.
+	 */
+	public static final int NO_DATA = Integer.MIN_VALUE;
+	
+	private static final long MINUTE_MILLIS = 60 * 1000L;
+	private static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+	
+	private static final long DEFAULT_SAMPLE_MILLIS = 10 * 1000L;
+	private static final int DEFAULT_SAMPLES = 360; // One hour of samples
+	private static final int DEFAULT_MINUTES = 6 * 60;
+	private static final int DEFAULT_HOURS = 7 * 24;
+	
+	private final long sampleMillis;
+	private final int sampleCount;
+	private final int minuteCount;
+	private final int hourCount;
+	private final Map<String, Machine> machines;
+	private final ScheduledExecutorService timer;
+	
+	/**
+	 * This class holds one ring of periods for one machine. Each row holds one value for each column.
+	 * Only used while holding the lock of the Machine it belongs to.
+	 */
+	private static class Ring {
+		
+		private final long periodMillis;
+		private final int capacity;
+		private final long[] periods;
+		private int columns;
+		private int[] last;
+		private int[] min; // Only kept by rolled-up rings
+		private int[] max;
+		
+		/**
+		 * Constructor for Ring.
+		 * @param periodMillis - The length of each period
+		 * @param capacity - The number of periods kept
+		 * @param columns - The number of values in each row
+		 * @param rolledUp - True to keep the lowest and highest value of each period as well as the last
+		 */
+		private Ring(long periodMillis, int capacity, int columns, boolean rolledUp) {
+			this.periodMillis = periodMillis;
+			this.capacity = capacity;
+			this.columns = columns;
+			this.periods = new long[capacity];
+			Arrays.fill(this.periods, -1);
+			this.last = new int[capacity * columns];
+			this.min = rolledUp ? new int[capacity * columns] : null;
+			this.max = rolledUp ? new int[capacity * columns] : null;
+		}
+		
+		/**
+		 * Adds a sample to the period it falls in, starting a new row if the period has not been seen yet.
+		 * @param time - The time of the sample, in milliseconds
+		 * @param values - The value of each column
+		 */
+		private void record(long time, int[] values) {
+			long period = time / this.periodMillis;
+			int row = (int) (period % this.capacity);
+			int base = row * this.columns;
+			
+			if (this.periods[row] != period) {
+				this.periods[row] = period;
+				Arrays.fill(this.last, base, base + this.columns, NO_DATA);
+				if (this.min != null) {
+					Arrays.fill(this.min, base, base + this.columns, Integer.MAX_VALUE);
+					Arrays.fill(this.max, base, base + this.columns, NO_DATA);
+				}
+			}
+			
+			for (int c = 0; c < this.columns; c++) {
+				int value = values[c];
+				if (value == NO_DATA) {
+					continue;
+				}
+				this.last[base + c] = value;
+				if (this.min != null) {
+					this.min[base + c] = Math.min(this.min[base + c], value);
+					this.max[base + c] = Math.max(this.max[base + c], value);
+				}
+			}
+		}
+		
+		/**
+		 * Adds columns to the end of every row. The new columns have no data in any period.
+		 * @param columns - The new number of values in each row, which must be more than before
+		 */
+		private void widen(int columns) {
+			this.last = copyRows(this.last, columns, NO_DATA);
+			if (this.min != null) {
+				this.min = copyRows(this.min, columns, Integer.MAX_VALUE);
+				this.max = copyRows(this.max, columns, NO_DATA);
+			}
+			this.columns = columns;
+		}
+		
+		/**
+		 * Called by widen to copy the rows of one array into wider rows.
+		 * @param old - The values, with the current number of columns in each row
+		 * @param columns - The new number of values in each row
+		 * @param empty - The value given to the new columns
+		 * @return - The wider array
+		 */
+		private int[] copyRows(int[] old, int columns, int empty) {
+			int[] res = new int[this.capacity * columns];
+			Arrays.fill(res, empty);
+			for (int row = 0; row < this.capacity; row++) {
+				System.arraycopy(old, row * this.columns, res, row * columns, this.columns);
+			}
+			return res;
+		}
+		
+		/**
+		 * Checks if the ring still holds the period that a time falls in, or a later one.
+		 * @param time - The time, in milliseconds
+		 * @param latest - The time of the latest sample, in milliseconds
+		 * @return - A boolean is returned to indicate if the ring goes back far enough
+		 */
+		private boolean reaches(long time, long latest) {
+			return time / this.periodMillis > latest / this.periodMillis - this.capacity;
+		}
+		
+		/**
+		 * Adds one column of a run of periods to a range, which must use this ring's period length.
+		 * @param column - The column
+		 * @param range - The range, whose first period and length are already set
+		 */
+		private void addTo(int column, Range range) {
+			long first = range.start / this.periodMillis;
+			for (int i = 0; i < range.size(); i++) {
+				long period = first + i;
+				int row = (int) (period % this.capacity);
+				if (period < 0 || this.periods[row] != period) {
+					continue;
+				}
+				int at = row * this.columns + column;
+				if (this.last[at] == NO_DATA) {
+					continue;
+				}
+				range.add(i, (this.min != null) ? this.min[at] : this.last[at], (this.max != null) ? this.max[at] : this.last[at], this.last[at]);
+			}
+		}
+		
+	}
+	
+	/**
+	 * This class holds the rings of one machine.
+	 */
+	private static class Machine {
+		
+		private final VendingMachine machine;
+		private final int coinTypes;
+		private int columns;
+		private final Ring samples;
+		private final Ring minutes;
+		private final Ring hours;
+		private long latest = -1;
+		
+		/**
+		 * Constructor for Machine.
+		 * @param machine - The vending machine
+		 * @param history - The history the machine belongs to, which sets the size of each ring
+		 */
+		private Machine(VendingMachine machine, MachineHistory history) {
+			this.machine = machine;
+			this.coinTypes = machine.getCurrency().size();
+			
+			// Total money, then each coin, then each slot
+			this.columns = 1 + this.coinTypes + machine.getMaxItems();
+			this.samples = new Ring(history.sampleMillis, history.sampleCount, this.columns, false);
+			this.minutes = new Ring(MINUTE_MILLIS, history.minuteCount, this.columns, true);
+			this.hours = new Ring(HOUR_MILLIS, history.hourCount, this.columns, true);
+		}
+		
+		/**
+		 * Samples the machine and adds the sample to every ring.
+		 * @param time - The time of the sample, in milliseconds
+		 */
+		private void sample(long time) {
+			MachineSnapshot snapshot = this.machine.getSnapshot();
+			int slots = Math.max(this.machine.getMaxItems(), snapshot.getItemCount());
+			
+			synchronized (this) {
+				if (1 + this.coinTypes + slots > this.columns) {
+					this.columns = 1 + this.coinTypes + slots;
+					this.samples.widen(this.columns);
+					this.minutes.widen(this.columns);
+					this.hours.widen(this.columns);
+				}
+				
+				int[] values = new int[this.columns];
+				values[0] = (int) Math.round(snapshot.getTotalMoney() * 100);
+				for (int i = 0; i < this.coinTypes; i++) {
+					values[1 + i] = snapshot.getCoinCount(i);
+				}
+				for (int p = 1 + this.coinTypes; p < this.columns; p++) {
+					int position = p - 1 - this.coinTypes;
+					values[p] = (position < snapshot.getItemCount()) ? snapshot.getQty(position) : NO_DATA;
+				}
+				
+				this.samples.record(time, values);
+				this.minutes.record(time, values);
+				this.hours.record(time, values);
+				this.latest = Math.max(this.latest, time);
+			}
+		}
+		
+		/**
+		 * Chooses the finest ring that still holds a time.
+		 * @param from - The time, in milliseconds
+		 * @return - The ring
+		 */
+		private Ring ringFor(long from) {
+			if (this.samples.reaches(from, this.latest)) {
+				return this.samples;
+			}
+			return this.minutes.reaches(from, this.latest) ? this.minutes : this.hours;
+		}
+		
+	}
+	
+	/**
+	 * This class holds the values of one column over a run of periods, as returned by a query.
+	 * Each period has the lowest, highest and last value seen during it, or NO_DATA if nothing was sampled.
+	 * A range for a whole fleet holds the sum of the machines' values.
+	 */
+	public static class Range {
+		
+		private final long start;
+		private final long step;
+		private final int[] min;
+		private final int[] max;
+		private final int[] last;
+		
+		/**
+		 * Constructor for Range. Every period starts with no data.
+		 * @param start - The start time of the first period, in milliseconds
+		 * @param step - The length of each period, in milliseconds
+		 * @param size - The number of periods
+		 */
+		private Range(long start, long step, int size) {
+			this.start = start;
+			this.step = step;
+			this.min = new int[size];
+			this.max = new int[size];
+			this.last = new int[size];
+			Arrays.fill(this.min, NO_DATA);
+			Arrays.fill(this.max, NO_DATA);
+			Arrays.fill(this.last, NO_DATA);
+		}
+		
+		/**
+		 * Adds the values of one machine to a period.
+		 * @param i - The number of the period within the range
+		 * @param low - The lowest value
+		 * @param high - The highest value
+		 * @param end - The last value
+		 */
+		private void add(int i, int low, int high, int end) {
+			this.min[i] = (this.min[i] == NO_DATA) ? low : this.min[i] + low;
+			this.max[i] = (this.max[i] == NO_DATA) ? high : this.max[i] + high;
+			this.last[i] = (this.last[i] == NO_DATA) ? end : this.last[i] + end;
+		}
+		
+		/**
+		 * Returns the length of each period, which shows which ring answered the query.
+		 * @return - The period length, in milliseconds
+		 */
+		public long getStep() {
+			return this.step;
+		}
+		
+		/**
+		 * Returns the number of periods in the range.
+		 * @return - The number of periods
+		 */
+		public int size() {
+			return this.last.length;
+		}
+		
+		/**
+		 * Returns the start time of a period.
+		 * @param i - The number of the period within the range
+		 * @return - The start time, in milliseconds
+		 */
+		public long getTime(int i) {
+			return this.start + i * this.step;
+		}
+		
+		/**
+		 * Returns the lowest value seen during a period.
+		 * @param i - The number of the period within the range
+		 * @return - The value, or NO_DATA
+		 */
+		public int getMin(int i) {
+			return this.min[i];
+		}
+		
+		/**
+		 * Returns the highest value seen during a period.
+		 * @param i - The number of the period within the range
+		 * @return - The value, or NO_DATA
+		 */
+		public int getMax(int i) {
+			return this.max[i];
+		}
+		
+		/**
+		 * Returns the last value seen during a period.
+		 * @param i - The number of the period within the range
+		 * @return - The value, or NO_DATA
+		 */
+		public int getLast(int i) {
+			return this.last[i];
+		}
+		
+	}
+	
+	/**
+	 * Constructor for MachineHistory. Machines are sampled every 10 seconds, samples are kept for an hour,
+	 * minutes for six hours and hours for a week. Nothing is sampled until start is called.
+	 */
+	public MachineHistory() {
+		this(DEFAULT_SAMPLE_MILLIS, DEFAULT_SAMPLES, DEFAULT_MINUTES, DEFAULT_HOURS);
+	}
+	
+	/**
+	 * Overloaded constructor for MachineHistory.
+	 * @param sampleMillis - The time between samples, in milliseconds
+	 * @param sampleCount - The number of samples kept
+	 * @param minuteCount - The number of one-minute periods kept
+	 * @param hourCount - The number of one-hour periods kept
+	 */
+	public MachineHistory(long sampleMillis, int sampleCount, int minuteCount, int hourCount) {
+		this.sampleMillis = (sampleMillis > 0) ? sampleMillis : DEFAULT_SAMPLE_MILLIS;
+		this.sampleCount = (sampleCount > 0) ? sampleCount : DEFAULT_SAMPLES;
+		this.minuteCount = (minuteCount > 0) ? minuteCount : DEFAULT_MINUTES;
+		this.hourCount = (hourCount > 0) ? hourCount : DEFAULT_HOURS;
+		this.machines = new ConcurrentHashMap<String, Machine>();
+		this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "machine-history");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	/**
+	 * Starts sampling every machine at a fixed rate.
+	 */
+	public void start() {
+		long now = System.currentTimeMillis();
+		this.timer.scheduleAtFixedRate(() -> sample(System.currentTimeMillis()),
+				this.sampleMillis - now % this.sampleMillis, this.sampleMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Stops sampling. The history can still be queried.
+	 */
+	public void stop() {
+		this.timer.shutdownNow();
+	}
+	
+	/**
+	 * Adds a vending machine to the history.
+	 * @param name - The name the machine is known by on dashboards
+	 * @param machine - The vending machine
+	 */
+	public void addMachine(String name, VendingMachine machine) {
+		this.machines.put(name, new Machine(machine, this));
+	}
+	
+	/**
+	 * Removes a vending machine and its history.
+	 * @param name - The name of the machine
+	 */
+	public void removeMachine(String name) {
+		this.machines.remove(name);
+	}
+	
+	/**
+	 * Returns the names of the machines in the history.
+	 * @return - The machine names
+	 */
+	public List<String> getMachines() {
+		return new ArrayList<String>(this.machines.keySet());
+	}
+	
+	/**
+	 * Samples every machine. Called at the sample rate once started, and can be called with any time for testing.
+	 * @param time - The time of the sample, in milliseconds
+	 */
+	void sample(long time) {
+		for (Machine m : this.machines.values()) {
+			m.sample(time);
+		}
+	}
+	
+	/**
+	 * Returns the total money of a machine over a period of time.
+	 * @param name - The name of the machine
+	 * @param from - The start of the period, in milliseconds
+	 * @param to - The end of the period, in milliseconds
+	 * @return - The total money, in pence, or null if the machine is not in the history
+	 */
+	public Range getTotalMoney(String name, long from, long to) {
+		return query(name, 0, from, to);
+	}
+	
+	/**
+	 * Returns the amount of a coin in a machine over a period of time.
+	 * @param name - The name of the machine
+	 * @param index - The position of the coin in the currency table, 0 being the smallest
+	 * @param from - The start of the period, in milliseconds
+	 * @param to - The end of the period, in milliseconds
+	 * @return - The coin counts, or null if the machine is not in the history or the coin is not valid
+	 */
+	public Range getCoinCount(String name, int index, long from, long to) {
+		Machine m = this.machines.get(name);
+		if (m == null || index < 0 || index >= m.coinTypes) {
+			return null;
+		}
+		return query(name, 1 + index, from, to);
+	}
+	
+	/**
+	 * Returns the quantity of the item in one slot of a machine over a period of time.
+	 * @param name - The name of the machine
+	 * @param position - The position of the slot within the stock array
+	 * @param from - The start of the period, in milliseconds
+	 * @param to - The end of the period, in milliseconds
+	 * @return - The quantities, or null if the machine is not in the history or the slot is not recorded
+	 */
+	public Range getQty(String name, int position, long from, long to) {
+		Machine m = this.machines.get(name);
+		if (m == null || position < 0) {
+			return null;
+		}
+		synchronized (m) {
+			if (1 + m.coinTypes + position >= m.columns) {
+				return null;
+			}
+		}
+		return query(name, 1 + m.coinTypes + position, from, to);
+	}
+	
+	/**
+	 * Returns the total money of every machine added together, over a period of time.
+	 * Every machine uses the finest ring that goes back far enough for the machine sampled most recently.
+	 * @param from - The start of the period, in milliseconds
+	 * @param to - The end of the period, in milliseconds
+	 * @return - The total money, in pence
+	 */
+	public Range getFleetTotalMoney(long from, long to) {
+		// Every machine has rings of the same sizes, and the one sampled most recently has overwritten the most
+		Machine newest = null;
+		long latest = -1;
+		for (Machine m : this.machines.values()) {
+			synchronized (m) {
+				if (m.latest > latest) {
+					latest = m.latest;
+					newest = m;
+				}
+			}
+		}
+		if (newest == null) {
+			return new Range(from, this.sampleMillis, 0);
+		}
+		
+		long step;
+		synchronized (newest) {
+			step = newest.ringFor(from).periodMillis;
+		}
+		Range range = newRange(from, to, step);
+		for (Machine m : this.machines.values()) {
+			synchronized (m) {
+				ringWithStep(m, step).addTo(0, range);
+			}
+		}
+		return range;
+	}
+	
+	/**
+	 * Reads one column of one machine over a period of time.
+	 * @param name - The name of the machine
+	 * @param column - The column
+	 * @param from - The start of the period, in milliseconds
+	 * @param to - The end of the period, in milliseconds
+	 * @return - The values, or null if the machine is not in the history
+	 */
+	private Range query(String name, int column, long from, long to) {
+		Machine m = this.machines.get(name);
+		if (m == null) {
+			return null;
+		}
+		
+		synchronized (m) {
+			Ring ring = m.ringFor(from);
+			Range range = newRange(from, to, ring.periodMillis);
+			ring.addTo(column, range);
+			return range;
+		}
+	}
+	
+	/**
+	 * Creates an empty range covering every period from one time to another. If that is more periods than
+	 * the longest ring holds, the latest ones are kept.
+	 * @param from - The start of the period, in milliseconds
+	 * @param to - The end of the period, in milliseconds
+	 * @param step - The length of each period, in milliseconds
+	 * @return - The range
+	 */
+	private Range newRange(long from, long to, long step) {
+		long first = Math.max(0, from) / step;
+		long last = Math.max(first, to / step);
+		int most = Math.max(this.sampleCount, Math.max(this.minuteCount, this.hourCount));
+		first = Math.max(first, last - most + 1);
+		return new Range(first * step, step, (int) (last - first + 1));
+	}
+	
+	/**
+	 * Returns the ring of a machine with a particular period length.
+	 * @param m - The machine
+	 * @param step - The period length, in milliseconds
+	 * @return - The ring
+	 */
+	private static Ring ringWithStep(Machine m, long step) {
+		if (step == m.samples.periodMillis) {
+			return m.samples;
+		}
+		return (step == MINUTE_MILLIS) ? m.minutes : m.hours;
+	}
+	
+}
@@ -0,0 +1,563 @@
+package vend;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class keeps the state of a VendingMachine on disk as a snapshot followed by a log of changes.
+ * Every change is appended to the current segment. Segments are rotated by size and age, closed segments
+ * are compressed, and old segments are folded into a new snapshot in the background, so restoring a machine
+ * only ever replays a few segments however long it has been running.
+ *
+ * The folder holds snapshot-N.csv (in the MachineData format), which includes every segment before N,
+ * followed by journal-N.log (or journal-N.log.gz once it is closed) for each segment that has not been folded yet.
+ *
+ * Each line of a segment is one change, in the format written by MachineChanges.
+ * A snapshot does not hold the coins inserted by the current customer, the PriceTable or the cashless money,
+ * so every segment starts with them if they are set, and a machine restored from the folder still holds them.
+ * Reservations are not journalled, so a restored machine holds none.
+ * The machine only works out its changes while holding its lock. They are written and flushed by a separate
+ * writer thread, so a slow disk never holds up a sale, but the last few changes can be lost if the process dies.
+ *
+ * @author Fergal Bittles
+ *
+ */
+public class MachineJournal {
+
+	private static final long DEFAULT_MAX_BYTES = 64 * 1024;
+	private static final long DEFAULT_MAX_AGE = 60 * 60 * 1000; // One hour
+	private static final int DEFAULT_COMPACT_AFTER = 4;
+	
+	// Queued by close, after every other change, to stop the writer thread
+	private static final List<String> CLOSE = new ArrayList<String>();
+	
+	private final File folder;
+	private final long maxBytes;
+	private final long maxAgeMillis;
+	private final int compactAfter;
+	
+	// Compression and compaction run one at a time on this thread, so they never touch the same file at once
+	private final ExecutorService worker;
+	
+	// Changes waiting to be written, in the order they were made
+	private final LinkedBlockingQueue<List<String>> pending;
+	private Thread writer;
+	
+	private VendingMachine machine;
+	private volatile int segment;
+	private volatile String failure;
+	
+	// Only used by the writer thread once the journal is attached
+	private PrintWriter out;
+	private long segmentBytes;
+	private long segmentStarted;
+	// The last change to each kind of state that a snapshot leaves out, by the letter that starts the line, written again at the start of each segment
+	private final Map<Character, String> unsavedLines;
+	
+	// The state that was last queued, so that only changes are logged. Only used while holding the machine's lock.
+	private MachineChanges changes;
+	
+	/**
+	 * Constructor for MachineJournal. Segments are rotated at 64KB or after an hour,
+	 * and folded into a new snapshot once 4 have been closed.
+	 * @param folder - The folder that holds the snapshot and segments of one machine
+	 */
+	public MachineJournal(File folder) {
+		this(folder, DEFAULT_MAX_BYTES, DEFAULT_MAX_AGE, DEFAULT_COMPACT_AFTER);
+	}
+	
+	/**
+	 * Overloaded constructor for MachineJournal.
+	 * @param folder - The folder that holds the snapshot and segments of one machine
+	 * @param maxBytes - The size at which a segment is closed and a new one started
+	 * @param maxAgeMillis - The age at which a segment is closed and a new one started
+	 * @param compactAfter - The number of closed segments that are folded into a new snapshot at once
+	 */
+	public MachineJournal(File folder, long maxBytes, long maxAgeMillis, int compactAfter) {
+		this.folder = folder;
+		this.maxBytes = (maxBytes > 0) ? maxBytes : DEFAULT_MAX_BYTES;
+		this.maxAgeMillis = (maxAgeMillis > 0) ? maxAgeMillis : DEFAULT_MAX_AGE;
+		this.compactAfter = (compactAfter > 0) ? compactAfter : DEFAULT_COMPACT_AFTER;
+		this.pending = new LinkedBlockingQueue<List<String>>();
+		this.unsavedLines = new LinkedHashMap<Character, String>();
+		this.worker = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "machine-journal");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	/**
+	 * Starts logging the changes made to a vending machine.
+	 * A new snapshot of the machine is written first, so anything already in the folder is replaced.
+	 * @param machine - The vending machine
+	 * @throws IOException - If the folder or the first snapshot can not be written
+	 */
+	public void attach(VendingMachine machine) throws IOException {
+		// The machine's lock is taken first, as it is when the machine records a change
+		synchronized (machine) {
+			synchronized (this) {
+				if (this.machine != null) {
+					throw new IllegalStateException("Journal is already attached to " + this.machine.getOwner());
+				}
+				
+				if (!this.folder.isDirectory() && !this.folder.mkdirs()) {
+					throw new IOException("Unable to create " + this.folder);
+				}
+				
+				this.segment = highestNumber(this.folder) + 1;
+				writeSnapshot(machine, this.segment);
+				openSegment();
+				this.changes = new MachineChanges(machine);
+				
+				// The snapshot leaves out the customer's coins, the prices and the cashless money, so they start the first segment
+				List<String> unsaved = MachineChanges.unsavedLines(machine);
+				if (!unsaved.isEmpty()) {
+					this.pending.add(unsaved);
+				}
+				
+				this.machine = machine;
+				machine.setJournal(this);
+				
+				this.writer = new Thread(this::write, "machine-journal-writer");
+				this.writer.setDaemon(true);
+				this.writer.start();
+			}
+		}
+		
+		// The new snapshot includes everything, so the older files can go
+		this.worker.submit(this::compact);
+	}
+	
+	/**
+	 * Stops logging changes, waits for the changes already made to be written, and closes the current segment.
+	 * The folder can still be restored afterwards.
+	 */
+	public void close() {
+		VendingMachine current;
+		synchronized (this) {
+			current = this.machine;
+		}
+		
+		if (current != null) {
+			synchronized (current) {
+				current.setJournal(null);
+				synchronized (this) {
+					this.machine = null;
+					this.pending.add(CLOSE);
+				}
+			}
+			
+			try {
+				this.writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		this.worker.shutdown();
+	}
+	
+	/**
+	 * Returns the reason the journal stopped writing, if it has.
+	 * @return - The error, or null if every change has been written
+	 */
+	public String getFailure() {
+		return this.failure;
+	}
+	
+	/**
+	 * Returns the number of the segment that changes are currently written to.
+	 * @return - The segment number
+	 */
+	public int getSegment() {
+		return this.segment;
+	}
+	
+	/**
+	 * Called by a VendingMachine, while holding its lock, each time a change has finished.
+	 * Works out whatever is different from the last state that was queued, and hands it to the writer thread.
+	 * @param source - The vending machine that changed
+	 */
+	synchronized void record(VendingMachine source) {
+		if (source != this.machine || this.failure != null) {
+			return;
+		}
+		
+		List<String> lines = this.changes.diff(source);
+		if (!lines.isEmpty()) {
+			this.pending.add(lines);
+		}
+	}
+	
+	/**
+	 * Writes the queued changes to the current segment until the journal is closed. Runs on the writer thread.
+	 * The segment is only flushed once the queue is empty, so a burst of changes is written together.
+	 */
+	private void write() {
+		try {
+			List<String> lines = this.pending.take();
+			while (lines != CLOSE) {
+				if (this.failure == null) {
+					for (String line : lines) {
+						writeLine(line);
+						if (line.startsWith("I,") || line.startsWith("L,") || line.startsWith("P")) {
+							this.unsavedLines.put(line.charAt(0), line);
+						} else if (line.equals("R")) {
+							// The prices are written by position, so they are written again once the items are
+							this.unsavedLines.remove('I');
+							this.unsavedLines.remove('P');
+						}
+					}
+					
+					if (this.pending.isEmpty()) {
+						this.out.flush();
+					}
+					if (this.out.checkError()) {
+						this.failure = "Unable to write " + segmentFile(this.segment, false);
+					} else if (this.segmentBytes >= this.maxBytes || System.currentTimeMillis() - this.segmentStarted >= this.maxAgeMillis) {
+						rotate();
+					}
+				}
+				lines = this.pending.take();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		this.out.close();
+	}
+	
+	/**
+	 * Writes one line to the current segment. Runs on the writer thread.
+	 * @param line - The change line
+	 */
+	private void writeLine(String line) {
+		this.out.println(line);
+		this.segmentBytes += line.getBytes(StandardCharsets.UTF_8).length + 1;
+	}
+	
+	/**
+	 * Closes the current segment and starts the next one. The closed segment is compressed in the background,
+	 * and folded into a new snapshot once enough segments have been closed. Runs on the writer thread.
+	 */
+	private void rotate() {
+		this.out.close();
+		int closed = this.segment;
+		this.segment++;
+		
+		try {
+			openSegment();
+		} catch (IOException e) {
+			this.failure = "Unable to start " + segmentFile(this.segment, false);
+			return;
+		}
+		
+		// The closed segments may be folded into a snapshot, which leaves out the customer's coins, the prices and the cashless money
+		for (String line : this.unsavedLines.values()) {
+			writeLine(line);
+		}
+		
+		this.worker.submit(() -> compress(closed));
+		this.worker.submit(this::compact);
+	}
+	
+	/**
+	 * Opens the current segment for writing.
+	 * @throws IOException - If the segment can not be created
+	 */
+	private void openSegment() throws IOException {
+		OutputStream stream = new FileOutputStream(segmentFile(this.segment, false), true);
+		this.out = new PrintWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+		this.segmentBytes = 0;
+		this.segmentStarted = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Compresses a closed segment. Runs on the worker thread.
+	 * @param number - The segment number
+	 */
+	private void compress(int number) {
+		File plain = segmentFile(number, false);
+		File packed = segmentFile(number, true);
+		File temp = new File(this.folder, packed.getName() + ".tmp");
+		
+		// The segment may already have been folded into a snapshot
+		if (!plain.exists()) {
+			return;
+		}
+		
+		try (InputStream in = new FileInputStream(plain); OutputStream gz = new GZIPOutputStream(new FileOutputStream(temp))) {
+			in.transferTo(gz);
+		} catch (IOException e) {
+			temp.delete();
+			return; // The segment is left uncompressed, which restore can still read
+		}
+		
+		try {
+			Files.move(temp.toPath(), packed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			plain.delete();
+		} catch (IOException e) {
+			temp.delete();
+		}
+	}
+	
+	/**
+	 * Folds the closed segments into a new snapshot once there are enough of them,
+	 * then deletes every file that the newest snapshot includes. Runs on the worker thread.
+	 */
+	private void compact() {
+		int snapshot = latestSnapshot(this.folder);
+		int current = getSegment();
+		
+		if (snapshot > 0 && current - snapshot >= this.compactAfter) {
+			// The copy is only ever saved, so it takes its products and IDs from its own catalog and allocator
+			// rather than claiming IDs and adding products that the machines in use would then see
+			ProductCatalog catalog = new ProductCatalog(ProductCatalog.getDefault().getCurrency());
+			ItemIdAllocator ids = new ItemIdAllocator(1);
+			
+			RestoreResult result = MachineData.restore(snapshotFile(this.folder, snapshot), catalog, ids);
+			if (!result.isRestored()) {
+				this.failure = "Unable to compact: " + result.getError();
+				return;
+			}
+			
+			VendingMachine copy = result.getMachine();
+			for (int n = snapshot; n < current; n++) {
+				String error = replay(copy, this.folder, n, false, catalog, ids);
+				if (error != null) {
+					this.failure = "Unable to compact: " + error;
+					return;
+				}
+			}
+			
+			try {
+				writeSnapshot(copy, current);
+			} catch (IOException e) {
+				this.failure = "Unable to compact: " + e.getMessage();
+				return;
+			}
+			snapshot = current;
+		}
+		
+		// Anything numbered before the newest snapshot is already included in it
+		File[] files = this.folder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				int number = fileNumber(file.getName());
+				if (number > 0 && number < snapshot) {
+					file.delete();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Writes a snapshot of a vending machine. The file only appears once it is complete.
+	 * @param source - The vending machine
+	 * @param number - The number of the first segment that is not included in the snapshot
+	 * @throws IOException - If the snapshot can not be written
+	 */
+	private void writeSnapshot(VendingMachine source, int number) throws IOException {
+		File file = snapshotFile(this.folder, number);
+		File temp = new File(this.folder, file.getName() + ".tmp");
+		MachineData.save(source, temp);
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Restores a vending machine from the newest snapshot in a folder and the segments written after it.
+	 * A half-written last line, left by a crash, is ignored.
+	 * @param folder - The folder written by a MachineJournal
+	 * @return - A RestoreResult holding either the restored machine, or the reason the folder could not be used
+	 */
+	public static RestoreResult restore(File folder) {
+		int snapshot = latestSnapshot(folder);
+		if (snapshot <= 0) {
+			return RestoreResult.corrupt(folder, "No snapshot");
+		}
+		
+		RestoreResult result = MachineData.restore(snapshotFile(folder, snapshot));
+		if (!result.isRestored()) {
+			return RestoreResult.corrupt(folder, result.getError());
+		}
+		
+		VendingMachine machine = result.getMachine();
+		int last = highestNumber(folder);
+		for (int n = snapshot; n <= last; n++) {
+			String error = replay(machine, folder, n, n == last, ProductCatalog.getDefault(), ItemIdAllocator.getDefault());
+			if (error != null) {
+				return RestoreResult.corrupt(folder, error);
+			}
+		}
+		
+		if (!machine.isCashBalanced()) {
+			return RestoreResult.corrupt(folder, "Total money is not correct");
+		}
+		
+		// No customer survives a restart, so a machine that was draining has nothing left to wait for
+		if (machine.getMachineStatus() == Status.DRAINING) {
+			machine.setStatus(Status.SERVICE_MODE);
+		}
+		
+		return RestoreResult.restored(folder, machine);
+	}
+	
+	/**
+	 * Applies the changes in one segment to a vending machine.
+	 * @param machine - The vending machine
+	 * @param folder - The folder holding the segment
+	 * @param number - The segment number
+	 * @param newest - True if this is the segment that was being written, which may end in a half-written line
+	 * @param catalog - The catalog that the products of new items are taken from
+	 * @param ids - The allocator that the IDs of new items are claimed from
+	 * @return - The reason the segment could not be used, or null if it was applied
+	 */
+	private static String replay(VendingMachine machine, File folder, int number, boolean newest, ProductCatalog catalog, ItemIdAllocator ids) {
+		File file = segmentFile(folder, number, true);
+		if (!file.exists()) {
+			file = segmentFile(folder, number, false);
+		}
+		if (!file.exists()) {
+			return newest ? null : "Missing segment " + number;
+		}
+		
+		List<String> lines = new ArrayList<String>();
+		try (BufferedReader in = openSegment(file)) {
+			String line = in.readLine();
+			while (line != null) {
+				lines.add(line);
+				line = in.readLine();
+			}
+		} catch (IOException e) {
+			return "Unable to read " + file.getName();
+		}
+		
+		// Applied as one change, as a change to the total money and the coins that balance it can be on different lines
+		int invalid = machine.applyChanges(lines, catalog, ids);
+		if (invalid >= 0 && !(newest && invalid == lines.size() - 1)) {
+			return "Invalid change on line " + (invalid + 1) + " of " + file.getName();
+		}
+		return null;
+	}
+	
+	/**
+	 * Opens a segment for reading, whether or not it has been compressed.
+	 * @param file - The segment file
+	 * @return - A reader for the segment
+	 * @throws IOException - If the segment can not be read
+	 */
+	private static BufferedReader openSegment(File file) throws IOException {
+		InputStream stream = new FileInputStream(file);
+		if (file.getName().endsWith(".gz")) {
+			stream = new GZIPInputStream(stream);
+		}
+		return new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * Returns the file of a segment in this journal's folder.
+	 * @param number - The segment number
+	 * @param compressed - True for the compressed file
+	 * @return - The segment file
+	 */
+	private File segmentFile(int number, boolean compressed) {
+		return segmentFile(this.folder, number, compressed);
+	}
+	
+	/**
+	 * Returns the file of a segment.
+	 * @param folder - The journal folder
+	 * @param number - The segment number
+	 * @param compressed - True for the compressed file
+	 * @return - The segment file
+	 */
+	private static File segmentFile(File folder, int number, boolean compressed) {
+		return new File(folder, "journal-" + number + (compressed ? ".log.gz" : ".log"));
+	}
+	
+	/**
+	 * Returns the file of a snapshot.
+	 * @param folder - The journal folder
+	 * @param number - The number of the first segment that is not included in the snapshot
+	 * @return - The snapshot file
+	 */
+	private static File snapshotFile(File folder, int number) {
+		return new File(folder, "snapshot-" + number + ".csv");
+	}
+	
+	/**
+	 * Returns the number of the newest snapshot in a folder.
+	 * @param folder - The journal folder
+	 * @return - The snapshot number, or 0 if there is no snapshot
+	 */
+	private static int latestSnapshot(File folder) {
+		int latest = 0;
+		String[] names = folder.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith("snapshot-") && name.endsWith(".csv")) {
+					latest = Math.max(latest, fileNumber(name));
+				}
+			}
+		}
+		return latest;
+	}
+	
+	/**
+	 * Returns the highest snapshot or segment number in a folder.
+	 * @param folder - The journal folder
+	 * @return - The highest number, or 0 if the folder is empty
+	 */
+	private static int highestNumber(File folder) {
+		int highest = 0;
+		String[] names = folder.list();
+		if (names != null) {
+			for (String name : names) {
+				highest = Math.max(highest, fileNumber(name));
+			}
+		}
+		return highest;
+	}
+	
+	/**
+	 * Reads the number from the name of a snapshot or segment file.
+	 * @param name - The file name
+	 * @return - The number, or 0 if the file is not a finished snapshot or segment
+	 */
+	private static int fileNumber(String name) {
+		String rest;
+		if (name.startsWith("snapshot-") && name.endsWith(".csv")) {
+			rest = name.substring(9, name.length() - 4);
+		} else if (name.startsWith("journal-") && name.endsWith(".log")) {
+			rest = name.substring(8, name.length() - 4);
+		} else if (name.startsWith("journal-") && name.endsWith(".log.gz")) {
+			rest = name.substring(8, name.length() - 7);
+		} else {
+			return 0;
+		}
+		
+		return MachineData.isInteger(rest) ? Math.max(0, Integer.parseInt(rest)) : 0;
+	}
+	
+}
@@ -0,0 +1,167 @@
+package vend;
+
+/**
+ * This class holds a consistent copy of the state of a VendingMachine at one moment in time.
+ * It is created by VendingMachine.getSnapshot and can not be changed, so monitoring code
+ * can read it as often as it likes without affecting the machine.
+ * @author Fergal Bittles
+ *
+ */
+public class MachineSnapshot {
+
+	private final long version;
+	private final CurrencySet currency;
+	private final Status status;
+	private final int totalMoney;
+	private final int userMoney;
+	private final int[] coinCounts;
+	private final int[] itemIds;
+	private final int[] quantities;
+	
+	/**
+	 * Constructor for MachineSnapshot. The arrays are not copied, so must not be changed by the caller.
+	 * @param version - The version of the machine state that was copied
+	 * @param currency - The currency of the machine
+	 * @param status - The status of the machine
+	 * @param totalMoney - The total money in the machine, in pence
+	 * @param userMoney - The money entered by the user, in pence
+	 * @param coinCounts - The amount of each coin, in currency table order
+	 * @param itemIds - The ID of each item, in stock order
+	 * @param quantities - The quantity of each item, in stock order
+	 */
+	MachineSnapshot(long version, CurrencySet currency, Status status, int totalMoney, int userMoney, int[] coinCounts, int[] itemIds, int[] quantities) {
+		this.version = version;
+		this.currency = currency;
+		this.status = status;
+		this.totalMoney = totalMoney;
+		this.userMoney = userMoney;
+		this.coinCounts = coinCounts;
+		this.itemIds = itemIds;
+		this.quantities = quantities;
+	}
+	
+	/**
+	 * Returns the version of the machine state. A larger version was taken after a smaller one.
+	 * @return - The version
+	 */
+	public long getVersion() {
+		return this.version;
+	}
+	
+	/**
+	 * Returns the currency of the machine.
+	 * @return - The currency
+	 */
+	public CurrencySet getCurrency() {
+		return this.currency;
+	}
+	
+	/**
+	 * Returns the status of the machine.
+	 * @return - The status
+	 */
+	public String getStatus() {
+		return this.status.getStatus();
+	}
+	
+	/**
+	 * Returns the total money in the machine.
+	 * @return - The total money
+	 */
+	public double getTotalMoney() {
+		return this.totalMoney / 100.0;
+	}
+	
+	/**
+	 * Returns the money entered by the user.
+	 * @return - The user money
+	 */
+	public double getUserMoney() {
+		return this.userMoney / 100.0;
+	}
+	
+	/**
+	 * Returns the amount of a coin using its position in the currency table.
+	 * @param index - The position of the coin, 0 being the smallest
+	 * @return - The amount of the coin, or -1 if the position is invalid
+	 */
+	public int getCoinCount(int index) {
+		if (index < 0 || index >= this.coinCounts.length) {
+			return -1;
+		}
+		return this.coinCounts[index];
+	}
+	
+	/**
+	 * Adds up the value of every coin in the machine.
+	 * @return - The value of the coins
+	 */
+	public double getCoinTotal() {
+		int total = 0;
+		for (int i = 0; i < this.coinCounts.length; i++) {
+			total += this.coinCounts[i] * this.currency.getDenomination(i).getValue();
+		}
+		return total / 100.0;
+	}
+	
+	/**
+	 * Checks that the total money matches the value of the coins, as is checked when restoring from a CSV file.
+	 * @return - A boolean is returned to indicate if the money and coins agree
+	 */
+	public boolean isBalanced() {
+		return Math.round(getCoinTotal() * 100) == this.totalMoney;
+	}
+	
+	/**
+	 * Returns the number of items in the machine.
+	 * @return - The item count
+	 */
+	public int getItemCount() {
+		return this.itemIds.length;
+	}
+	
+	/**
+	 * Returns the ID of an item.
+	 * @param position - The position of the item within the stock array
+	 * @return - The item ID, or -1 if the position is invalid
+	 */
+	public int getItemId(int position) {
+		if (position < 0 || position >= this.itemIds.length) {
+			return -1;
+		}
+		return this.itemIds[position];
+	}
+	
+	/**
+	 * Returns the quantity of an item.
+	 * @param position - The position of the item within the stock array
+	 * @return - The quantity, or -1 if the position is invalid
+	 */
+	public int getQty(int position) {
+		if (position < 0 || position >= this.quantities.length) {
+			return -1;
+		}
+		return this.quantities[position];
+	}
+	
+	/**
+	 * Returns a string containing the snapshot. Useful for testing the MachineSnapshot class.
+	 */
+	public String toString() {
+		String res = "";
+		
+		res += "Snapshot " + this.version + "\n";
+		res += "Status: " + this.getStatus() + "\n";
+		res += "Total Money: " + this.currency.format(this.getTotalMoney()) + "\n";
+		res += "User Money: " + this.currency.format(this.getUserMoney()) + "\n";
+		for (int i = 0; i < this.coinCounts.length; i++) {
+			res += "> " + this.currency.getDenomination(i) + ": " + this.coinCounts[i] + "\n";
+		}
+		for (int i = 0; i < this.itemIds.length; i++) {
+			res += "Item " + this.itemIds[i] + ": " + this.quantities[i] + "\n";
+		}
+		
+		return res;
+	}
+	
+}
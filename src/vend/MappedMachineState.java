@@ -0,0 +1,320 @@
+package vend;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class keeps the live state of a VendingMachine in a memory-mapped file, so that another process on the
+ * same computer (e.g. a dashboard or watchdog) can read it at any time without asking the machine for it.
+ * The machine writes straight into the mapped memory each time a change finishes. Each value is compared with
+ * the one already in the file and only stored if it is different, so a purchase only stores a few ints,
+ * and readers never take any lock, so they can not hold up a purchase.
+ *
+ * The file has a fixed layout of big-endian values:
+ * 0 - int magic number 0x56454E44 ("VEND")
+ * 4 - int layout version
+ * 8 - long sequence, which is odd while the machine is writing
+ * 16 - int status (0 Vending Mode, 1 Service Mode, 2 Draining, 3 Offline)
+ * 20 - int total money, in pence
+ * 24 - int user money, in pence
+ * 28 - int number of coin types (C)
+ * 32 - int maximum items (M)
+ * 36 - int item count
+ * 40 - C ints, the amount of each coin in currency table order
+ * 40 + 4C, rounded up to a multiple of 8 - M pairs of ints, the ID and quantity of each item in stock order
+ *
+ * A reader copies the values between two reads of the sequence, and starts again if the sequence
+ * was odd or changed, in the same way as VendingMachine.getSnapshot.
+ * When the machine is given room for more items, the file is made longer and mapped again as part of the change,
+ * so the maximum items is always covered by the file. The file is never made shorter, as that would break
+ * the mappings of readers in other processes, so it may hold room for more items than the maximum.
+ * @author Fergal Bittles
+ *
+ */
+public class MappedMachineState {
+
+	public static final int MAGIC = 0x56454E44;
+	public static final int VERSION = 1;
+	
+	private static final int SEQUENCE = 8;
+	private static final int STATUS = 16;
+	private static final int TOTAL_MONEY = 20;
+	private static final int USER_MONEY = 24;
+	private static final int COIN_TYPES = 28;
+	private static final int MAX_ITEMS = 32;
+	private static final int ITEM_COUNT = 36;
+	private static final int COINS = 40;
+	
+	// A write only takes a moment, so a sequence that stays odd this long means the machine's process has stopped
+	private static final int MAX_TRIES = 1000000;
+	
+	// Gives volatile access to the sequence, so the other values are never seen out of order
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+	
+	private final File file;
+	private final int coinTypes;
+	private MappedByteBuffer buffer;
+	private int capacity; // The number of item slots the file has room for
+	private VendingMachine machine;
+	private long sequence;
+	
+	// True once the sequence has been made odd for the change being written
+	private boolean writing;
+	
+	/**
+	 * Constructor for MappedMachineState. Creates or replaces the file. Use attach to create one for a machine.
+	 * @param file - The file to map
+	 * @param coinTypes - The number of coin types in the machine's currency
+	 * @param maxItems - The maximum items in the machine
+	 * @throws IOException - If the file can not be created or mapped
+	 */
+	private MappedMachineState(File file, int coinTypes, int maxItems) throws IOException {
+		this.file = file;
+		this.coinTypes = coinTypes;
+		this.capacity = maxItems;
+		
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			// The mapping stays valid after the channel is closed
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, getSize(this.coinTypes, this.capacity));
+		}
+		
+		this.buffer.putInt(0, MAGIC);
+		this.buffer.putInt(4, VERSION);
+		this.buffer.putInt(COIN_TYPES, this.coinTypes);
+		this.buffer.putInt(MAX_ITEMS, maxItems);
+	}
+	
+	/**
+	 * Creates a mapped file sized for a vending machine, writes the machine's current state to it,
+	 * then keeps the file up to date with every change.
+	 * @param file - The file to map, which is created or replaced
+	 * @param machine - The vending machine
+	 * @return - The MappedMachineState, which should be closed when the file is no longer needed
+	 * @throws IOException - If the file can not be created or mapped
+	 */
+	public static MappedMachineState attach(File file, VendingMachine machine) throws IOException {
+		MappedMachineState state = new MappedMachineState(file, machine.getCurrency().size(), machine.getMaxItems());
+		
+		synchronized (machine) {
+			synchronized (state) {
+				state.machine = machine;
+				state.write(machine);
+				machine.setLiveState(state);
+			}
+		}
+		
+		return state;
+	}
+	
+	/**
+	 * Stops updating the file. The last state written stays in the file for readers.
+	 */
+	public void close() {
+		VendingMachine current;
+		synchronized (this) {
+			current = this.machine;
+		}
+		
+		if (current != null) {
+			synchronized (current) {
+				current.setLiveState(null);
+				synchronized (this) {
+					this.machine = null;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns the mapped file.
+	 * @return - The file
+	 */
+	public File getFile() {
+		return this.file;
+	}
+	
+	/**
+	 * Called by a VendingMachine, while holding its lock, each time a change has finished.
+	 * @param source - The vending machine that changed
+	 */
+	synchronized void update(VendingMachine source) {
+		if (source == this.machine) {
+			write(source);
+		}
+	}
+	
+	/**
+	 * Writes the values that have changed into the mapped memory between two changes of the sequence.
+	 * The values are read straight from the machine, which is safe as its lock is held.
+	 * Only the item slots in use are looked at, and slots that are no longer in use are cleared.
+	 * If nothing has changed, nothing is written and the sequence is left alone.
+	 * @param source - The vending machine, whose lock must be held
+	 */
+	private void write(VendingMachine source) {
+		this.writing = false;
+		
+		if (source.getMaxItems() > this.capacity) {
+			grow(source.getMaxItems());
+		}
+		put(MAX_ITEMS, Math.min(source.getMaxItems(), this.capacity));
+		put(STATUS, source.getMachineStatus().ordinal());
+		put(TOTAL_MONEY, (int) Math.round(source.getTotalMoney() * 100));
+		put(USER_MONEY, (int) Math.round(source.getUserMoney() * 100));
+		for (int i = 0; i < this.coinTypes; i++) {
+			put(COINS + i * 4, source.getCoinCount(i));
+		}
+		
+		int items = getItemsOffset(this.coinTypes);
+		int count = Math.min(source.getItemCount(), this.capacity);
+		int written = this.buffer.getInt(ITEM_COUNT);
+		for (int i = 0; i < count; i++) {
+			VendItem item = source.getVendItem(i);
+			put(items + i * 8, item.getItemId());
+			put(items + i * 8 + 4, item.readQty());
+		}
+		for (int i = count; i < written; i++) {
+			put(items + i * 8, 0);
+			put(items + i * 8 + 4, 0);
+		}
+		put(ITEM_COUNT, count);
+		
+		if (this.writing) {
+			this.sequence++;
+			LONGS.setVolatile(this.buffer, SEQUENCE, this.sequence);
+		}
+	}
+	
+	/**
+	 * Called by write to make the file long enough for a machine that has been given room for more items,
+	 * and map it again. Everything already in the file is kept. If the file can not be made longer, the old mapping
+	 * is kept, and the items that do not fit are left out until the next change tries again.
+	 * @param maxItems - The new maximum items in the machine
+	 */
+	private void grow(int maxItems) {
+		try (FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			// Mapping past the end of the file makes it longer
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, getSize(this.coinTypes, maxItems));
+			this.capacity = maxItems;
+		} catch (IOException e) {
+			// The old mapping is still valid
+		}
+	}
+	
+	/**
+	 * Stores one value in the mapped memory if it is different from the value already there.
+	 * The first value stored for a change makes the sequence odd, so readers know a change is being written.
+	 * @param offset - The position of the value, in bytes
+	 * @param value - The value
+	 */
+	private void put(int offset, int value) {
+		if (this.buffer.getInt(offset) == value) {
+			return;
+		}
+		
+		if (!this.writing) {
+			this.writing = true;
+			this.sequence++;
+			LONGS.setVolatile(this.buffer, SEQUENCE, this.sequence);
+			VarHandle.storeStoreFence();
+		}
+		this.buffer.putInt(offset, value);
+	}
+	
+	/**
+	 * Reads a consistent copy of the state from a file written by MappedMachineState, e.g. from a monitoring process.
+	 * @param file - The mapped file
+	 * @param currency - The currency of the machine, used to interpret the coin amounts
+	 * @return - A MachineSnapshot of the state, or null if the file does not have the expected layout
+	 *           or the machine stopped part way through writing a change
+	 * @throws IOException - If the file can not be mapped
+	 */
+	public static MachineSnapshot read(File file, CurrencySet currency) throws IOException {
+		MappedByteBuffer view;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() < COINS) {
+				return null;
+			}
+			view = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		
+		if (view.getInt(0) != MAGIC || view.getInt(4) != VERSION) {
+			return null;
+		}
+		
+		int coinTypes = view.getInt(COIN_TYPES);
+		if (coinTypes != currency.size() || view.capacity() < getItemsOffset(coinTypes)) {
+			return null;
+		}
+		
+		for (int tries = 0; tries < MAX_TRIES; tries++) {
+			long before = (long) LONGS.getVolatile(view, SEQUENCE);
+			int maxItems = view.getInt(MAX_ITEMS);
+			
+			// The machine was given room for more items after the file was mapped, so it has grown since
+			if ((before & 1) == 0 && maxItems >= 0 && view.capacity() < getSize(coinTypes, maxItems)) {
+				try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+					view = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				}
+				if (view.capacity() < getSize(coinTypes, maxItems)) {
+					return null;
+				}
+			}
+			
+			if ((before & 1) == 0 && maxItems >= 0) {
+				int status = view.getInt(STATUS);
+				int total = view.getInt(TOTAL_MONEY);
+				int user = view.getInt(USER_MONEY);
+				int[] coins = new int[coinTypes];
+				for (int i = 0; i < coinTypes; i++) {
+					coins[i] = view.getInt(COINS + i * 4);
+				}
+				
+				int items = getItemsOffset(coinTypes);
+				int count = Math.max(0, Math.min(view.getInt(ITEM_COUNT), maxItems));
+				int[] itemIds = new int[count];
+				int[] quantities = new int[count];
+				for (int i = 0; i < count; i++) {
+					itemIds[i] = view.getInt(items + i * 8);
+					quantities[i] = view.getInt(items + i * 8 + 4);
+				}
+				
+				// Make sure every read above has finished before checking the sequence again
+				VarHandle.loadLoadFence();
+				if ((long) LONGS.getVolatile(view, SEQUENCE) == before && status >= 0 && status < Status.values().length) {
+					return new MachineSnapshot(before, currency, Status.values()[status], total, user, coins, itemIds, quantities);
+				}
+			}
+			
+			Thread.onSpinWait();
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Returns the position of the first item in the file.
+	 * @param coinTypes - The number of coin types
+	 * @return - The position, in bytes
+	 */
+	private static int getItemsOffset(int coinTypes) {
+		// Rounded up to 8 bytes, so the item pairs line up whatever the number of coin types
+		return (COINS + coinTypes * 4 + 7) & ~7;
+	}
+	
+	/**
+	 * Returns the size of the file for a machine.
+	 * @param coinTypes - The number of coin types
+	 * @param maxItems - The maximum items in the machine
+	 * @return - The size, in bytes
+	 */
+	private static int getSize(int coinTypes, int maxItems) {
+		return getItemsOffset(coinTypes) + maxItems * 8;
+	}
+	
+}
@@ -0,0 +1,106 @@
+package vend;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * This class is a connection to a FleetNode, used by FleetRouter and by nodes handing machines to each other.
+ * Each request is one or more lines, and each reply is one line. The connection is opened when it is first
+ * used, and opened again after a failure. Requests are sent one at a time.
+ * @author Fergal Bittles
+ *
+ */
+class NodeConnection {
+
+	private static final int TIMEOUT_MILLIS = 5000;
+	
+	private final String node;
+	private Socket socket;
+	private BufferedReader in;
+	private BufferedWriter out;
+	
+	/**
+	 * Constructor for NodeConnection. Nothing is opened until the first request.
+	 * @param node - The name of the node, as host:port
+	 */
+	NodeConnection(String node) {
+		this.node = node;
+	}
+	
+	/**
+	 * Sends a request to the node and waits for the reply.
+	 * @param lines - The lines of the request
+	 * @return - The reply
+	 * @throws IOException - If the node can not be reached, in which case the request may or may not have been carried out.
+	 * A ConnectException means the connection could not be opened, so the request was never sent
+	 */
+	synchronized String request(List<String> lines) throws IOException {
+		try {
+			if (this.socket == null) {
+				open();
+			}
+			
+			for (String line : lines) {
+				this.out.write(line);
+				this.out.write('\n');
+			}
+			this.out.flush();
+			
+			String reply = this.in.readLine();
+			if (reply == null) {
+				throw new IOException("Connection to " + this.node + " closed");
+			}
+			return reply;
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Closes the connection. The next request opens it again.
+	 */
+	synchronized void close() {
+		if (this.socket != null) {
+			try {
+				this.socket.close();
+			} catch (IOException e) {
+				// Already closed
+			}
+			this.socket = null;
+		}
+	}
+	
+	/**
+	 * Opens the connection to the node.
+	 * @throws ConnectException - If the node can not be reached
+	 */
+	private void open() throws IOException {
+		int split = this.node.lastIndexOf(':');
+		if (split <= 0 || !MachineData.isInteger(this.node.substring(split + 1))) {
+			throw new ConnectException("Invalid node " + this.node);
+		}
+		
+		Socket s = new Socket();
+		try {
+			s.connect(new InetSocketAddress(this.node.substring(0, split), Integer.parseInt(this.node.substring(split + 1))), TIMEOUT_MILLIS);
+		} catch (IOException e) {
+			s.close();
+			throw new ConnectException("Unable to reach " + this.node + ": " + e.getMessage());
+		}
+		s.setTcpNoDelay(true);
+		s.setSoTimeout(TIMEOUT_MILLIS);
+		this.in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+		this.out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+		this.socket = s;
+	}
+	
+}
@@ -0,0 +1,30 @@
+package vend;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This interface is used to send card and mobile payments to a payment provider.
+ * Answers usually take tens to hundreds of milliseconds, so each call returns straight away
+ * and the answer is given later through the returned future.
+ * @author Fergal Bittles
+ *
+ */
+public interface PaymentGateway {
+
+	/**
+	 * Asks for a payment to be authorised. Must not block the calling thread.
+	 * @param account - The card or mobile account token
+	 * @param pence - The amount, in pence
+	 * @return - A future that is completed with the answer, or completed exceptionally if the gateway fails
+	 */
+	CompletableFuture<PaymentResult> authorise(String account, int pence);
+	
+	/**
+	 * Gives back an approved payment, e.g. because the item could not be delivered. Must not block the calling thread.
+	 * @param account - The card or mobile account token
+	 * @param code - The authorisation code of the payment
+	 * @param pence - The amount, in pence
+	 */
+	void refund(String account, String code, int pence);
+	
+}
@@ -0,0 +1,209 @@
+package vend;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class sends card and mobile payments to a PaymentGateway for one or more vending machines.
+ *
+ * Payments are sent without waiting for earlier answers, so many can be in progress at once, up to a limit.
+ * Each payment is given a time limit, and a payment that is approved after its time limit has passed is
+ * refunded, as the customer has already been told it failed.
+ *
+ * A circuit breaker stops payments being sent to a gateway that is not answering. After a number of failures
+ * in a row the breaker opens and payments fail straight away, so customers are not kept waiting. After a
+ * cool-down, one trial payment is let through, and the breaker closes again if it gets an answer.
+ * A declined payment is still an answer, so it does not count as a failure.
+ * @author Fergal Bittles
+ *
+ */
+public class PaymentProcessor {
+
+	/**
+	 * The state of the circuit breaker.
+	 */
+	public enum Breaker {
+		CLOSED, OPEN, HALF_OPEN
+	}
+	
+	private static final long DEFAULT_TIMEOUT = 2000;
+	private static final int DEFAULT_MAX_IN_FLIGHT = 256;
+	private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	private static final long DEFAULT_OPEN_MILLIS = 10000;
+	
+	private final PaymentGateway gateway;
+	private final long timeoutMillis;
+	private final int maxInFlight;
+	private final int failureThreshold;
+	private final long openMillis;
+	private final AtomicInteger inFlight;
+	
+	// The circuit breaker, only used while holding this object's lock
+	private Breaker breaker;
+	private int failures;
+	private long openedAt;
+	private boolean trialInFlight;
+	
+	/**
+	 * Constructor for PaymentProcessor. Payments time out after 2 seconds, up to 256 can be in progress,
+	 * and the breaker opens for 10 seconds after 5 failures in a row.
+	 * @param gateway - The payment gateway
+	 */
+	public PaymentProcessor(PaymentGateway gateway) {
+		this(gateway, DEFAULT_TIMEOUT, DEFAULT_MAX_IN_FLIGHT, DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS);
+	}
+	
+	/**
+	 * Overloaded constructor for PaymentProcessor.
+	 * @param gateway - The payment gateway
+	 * @param timeoutMillis - The longest time to wait for an answer
+	 * @param maxInFlight - The most payments that can be in progress at once
+	 * @param failureThreshold - The number of failures in a row that opens the breaker
+	 * @param openMillis - How long the breaker stays open before a trial payment is let through
+	 */
+	public PaymentProcessor(PaymentGateway gateway, long timeoutMillis, int maxInFlight, int failureThreshold, long openMillis) {
+		this.gateway = gateway;
+		this.timeoutMillis = (timeoutMillis > 0) ? timeoutMillis : DEFAULT_TIMEOUT;
+		this.maxInFlight = (maxInFlight > 0) ? maxInFlight : DEFAULT_MAX_IN_FLIGHT;
+		this.failureThreshold = (failureThreshold > 0) ? failureThreshold : DEFAULT_FAILURE_THRESHOLD;
+		this.openMillis = (openMillis > 0) ? openMillis : DEFAULT_OPEN_MILLIS;
+		this.inFlight = new AtomicInteger();
+		this.breaker = Breaker.CLOSED;
+	}
+	
+	/**
+	 * Asks for a payment to be authorised. Returns straight away.
+	 * @param account - The card or mobile account token
+	 * @param pence - The amount, in pence
+	 * @return - A future that is always completed normally, with a failed result if no answer was got in time
+	 */
+	public CompletableFuture<PaymentResult> authorise(String account, int pence) {
+		if (!allowRequest()) {
+			return CompletableFuture.completedFuture(PaymentResult.failed("Card payments are unavailable"));
+		}
+		
+		if (this.inFlight.incrementAndGet() > this.maxInFlight) {
+			this.inFlight.decrementAndGet();
+			releaseTrial();
+			return CompletableFuture.completedFuture(PaymentResult.failed("Too many payments in progress"));
+		}
+		
+		CompletableFuture<PaymentResult> answer;
+		try {
+			answer = this.gateway.authorise(account, pence);
+		} catch (RuntimeException e) {
+			answer = CompletableFuture.failedFuture(e);
+		}
+		
+		// Whichever comes first, the answer or the time limit, completes the result
+		CompletableFuture<PaymentResult> res = new CompletableFuture<PaymentResult>();
+		res.completeOnTimeout(PaymentResult.failed("Timed out"), this.timeoutMillis, TimeUnit.MILLISECONDS);
+		answer.whenComplete((result, error) -> {
+			PaymentResult outcome = (error == null && result != null) ? result : PaymentResult.failed("Payment gateway error");
+			if (!res.complete(outcome) && outcome.isApproved()) {
+				// The customer has already been told the payment failed, so a late approval is given back
+				this.gateway.refund(account, outcome.getCode(), pence);
+			}
+		});
+		
+		return res.thenApply(result -> {
+			this.inFlight.decrementAndGet();
+			if (result.isApproved() || result.isDeclined()) {
+				recordAnswer();
+			} else {
+				recordFailure();
+			}
+			return result;
+		});
+	}
+	
+	/**
+	 * Gives back an approved payment, e.g. because the item could not be delivered.
+	 * @param account - The card or mobile account token
+	 * @param code - The authorisation code of the payment
+	 * @param pence - The amount, in pence
+	 */
+	public void refund(String account, String code, int pence) {
+		this.gateway.refund(account, code, pence);
+	}
+	
+	/**
+	 * Returns the longest time to wait for an answer.
+	 * @return - The time limit, in milliseconds
+	 */
+	public long getTimeoutMillis() {
+		return this.timeoutMillis;
+	}
+	
+	/**
+	 * Returns the number of payments that are waiting for an answer.
+	 * @return - The number of payments in progress
+	 */
+	public int getInFlight() {
+		return this.inFlight.get();
+	}
+	
+	/**
+	 * Returns the state of the circuit breaker.
+	 * @return - The state
+	 */
+	public synchronized Breaker getBreaker() {
+		if (this.breaker == Breaker.OPEN && System.currentTimeMillis() - this.openedAt >= this.openMillis) {
+			return Breaker.HALF_OPEN;
+		}
+		return this.breaker;
+	}
+	
+	/**
+	 * Checks the circuit breaker before sending a payment.
+	 * @return - A boolean is returned to indicate if the payment may be sent
+	 */
+	private synchronized boolean allowRequest() {
+		if (this.breaker == Breaker.OPEN && System.currentTimeMillis() - this.openedAt >= this.openMillis) {
+			this.breaker = Breaker.HALF_OPEN;
+		}
+		
+		if (this.breaker == Breaker.CLOSED) {
+			return true;
+		}
+		
+		// Only one trial payment at a time while half open
+		if (this.breaker == Breaker.HALF_OPEN && !this.trialInFlight) {
+			this.trialInFlight = true;
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Lets another trial payment through, if a trial was allowed but never sent.
+	 */
+	private synchronized void releaseTrial() {
+		this.trialInFlight = false;
+	}
+	
+	/**
+	 * Records that the gateway answered, which closes the breaker.
+	 */
+	private synchronized void recordAnswer() {
+		this.failures = 0;
+		this.trialInFlight = false;
+		this.breaker = Breaker.CLOSED;
+	}
+	
+	/**
+	 * Records that the gateway did not answer, which opens the breaker if it has happened too often.
+	 */
+	private synchronized void recordFailure() {
+		this.failures++;
+		this.trialInFlight = false;
+		if (this.breaker == Breaker.HALF_OPEN || this.failures >= this.failureThreshold) {
+			if (this.breaker != Breaker.OPEN) {
+				this.openedAt = System.currentTimeMillis();
+			}
+			this.breaker = Breaker.OPEN;
+		}
+	}
+	
+}
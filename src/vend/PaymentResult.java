@@ -0,0 +1,96 @@
+package vend;
+
+/**
+ * This class holds the answer to a card or mobile payment. A payment is either approved, declined by the
+ * customer's bank, or failed because the answer could not be got (e.g. the gateway timed out or is down).
+ * @author Fergal Bittles
+ *
+ */
+public class PaymentResult {
+
+	private final boolean approved;
+	private final boolean declined;
+	private final String code;
+	private final String message;
+	
+	/**
+	 * Constructor for PaymentResult. Use approved, declined or failed to create one.
+	 * @param approved - True if the payment was approved
+	 * @param declined - True if the payment was declined
+	 * @param code - The authorisation code, or null if the payment was not approved
+	 * @param message - A description of the answer
+	 */
+	private PaymentResult(boolean approved, boolean declined, String code, String message) {
+		this.approved = approved;
+		this.declined = declined;
+		this.code = code;
+		this.message = message;
+	}
+	
+	/**
+	 * Creates the result for an approved payment.
+	 * @param code - The authorisation code given by the gateway, which is needed to refund the payment
+	 * @return - The PaymentResult
+	 */
+	public static PaymentResult approved(String code) {
+		return new PaymentResult(true, false, code, "Approved");
+	}
+	
+	/**
+	 * Creates the result for a payment that was declined.
+	 * @param reason - The reason given by the gateway
+	 * @return - The PaymentResult
+	 */
+	public static PaymentResult declined(String reason) {
+		return new PaymentResult(false, true, null, reason);
+	}
+	
+	/**
+	 * Creates the result for a payment that could not be authorised.
+	 * @param reason - The reason, e.g. "Timed out"
+	 * @return - The PaymentResult
+	 */
+	public static PaymentResult failed(String reason) {
+		return new PaymentResult(false, false, null, reason);
+	}
+	
+	/**
+	 * Checks if the payment was approved.
+	 * @return - A boolean is returned to indicate if the payment was approved
+	 */
+	public boolean isApproved() {
+		return this.approved;
+	}
+	
+	/**
+	 * Checks if the payment was declined, rather than failing to get an answer.
+	 * @return - A boolean is returned to indicate if the payment was declined
+	 */
+	public boolean isDeclined() {
+		return this.declined;
+	}
+	
+	/**
+	 * Returns the authorisation code of an approved payment.
+	 * @return - The code, or null if the payment was not approved
+	 */
+	public String getCode() {
+		return this.code;
+	}
+	
+	/**
+	 * Returns a description of the answer.
+	 * @return - The message
+	 */
+	public String getMessage() {
+		return this.message;
+	}
+	
+	/**
+	 * Returns a string containing the answer. Useful for testing the PaymentResult class.
+	 */
+	public String toString() {
+		return (this.approved ? "Approved " + this.code : (this.declined ? "Declined: " : "Failed: ") + this.message);
+	}
+	
+}
@@ -0,0 +1,123 @@
+package vend;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class publishes time-of-day PriceTables to a group of VendingMachines.
+ * Each table is used from its start time until the start time of the next one, wrapping around midnight.
+ * Publishing a table only replaces a reference inside each machine, so purchases are never held up.
+ * @author Fergal Bittles
+ *
+ */
+public class PriceScheduler {
+
+	private final TreeMap<LocalTime, PriceTable> periods;
+	private final List<VendingMachine> machines;
+	private ScheduledExecutorService timer;
+	
+	/**
+	 * Constructor for PriceScheduler.
+	 */
+	public PriceScheduler() {
+		this.periods = new TreeMap<LocalTime, PriceTable>();
+		this.machines = new ArrayList<VendingMachine>();
+	}
+	
+	/**
+	 * Adds a pricing period to the schedule.
+	 * @param start - The time of day that the period begins
+	 * @param table - The prices to use during the period
+	 * @return - A boolean is returned to indicate failure or success
+	 */
+	public synchronized boolean addPeriod(LocalTime start, PriceTable table) {
+		if (start == null || table == null) {
+			return false;
+		}
+		
+		this.periods.put(start, table);
+		return true;
+	}
+	
+	/**
+	 * Adds a vending machine that should receive the scheduled prices.
+	 * @param machine - The vending machine
+	 * @return - A boolean is returned to indicate failure or success
+	 */
+	public synchronized boolean addMachine(VendingMachine machine) {
+		if (machine == null || this.machines.contains(machine)) {
+			return false;
+		}
+		
+		this.machines.add(machine);
+		return true;
+	}
+	
+	/**
+	 * Returns the PriceTable that should be in use at a particular time of day.
+	 * @param time - The time of day
+	 * @return - The scheduled table, or the base prices if no periods have been added
+	 */
+	public synchronized PriceTable getTableFor(LocalTime time) {
+		if (this.periods.isEmpty()) {
+			return PriceTable.BASE_PRICES;
+		}
+		
+		// Before the first period of the day, the last period from the night before still applies
+		Map.Entry<LocalTime, PriceTable> entry = this.periods.floorEntry(time);
+		if (entry == null) {
+			entry = this.periods.lastEntry();
+		}
+		return entry.getValue();
+	}
+	
+	/**
+	 * Publishes the table for the current time of day to every machine.
+	 */
+	public synchronized void publishNow() {
+		PriceTable table = getTableFor(LocalTime.now());
+		for (VendingMachine machine : this.machines) {
+			if (machine.getPriceTable() != table) {
+				machine.setPriceTable(table);
+			}
+		}
+	}
+	
+	/**
+	 * Starts checking the schedule in the background.
+	 * @param interval - How often the schedule should be checked, in seconds
+	 */
+	public synchronized void start(int interval) {
+		if (this.timer != null) {
+			return;
+		}
+		
+		if (interval <= 0) {
+			interval = 60; // Check once a minute by default
+		}
+		
+		this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "price-scheduler");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.timer.scheduleAtFixedRate(this::publishNow, 0, interval, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Stops checking the schedule. The machines keep the last prices that were published.
+	 */
+	public synchronized void stop() {
+		if (this.timer != null) {
+			this.timer.shutdown();
+			this.timer = null;
+		}
+	}
+	
+}
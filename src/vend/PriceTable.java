@@ -0,0 +1,100 @@
+package vend;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class represents a set of prices that can be applied to the items in a VendingMachine.
+ * A PriceTable can not be changed once it has been created, so a machine can swap to a new table
+ * at any time without a purchase ever seeing a mix of old and new prices.
+ * Prices are set for products, not for the items in one machine, so one table can be published to a whole fleet
+ * by a PriceScheduler and apply to every machine that stocks each product.
+ * Items that are not in the table are sold at their own unit price.
+ * @author Fergal Bittles
+ *
+ */
+public class PriceTable {
+
+	/**
+	 * A table with no prices, which leaves every item at its own unit price.
+	 */
+	public static final PriceTable BASE_PRICES = new PriceTable("Base Prices", new HashMap<Integer, Double>());
+	
+	private final String name;
+	private final Map<Integer, Double> prices;
+	
+	/**
+	 * Constructor for PriceTable, for prices in sterling. Prices are validated in the same way as a Product,
+	 * so any price that is not a multiple of 5p, or is over £2, will be ignored.
+	 * @param name - The name of the table (e.g. "Lunchtime Offer")
+	 * @param prices - The price of each product, using the product ID from the ProductCatalog as the key
+	 */
+	public PriceTable(String name, Map<Integer, Double> prices) {
+		this(name, prices, CurrencySet.STERLING);
+	}
+	
+	/**
+	 * Overloaded constructor for PriceTable. Any price that is not valid in the currency will be ignored.
+	 * @param name - The name of the table (e.g. "Lunchtime Offer")
+	 * @param prices - The price of each product, using the product ID from the ProductCatalog as the key
+	 * @param currency - The currency that the prices are in
+	 */
+	public PriceTable(String name, Map<Integer, Double> prices, CurrencySet currency) {
+		CurrencySet checked = (currency != null) ? currency : CurrencySet.STERLING;
+		this.name = (name != null && !name.equals("")) ? name : "Unassigned";
+		
+		Map<Integer, Double> valid = new HashMap<Integer, Double>();
+		if (prices != null) {
+			for (Map.Entry<Integer, Double> entry : prices.entrySet()) {
+				if (entry.getKey() != null && entry.getValue() != null && Product.isValidPrice(entry.getValue(), checked)) {
+					valid.put(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+		this.prices = Collections.unmodifiableMap(valid);
+	}
+	
+	/**
+	 * Returns the name of the table.
+	 * @return - The name of the table
+	 */
+	public String getName() {
+		return this.name;
+	}
+	
+	/**
+	 * Returns the price that an item should be sold at.
+	 * @param item - The item being sold
+	 * @return - The price from this table, or the item's own unit price if the table does not include it
+	 */
+	public double getPrice(VendItem item) {
+		Double price = this.prices.get(item.getProduct().getProductId());
+		return (price != null) ? price : item.getPrice();
+	}
+	
+	/**
+	 * Checks if this table sets the price of an item, rather than leaving it at its own unit price.
+	 * @param item - The item
+	 * @return - A boolean is returned to indicate if the table includes the item's product
+	 */
+	boolean hasPrice(VendItem item) {
+		return this.prices.containsKey(item.getProduct().getProductId());
+	}
+	
+	/**
+	 * Returns the number of products that this table sets a price for.
+	 * @return - The number of prices in the table
+	 */
+	public int size() {
+		return this.prices.size();
+	}
+	
+	/**
+	 * Returns a string containing the name and prices of the table. Useful for testing the PriceTable class.
+	 */
+	public String toString() {
+		return this.name + " " + this.prices;
+	}
+	
+}
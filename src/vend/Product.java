@@ -0,0 +1,136 @@
+package vend;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class represents a product that can be stocked in any number of vending machines.
+ * Every VendItem for the same product shares one Product, so the name and price are held in one place.
+ * Products are created and updated through a ProductCatalog.
+ * @author Fergal Bittles
+ *
+ */
+public class Product {
+
+	// Counts every change to the name or price of any product, so that an ItemIndex can tell when it is out of date
+	private static final AtomicLong EDITS = new AtomicLong();
+	
+	private final int productId;
+	private final CurrencySet currency;
+	private volatile String name;
+	private volatile double unitPrice;
+	
+	/**
+	 * Constructor for Product. Calls private setters which validate the data.
+	 * @param productId - The ID given to the product by its catalog
+	 * @param name - The name of the product
+	 * @param cost - The base price of the product
+	 * @param currency - The currency of the catalog, which the price is validated against
+	 */
+	Product(int productId, String name, double cost, CurrencySet currency) {
+		this.productId = productId;
+		this.currency = currency;
+		this.name = validName(name);
+		this.unitPrice = validPrice(cost);
+	}
+	
+	/**
+	 * Validates and sets the name of the product.
+	 * @param name - The name of the product
+	 */
+	void setName(String name) {
+		this.name = validName(name);
+		EDITS.incrementAndGet();
+	}
+	
+	/**
+	 * Validates and sets the price of the product.
+	 * The price must be valid in the currency of the catalog.
+	 * @param cost - The price of the product
+	 */
+	void setUnitPrice(double cost) {
+		this.unitPrice = validPrice(cost);
+		EDITS.incrementAndGet();
+	}
+	
+	/**
+	 * Returns the number of times the name or price of any product has been changed.
+	 * Read it before reading names or prices, as it is only increased once the new value can be seen.
+	 * @return - The edit count
+	 */
+	static long getEditCount() {
+		return EDITS.get();
+	}
+	
+	/**
+	 * Validates the name of a product.
+	 * @param name - The name of the product
+	 * @return - The name, or "Unassigned" if it is empty
+	 */
+	private static String validName(String name) {
+		if (name != null && !name.equals("")) {
+			return name;
+		} else {
+			return "Unassigned";
+		}
+	}
+	
+	/**
+	 * Validates the price of a product.
+	 * @param cost - The price of the product
+	 * @return - The price, or the highest price in the currency if it is not valid
+	 */
+	private double validPrice(double cost) {
+		// The highest price (£2 for sterling) is the default cost of a new product
+		return isValidPrice(cost, this.currency) ? cost : this.currency.getMaxPrice() / 100.0;
+	}
+	
+	/**
+	 * Checks that a price can be sold in a currency, i.e. it is greater than 0, no more than the currency's
+	 * highest price and a multiple of its smallest coin. The check is done in whole pence, as prices such as 0.55
+	 * can not be held exactly as a double, so 0.55 * 100 is not exactly 55.
+	 * @param cost - The price to be checked
+	 * @param currency - The currency the price will be paid in
+	 * @return - A boolean is returned to indicate if the price is valid
+	 */
+	static boolean isValidPrice(double cost, CurrencySet currency) {
+		long priceInPence = Math.round(cost * 100);
+		
+		// Anything that is not a whole number of pence, e.g. 0.555, is not valid
+		if (Math.abs(cost * 100 - priceInPence) > 1e-6 || priceInPence > Integer.MAX_VALUE) {
+			return false;
+		}
+		return currency.isValidPrice((int) priceInPence);
+	}
+	
+	/**
+	 * Returns the ID of the product.
+	 * @return - The product ID
+	 */
+	public int getProductId() {
+		return this.productId;
+	}
+	
+	/**
+	 * Returns the name of the product.
+	 * @return - The name of the product
+	 */
+	public String getName() {
+		return this.name;
+	}
+	
+	/**
+	 * Returns the base price of the product.
+	 * @return - The price of the product
+	 */
+	public double getPrice() {
+		return this.unitPrice;
+	}
+	
+	/**
+	 * Returns a string containing information about a product. Useful for testing the Product class.
+	 */
+	public String toString() {
+		return "Product " + this.productId + ": " + this.name + String.format(" (£%.2f)", this.unitPrice);
+	}
+	
+}
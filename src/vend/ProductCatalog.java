@@ -0,0 +1,152 @@
+package vend;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class is the central list of products shared by a fleet of vending machines.
+ * A product stocked in many machines is only stored once, and changing its name or
+ * price here changes it in every machine at the same time.
+ * @author Fergal Bittles
+ *
+ */
+public class ProductCatalog {
+
+	private static final ProductCatalog DEFAULT = new ProductCatalog();
+	
+	private final CurrencySet currency;
+	private final Map<Integer, Product> productsById;
+	private final Map<String, Product> productsByKey;
+	private int nextProductId;
+	
+	/**
+	 * Constructor for ProductCatalog, for products sold in sterling.
+	 */
+	public ProductCatalog() {
+		this(CurrencySet.STERLING);
+	}
+	
+	/**
+	 * Overloaded constructor for ProductCatalog.
+	 * @param currency - The currency that the products are sold in, which every price is validated against
+	 */
+	public ProductCatalog(CurrencySet currency) {
+		this.currency = (currency != null) ? currency : CurrencySet.STERLING;
+		this.productsById = new ConcurrentHashMap<Integer, Product>();
+		this.productsByKey = new HashMap<String, Product>();
+		this.nextProductId = 1;
+	}
+	
+	/**
+	 * Returns the catalog used by every VendItem that is not given a Product directly.
+	 * @return - The default ProductCatalog
+	 */
+	public static ProductCatalog getDefault() {
+		return DEFAULT;
+	}
+	
+	/**
+	 * Returns the product with a particular name and price, adding it to the catalog if it is new.
+	 * @param name - The name of the product
+	 * @param cost - The base price of the product
+	 * @return - The shared Product
+	 */
+	public synchronized Product getProduct(String name, double cost) {
+		// Validate first, so that "" and "Unassigned" (or an invalid price and the highest price) find the same product
+		Product candidate = new Product(this.nextProductId, name, cost, this.currency);
+		String key = keyOf(candidate.getName(), candidate.getPrice());
+		
+		Product product = this.productsByKey.get(key);
+		if (product == null) {
+			product = candidate;
+			this.nextProductId++;
+			this.productsByKey.put(key, product);
+			this.productsById.put(product.getProductId(), product);
+		}
+		
+		return product;
+	}
+	
+	/**
+	 * Returns the currency that the products in the catalog are sold in.
+	 * @return - The currency
+	 */
+	public CurrencySet getCurrency() {
+		return this.currency;
+	}
+	
+	/**
+	 * Returns a product using its ID.
+	 * @param productId - The ID of the product
+	 * @return - The Product, or null if there is no product with that ID
+	 */
+	public Product getProduct(int productId) {
+		return this.productsById.get(productId);
+	}
+	
+	/**
+	 * Changes the base price of a product in every machine that stocks it.
+	 * @param productId - The ID of the product
+	 * @param cost - The new price, which must be valid in the catalog's currency
+	 * @return - A boolean is returned to indicate failure or success
+	 */
+	public synchronized boolean setPrice(int productId, double cost) {
+		Product product = this.productsById.get(productId);
+		if (product == null || !Product.isValidPrice(cost, this.currency)) {
+			return false;
+		}
+		
+		this.productsByKey.remove(keyOf(product.getName(), product.getPrice()));
+		product.setUnitPrice(cost);
+		this.productsByKey.putIfAbsent(keyOf(product.getName(), product.getPrice()), product);
+		return true;
+	}
+	
+	/**
+	 * Changes the name of a product in every machine that stocks it.
+	 * @param productId - The ID of the product
+	 * @param name - The new name
+	 * @return - A boolean is returned to indicate failure or success
+	 */
+	public synchronized boolean setName(int productId, String name) {
+		Product product = this.productsById.get(productId);
+		if (product == null || name == null || name.trim().equals("")) {
+			return false;
+		}
+		
+		this.productsByKey.remove(keyOf(product.getName(), product.getPrice()));
+		product.setName(name.trim());
+		this.productsByKey.putIfAbsent(keyOf(product.getName(), product.getPrice()), product);
+		return true;
+	}
+	
+	/**
+	 * Returns every product in the catalog.
+	 * @return - A list of the products
+	 */
+	public List<Product> getProducts() {
+		return new ArrayList<Product>(this.productsById.values());
+	}
+	
+	/**
+	 * Returns the number of products in the catalog.
+	 * @return - The product count
+	 */
+	public int size() {
+		return this.productsById.size();
+	}
+	
+	/**
+	 * Builds the key used to find a product by its name and price.
+	 * @param name - The name of the product
+	 * @param cost - The price of the product
+	 * @return - The key
+	 */
+	private static String keyOf(String name, double cost) {
+		return name + "|" + Math.round(cost * 100);
+	}
+	
+}
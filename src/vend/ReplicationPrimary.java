@@ -0,0 +1,385 @@
+package vend;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class sends every change made to a VendingMachine to warm replicas in other processes on the same computer,
+ * so that a replica can take over straight away if the process running the machine stops.
+ *
+ * Replicas connect over a local socket. Each new replica is first sent the whole machine, then every change
+ * after it, using the change lines written by MachineChanges. Each change ends with a line of E,change number.
+ * Changes are sent without waiting for the replica to answer, and a replica only acknowledges the last change
+ * it has applied each time it catches up (A,change number), so a busy machine is never held up by a replica.
+ * When there are no changes, a heartbeat line (H) is sent so the replica can tell the primary is still running.
+ *
+ * The machine only adds each change to a queue for each replica, so a purchase never waits for the network.
+ * A replica that falls too far behind is disconnected, and is sent the whole machine again when it reconnects.
+ * @author Fergal Bittles
+ *
+ */
+public class ReplicationPrimary {
+
+	static final long HEARTBEAT_MILLIS = 100;
+	
+	// The most changes waiting to be sent to one replica before it is disconnected
+	private static final int MAX_BACKLOG = 100000;
+	
+	private final VendingMachine machine;
+	private final ServerSocket server;
+	private final List<Link> links;
+	private MachineChanges changes;
+	private long sequence;
+	private volatile boolean closed;
+	
+	/**
+	 * This class holds one change, or the whole machine for a new replica, waiting to be sent.
+	 */
+	private static class Change {
+		
+		private final long sequence;
+		private final long recorded;
+		private final List<String> lines;
+		
+		/**
+		 * Constructor for Change.
+		 * @param sequence - The change number
+		 * @param lines - The change lines
+		 */
+		private Change(long sequence, List<String> lines) {
+			this.sequence = sequence;
+			this.recorded = System.nanoTime();
+			this.lines = lines;
+		}
+		
+	}
+	
+	/**
+	 * This class is the connection to one replica, with a thread that sends changes and a thread that reads acknowledgements.
+	 */
+	private class Link {
+		
+		private final Socket socket;
+		private final BufferedWriter out;
+		private final BufferedReader in;
+		private final LinkedBlockingQueue<Change> queue;
+		
+		// Changes that have been sent but not acknowledged, oldest first
+		private final ConcurrentLinkedQueue<Change> unacked;
+		private volatile long acked;
+		private volatile long lagNanos;
+		
+		/**
+		 * Constructor for Link.
+		 * @param socket - The connected socket
+		 * @throws IOException - If the socket's streams can not be opened
+		 */
+		private Link(Socket socket) throws IOException {
+			this.socket = socket;
+			this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), 64 * 1024);
+			this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			this.queue = new LinkedBlockingQueue<Change>();
+			this.unacked = new ConcurrentLinkedQueue<Change>();
+			this.acked = -1;
+		}
+		
+		/**
+		 * Queues a change to be sent. Disconnects the replica if it has fallen too far behind.
+		 * @param change - The change
+		 */
+		private void offer(Change change) {
+			if (this.queue.size() >= MAX_BACKLOG) {
+				close();
+				return;
+			}
+			this.queue.add(change);
+		}
+		
+		/**
+		 * Starts the threads that send changes and read acknowledgements.
+		 */
+		private void start() {
+			startThread(this::send, "replication-send");
+			startThread(this::readAcks, "replication-ack");
+		}
+		
+		/**
+		 * Sends every queued change, a batch at a time with one flush for each batch. Runs until the link is closed.
+		 */
+		private void send() {
+			List<Change> batch = new ArrayList<Change>();
+			try {
+				while (!this.socket.isClosed()) {
+					Change first = this.queue.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+					if (first == null) {
+						this.out.write("H\n");
+						this.out.flush();
+						continue;
+					}
+					
+					batch.clear();
+					batch.add(first);
+					this.queue.drainTo(batch);
+					
+					for (Change change : batch) {
+						for (String line : change.lines) {
+							this.out.write(line);
+							this.out.write('\n');
+						}
+						this.out.write("E," + change.sequence + "\n");
+						this.unacked.add(change);
+					}
+					this.out.flush();
+				}
+			} catch (IOException | InterruptedException e) {
+				// The replica has gone
+			}
+			close();
+		}
+		
+		/**
+		 * Reads acknowledgements from the replica and works out how far behind it is. Runs until the link is closed.
+		 */
+		private void readAcks() {
+			try {
+				String line = this.in.readLine();
+				while (line != null) {
+					if (line.startsWith("A,")) {
+						acknowledge(Long.parseLong(line.substring(2)));
+					}
+					line = this.in.readLine();
+				}
+			} catch (IOException | NumberFormatException e) {
+				// The replica has gone
+			}
+			close();
+		}
+		
+		/**
+		 * Records that the replica has applied every change up to a change number.
+		 * @param number - The last change number applied
+		 */
+		private void acknowledge(long number) {
+			long now = System.nanoTime();
+			Change change = this.unacked.peek();
+			while (change != null && change.sequence <= number) {
+				this.lagNanos = now - change.recorded;
+				this.unacked.poll();
+				change = this.unacked.peek();
+			}
+			this.acked = number;
+			
+			synchronized (ReplicationPrimary.this) {
+				ReplicationPrimary.this.notifyAll();
+			}
+		}
+		
+		/**
+		 * Closes the connection to the replica.
+		 */
+		private void close() {
+			ReplicationPrimary.this.links.remove(this);
+			try {
+				this.socket.close();
+			} catch (IOException e) {
+				// Already closed
+			}
+		}
+		
+	}
+	
+	/**
+	 * Constructor for ReplicationPrimary. Use start to create one for a machine.
+	 * @param machine - The vending machine
+	 * @param server - The socket that replicas connect to
+	 */
+	private ReplicationPrimary(VendingMachine machine, ServerSocket server) {
+		this.machine = machine;
+		this.server = server;
+		this.links = new CopyOnWriteArrayList<Link>();
+	}
+	
+	/**
+	 * Starts sending the changes made to a vending machine to any replica that connects.
+	 * Only connections from the same computer are accepted.
+	 * @param machine - The vending machine
+	 * @param port - The port that replicas connect to, or 0 to use any free port
+	 * @return - The ReplicationPrimary, which should be closed when the machine is shut down
+	 * @throws IOException - If the port can not be opened
+	 */
+	public static ReplicationPrimary start(VendingMachine machine, int port) throws IOException {
+		ReplicationPrimary primary = new ReplicationPrimary(machine, new ServerSocket(port, 50, InetAddress.getLoopbackAddress()));
+		
+		synchronized (machine) {
+			synchronized (primary) {
+				primary.changes = new MachineChanges(machine);
+				machine.setReplication(primary);
+			}
+		}
+		
+		primary.startThread(primary::acceptReplicas, "replication-accept");
+		return primary;
+	}
+	
+	/**
+	 * Stops sending changes and disconnects every replica, which will then take over if they are set to.
+	 */
+	public void close() {
+		this.closed = true;
+		synchronized (this.machine) {
+			this.machine.setReplication(null);
+		}
+		
+		try {
+			this.server.close();
+		} catch (IOException e) {
+			// Already closed
+		}
+		for (Link link : this.links) {
+			link.close();
+		}
+	}
+	
+	/**
+	 * Returns the port that replicas connect to.
+	 * @return - The port
+	 */
+	public int getPort() {
+		return this.server.getLocalPort();
+	}
+	
+	/**
+	 * Returns the number of replicas that are connected.
+	 * @return - The number of replicas
+	 */
+	public int getReplicaCount() {
+		return this.links.size();
+	}
+	
+	/**
+	 * Returns the number of the last change made to the machine.
+	 * @return - The change number
+	 */
+	public synchronized long getSequence() {
+		return this.sequence;
+	}
+	
+	/**
+	 * Returns the number of the last change that every connected replica has applied.
+	 * @return - The change number, or -1 if no replica has applied a change yet
+	 */
+	public long getAckedSequence() {
+		long res = Long.MAX_VALUE;
+		for (Link link : this.links) {
+			res = Math.min(res, link.acked);
+		}
+		return (res == Long.MAX_VALUE) ? -1 : res;
+	}
+	
+	/**
+	 * Returns the replication lag, which is the time from a change being made on the machine to the slowest
+	 * replica acknowledging it, for the last change each replica acknowledged.
+	 * @return - The lag, in milliseconds
+	 */
+	public double getLagMillis() {
+		long res = 0;
+		for (Link link : this.links) {
+			res = Math.max(res, link.lagNanos);
+		}
+		return res / 1000000.0;
+	}
+	
+	/**
+	 * Waits until every connected replica has applied a change.
+	 * @param number - The change number, e.g. from getSequence
+	 * @param timeoutMillis - The longest time to wait
+	 * @return - A boolean is returned to indicate if the replicas caught up in time
+	 * @throws InterruptedException - If the thread is interrupted while waiting
+	 */
+	public synchronized boolean awaitAcked(long number, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (getReplicaCount() > 0 && getAckedSequence() < number) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return getReplicaCount() > 0;
+	}
+	
+	/**
+	 * Called by a VendingMachine, while holding its lock, each time a change has finished.
+	 * Queues whatever is different from the last change for every replica.
+	 * @param source - The vending machine that changed
+	 */
+	synchronized void record(VendingMachine source) {
+		if (source != this.machine) {
+			return;
+		}
+		
+		List<String> lines = this.changes.diff(source);
+		if (lines.isEmpty()) {
+			return;
+		}
+		
+		this.sequence++;
+		Change change = new Change(this.sequence, lines);
+		for (Link link : this.links) {
+			link.offer(change);
+		}
+	}
+	
+	/**
+	 * Accepts replicas and sends each one the whole machine. Runs on its own thread until the primary is closed.
+	 */
+	private void acceptReplicas() {
+		while (!this.closed) {
+			try {
+				Socket socket = this.server.accept();
+				socket.setTcpNoDelay(true);
+				Link link = new Link(socket);
+				
+				// The machine's lock is held so that no change is made between the copy and the first change sent after it
+				synchronized (this.machine) {
+					synchronized (this) {
+						List<String> lines = new ArrayList<String>();
+						lines.add("R");
+						lines.addAll(new MachineChanges(this.machine.getCurrency().size()).diff(this.machine));
+						link.offer(new Change(this.sequence, lines));
+						this.links.add(link);
+					}
+				}
+				
+				link.start();
+			} catch (IOException e) {
+				// The server socket has been closed, or one connection failed
+			}
+		}
+	}
+	
+	/**
+	 * Starts a background thread that does not stop the program from exiting.
+	 * @param task - The task to run
+	 * @param name - The name of the thread
+	 */
+	private void startThread(Runnable task, String name) {
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+}
@@ -0,0 +1,200 @@
+package vend;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class keeps a warm copy of a VendingMachine that is running in another process on the same computer,
+ * by applying every change sent by its ReplicationPrimary.
+ *
+ * Each change is applied while holding the copy's lock, so the copy never shows half of a change.
+ * If the primary stops sending anything, even heartbeats, for a few heartbeats, or the connection is lost,
+ * the primary is treated as lost and the copy can be promoted to take over.
+ * The copy's items keep the primary's item IDs, which are claimed in this process so that new items never reuse them.
+ * @author Fergal Bittles
+ *
+ */
+public class ReplicationReplica {
+
+	// The primary is treated as lost if nothing arrives for this long
+	private static final int TIMEOUT_MILLIS = (int) (ReplicationPrimary.HEARTBEAT_MILLIS * 5);
+	
+	private final VendingMachine machine;
+	private final Socket socket;
+	private final BufferedReader in;
+	private final BufferedWriter out;
+	private volatile long sequence;
+	private volatile long applied;
+	private volatile boolean primaryLost;
+	private volatile String failure;
+	
+	/**
+	 * Constructor for ReplicationReplica. Use connect to create one.
+	 * @param machine - The vending machine that is kept up to date
+	 * @param socket - The connected socket
+	 * @throws IOException - If the socket's streams can not be opened
+	 */
+	private ReplicationReplica(VendingMachine machine, Socket socket) throws IOException {
+		this.machine = machine;
+		this.socket = socket;
+		this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), 64 * 1024);
+		this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+		this.sequence = -1;
+	}
+	
+	/**
+	 * Connects to a primary on the same computer and starts following it.
+	 * The vending machine is replaced by the primary's machine as soon as it arrives.
+	 * @param port - The port of the primary
+	 * @param machine - The vending machine that is kept up to date, which must use the same currency as the primary
+	 * @return - The ReplicationReplica
+	 * @throws IOException - If the primary can not be reached
+	 */
+	public static ReplicationReplica connect(int port, VendingMachine machine) throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		socket.setTcpNoDelay(true);
+		socket.setSoTimeout(TIMEOUT_MILLIS);
+		
+		ReplicationReplica replica = new ReplicationReplica(machine, socket);
+		Thread thread = new Thread(replica::follow, "replication-replica");
+		thread.setDaemon(true);
+		thread.start();
+		return replica;
+	}
+	
+	/**
+	 * Stops following the primary and returns the copy, ready to take over.
+	 * A machine that was draining is put into Service Mode, as its customer was on the primary.
+	 * @return - The vending machine
+	 */
+	public VendingMachine promote() {
+		close();
+		
+		synchronized (this.machine) {
+			if (this.machine.getMachineStatus() == Status.DRAINING) {
+				this.machine.setStatus(Status.SERVICE_MODE);
+			}
+		}
+		return this.machine;
+	}
+	
+	/**
+	 * Stops following the primary without changing the copy.
+	 */
+	public void close() {
+		try {
+			this.socket.close();
+		} catch (IOException e) {
+			// Already closed
+		}
+	}
+	
+	/**
+	 * Waits until the primary is lost.
+	 * @param timeoutMillis - The longest time to wait
+	 * @return - A boolean is returned to indicate if the primary was lost
+	 * @throws InterruptedException - If the thread is interrupted while waiting
+	 */
+	public synchronized boolean awaitPrimaryLost(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (!this.primaryLost) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+	
+	/**
+	 * Checks if the primary has been lost.
+	 * @return - A boolean is returned to indicate if the primary has been lost
+	 */
+	public boolean isPrimaryLost() {
+		return this.primaryLost;
+	}
+	
+	/**
+	 * Returns the number of the last change from the primary that has been applied.
+	 * @return - The change number, or -1 before the primary's machine has arrived
+	 */
+	public long getSequence() {
+		return this.sequence;
+	}
+	
+	/**
+	 * Returns the number of changes that have been applied, including the primary's machine when it first arrived.
+	 * @return - The number of changes
+	 */
+	public long getAppliedCount() {
+		return this.applied;
+	}
+	
+	/**
+	 * Returns the reason the replica stopped following, if the primary sent something that could not be applied.
+	 * @return - The error, or null
+	 */
+	public String getFailure() {
+		return this.failure;
+	}
+	
+	/**
+	 * Applies each change as it arrives, and acknowledges the last one whenever there is nothing more waiting.
+	 * Runs on its own thread until the primary is lost or the replica is closed.
+	 */
+	private void follow() {
+		List<String> lines = new ArrayList<String>();
+		try {
+			String line = this.in.readLine();
+			while (line != null) {
+				if (line.startsWith("E,")) {
+					apply(lines, Long.parseLong(line.substring(2)));
+					lines.clear();
+					
+					// Acknowledgements are batched, so a replica that is catching up only answers once
+					if (!this.in.ready()) {
+						this.out.write("A," + this.sequence + "\n");
+						this.out.flush();
+					}
+				} else if (!line.equals("H")) {
+					lines.add(line);
+				}
+				line = this.in.readLine();
+			}
+		} catch (IOException | NumberFormatException e) {
+			// The primary has gone, or has stopped sending anything
+		}
+		
+		close();
+		synchronized (this) {
+			this.primaryLost = true;
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Applies the lines of one change to the copy as a single change, so readers of the copy never see it half applied.
+	 * @param lines - The change lines
+	 * @param number - The change number
+	 * @throws IOException - If a line can not be applied, which means the copy no longer matches the primary
+	 */
+	private void apply(List<String> lines, long number) throws IOException {
+		String invalid = this.machine.applyChanges(lines);
+		if (invalid != null) {
+			this.failure = "Unable to apply change " + number + ": " + invalid;
+			throw new IOException(this.failure);
+		}
+		this.sequence = number;
+		this.applied++;
+	}
+	
+}
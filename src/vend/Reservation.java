@@ -0,0 +1,89 @@
+package vend;
+
+/**
+ * This class represents one unit of a VendItem being held for a user while they pay.
+ * A Reservation is created by VendingMachine.reserveItem and is released automatically
+ * by a ReservationWheel if it is not used before it expires.
+ * @author Fergal Bittles
+ *
+ */
+public class Reservation {
+
+	private final VendingMachine machine;
+	private final VendItem item;
+	private final ReservationWheel wheel;
+	private volatile boolean active;
+	
+	// Used by the ReservationWheel to keep the reservation in one of its buckets
+	Reservation prev;
+	Reservation next;
+	int bucket;
+	long rounds;
+	
+	/**
+	 * Constructor for Reservation.
+	 * @param machine - The vending machine holding the item
+	 * @param item - The item being held
+	 * @param wheel - The wheel that will expire the reservation
+	 */
+	Reservation(VendingMachine machine, VendItem item, ReservationWheel wheel) {
+		this.machine = machine;
+		this.item = item;
+		this.wheel = wheel;
+		this.active = true;
+		this.bucket = -1;
+	}
+	
+	/**
+	 * Returns the vending machine that is holding the item.
+	 * @return - The vending machine
+	 */
+	public VendingMachine getMachine() {
+		return this.machine;
+	}
+	
+	/**
+	 * Returns the item that is being held.
+	 * @return - The held item
+	 */
+	public VendItem getItem() {
+		return this.item;
+	}
+	
+	/**
+	 * Returns the wheel that will expire the reservation, which it stays on even if the machine is given a new wheel.
+	 * @return - The ReservationWheel
+	 */
+	ReservationWheel getWheel() {
+		return this.wheel;
+	}
+	
+	/**
+	 * Returns whether the reservation can still be used to make a purchase.
+	 * @return - False if the reservation has expired, been cancelled or been used
+	 */
+	public boolean isActive() {
+		return this.active;
+	}
+	
+	/**
+	 * Marks the reservation as finished. Only the first call will succeed.
+	 * @return - A boolean is returned to indicate if the reservation was still active
+	 */
+	synchronized boolean finish() {
+		if (!this.active) {
+			return false;
+		}
+		
+		this.active = false;
+		return true;
+	}
+	
+	/**
+	 * Returns a string containing information about a reservation. Useful for testing the Reservation class.
+	 */
+	public String toString() {
+		return "Reservation: " + this.item.getName() + (this.active ? " (Active)" : " (Finished)");
+	}
+	
+}
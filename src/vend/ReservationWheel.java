@@ -0,0 +1,235 @@
+package vend;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class expires Reservations using a hashed timing wheel.
+ * 
+ * The wheel is a ring of buckets, and each bucket is a linked list of reservations.
+ * Every tick the wheel moves on by one bucket and expires anything that is due.
+ * A reservation that is due further away than one turn of the wheel counts down the
+ * number of turns (rounds) it has left each time its bucket is visited.
+ * Scheduling and cancelling a reservation both take the same amount of time, however many are outstanding,
+ * so one wheel can be shared by a whole fleet of machines.
+ * A single ring with rounds is used rather than a hierarchy of wheels, as reservations only last for seconds or minutes.
+ * 
+ * A machine cancels a reservation on the wheel while holding its own lock, so the wheel never calls a machine
+ * while holding the wheel's lock. Expired reservations are collected under the wheel's lock, and the machines
+ * are told about them afterwards. Otherwise a purchase and an expiry could each wait for the other's lock forever.
+ * 
+ * @author Fergal Bittles
+ *
+ */
+public class ReservationWheel {
+
+	private static ReservationWheel shared;
+	
+	private final Reservation[] buckets;
+	private final long tickMillis;
+	private final long startMillis;
+	private long currentTick;
+	private int pending;
+	private ScheduledExecutorService timer;
+	
+	/**
+	 * Constructor for ReservationWheel.
+	 * @param size - The number of buckets, which is rounded up to a power of 2
+	 * @param tickMillis - The length of each tick, in milliseconds
+	 */
+	public ReservationWheel(int size, long tickMillis) {
+		int buckets = 1;
+		while (buckets < size && buckets < (1 << 20)) {
+			buckets <<= 1;
+		}
+		
+		this.buckets = new Reservation[buckets];
+		this.tickMillis = (tickMillis > 0) ? tickMillis : 100;
+		this.startMillis = System.currentTimeMillis();
+		this.currentTick = 0;
+		this.pending = 0;
+	}
+	
+	/**
+	 * Returns a wheel that is shared by every vending machine in this program.
+	 * The wheel is started the first time it is requested.
+	 * @return - The shared ReservationWheel
+	 */
+	public static synchronized ReservationWheel getShared() {
+		if (shared == null) {
+			shared = new ReservationWheel(512, 100);
+			shared.start();
+		}
+		return shared;
+	}
+	
+	/**
+	 * Adds a reservation to the wheel.
+	 * @param res - The reservation to be expired, which must have been made for this wheel
+	 * @param timeoutMillis - How long the reservation should last, in milliseconds
+	 * @return - A boolean is returned to indicate failure or success
+	 */
+	public synchronized boolean schedule(Reservation res, long timeoutMillis) {
+		if (res == null || res.getWheel() != this || !res.isActive() || res.bucket != -1) {
+			return false;
+		}
+		
+		// Always wait at least one whole tick
+		long ticks = Math.max(1, (timeoutMillis + this.tickMillis - 1) / this.tickMillis);
+		long deadline = this.currentTick + ticks;
+		
+		res.bucket = (int)(deadline & (this.buckets.length - 1));
+		res.rounds = (ticks - 1) / this.buckets.length;
+		
+		// Add to the front of the bucket
+		res.prev = null;
+		res.next = this.buckets[res.bucket];
+		if (res.next != null) {
+			res.next.prev = res;
+		}
+		this.buckets[res.bucket] = res;
+		this.pending++;
+		return true;
+	}
+	
+	/**
+	 * Removes a reservation from the wheel before it expires.
+	 * @param res - The reservation to be removed
+	 * @return - A boolean is returned to indicate if the reservation was still waiting to expire
+	 */
+	public synchronized boolean cancel(Reservation res) {
+		// A reservation on another wheel is in that wheel's buckets, so must not be unlinked from these
+		if (res == null || res.getWheel() != this || res.bucket == -1) {
+			return false;
+		}
+		
+		unlink(res);
+		return true;
+	}
+	
+	/**
+	 * Removes a reservation from its bucket.
+	 * @param res - The reservation to be removed
+	 */
+	private void unlink(Reservation res) {
+		if (res.prev != null) {
+			res.prev.next = res.next;
+		} else {
+			this.buckets[res.bucket] = res.next;
+		}
+		
+		if (res.next != null) {
+			res.next.prev = res.prev;
+		}
+		
+		res.prev = null;
+		res.next = null;
+		res.bucket = -1;
+		this.pending--;
+	}
+	
+	/**
+	 * Moves the wheel on by one tick and expires any reservations that are due.
+	 * @return - The number of reservations that expired
+	 */
+	public int tick() {
+		List<Reservation> expired = new ArrayList<Reservation>();
+		
+		synchronized (this) {
+			this.currentTick++;
+			collectExpired(expired);
+		}
+		
+		return expire(expired);
+	}
+	
+	/**
+	 * Tells each machine about its expired reservations. Must be called without holding the wheel's lock.
+	 * A reservation that has been used or cancelled since it was collected is left alone by the machine.
+	 * @param expired - The reservations that have been removed from the wheel
+	 * @return - The number of reservations
+	 */
+	private static int expire(List<Reservation> expired) {
+		for (Reservation res : expired) {
+			res.getMachine().expireReservation(res);
+		}
+		return expired.size();
+	}
+	
+	/**
+	 * Removes every reservation that is due in the current bucket.
+	 * @param expired - The list that the expired reservations are added to
+	 */
+	private void collectExpired(List<Reservation> expired) {
+		Reservation res = this.buckets[(int)(this.currentTick & (this.buckets.length - 1))];
+		while (res != null) {
+			Reservation next = res.next;
+			
+			if (res.rounds > 0) {
+				res.rounds--;
+			} else {
+				unlink(res);
+				expired.add(res);
+			}
+			
+			res = next;
+		}
+	}
+	
+	/**
+	 * Moves the wheel on to a particular time, expiring any reservations that are due.
+	 * @param nowMillis - The current time, in milliseconds
+	 * @return - The number of reservations that expired
+	 */
+	public int advanceTo(long nowMillis) {
+		long target = (nowMillis - this.startMillis) / this.tickMillis;
+		List<Reservation> expired = new ArrayList<Reservation>();
+		
+		synchronized (this) {
+			while (this.currentTick < target) {
+				this.currentTick++;
+				collectExpired(expired);
+			}
+		}
+		
+		return expire(expired);
+	}
+	
+	/**
+	 * Returns the number of reservations waiting to expire.
+	 * @return - The number of outstanding reservations
+	 */
+	public synchronized int getPending() {
+		return this.pending;
+	}
+	
+	/**
+	 * Starts moving the wheel on in the background, once per tick.
+	 */
+	public synchronized void start() {
+		if (this.timer != null) {
+			return;
+		}
+		
+		this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "reservation-wheel");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.timer.scheduleAtFixedRate(() -> advanceTo(System.currentTimeMillis()), this.tickMillis, this.tickMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Stops moving the wheel on in the background. Outstanding reservations stay on the wheel.
+	 */
+	public synchronized void stop() {
+		if (this.timer != null) {
+			this.timer.shutdown();
+			this.timer = null;
+		}
+	}
+	
+}
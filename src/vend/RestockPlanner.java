@@ -0,0 +1,341 @@
+package vend;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * This class keeps every item in a fleet of vending machines in order of when it is expected to sell out,
+ * so that restock routes can be planned from the items that will run out soonest.
+ *
+ * Each time an item is sold, its sales rate is copied and its sell-out time is worked out again, which takes
+ * O(log n) time for n items. Between sales an item's rate only falls, and restocking only adds to it, so its
+ * sell-out time can only get later. That makes the time stored for each item a lower bound, and getSoonest only
+ * has to work out the current time again for the items it looks at: an item whose time has moved back is put
+ * back in the queue, and an item whose time has not moved is known to be ahead of everything left in the queue.
+ * Quantities are read from a snapshot of each machine before the planner's lock is taken, so planning never holds up
+ * a purchase, and a machine telling the planner about a sale never waits for a planner that is waiting for that machine.
+ * A snapshot is only used for an item if it is newer than the last sale the planner was told about, as an older
+ * quantity would move the item's time later than it really is.
+ * Items are only in the queue once they have sold something.
+ * @author Fergal Bittles
+ *
+ */
+public class RestockPlanner implements MachineEventListener {
+
+	private final Map<VendingMachine, String> machines;
+	private final Map<VendItem, Slot> slots;
+	private final TreeSet<Slot> queue;
+	private long nextSlot;
+	
+	/**
+	 * This class holds one item in the queue. Only used while holding the planner's lock.
+	 */
+	private static class Slot implements Comparable<Slot> {
+		
+		private final long number;
+		private final VendingMachine machine;
+		private final VendItem item;
+		private SalesRate rate;
+		private int qty;
+		private long version; // The version of the machine's state that the quantity was copied from
+		private long emptyAt;
+		
+		/**
+		 * Constructor for Slot.
+		 * @param number - A number that puts slots with the same sell-out time in a fixed order
+		 * @param machine - The vending machine
+		 * @param item - The item
+		 */
+		private Slot(long number, VendingMachine machine, VendItem item) {
+			this.number = number;
+			this.machine = machine;
+			this.item = item;
+		}
+		
+		/**
+		 * Works out when the item will sell out, from its last known rate and quantity.
+		 * An item that has already sold out keeps the time it was first seen to be empty.
+		 * @param now - The current time, in milliseconds
+		 * @return - The sell-out time, in milliseconds
+		 */
+		private long project(long now) {
+			if (this.qty <= 0) {
+				return Math.min(this.emptyAt, now);
+			}
+			long left = this.rate.getMillisToEmpty(this.qty, now);
+			return (left >= Long.MAX_VALUE - now) ? Long.MAX_VALUE : now + left;
+		}
+		
+		/**
+		 * This method is inherited from the 'Comparable' interface. Soonest first.
+		 */
+		public int compareTo(Slot other) {
+			int byTime = Long.compare(this.emptyAt, other.emptyAt);
+			return (byTime != 0) ? byTime : Long.compare(this.number, other.number);
+		}
+		
+	}
+	
+	/**
+	 * This class holds the forecast for one item, as returned by getSoonest.
+	 */
+	public static class Forecast {
+		
+		private final String machine;
+		private final int itemId;
+		private final String name;
+		private final int qty;
+		private final long emptyAt;
+		
+		/**
+		 * Constructor for Forecast.
+		 * @param machine - The name of the vending machine
+		 * @param itemId - The ID of the item
+		 * @param name - The name of the item
+		 * @param qty - The quantity left
+		 * @param emptyAt - The time the item is expected to sell out, in milliseconds
+		 */
+		private Forecast(String machine, int itemId, String name, int qty, long emptyAt) {
+			this.machine = machine;
+			this.itemId = itemId;
+			this.name = name;
+			this.qty = qty;
+			this.emptyAt = emptyAt;
+		}
+		
+		/**
+		 * Returns the name of the vending machine.
+		 * @return - The machine name
+		 */
+		public String getMachine() {
+			return this.machine;
+		}
+		
+		/**
+		 * Returns the ID of the item.
+		 * @return - The item ID
+		 */
+		public int getItemId() {
+			return this.itemId;
+		}
+		
+		/**
+		 * Returns the name of the item.
+		 * @return - The item name
+		 */
+		public String getName() {
+			return this.name;
+		}
+		
+		/**
+		 * Returns the quantity left when the forecast was made.
+		 * @return - The quantity
+		 */
+		public int getQty() {
+			return this.qty;
+		}
+		
+		/**
+		 * Returns the time the item is expected to sell out, which is in the past if it already has.
+		 * @return - The time, in milliseconds
+		 */
+		public long getEmptyAt() {
+			return this.emptyAt;
+		}
+		
+		/**
+		 * Returns a string containing the forecast. Useful for testing the Forecast class.
+		 */
+		public String toString() {
+			long minutes = Math.max(0, this.emptyAt - System.currentTimeMillis()) / 60000;
+			return this.machine + ": " + this.name + " (" + this.qty + " left, "
+					+ ((this.qty <= 0) ? "sold out" : "empty in " + minutes + " min") + ")";
+		}
+		
+	}
+	
+	/**
+	 * Constructor for RestockPlanner.
+	 */
+	public RestockPlanner() {
+		this.machines = new HashMap<VendingMachine, String>();
+		this.slots = new HashMap<VendItem, Slot>();
+		this.queue = new TreeSet<Slot>();
+	}
+	
+	/**
+	 * Adds a vending machine to the plan. Its items that have already sold something are queued straight away.
+	 * @param name - The name the machine is known by on restock routes
+	 * @param machine - The vending machine
+	 */
+	public void addMachine(String name, VendingMachine machine) {
+		// The machine's lock is taken first, as it is when a sale is reported
+		synchronized (machine) {
+			synchronized (this) {
+				this.machines.put(machine, name);
+				for (int i = 0; i < machine.getItemCount(); i++) {
+					VendItem item = machine.getVendItem(i);
+					if (item.getSalesPerHour() > 0) {
+						update(machine, item);
+					}
+				}
+			}
+			machine.addEventListener(this);
+		}
+	}
+	
+	/**
+	 * Removes a vending machine and its items from the plan.
+	 * @param machine - The vending machine
+	 */
+	public void removeMachine(VendingMachine machine) {
+		machine.removeEventListener(this);
+		synchronized (this) {
+			this.machines.remove(machine);
+			Iterator<Slot> it = this.slots.values().iterator();
+			while (it.hasNext()) {
+				Slot slot = it.next();
+				if (slot.machine == machine) {
+					this.queue.remove(slot);
+					it.remove();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * This method is inherited from the 'MachineEventListener' interface.
+	 * Called while the machine's lock is held, once the sale has finished.
+	 */
+	public void sale(VendingMachine machine, VendItem item, int pence, boolean cashless) {
+		synchronized (this) {
+			if (this.machines.containsKey(machine)) {
+				update(machine, item);
+			}
+		}
+	}
+	
+	/**
+	 * This method is inherited from the 'MachineEventListener' interface.
+	 */
+	public void fault(VendingMachine machine, String fault) {
+		// Faults do not change when an item sells out
+	}
+	
+	/**
+	 * Returns the number of items in the queue.
+	 * @return - The number of items
+	 */
+	public synchronized int size() {
+		return this.queue.size();
+	}
+	
+	/**
+	 * Returns the items that are expected to sell out soonest, soonest first, starting with any that already have.
+	 * @param count - The most items to return
+	 * @return - The forecasts for the items
+	 */
+	public List<Forecast> getSoonest(int count) {
+		List<VendingMachine> planned;
+		synchronized (this) {
+			planned = new ArrayList<VendingMachine>(this.machines.keySet());
+		}
+		
+		// A snapshot can wait for a sale to finish, and the sale may be waiting to tell this planner about itself
+		Map<VendingMachine, MachineSnapshot> snapshots = new HashMap<VendingMachine, MachineSnapshot>();
+		Map<VendingMachine, Map<Integer, Integer>> quantities = new HashMap<VendingMachine, Map<Integer, Integer>>();
+		for (VendingMachine machine : planned) {
+			MachineSnapshot snapshot = machine.getSnapshot();
+			snapshots.put(machine, snapshot);
+			quantities.put(machine, readQuantities(snapshot));
+		}
+		
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			List<Slot> taken = new ArrayList<Slot>();
+			
+			while (taken.size() < count && !this.queue.isEmpty()) {
+				Slot slot = this.queue.pollFirst();
+				MachineSnapshot snapshot = snapshots.get(slot.machine);
+				
+				// A machine added, or an item sold, since the snapshots were taken keeps the quantity copied at the time
+				Integer qty = Integer.valueOf(slot.qty);
+				if (snapshot != null && snapshot.getVersion() >= slot.version) {
+					qty = quantities.get(slot.machine).get(slot.item.getItemId());
+					slot.version = snapshot.getVersion();
+				}
+				if (qty == null) {
+					// The item has been removed from its machine
+					this.slots.remove(slot.item);
+					continue;
+				}
+				
+				slot.qty = qty;
+				long current = slot.project(now);
+				if (current > slot.emptyAt) {
+					// The item has slowed down or been restocked, so it may no longer be ahead of the rest of the queue
+					slot.emptyAt = current;
+					this.queue.add(slot);
+				} else {
+					slot.emptyAt = current;
+					taken.add(slot);
+				}
+			}
+			
+			// A snapshot taken after a sale, but before the sale was passed on, can move an item earlier than the ones before it
+			taken.sort(null);
+			
+			List<Forecast> res = new ArrayList<Forecast>();
+			for (Slot slot : taken) {
+				this.queue.add(slot);
+				res.add(new Forecast(this.machines.get(slot.machine), slot.item.getItemId(), slot.item.getName(), slot.qty, slot.emptyAt));
+			}
+			return res;
+		}
+	}
+	
+	/**
+	 * Copies the sales rate and quantity of an item and works out its sell-out time again.
+	 * Called while holding the machine's lock and the planner's lock.
+	 * @param machine - The vending machine
+	 * @param item - The item
+	 */
+	private void update(VendingMachine machine, VendItem item) {
+		Slot slot = this.slots.get(item);
+		if (slot == null) {
+			slot = new Slot(this.nextSlot++, machine, item);
+			this.slots.put(item, slot);
+		} else {
+			this.queue.remove(slot);
+		}
+		
+		long now = System.currentTimeMillis();
+		slot.rate = item.copySalesRate();
+		slot.qty = item.getQty();
+		slot.version = machine.getVersion();
+		if (slot.qty > 0) {
+			slot.emptyAt = slot.project(now);
+		} else if (slot.emptyAt == 0 || slot.emptyAt > now) {
+			slot.emptyAt = now;
+		}
+		this.queue.add(slot);
+	}
+	
+	/**
+	 * Reads the quantity of every item in a snapshot of a machine.
+	 * @param snapshot - The snapshot, which was taken without waiting for the machine's lock
+	 * @return - The quantities, by item ID
+	 */
+	private static Map<Integer, Integer> readQuantities(MachineSnapshot snapshot) {
+		Map<Integer, Integer> res = new HashMap<Integer, Integer>();
+		for (int i = 0; i < snapshot.getItemCount(); i++) {
+			res.put(snapshot.getItemId(i), snapshot.getQty(i));
+		}
+		return res;
+	}
+	
+}
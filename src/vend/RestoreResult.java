@@ -0,0 +1,121 @@
+package vend;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class holds the outcome of restoring a VendingMachine from a CSV file.
+ * Either the machine was restored, or the reason that the file could not be used is given.
+ * A restored machine may still have had some items left out, which are listed in getSkipped.
+ * @author Fergal Bittles
+ *
+ */
+public class RestoreResult {
+
+	private final File file;
+	private final VendingMachine machine;
+	private final String error;
+	private final List<String> skipped;
+	
+	/**
+	 * Constructor for RestoreResult. Use restored or corrupt to create a result.
+	 * @param file - The file that was read
+	 * @param machine - The restored machine, or null if the file was corrupt
+	 * @param error - The reason the file was corrupt, or null if the machine was restored
+	 * @param skipped - A description of each item that was left out
+	 */
+	private RestoreResult(File file, VendingMachine machine, String error, List<String> skipped) {
+		this.file = file;
+		this.machine = machine;
+		this.error = error;
+		this.skipped = Collections.unmodifiableList(new ArrayList<String>(skipped));
+	}
+	
+	/**
+	 * Creates a result for a file that was restored successfully.
+	 * @param file - The file that was read
+	 * @param machine - The restored machine
+	 * @return - The RestoreResult
+	 */
+	public static RestoreResult restored(File file, VendingMachine machine) {
+		return new RestoreResult(file, machine, null, Collections.<String>emptyList());
+	}
+	
+	/**
+	 * Overloaded method for restored, for a file where some items could not be added to the machine.
+	 * @param file - The file that was read
+	 * @param machine - The restored machine
+	 * @param skipped - A description of each item that was left out
+	 * @return - The RestoreResult
+	 */
+	public static RestoreResult restored(File file, VendingMachine machine, List<String> skipped) {
+		return new RestoreResult(file, machine, null, skipped);
+	}
+	
+	/**
+	 * Creates a result for a file that could not be used.
+	 * @param file - The file that was read
+	 * @param error - The reason the file could not be used
+	 * @return - The RestoreResult
+	 */
+	public static RestoreResult corrupt(File file, String error) {
+		return new RestoreResult(file, null, error, Collections.<String>emptyList());
+	}
+	
+	/**
+	 * Returns the file that was read.
+	 * @return - The CSV file
+	 */
+	public File getFile() {
+		return this.file;
+	}
+	
+	/**
+	 * Returns the restored vending machine.
+	 * @return - The vending machine, or null if the file was corrupt
+	 */
+	public VendingMachine getMachine() {
+		return this.machine;
+	}
+	
+	/**
+	 * Returns the reason that the file could not be used.
+	 * @return - The error, or null if the machine was restored
+	 */
+	public String getError() {
+		return this.error;
+	}
+	
+	/**
+	 * Returns the items in the file that were left out of the restored machine,
+	 * e.g. because their ID was already in use or the machine was full.
+	 * @return - A description of each item that was left out, which is empty if every item was restored
+	 */
+	public List<String> getSkipped() {
+		return this.skipped;
+	}
+	
+	/**
+	 * Returns whether the machine was restored.
+	 * @return - A boolean is returned to indicate success or failure
+	 */
+	public boolean isRestored() {
+		return this.machine != null;
+	}
+	
+	/**
+	 * Returns a string describing the result. Useful for testing the RestoreResult class.
+	 */
+	public String toString() {
+		if (isRestored() && !this.skipped.isEmpty()) {
+			return this.file.getName() + ": Restored, " + this.skipped.size() + " item(s) left out";
+		} else if (isRestored()) {
+			return this.file.getName() + ": Restored";
+		} else {
+			return this.file.getName() + ": Corrupt CSV: " + this.error;
+		}
+	}
+	
+}
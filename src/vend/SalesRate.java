@@ -0,0 +1,108 @@
+package vend;
+
+/**
+ * This class estimates how fast an item is selling, giving more weight to recent sales than to old ones.
+ *
+ * Each sale adds one to a count that halves every half-life (an exponentially weighted moving average),
+ * so recording a sale and reading the rate both take the same time however many sales there have been.
+ * The count is divided by the time it covers, which is also weighted, so a new item is not thought to be
+ * selling slowly just because it has only been watched for a short time.
+ * A SalesRate is not thread safe. Each one belongs to a VendItem and is only used while holding the item's lock.
+ * @author Fergal Bittles
+ *
+ */
+class SalesRate {
+
+	static final long DEFAULT_HALF_LIFE_MILLIS = 8 * 60 * 60 * 1000L;
+	
+	private static final double MILLIS_PER_HOUR = 60 * 60 * 1000.0;
+	
+	private final long halfLifeMillis;
+	private final double meanLife; // In milliseconds, the half-life divided by ln 2
+	private final long since;
+	private long lastSale;
+	private double count;
+	
+	/**
+	 * Constructor for SalesRate.
+	 * @param halfLifeMillis - The time after which a sale counts half as much
+	 * @param now - The time the item started being watched, in milliseconds
+	 */
+	SalesRate(long halfLifeMillis, long now) {
+		this.halfLifeMillis = (halfLifeMillis > 0) ? halfLifeMillis : DEFAULT_HALF_LIFE_MILLIS;
+		this.meanLife = this.halfLifeMillis / Math.log(2);
+		this.since = now;
+		this.lastSale = now;
+	}
+	
+	/**
+	 * Creates a copy of a SalesRate, which can be read later without the item's lock.
+	 * @return - The copy
+	 */
+	SalesRate copy() {
+		SalesRate res = new SalesRate(this.halfLifeMillis, this.since);
+		res.lastSale = this.lastSale;
+		res.count = this.count;
+		return res;
+	}
+	
+	/**
+	 * Records one sale.
+	 * @param now - The time of the sale, in milliseconds
+	 */
+	void recordSale(long now) {
+		this.count = decayedCount(now) + 1;
+		this.lastSale = Math.max(this.lastSale, now);
+	}
+	
+	/**
+	 * Returns the number of sales an hour.
+	 * @param now - The current time, in milliseconds
+	 * @return - The sales rate
+	 */
+	double getSalesPerHour(long now) {
+		return salesPerMilli(now) * MILLIS_PER_HOUR;
+	}
+	
+	/**
+	 * Works out how long a quantity will last if the item keeps selling at its current rate.
+	 * @param qty - The quantity left
+	 * @param now - The current time, in milliseconds
+	 * @return - The time left, in milliseconds, or Long.MAX_VALUE if the item is not selling
+	 */
+	long getMillisToEmpty(int qty, long now) {
+		if (qty <= 0) {
+			return 0;
+		}
+		
+		double rate = salesPerMilli(now);
+		if (rate <= 0) {
+			return Long.MAX_VALUE;
+		}
+		double millis = Math.ceil(qty / rate);
+		return (millis >= Long.MAX_VALUE) ? Long.MAX_VALUE : (long) millis;
+	}
+	
+	/**
+	 * Returns the weighted count of sales at a particular time.
+	 * @param now - The time, in milliseconds
+	 * @return - The weighted count
+	 */
+	private double decayedCount(long now) {
+		return this.count * Math.exp(-Math.max(0, now - this.lastSale) / this.meanLife);
+	}
+	
+	/**
+	 * Returns the weighted count of sales divided by the weighted time it covers.
+	 * A new item is treated as having been watched for at least a hundredth of the half-life,
+	 * so that one early sale does not give an enormous rate.
+	 * @param now - The current time, in milliseconds
+	 * @return - The sales rate, in sales a millisecond
+	 */
+	private double salesPerMilli(long now) {
+		long watched = Math.max(now - this.since, this.halfLifeMillis / 100);
+		double weightedTime = this.meanLife * (1 - Math.exp(-watched / this.meanLife));
+		return decayedCount(now) / weightedTime;
+	}
+	
+}
@@ -2,15 +2,20 @@ package vend;
 
 /**
  * Enumeration for the VendingMachine status.
+ * 
+ * A machine in Vending Mode that is asked to stop trading first moves to Draining,
+ * where no new customers can start but a customer who has already inserted money can finish.
+ * Once the machine is idle it moves on to Service Mode or Offline.
+ * 
  * @author Fergal Bittles
  *
  */
 public enum Status {
 
-	VENDING_MODE(0), SERVICE_MODE(1);
+	VENDING_MODE(0), SERVICE_MODE(1), DRAINING(2), OFFLINE(3);
 	
 	private int sNum;
-	private String names[] = {"Vending Mode", "Service Mode"};
+	private String names[] = {"Vending Mode", "Service Mode", "Draining", "Offline"};
 	
 	private Status(int num) {
 		sNum = num;
@@ -20,4 +25,18 @@ public enum Status {
 		return names[sNum];
 	}
 	
+	/**
+	 * Finds the status with a particular name, e.g. "Service Mode".
+	 * @param name - The name of the status
+	 * @return - The matching Status, or null if there is no status with that name
+	 */
+	public static Status fromName(String name) {
+		for (Status stat : values()) {
+			if (stat.getStatus().equals(name)) {
+				return stat;
+			}
+		}
+		return null;
+	}
+	
 }
@@ -0,0 +1,125 @@
+package vend;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class is a PaymentGateway that runs in the same process, for testing without a payment provider.
+ * Each payment is answered after a random delay. Accounts can be set to be declined, and the whole gateway
+ * can be taken offline, in which case payments are never answered, so that timeouts can be tested.
+ * @author Fergal Bittles
+ *
+ */
+public class StubPaymentGateway implements PaymentGateway {
+
+	private final long minDelayMillis;
+	private final long maxDelayMillis;
+	private final ScheduledExecutorService timer;
+	private final Set<String> declined;
+	private final AtomicInteger requests;
+	private final AtomicInteger approvals;
+	private final AtomicInteger refunds;
+	private volatile boolean offline;
+	
+	/**
+	 * Constructor for StubPaymentGateway.
+	 * @param minDelayMillis - The shortest time taken to answer
+	 * @param maxDelayMillis - The longest time taken to answer
+	 */
+	public StubPaymentGateway(long minDelayMillis, long maxDelayMillis) {
+		this.minDelayMillis = Math.max(0, minDelayMillis);
+		this.maxDelayMillis = Math.max(this.minDelayMillis, maxDelayMillis);
+		this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "stub-payment-gateway");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.declined = ConcurrentHashMap.newKeySet();
+		this.requests = new AtomicInteger();
+		this.approvals = new AtomicInteger();
+		this.refunds = new AtomicInteger();
+	}
+	
+	/**
+	 * This method is inherited from the 'PaymentGateway' interface.
+	 * The answer is given on the gateway's own thread after a random delay.
+	 */
+	public CompletableFuture<PaymentResult> authorise(String account, int pence) {
+		this.requests.incrementAndGet();
+		CompletableFuture<PaymentResult> res = new CompletableFuture<PaymentResult>();
+		if (this.offline) {
+			return res;
+		}
+		
+		long delay = this.minDelayMillis + ThreadLocalRandom.current().nextLong(this.maxDelayMillis - this.minDelayMillis + 1);
+		this.timer.schedule(() -> {
+			if (this.declined.contains(account)) {
+				res.complete(PaymentResult.declined("Insufficient funds"));
+			} else if (pence <= 0) {
+				res.complete(PaymentResult.declined("Invalid amount"));
+			} else {
+				res.complete(PaymentResult.approved("AUTH" + this.approvals.incrementAndGet()));
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+		return res;
+	}
+	
+	/**
+	 * This method is inherited from the 'PaymentGateway' interface.
+	 */
+	public void refund(String account, String code, int pence) {
+		this.refunds.incrementAndGet();
+	}
+	
+	/**
+	 * Sets an account to be declined, or to be approved again.
+	 * @param account - The card or mobile account token
+	 * @param decline - True to decline every payment from the account
+	 */
+	public void setDeclined(String account, boolean decline) {
+		if (decline) {
+			this.declined.add(account);
+		} else {
+			this.declined.remove(account);
+		}
+	}
+	
+	/**
+	 * Takes the gateway offline, so that payments are never answered, or brings it back.
+	 * @param offline - True to stop answering
+	 */
+	public void setOffline(boolean offline) {
+		this.offline = offline;
+	}
+	
+	/**
+	 * Returns the number of payments that have been asked for.
+	 * @return - The number of requests
+	 */
+	public int getRequestCount() {
+		return this.requests.get();
+	}
+	
+	/**
+	 * Returns the number of payments that have been approved.
+	 * @return - The number of approvals
+	 */
+	public int getApprovalCount() {
+		return this.approvals.get();
+	}
+	
+	/**
+	 * Returns the number of payments that have been refunded.
+	 * @return - The number of refunds
+	 */
+	public int getRefundCount() {
+		return this.refunds.get();
+	}
+	
+}
@@ -0,0 +1,420 @@
+package vend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class holds the telemetry for a number of vending machines over one or more time buckets, and turns it
+ * into a compact block of bytes to send to a collector.
+ *
+ * Each record is the sales, takings and faults of one machine during one bucket, and the cash it held at the end.
+ * Records are sorted by machine and then by bucket, and each number is written as the difference from the one
+ * before it where that makes it smaller (the machine, the bucket and the cash levels), using a varint, where small
+ * numbers take one byte. Machine names are written once at the start. The whole block is then deflated.
+ * Each batch can be read on its own, so a batch that is lost or sent twice does not spoil the others.
+ * @author Fergal Bittles
+ *
+ */
+public class TelemetryBatch {
+
+	private static final int MAGIC = 0x54; // 'T'
+	private static final int VERSION = 1;
+	
+	private final long bucketMillis;
+	private final List<Record> records;
+	
+	/**
+	 * This class holds the telemetry of one machine during one bucket.
+	 */
+	public static class Record {
+		
+		private final String machine;
+		private final long bucket;
+		private final int sales;
+		private final int takings;
+		private final int faults;
+		private final int totalMoney;
+		private final int[] coinCounts;
+		
+		/**
+		 * Constructor for Record.
+		 * @param machine - The name of the machine
+		 * @param bucket - The number of the bucket, which is its start time divided by the bucket length
+		 * @param sales - The number of items sold
+		 * @param takings - The money taken for those items, in pence
+		 * @param faults - The number of faults
+		 * @param totalMoney - The total money in the machine at the end of the bucket, in pence
+		 * @param coinCounts - The number of each coin in the machine at the end of the bucket
+		 */
+		public Record(String machine, long bucket, int sales, int takings, int faults, int totalMoney, int[] coinCounts) {
+			this.machine = machine;
+			this.bucket = bucket;
+			this.sales = sales;
+			this.takings = takings;
+			this.faults = faults;
+			this.totalMoney = totalMoney;
+			this.coinCounts = coinCounts.clone();
+		}
+		
+		/**
+		 * Returns the name of the machine.
+		 * @return - The machine name
+		 */
+		public String getMachine() {
+			return this.machine;
+		}
+		
+		/**
+		 * Returns the number of the bucket.
+		 * @return - The bucket number
+		 */
+		public long getBucket() {
+			return this.bucket;
+		}
+		
+		/**
+		 * Returns the number of items sold during the bucket.
+		 * @return - The number of sales
+		 */
+		public int getSales() {
+			return this.sales;
+		}
+		
+		/**
+		 * Returns the money taken during the bucket.
+		 * @return - The takings, in pence
+		 */
+		public int getTakings() {
+			return this.takings;
+		}
+		
+		/**
+		 * Returns the number of faults during the bucket.
+		 * @return - The number of faults
+		 */
+		public int getFaults() {
+			return this.faults;
+		}
+		
+		/**
+		 * Returns the total money in the machine at the end of the bucket.
+		 * @return - The total money, in pence
+		 */
+		public int getTotalMoney() {
+			return this.totalMoney;
+		}
+		
+		/**
+		 * Returns the number of each coin in the machine at the end of the bucket.
+		 * @return - The coin counts, indexed by position in the currency
+		 */
+		public int[] getCoinCounts() {
+			return this.coinCounts.clone();
+		}
+		
+		/**
+		 * Returns a string containing the record. Useful for testing the Record class.
+		 */
+		public String toString() {
+			return this.machine + "@" + this.bucket + ": " + this.sales + " sales, " + this.takings + "p, "
+					+ this.faults + " faults, " + this.totalMoney + "p held";
+		}
+		
+	}
+	
+	/**
+	 * Constructor for TelemetryBatch.
+	 * @param bucketMillis - The length of each bucket, in milliseconds
+	 * @param records - The records in the batch
+	 */
+	public TelemetryBatch(long bucketMillis, List<Record> records) {
+		this.bucketMillis = bucketMillis;
+		this.records = new ArrayList<Record>(records);
+		this.records.sort((a, b) -> {
+			int byMachine = a.machine.compareTo(b.machine);
+			return (byMachine != 0) ? byMachine : Long.compare(a.bucket, b.bucket);
+		});
+	}
+	
+	/**
+	 * Returns the length of each bucket.
+	 * @return - The bucket length, in milliseconds
+	 */
+	public long getBucketMillis() {
+		return this.bucketMillis;
+	}
+	
+	/**
+	 * Returns the records in the batch, sorted by machine and then by bucket.
+	 * @return - The records
+	 */
+	public List<Record> getRecords() {
+		return Collections.unmodifiableList(this.records);
+	}
+	
+	/**
+	 * Writes the batch as a compressed block of bytes.
+	 * @return - The bytes
+	 */
+	public byte[] encode() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(MAGIC);
+		out.write(VERSION);
+		writeVarint(out, this.bucketMillis);
+		
+		// The machine names, each given a number in the order they first appear
+		Map<String, Integer> numbers = new HashMap<String, Integer>();
+		List<String> names = new ArrayList<String>();
+		for (Record record : this.records) {
+			if (!numbers.containsKey(record.machine)) {
+				numbers.put(record.machine, names.size());
+				names.add(record.machine);
+			}
+		}
+		writeVarint(out, names.size());
+		for (String name : names) {
+			byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+			writeVarint(out, bytes.length);
+			out.write(bytes, 0, bytes.length);
+		}
+		
+		writeVarint(out, this.records.size());
+		int lastMachine = 0;
+		long lastBucket = 0;
+		Record last = null;
+		for (Record record : this.records) {
+			int machine = numbers.get(record.machine);
+			boolean sameMachine = (last != null && machine == lastMachine);
+			
+			writeVarint(out, machine - lastMachine);
+			writeVarint(out, zigzag(record.bucket - lastBucket));
+			writeVarint(out, record.sales);
+			writeVarint(out, record.takings);
+			writeVarint(out, record.faults);
+			
+			// Cash levels change slowly, so they are written as the change since the last bucket of the same machine
+			writeVarint(out, zigzag(record.totalMoney - (sameMachine ? last.totalMoney : 0)));
+			writeVarint(out, record.coinCounts.length);
+			for (int i = 0; i < record.coinCounts.length; i++) {
+				int before = (sameMachine && i < last.coinCounts.length) ? last.coinCounts[i] : 0;
+				writeVarint(out, zigzag(record.coinCounts[i] - before));
+			}
+			
+			lastMachine = machine;
+			lastBucket = record.bucket;
+			last = record;
+		}
+		
+		return deflate(out.toByteArray());
+	}
+	
+	/**
+	 * Reads a batch written by encode.
+	 * @param bytes - The bytes
+	 * @return - The batch
+	 * @throws IOException - If the bytes are not a valid batch
+	 */
+	public static TelemetryBatch decode(byte[] bytes) throws IOException {
+		Reader in = new Reader(inflate(bytes));
+		if (in.readByte() != MAGIC || in.readByte() != VERSION) {
+			throw new IOException("Not a telemetry batch");
+		}
+		long bucketMillis = in.readVarint();
+		
+		int nameCount = in.readCount();
+		String[] names = new String[nameCount];
+		for (int i = 0; i < nameCount; i++) {
+			names[i] = in.readString(in.readCount());
+		}
+		
+		int recordCount = in.readCount();
+		List<Record> records = new ArrayList<Record>(recordCount);
+		int machine = 0;
+		long bucket = 0;
+		Record last = null;
+		for (int i = 0; i < recordCount; i++) {
+			int step = in.readCount();
+			boolean sameMachine = (last != null && step == 0);
+			machine += step;
+			if (machine >= nameCount) {
+				throw new IOException("Invalid machine number " + machine);
+			}
+			bucket += unzigzag(in.readVarint());
+			int sales = (int) in.readVarint();
+			int takings = (int) in.readVarint();
+			int faults = (int) in.readVarint();
+			int totalMoney = (int) unzigzag(in.readVarint()) + (sameMachine ? last.totalMoney : 0);
+			int[] coins = new int[in.readCount()];
+			for (int c = 0; c < coins.length; c++) {
+				int before = (sameMachine && c < last.coinCounts.length) ? last.coinCounts[c] : 0;
+				coins[c] = (int) unzigzag(in.readVarint()) + before;
+			}
+			
+			last = new Record(names[machine], bucket, sales, takings, faults, totalMoney, coins);
+			records.add(last);
+		}
+		
+		return new TelemetryBatch(bucketMillis, records);
+	}
+	
+	/**
+	 * Writes a number that is never negative using as few bytes as possible, seven bits at a time.
+	 * @param out - The stream to write to
+	 * @param value - The number
+	 */
+	private static void writeVarint(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+	
+	/**
+	 * Maps a number that may be negative to one that is not, so that small negative numbers stay small.
+	 * @param value - The number
+	 * @return - The mapped number
+	 */
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+	
+	/**
+	 * Reverses zigzag.
+	 * @param value - The mapped number
+	 * @return - The number
+	 */
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	/**
+	 * Compresses a block of bytes.
+	 * @param bytes - The bytes
+	 * @return - The compressed bytes
+	 */
+	private static byte[] deflate(byte[] bytes) {
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		deflater.setInput(bytes);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 16);
+		byte[] buffer = new byte[4096];
+		while (!deflater.finished()) {
+			out.write(buffer, 0, deflater.deflate(buffer));
+		}
+		deflater.end();
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Uncompresses a block of bytes written by deflate.
+	 * @param bytes - The compressed bytes
+	 * @return - The bytes
+	 * @throws IOException - If the bytes are not valid
+	 */
+	private static byte[] inflate(byte[] bytes) throws IOException {
+		Inflater inflater = new Inflater();
+		inflater.setInput(bytes);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+		byte[] buffer = new byte[4096];
+		try {
+			while (!inflater.finished()) {
+				int count = inflater.inflate(buffer);
+				if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("Telemetry batch is cut short");
+				}
+				out.write(buffer, 0, count);
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Telemetry batch is not valid", e);
+		} finally {
+			inflater.end();
+		}
+		return out.toByteArray();
+	}
+	
+	/**
+	 * This class reads the numbers and names of an uncompressed batch.
+	 */
+	private static class Reader {
+		
+		private final byte[] bytes;
+		private int position;
+		
+		/**
+		 * Constructor for Reader.
+		 * @param bytes - The uncompressed batch
+		 */
+		private Reader(byte[] bytes) {
+			this.bytes = bytes;
+		}
+		
+		/**
+		 * Reads one byte.
+		 * @return - The byte, from 0 to 255
+		 * @throws IOException - If there are no bytes left
+		 */
+		private int readByte() throws IOException {
+			if (this.position >= this.bytes.length) {
+				throw new IOException("Telemetry batch is cut short");
+			}
+			return this.bytes[this.position++] & 0xFF;
+		}
+		
+		/**
+		 * Reads a number written by writeVarint.
+		 * @return - The number
+		 * @throws IOException - If the number is cut short or too long
+		 */
+		private long readVarint() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IOException("Invalid number in telemetry batch");
+		}
+		
+		/**
+		 * Reads a number of things, e.g. a number of records, which must fit in what is left of the batch.
+		 * @return - The number
+		 * @throws IOException - If the number is not valid
+		 */
+		private int readCount() throws IOException {
+			long count = readVarint();
+			if (count > this.bytes.length) {
+				throw new IOException("Invalid count in telemetry batch");
+			}
+			return (int) count;
+		}
+		
+		/**
+		 * Reads a name.
+		 * @param length - The length of the name, in bytes
+		 * @return - The name
+		 * @throws IOException - If the name is cut short
+		 */
+		private String readString(int length) throws IOException {
+			if (this.position + length > this.bytes.length) {
+				throw new IOException("Telemetry batch is cut short");
+			}
+			String s = new String(this.bytes, this.position, length, StandardCharsets.UTF_8);
+			this.position += length;
+			return s;
+		}
+		
+	}
+	
+}
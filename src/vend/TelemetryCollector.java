@@ -0,0 +1,244 @@
+package vend;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class is a telemetry collector that runs on the same computer, for testing a TelemetryExporter
+ * without a real collector. It adds up the records it is sent for each machine.
+ *
+ * Each batch arrives as its length (4 bytes) followed by the bytes written by TelemetryBatch.encode.
+ * The collector answers each batch with one byte, 1 if it was stored or 0 if it could not be read,
+ * and does not read the next batch until it has answered, which is what holds back a fast exporter.
+ * A delay can be set to make the collector slow.
+ * @author Fergal Bittles
+ *
+ */
+public class TelemetryCollector {
+
+	// The largest batch that is accepted
+	static final int MAX_BATCH_BYTES = 16 * 1024 * 1024;
+	
+	private final ServerSocket server;
+	private final ExecutorService pool;
+	private final Map<String, long[]> totals;
+	private final Map<String, TelemetryBatch.Record> latest;
+	private int batches;
+	private int records;
+	private long bytes;
+	private volatile long delayMillis;
+	private volatile boolean closed;
+	
+	/**
+	 * Constructor for TelemetryCollector. Use start to create one.
+	 * @param server - The socket that batches arrive on
+	 */
+	private TelemetryCollector(ServerSocket server) {
+		this.server = server;
+		this.pool = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "telemetry-collector");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.totals = new HashMap<String, long[]>();
+		this.latest = new HashMap<String, TelemetryBatch.Record>();
+	}
+	
+	/**
+	 * Starts a collector that only accepts connections from the same computer.
+	 * @param port - The port to listen on, or 0 to use any free port
+	 * @return - The TelemetryCollector
+	 * @throws IOException - If the port can not be opened
+	 */
+	public static TelemetryCollector start(int port) throws IOException {
+		ServerSocket server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 50);
+		TelemetryCollector collector = new TelemetryCollector(server);
+		collector.pool.submit(collector::acceptConnections);
+		return collector;
+	}
+	
+	/**
+	 * Stops the collector and closes every connection.
+	 */
+	public void close() {
+		this.closed = true;
+		try {
+			this.server.close();
+		} catch (IOException e) {
+			// Already closed
+		}
+		this.pool.shutdownNow();
+	}
+	
+	/**
+	 * Returns the port the collector is listening on.
+	 * @return - The port
+	 */
+	public int getPort() {
+		return this.server.getLocalPort();
+	}
+	
+	/**
+	 * Sets how long the collector waits before storing each batch, to test a slow collector.
+	 * @param delayMillis - The delay, in milliseconds
+	 */
+	public void setDelayMillis(long delayMillis) {
+		this.delayMillis = Math.max(0, delayMillis);
+	}
+	
+	/**
+	 * Returns the number of batches that have been stored.
+	 * @return - The number of batches
+	 */
+	public synchronized int getBatchCount() {
+		return this.batches;
+	}
+	
+	/**
+	 * Returns the number of records that have been stored.
+	 * @return - The number of records
+	 */
+	public synchronized int getRecordCount() {
+		return this.records;
+	}
+	
+	/**
+	 * Returns the number of compressed bytes that have been stored.
+	 * @return - The number of bytes
+	 */
+	public synchronized long getByteCount() {
+		return this.bytes;
+	}
+	
+	/**
+	 * Returns the number of items a machine has sold in every record received so far.
+	 * @param machine - The name of the machine
+	 * @return - The number of sales
+	 */
+	public synchronized long getSales(String machine) {
+		long[] total = this.totals.get(machine);
+		return (total == null) ? 0 : total[0];
+	}
+	
+	/**
+	 * Returns the money a machine has taken in every record received so far.
+	 * @param machine - The name of the machine
+	 * @return - The takings, in pence
+	 */
+	public synchronized long getTakings(String machine) {
+		long[] total = this.totals.get(machine);
+		return (total == null) ? 0 : total[1];
+	}
+	
+	/**
+	 * Returns the number of faults of a machine in every record received so far.
+	 * @param machine - The name of the machine
+	 * @return - The number of faults
+	 */
+	public synchronized long getFaults(String machine) {
+		long[] total = this.totals.get(machine);
+		return (total == null) ? 0 : total[2];
+	}
+	
+	/**
+	 * Returns the record of a machine with the latest bucket, which holds its most recent cash levels.
+	 * @param machine - The name of the machine
+	 * @return - The record, or null if nothing has been received for the machine
+	 */
+	public synchronized TelemetryBatch.Record getLatest(String machine) {
+		return this.latest.get(machine);
+	}
+	
+	/**
+	 * Adds the records of a batch to the totals.
+	 * @param batch - The batch
+	 * @param size - The compressed size of the batch, in bytes
+	 */
+	private synchronized void store(TelemetryBatch batch, int size) {
+		for (TelemetryBatch.Record record : batch.getRecords()) {
+			long[] total = this.totals.computeIfAbsent(record.getMachine(), m -> new long[3]);
+			total[0] += record.getSales();
+			total[1] += record.getTakings();
+			total[2] += record.getFaults();
+			
+			TelemetryBatch.Record before = this.latest.get(record.getMachine());
+			if (before == null || record.getBucket() >= before.getBucket()) {
+				this.latest.put(record.getMachine(), record);
+			}
+			this.records++;
+		}
+		this.batches++;
+		this.bytes += size;
+	}
+	
+	/**
+	 * Reads batches from one exporter until it disconnects.
+	 * @param socket - The connection to the exporter
+	 */
+	private void serve(Socket socket) {
+		try (Socket s = socket) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			DataOutputStream out = new DataOutputStream(s.getOutputStream());
+			while (!this.closed) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					return;
+				}
+				if (length < 0 || length > MAX_BATCH_BYTES) {
+					return;
+				}
+				byte[] data = new byte[length];
+				in.readFully(data);
+				
+				long delay = this.delayMillis;
+				if (delay > 0) {
+					Thread.sleep(delay);
+				}
+				
+				boolean stored;
+				try {
+					store(TelemetryBatch.decode(data), length);
+					stored = true;
+				} catch (IOException e) {
+					stored = false;
+				}
+				out.writeByte(stored ? 1 : 0);
+				out.flush();
+			}
+		} catch (IOException e) {
+			// The exporter has disconnected
+		} catch (InterruptedException e) {
+			// The collector is closing
+		}
+	}
+	
+	/**
+	 * Accepts connections from exporters until the collector is closed.
+	 */
+	private void acceptConnections() {
+		while (!this.closed) {
+			try {
+				Socket socket = this.server.accept();
+				this.pool.submit(() -> serve(socket));
+			} catch (IOException e) {
+				// The server socket has been closed, or one connection failed
+			}
+		}
+	}
+	
+}
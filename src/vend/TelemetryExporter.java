@@ -0,0 +1,593 @@
+package vend;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class collects the sales, takings, faults and cash levels of a number of vending machines into time buckets,
+ * and sends them in compressed batches to a telemetry collector on the same computer.
+ *
+ * Each machine tells the exporter about its sales and faults as they happen, which only adds to a few counters.
+ * At the end of each bucket the counters are read and cleared, the cash levels are read from a snapshot of each
+ * machine, and once enough buckets have been closed they are written as a TelemetryBatch.
+ *
+ * Batches wait in a queue for a sending thread, which sends them one at a time and waits for the collector to
+ * answer each one, so a slow collector holds batches back rather than being flooded. If the queue is full, or the
+ * collector can not be reached, batches are spooled to disk as batch-N.tlm and sent later, oldest first, with the
+ * wait between tries doubling while the collector stays down. Batches still waiting when the exporter is closed
+ * are also spooled, and are sent the next time an exporter is started on the same folder. If the spool grows past
+ * its limit, the oldest batches are dropped. Batches may arrive out of order, but each holds its own bucket numbers.
+ * @author Fergal Bittles
+ *
+ */
+public class TelemetryExporter implements MachineEventListener {
+
+	private static final long DEFAULT_BUCKET_MILLIS = 60000;
+	private static final long DEFAULT_MAX_SPOOL_BYTES = 64L * 1024 * 1024;
+	
+	// The most batches held in memory before new ones are spooled
+	private static final int QUEUE_BATCHES = 16;
+	
+	private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+	private static final int ANSWER_TIMEOUT_MILLIS = 10000;
+	private static final long MIN_RETRY_MILLIS = 100;
+	private static final long MAX_RETRY_MILLIS = 30000;
+	
+	private final int collectorPort;
+	private final File folder;
+	private final long bucketMillis;
+	private final int bucketsPerBatch;
+	private final long maxSpoolBytes;
+	private final Map<VendingMachine, Counters> machines;
+	private final LinkedBlockingQueue<byte[]> queue;
+	private final ScheduledExecutorService timer;
+	private final Thread sender;
+	
+	// Closed buckets that have not been written to a batch yet, only used while holding this object's lock
+	private final List<TelemetryBatch.Record> pending;
+	private int pendingBuckets;
+	private long bucket;
+	
+	// The spooled batches by number, with their sizes, only used while holding the spool's lock
+	private final TreeMap<Integer, Integer> spool;
+	private long spoolBytes;
+	private int nextSpool;
+	
+	// Only used by the sending thread
+	private Socket socket;
+	private DataInputStream in;
+	private DataOutputStream out;
+	
+	private volatile boolean closed;
+	private volatile int sent;
+	private volatile long sentBytes;
+	private volatile int rejected;
+	private volatile int dropped;
+	
+	/**
+	 * This class holds the counters of one machine for the current bucket.
+	 */
+	private static class Counters {
+		
+		private final String name;
+		private int sales;
+		private int takings;
+		private int faults;
+		
+		/**
+		 * Constructor for Counters.
+		 * @param name - The name of the machine
+		 */
+		private Counters(String name) {
+			this.name = name;
+		}
+		
+		/**
+		 * Adds a sale.
+		 * @param pence - The price paid, in pence
+		 */
+		private synchronized void sale(int pence) {
+			this.sales++;
+			this.takings += pence;
+		}
+		
+		/**
+		 * Adds a fault.
+		 */
+		private synchronized void fault() {
+			this.faults++;
+		}
+		
+		/**
+		 * Creates the record for a bucket and clears the counters for the next one.
+		 * @param bucket - The number of the bucket that has ended
+		 * @param snapshot - The machine's cash levels at the end of the bucket
+		 * @return - The record
+		 */
+		private synchronized TelemetryBatch.Record close(long bucket, MachineSnapshot snapshot) {
+			int[] coins = new int[snapshot.getCurrency().size()];
+			for (int i = 0; i < coins.length; i++) {
+				coins[i] = snapshot.getCoinCount(i);
+			}
+			TelemetryBatch.Record record = new TelemetryBatch.Record(this.name, bucket, this.sales, this.takings, this.faults,
+					(int) Math.round(snapshot.getTotalMoney() * 100), coins);
+			this.sales = 0;
+			this.takings = 0;
+			this.faults = 0;
+			return record;
+		}
+		
+	}
+	
+	/**
+	 * Constructor for TelemetryExporter. Buckets are one minute long, each is sent as soon as it ends,
+	 * and up to 64MB of batches are spooled. Nothing is sent until start is called.
+	 * @param collectorPort - The port of the collector on the same computer
+	 * @param folder - The folder that batches are spooled to while the collector can not be reached
+	 */
+	public TelemetryExporter(int collectorPort, File folder) {
+		this(collectorPort, folder, DEFAULT_BUCKET_MILLIS, 1, DEFAULT_MAX_SPOOL_BYTES);
+	}
+	
+	/**
+	 * Overloaded constructor for TelemetryExporter.
+	 * @param collectorPort - The port of the collector on the same computer
+	 * @param folder - The folder that batches are spooled to while the collector can not be reached
+	 * @param bucketMillis - The length of each bucket, in milliseconds
+	 * @param bucketsPerBatch - The number of buckets sent in each batch
+	 * @param maxSpoolBytes - The most bytes of batches kept on disk before the oldest are dropped
+	 */
+	public TelemetryExporter(int collectorPort, File folder, long bucketMillis, int bucketsPerBatch, long maxSpoolBytes) {
+		this.collectorPort = collectorPort;
+		this.folder = folder;
+		this.bucketMillis = (bucketMillis > 0) ? bucketMillis : DEFAULT_BUCKET_MILLIS;
+		this.bucketsPerBatch = (bucketsPerBatch > 0) ? bucketsPerBatch : 1;
+		this.maxSpoolBytes = (maxSpoolBytes > 0) ? maxSpoolBytes : DEFAULT_MAX_SPOOL_BYTES;
+		this.machines = new ConcurrentHashMap<VendingMachine, Counters>();
+		this.queue = new LinkedBlockingQueue<byte[]>(QUEUE_BATCHES);
+		this.pending = new ArrayList<TelemetryBatch.Record>();
+		this.spool = new TreeMap<Integer, Integer>();
+		this.bucket = System.currentTimeMillis() / this.bucketMillis;
+		this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "telemetry-buckets");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.sender = new Thread(this::sendBatches, "telemetry-sender");
+		this.sender.setDaemon(true);
+	}
+	
+	/**
+	 * Finds any batches spooled by an earlier exporter, and starts closing buckets and sending batches.
+	 * @throws IOException - If the spool folder can not be created
+	 */
+	public void start() throws IOException {
+		if (!this.folder.isDirectory() && !this.folder.mkdirs()) {
+			throw new IOException("Unable to create " + this.folder);
+		}
+		
+		synchronized (this.spool) {
+			String[] names = this.folder.list();
+			if (names != null) {
+				for (String name : names) {
+					int number = spoolNumber(name);
+					if (number > 0) {
+						int size = (int) new File(this.folder, name).length();
+						this.spool.put(number, size);
+						this.spoolBytes += size;
+						this.nextSpool = Math.max(this.nextSpool, number);
+					}
+				}
+			}
+			this.nextSpool++;
+		}
+		
+		// Buckets end on whole multiples of the bucket length, so every exporter's buckets line up
+		long now = System.currentTimeMillis();
+		this.timer.scheduleAtFixedRate(this::closeBucket, this.bucketMillis - now % this.bucketMillis, this.bucketMillis, TimeUnit.MILLISECONDS);
+		this.sender.start();
+	}
+	
+	/**
+	 * Closes the current bucket and sends everything that has not been sent, then stops.
+	 * Anything that could not be sent in time is left in the spool folder.
+	 * @param waitMillis - The longest time to wait for the collector to take what is left
+	 */
+	public void close(long waitMillis) {
+		this.timer.shutdownNow();
+		flush();
+		
+		long end = System.currentTimeMillis() + waitMillis;
+		while (System.currentTimeMillis() < end && (!this.queue.isEmpty() || getSpooledCount() > 0)) {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		
+		this.closed = true;
+		this.sender.interrupt();
+		try {
+			this.sender.join(ANSWER_TIMEOUT_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		for (VendingMachine machine : this.machines.keySet()) {
+			machine.removeEventListener(this);
+		}
+	}
+	
+	/**
+	 * Adds a vending machine, so that its sales and faults are counted from now on.
+	 * @param name - The name the machine is known by at the collector
+	 * @param machine - The vending machine
+	 */
+	public void addMachine(String name, VendingMachine machine) {
+		this.machines.put(machine, new Counters(name));
+		machine.addEventListener(this);
+	}
+	
+	/**
+	 * Stops counting the sales and faults of a vending machine. Its current bucket is not sent.
+	 * @param machine - The vending machine
+	 */
+	public void removeMachine(VendingMachine machine) {
+		if (this.machines.remove(machine) != null) {
+			machine.removeEventListener(this);
+		}
+	}
+	
+	/**
+	 * This method is inherited from the 'MachineEventListener' interface.
+	 */
+	public void sale(VendingMachine machine, VendItem item, int pence, boolean cashless) {
+		Counters counters = this.machines.get(machine);
+		if (counters != null) {
+			counters.sale(pence);
+		}
+	}
+	
+	/**
+	 * This method is inherited from the 'MachineEventListener' interface.
+	 */
+	public void fault(VendingMachine machine, String fault) {
+		Counters counters = this.machines.get(machine);
+		if (counters != null) {
+			counters.fault();
+		}
+	}
+	
+	/**
+	 * Ends the current bucket early and queues everything that has been collected as a batch, e.g. before shutting down.
+	 */
+	public void flush() {
+		closeBucket();
+		byte[] batch = takeBatch(true);
+		if (batch != null) {
+			queueBatch(batch);
+		}
+	}
+	
+	/**
+	 * Returns the number of batches the collector has taken.
+	 * @return - The number of batches
+	 */
+	public int getSentCount() {
+		return this.sent;
+	}
+	
+	/**
+	 * Returns the number of compressed bytes the collector has taken.
+	 * @return - The number of bytes
+	 */
+	public long getSentBytes() {
+		return this.sentBytes;
+	}
+	
+	/**
+	 * Returns the number of batches waiting in memory to be sent.
+	 * @return - The number of batches
+	 */
+	public int getQueuedCount() {
+		return this.queue.size();
+	}
+	
+	/**
+	 * Returns the number of batches waiting on disk to be sent.
+	 * @return - The number of batches
+	 */
+	public int getSpooledCount() {
+		synchronized (this.spool) {
+			return this.spool.size();
+		}
+	}
+	
+	/**
+	 * Returns the number of batches that were dropped because the spool was full.
+	 * @return - The number of batches
+	 */
+	public int getDroppedCount() {
+		return this.dropped;
+	}
+	
+	/**
+	 * Returns the number of batches the collector could not read, which are not sent again.
+	 * @return - The number of batches
+	 */
+	public int getRejectedCount() {
+		return this.rejected;
+	}
+	
+	/**
+	 * Ends the current bucket, and queues a batch if enough buckets have ended.
+	 */
+	private void closeBucket() {
+		long ended;
+		synchronized (this) {
+			ended = this.bucket;
+			this.bucket = Math.max(this.bucket + 1, System.currentTimeMillis() / this.bucketMillis);
+		}
+		
+		// Read outside the lock, as a snapshot never waits for a machine
+		List<TelemetryBatch.Record> records = new ArrayList<TelemetryBatch.Record>();
+		for (Map.Entry<VendingMachine, Counters> entry : this.machines.entrySet()) {
+			records.add(entry.getValue().close(ended, entry.getKey().getSnapshot()));
+		}
+		
+		synchronized (this) {
+			this.pending.addAll(records);
+			this.pendingBuckets++;
+		}
+		
+		byte[] batch = takeBatch(false);
+		if (batch != null) {
+			queueBatch(batch);
+		}
+	}
+	
+	/**
+	 * Writes the buckets that have ended into a batch.
+	 * @param force - True to write a batch even if fewer buckets than bucketsPerBatch have ended
+	 * @return - The batch, or null if it is not time to write one
+	 */
+	private synchronized byte[] takeBatch(boolean force) {
+		if (this.pending.isEmpty() || (!force && this.pendingBuckets < this.bucketsPerBatch)) {
+			return null;
+		}
+		byte[] batch = new TelemetryBatch(this.bucketMillis, this.pending).encode();
+		this.pending.clear();
+		this.pendingBuckets = 0;
+		return batch;
+	}
+	
+	/**
+	 * Queues a batch to be sent, or spools it if the queue is full.
+	 * @param batch - The batch
+	 */
+	private void queueBatch(byte[] batch) {
+		if (!this.queue.offer(batch)) {
+			spoolBatch(batch);
+		}
+	}
+	
+	/**
+	 * Run by the sending thread. Sends spooled batches first, as they are older, then batches from the queue.
+	 */
+	private void sendBatches() {
+		long retryMillis = MIN_RETRY_MILLIS;
+		
+		while (!this.closed) {
+			int number;
+			byte[] batch;
+			try {
+				number = oldestSpooled();
+				if (number > 0) {
+					batch = readSpooled(number);
+					if (batch == null) {
+						continue;
+					}
+				} else {
+					batch = this.queue.poll(100, TimeUnit.MILLISECONDS);
+					if (batch == null) {
+						continue;
+					}
+				}
+			} catch (InterruptedException e) {
+				break;
+			}
+			
+			Boolean stored = send(batch);
+			if (stored != null) {
+				if (stored) {
+					this.sent++;
+					this.sentBytes += batch.length;
+				} else {
+					this.rejected++;
+				}
+				if (number > 0) {
+					removeSpooled(number);
+				}
+				retryMillis = MIN_RETRY_MILLIS;
+				continue;
+			}
+			
+			// The collector can not be reached, so the batch and everything queued behind it waits on disk,
+			// where it is not lost if the process stops, and the next try is later
+			if (number == 0) {
+				spoolBatch(batch);
+			}
+			spoolQueue();
+			try {
+				Thread.sleep(retryMillis);
+			} catch (InterruptedException e) {
+				break;
+			}
+			retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+		}
+		
+		disconnect();
+		
+		// Nothing is lost when closing, as the queue is spooled for the next exporter
+		spoolQueue();
+	}
+	
+	/**
+	 * Moves every batch waiting in the queue to the spool folder.
+	 */
+	private void spoolQueue() {
+		byte[] batch;
+		while ((batch = this.queue.poll()) != null) {
+			spoolBatch(batch);
+		}
+	}
+	
+	/**
+	 * Sends one batch to the collector and waits for its answer.
+	 * @param batch - The batch
+	 * @return - True if the collector stored the batch, false if it could not read it, or null if it could not be reached
+	 */
+	private Boolean send(byte[] batch) {
+		try {
+			if (this.socket == null) {
+				Socket s = new Socket();
+				s.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), this.collectorPort), CONNECT_TIMEOUT_MILLIS);
+				s.setSoTimeout(ANSWER_TIMEOUT_MILLIS);
+				this.in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+				this.out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+				this.socket = s;
+			}
+			
+			this.out.writeInt(batch.length);
+			this.out.write(batch);
+			this.out.flush();
+			return this.in.readByte() == 1;
+		} catch (IOException e) {
+			disconnect();
+			return null;
+		}
+	}
+	
+	/**
+	 * Closes the connection to the collector. The next batch opens it again.
+	 */
+	private void disconnect() {
+		if (this.socket != null) {
+			try {
+				this.socket.close();
+			} catch (IOException e) {
+				// Already closed
+			}
+			this.socket = null;
+		}
+	}
+	
+	/**
+	 * Writes a batch to the spool folder, dropping the oldest batches if the spool is full.
+	 * @param batch - The batch
+	 */
+	private void spoolBatch(byte[] batch) {
+		synchronized (this.spool) {
+			while (!this.spool.isEmpty() && this.spoolBytes + batch.length > this.maxSpoolBytes) {
+				removeSpooled(this.spool.firstKey());
+				this.dropped++;
+			}
+			
+			int number = this.nextSpool++;
+			File file = spoolFile(number);
+			try (FileOutputStream fileOut = new FileOutputStream(file)) {
+				fileOut.write(batch);
+				fileOut.getFD().sync();
+				this.spool.put(number, batch.length);
+				this.spoolBytes += batch.length;
+			} catch (IOException e) {
+				file.delete();
+				this.dropped++;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of the oldest spooled batch.
+	 * @return - The number, or 0 if nothing is spooled
+	 */
+	private int oldestSpooled() {
+		synchronized (this.spool) {
+			return this.spool.isEmpty() ? 0 : this.spool.firstKey();
+		}
+	}
+	
+	/**
+	 * Reads a spooled batch. A batch that can not be read is removed.
+	 * @param number - The number of the batch
+	 * @return - The batch, or null if it could not be read
+	 */
+	private byte[] readSpooled(int number) {
+		try {
+			return Files.readAllBytes(spoolFile(number).toPath());
+		} catch (IOException e) {
+			synchronized (this.spool) {
+				removeSpooled(number);
+				this.dropped++;
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * Deletes a spooled batch.
+	 * @param number - The number of the batch
+	 */
+	private void removeSpooled(int number) {
+		synchronized (this.spool) {
+			Integer size = this.spool.remove(number);
+			if (size != null) {
+				this.spoolBytes -= size;
+				spoolFile(number).delete();
+			}
+		}
+	}
+	
+	/**
+	 * Returns the file a spooled batch is written to.
+	 * @param number - The number of the batch
+	 * @return - The file
+	 */
+	private File spoolFile(int number) {
+		return new File(this.folder, "batch-" + number + ".tlm");
+	}
+	
+	/**
+	 * Reads the number of a spooled batch from its file name.
+	 * @param name - The file name
+	 * @return - The number, or 0 if the file is not a spooled batch
+	 */
+	private static int spoolNumber(String name) {
+		if (!name.startsWith("batch-") || !name.endsWith(".tlm")) {
+			return 0;
+		}
+		String number = name.substring(6, name.length() - 4);
+		return MachineData.isInteger(number) ? Math.max(0, Integer.parseInt(number)) : 0;
+	}
+	
+}
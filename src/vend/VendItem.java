@@ -1,28 +1,30 @@
 package vend;
 
 /**
- * This class represents the VendItem object.
+ * This class represents the VendItem object, which is one slot of a product inside a vending machine.
+ * The name and price belong to the shared Product, so a VendItem only holds the quantity of that product.
  * @author Fergal Bittles
  *
  */
 public class VendItem implements Vendible {
 
 	private int itemId; 
-	private static int nextId = 1;
-	private String name;
-	private double unitPrice;
+	private final Product product;
 	private int qtyAvailable;
+	private int qtyReserved;
+	private final SalesRate sales;
+	
+	// The machine holding the item, so that a restock made on the item itself goes through the machine
+	private volatile VendingMachine machine;
 	
 	/**
-	 * Constructor for VendItem. Calls private setters which validate the data.
+	 * Constructor for VendItem. The item uses the product with this name and cost from the default catalog,
+	 * which is created if it does not exist yet. The name and cost are validated by the Product.
 	 * @param name - The name of the item
 	 * @param cost - The cost of the item
 	 */
 	public VendItem(String name, double cost) {
-		this.itemId = useNextId();
-		setName(name);
-		setUnitPrice(cost);
-		setQty(0); // 0 is the default quantity of a new item
+		this(ProductCatalog.getDefault().getProduct(name, cost), 0); // 0 is the default quantity of a new item
 	}
 	
 	/**
@@ -33,53 +35,82 @@ public class VendItem implements Vendible {
 	 * @param quantity - The quantity of the item
 	 */
 	public VendItem(String name, double cost, int quantity) {
-		this(name, cost);
-		setQty(quantity);
+		this(ProductCatalog.getDefault().getProduct(name, cost), quantity);
 	}
 	
 	/**
-	 * Called by the constructor to assign the next available ID and then increment 'nextId'.
-	 * @return - the next available ID is returned
+	 * Overloaded constructor for VendItem, which stocks a product that is already in a catalog.
+	 * @param product - The product held by the item
+	 * @param quantity - The quantity of the item
 	 */
-	private static int useNextId() {
-		int num = nextId;
-		nextId++;
-		return num;
+	public VendItem(Product product, int quantity) {
+		this(product, quantity, 0);
 	}
 	
 	/**
-	 * Called by the constructor to validate the name of the item before instantiation.
-	 * @param name - The name of the item
+	 * Overloaded constructor for VendItem, used when restoring an item that already has an ID.
+	 * @param product - The product held by the item
+	 * @param quantity - The quantity of the item
+	 * @param itemId - The saved ID of the item, or 0 to give the item a new ID
 	 */
-	private void setName(String name) {
-		if (name != null && !name.equals("")) {
-			this.name = name;
-		} else {
-			this.name = "Unassigned";
-		}
+	VendItem(Product product, int quantity, int itemId) {
+		this(product, quantity, itemId, ItemIdAllocator.getDefault());
 	}
 	
 	/**
-	 * Called by the constructor to validate the cost of the item.
-	 * A VendItem must be less than or equal to £2 and be a multiple of 5p.
-	 * @param cost - The cost of the item
+	 * Overloaded constructor for VendItem, which takes its ID from a particular allocator.
+	 * Used to rebuild a copy of a machine without using up IDs from the default allocator.
+	 * @param product - The product held by the item
+	 * @param quantity - The quantity of the item
+	 * @param itemId - The saved ID of the item, or 0 to give the item a new ID
+	 * @param ids - The allocator that the ID is claimed from or handed out by
+	 * @throws IllegalArgumentException - If the saved ID has already been handed out or claimed
 	 */
-	private void setUnitPrice(double cost) {
-		double priceInPence = cost * 100;
-		
-		if (priceInPence % 5 == 0 && priceInPence <= 200 && priceInPence > 0) {
-			this.unitPrice = cost;
-		} else {
-			this.unitPrice = 2; // £2 is the default cost of a new item
+	VendItem(Product product, int quantity, int itemId, ItemIdAllocator ids) {
+		this(product, quantity, itemId, ids, false);
+	}
+	
+	/**
+	 * Overloaded constructor for VendItem, used to rebuild a copy of an item from another machine,
+	 * e.g. one sent by a ReplicationPrimary or handed over by another FleetNode.
+	 * A copy keeps its saved ID even if the ID has already been claimed here, as the item may have been here before.
+	 * @param product - The product held by the item
+	 * @param quantity - The quantity of the item
+	 * @param itemId - The saved ID of the item, or 0 to give the item a new ID
+	 * @param ids - The allocator that the ID is claimed from or handed out by
+	 * @param copied - True if the item is a copy of an item from another machine
+	 * @throws IllegalArgumentException - If the saved ID has already been handed out or claimed, and the item is not a copy
+	 */
+	VendItem(Product product, int quantity, int itemId, ItemIdAllocator ids, boolean copied) {
+		this.itemId = useNextId(itemId, ids, copied);
+		this.product = (product != null) ? product : ProductCatalog.getDefault().getProduct(null, 2);
+		this.sales = new SalesRate(SalesRate.DEFAULT_HALF_LIFE_MILLIS, System.currentTimeMillis());
+		setQty(quantity);
+	}
+	
+	/**
+	 * Called by the constructor to assign the next available ID, or to claim a saved ID.
+	 * @param savedId - The saved ID of the item, or 0 if the item is new
+	 * @param ids - The allocator that the ID is claimed from or handed out by
+	 * @param copied - True if the item is a copy of an item from another machine
+	 * @return - the ID of the item is returned
+	 */
+	private static int useNextId(int savedId, ItemIdAllocator ids, boolean copied) {
+		if (savedId > 0) {
+			if (!ids.claim(savedId) && !copied) {
+				throw new IllegalArgumentException("Item ID " + savedId + " has already been issued");
+			}
+			return savedId;
 		}
+		return ids.nextId();
 	}
 	
 	/**
-	 * Called by the constructor to validate the quantity of the item.
+	 * Called by the constructor to validate the quantity of the item, and when a MachineJournal is replayed.
 	 * Quantity must be greater than 0 and less than or equal to 10.
 	 * @param qty - The quantity of the item
 	 */
-	private void setQty(int qty) {
+	synchronized void setQty(int qty) {
 		if (qty > 0 && qty <= 10) {
 			this.qtyAvailable = qty;
 		} else {
@@ -92,7 +123,7 @@ public class VendItem implements Vendible {
 	 * @return - The name of the item
 	 */
 	public String getName() {
-		return this.name;
+		return this.product.getName();
 	}
 	
 	/**
@@ -100,17 +131,51 @@ public class VendItem implements Vendible {
 	 * @return - The price of the item
 	 */
 	public double getPrice() {
-		return this.unitPrice;
+		return this.product.getPrice();
+	}
+	
+	/**
+	 * Returns the product held by the item.
+	 * @return - The shared Product
+	 */
+	public Product getProduct() {
+		return this.product;
 	}
 	
 	/**
 	 * Returns the quantity of the item.
 	 * @return - The quantity of the item
 	 */
-	public int getQty() {
+	public synchronized int getQty() {
 		return this.qtyAvailable;
 	}
 	
+	/**
+	 * Returns the quantity of the item without taking the item's lock.
+	 * Only used by VendingMachine.getSnapshot, which checks for changes made while it was reading,
+	 * and by MappedMachineState while holding the machine's lock, which every change to the quantity is made under.
+	 * @return - The quantity of the item
+	 */
+	int readQty() {
+		return this.qtyAvailable;
+	}
+	
+	/**
+	 * Returns the quantity of the item that is not being held for a user.
+	 * @return - The quantity that can be sold without a reservation
+	 */
+	public synchronized int getAvailableQty() {
+		return this.qtyAvailable - this.qtyReserved;
+	}
+	
+	/**
+	 * Returns the quantity of the item that is being held for users.
+	 * @return - The reserved quantity
+	 */
+	public synchronized int getReservedQty() {
+		return this.qtyReserved;
+	}
+	
 	/**
 	 * Returns the ID of the item.
 	 * @return - The ID of the item
@@ -119,12 +184,50 @@ public class VendItem implements Vendible {
 		return this.itemId;
 	}
 	
+	/**
+	 * Returns how fast the item has been selling recently.
+	 * @return - The number of sales an hour
+	 */
+	public synchronized double getSalesPerHour() {
+		return this.sales.getSalesPerHour(System.currentTimeMillis());
+	}
+	
+	/**
+	 * Works out how long the quantity that is not being held for users will last at the current sales rate.
+	 * @return - The time left, in milliseconds, or Long.MAX_VALUE if the item is not selling
+	 */
+	public synchronized long getMillisToEmpty() {
+		return this.sales.getMillisToEmpty(this.qtyAvailable - this.qtyReserved, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Returns a copy of the sales rate of the item, e.g. for a RestockPlanner.
+	 * @return - The copy
+	 */
+	synchronized SalesRate copySalesRate() {
+		return this.sales.copy();
+	}
+	
 	/**
 	 * Updates the quantity of an item.
+	 * An item inside a vending machine is restocked through the machine, so its item index, snapshots and journal see the new quantity.
 	 * @param quantity - This 'restock' quantity will be added to the current quantity
 	 * @return - A boolean is returned to indicate failure or success
 	 */
 	public boolean restock(int quantity) {
+		VendingMachine holder = this.machine;
+		if (holder != null) {
+			return holder.restockItem(this, quantity);
+		}
+		return addQty(quantity);
+	}
+	
+	/**
+	 * Adds to the quantity of an item. Called by VendingMachine.restockItem while it holds the machine's lock.
+	 * @param quantity - This 'restock' quantity will be added to the current quantity
+	 * @return - A boolean is returned to indicate failure or success
+	 */
+	synchronized boolean addQty(int quantity) {
 		if ((quantity + qtyAvailable <= 10) && (quantity > 0)) {
 			this.qtyAvailable += quantity;
 			return true;
@@ -134,12 +237,43 @@ public class VendItem implements Vendible {
 	}
 	
 	/**
-	 * Decreases the quantity of an item by 1.
+	 * Sets the machine holding the item. Called by VendingMachine when the item is added or the machine is reset.
+	 * @param machine - The vending machine, or null if the item is not in a machine
+	 */
+	void setMachine(VendingMachine machine) {
+		this.machine = machine;
+	}
+	
+	/**
+	 * Holds one unit of the item so that it can not be sold to anyone else.
+	 * @return - A boolean is returned to indicate failure or success
+	 */
+	synchronized boolean reserve() {
+		if (this.qtyAvailable - this.qtyReserved > 0) {
+			this.qtyReserved++;
+			return true;
+		} else {
+			return false;
+		}
+	}
+	
+	/**
+	 * Gives back one unit that was being held, so that it can be sold again.
+	 */
+	synchronized void release() {
+		if (this.qtyReserved > 0) {
+			this.qtyReserved--;
+		}
+	}
+	
+	/**
+	 * Decreases the quantity of an item by 1. Units being held for other users can not be sold.
 	 * @return - A boolean is returned to indicate failure or success
 	 */
-	private boolean decrement() {
-		if (this.qtyAvailable > 0) {
+	private synchronized boolean decrement() {
+		if (this.qtyAvailable - this.qtyReserved > 0) {
 			this.qtyAvailable--;
+			this.sales.recordSale(System.currentTimeMillis());
 			return true;
 		} else {
 			return false;
@@ -162,6 +296,22 @@ public class VendItem implements Vendible {
 		}
 	}
 	
+	/**
+	 * Called if a purchase using a reservation is approved within a VendingMachine.
+	 * The unit that was being held is sold.
+	 * @return - The string returned will thank the user for purchasing an item
+	 */
+	synchronized String deliverReserved() {
+		if (this.qtyReserved > 0 && this.qtyAvailable > 0) {
+			this.qtyReserved--;
+			this.qtyAvailable--;
+			this.sales.recordSale(System.currentTimeMillis());
+			return "Thanks for purchasing: " + this.getName();
+		} else {
+			return null;
+		}
+	}
+	
 	/**
 	 * Returns a string containing information about an item. Useful for testing the VendItem class.
 	 */
@@ -169,9 +319,11 @@ public class VendItem implements Vendible {
 		String res = "";
 		
 		res += "ID: " + this.getItemId() + "\n";
+		res += "Product ID: " + this.product.getProductId() + "\n";
 		res += "Name: " + this.getName() + "\n";
 		res += "Price: " + String.format("Price: £%.2f", this.getPrice()) + "\n";
 		res += "Quantity: " + this.getQty() + "\n";
+		res += "Reserved: " + this.getReservedQty() + "\n";
 		
 		return res;
 	}
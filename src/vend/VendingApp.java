@@ -1,7 +1,14 @@
 package vend;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.util.InputMismatchException;
 import java.util.Scanner;
@@ -12,19 +19,31 @@ import java.util.Scanner;
  * To access the hidden maintenance menu, enter -1 from the main menu. 
  * Enter "snacks" as the password.
  * 
+ * To run a script of commands instead of using the menus, start the program with --batch
+ * followed by the script file (or - or no file to read the script from standard input),
+ * and optionally a machine CSV file to run the script against instead of a new machine.
+ * machineData.csv is not read or written in batch mode. See BatchRunner for the commands.
+ * 
  * @author Fergal Bittles
  *
  */
 public class VendingApp {
-	
+
 	static String title = "Vending Machine Menu";
-	static String options[] = { "List All Items", "Insert Coins", "Make Purchase", "Quit" };
+	static String options[] = { "List All Items", "Insert Coins", "Make Purchase", "Return Coins", "Quit" };
 	static Menu myMenu = new Menu(title, options);
 	static final int QUIT = options.length;
+	static final int PAGE_SIZE = 10; // The number of items listed on each page
 	static Scanner in = new Scanner(System.in);
-	static VendingMachine vender = restoreMachineData(); // Restore machine data from CSV
+	static VendingMachine vender;
 	
 	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals("--batch")) {
+			String script = (args.length > 1 && !args[1].equals("-")) ? args[1] : null;
+			System.exit(runBatch(script, args.length > 2 ? args[2] : null));
+		}
+		
+		vender = restoreMachineData(); // Restore machine data from CSV
 		int choice;
 		
 		do {
@@ -34,33 +53,73 @@ public class VendingApp {
 			}
 		} while (choice != QUIT);
 		
+		// Coins that were not spent are handed back, as they are not part of the machine's money
+		if (vender.getUserMoney() > 0) {
+			System.out.println("\n" + vender.returnCoins());
+		}
+		
 		saveMachineData(); // Save machine data to CSV
 		
 		System.out.println("\nFinished - Goodbye!");
 		in.close();
 	}
 	
+	/**
+	 * Runs a script of commands against a vending machine, with no prompts.
+	 * Only the results are written to standard output, so anything else goes to standard error.
+	 * The machine is not saved unless the script uses the save command.
+	 * @param path - The script file, or null to read the script from standard input
+	 * @param machinePath - The machine CSV file to run the script against, or null to use a new machine
+	 * @return - The exit code given by BatchRunner, or 2 if the script or machine could not be read
+	 */
+	private static int runBatch(String path, String machinePath) {
+		if (machinePath == null) {
+			vender = createVendItems();
+		} else {
+			loadCurrencies(System.err);
+			RestoreResult result = MachineData.restore(new File(machinePath));
+			if (!result.isRestored()) {
+				System.err.println(result);
+				return 2;
+			}
+			for (String skipped : result.getSkipped()) {
+				System.err.println("Warning: " + skipped);
+			}
+			vender = result.getMachine();
+		}
+		
+		PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+		BatchRunner runner = new BatchRunner(vender, out);
+		
+		try (BufferedReader script = (path == null) ? new BufferedReader(new InputStreamReader(System.in)) : new BufferedReader(new FileReader(path))) {
+			return runner.run(script);
+		} catch (IOException e) {
+			System.err.println("Unable to read script: " + path);
+			return 2;
+		}
+	}
+	
 	/**
 	 * Creates a new VendingMachine object and populates it with 6 different VendItems.
 	 * @return - The VendingMachine object is returned
 	 */
 	private static VendingMachine createVendItems() {
 		VendingMachine vend = new VendingMachine("The Vending Company", 10);
-
+		
 		VendItem item1 = new VendItem("Haribo", 1, 10);
 		VendItem item2 = new VendItem("Skittles", 0.8, 4);
 		VendItem item3 = new VendItem("Snickers", 0.8);
 		VendItem item4 = new VendItem("Coke", 1.2, 1);
 		VendItem item5 = new VendItem("Diet Coke", 1.2, 5);
 		VendItem item6 = new VendItem("Toffee Crisp", 0.9, 2);
-
+		
 		vend.addNewItem(item1);
 		vend.addNewItem(item2);
 		vend.addNewItem(item3);
 		vend.addNewItem(item4);
 		vend.addNewItem(item5);
 		vend.addNewItem(item6);
-
+		
 		return vend;
 	}
 	
@@ -74,6 +133,7 @@ public class VendingApp {
 			case(1): listAllItems(); break;
 			case(2): insertCoins(); break;
 			case(3): makePurchase(); break;
+			case(4): returnCoins(); break;
 			default: System.out.println("\nError: Invalid Choice\n"); break;
 		}
 	}
@@ -85,17 +145,40 @@ public class VendingApp {
 		System.out.println("\nOK - List All Items");
 		System.out.println("+++++++++++++++++++\n");
 		
-		String[] items = vender.listItems();
-		
-		if (items == null) {
+		if (!printItems()) {
 			System.out.println("Error: There are no items to list\n");
-			return;
-		} 
+		}
+	}
+	
+	/**
+	 * Prints the items in the vending machine, numbered from 1, one page at a time.
+	 * After each full page the user can see the next page or stop, so only the pages that are shown are listed.
+	 * @return - A boolean is returned to indicate if there were any items to print
+	 */
+	private static boolean printItems() {
+		int count = vender.getItemCount();
+		if (count <= 0) {
+			return false;
+		}
 		
+		for (int offset = 0; offset < count; offset += PAGE_SIZE) {
+			String[] items = vender.listItems(offset, PAGE_SIZE);
+			for (int i = 0; i < items.length; i++) {
+				System.out.println((offset + i + 1) + ". " + items[i]);
+			}
+			
+			if (offset + PAGE_SIZE < count) {
+				System.out.print("Showing " + (offset + 1) + " to " + (offset + items.length) + " of " + count
+						+ ". Press Enter for more, or type q to stop: ");
+				String answer = in.nextLine();
+				System.out.println();
+				if (answer.trim().equalsIgnoreCase("q")) {
+					break;
+				}
+			}
+		}
 		
-		for (int i = 0; i < items.length; i++) {
-			System.out.println((i + 1) + ". " + items[i]);
-		}	
+		return true;
 	}
 	
 	/**
@@ -105,12 +188,12 @@ public class VendingApp {
 	private static void insertCoins() {
 		System.out.println("\nOK - Insert Coins");
 		System.out.println("+++++++++++++++++\n");
-		System.out.printf("Current money: £%.2f", vender.getUserMoney());
+		System.out.print("Current money: " + vender.getCurrency().format(vender.getUserMoney()));
 		System.out.println("\n");
 		
-		String options[] = {"5p", "10p", "20p", "50p", "£1", "£2"};
-		for(int i = 0; i < options.length; i++) {
-			System.out.println((i+1) + ". " + options[i]);
+		CurrencySet currency = vender.getCurrency();
+		for(int i = 0; i < currency.size(); i++) {
+			System.out.println((i+1) + ". " + currency.getDenomination(i));
 		}
 		
 		// Warn the user if coin amount is low
@@ -120,15 +203,18 @@ public class VendingApp {
 		// Get input from the user
 		int coin = getInput("Enter option number: ");
 		
-		if (coin <= 0 || coin > options.length) {
+		if (coin <= 0 || coin > currency.size()) {
 			System.out.println("\nError - Invalid choice. Returning to menu\n");
 			return;
 		}
 		
 		// Process the user input
-		vender.insertCoin(coin);
-		System.out.println("\nYou inserted " + options[coin - 1]);
-		System.out.printf("New balance: £%.2f", vender.getUserMoney());
+		if (!vender.insertCoin(coin)) {
+			System.out.println("\nError - The machine is not taking coins right now (" + vender.getStatus() + "). Returning to menu\n");
+			return;
+		}
+		System.out.println("\nYou inserted " + currency.getDenomination(coin - 1));
+		System.out.print("New balance: " + currency.format(vender.getUserMoney()));
 		System.out.println("\n");
 	}
 	
@@ -136,11 +222,7 @@ public class VendingApp {
 	 * Checks the amount of coins remaining within the vending machine and prints a warning message if coins are low.
 	 */
 	private static void checkCoinAmount() {
-		if (vender.getCoinAmount(5) < 1
-				|| vender.getCoinAmount(10) < 1
-				|| vender.getCoinAmount(20) < 2
-				|| vender.getCoinAmount(50) < 1 
-				|| vender.getCoinAmount(1) < 1) {
+		if (vender.isChangeLow()) {
 			System.out.println("\nWARNING: Coins low, please enter exact amount");
 		}
 	}
@@ -151,23 +233,17 @@ public class VendingApp {
 	private static void makePurchase() {
 		System.out.println("\nOK - Make a Purchase");
 		System.out.println("++++++++++++++++++++\n");
-		System.out.printf("Current money: £%.2f", vender.getUserMoney());
+		System.out.print("Current money: " + vender.getCurrency().format(vender.getUserMoney()));
 		System.out.println("\n");
 		
-		String[] items = vender.listItems();
-		
-		if (items == null) {
+		if (!printItems()) {
 			System.out.println("Error: There are no items to purchase\n");
 			return;
-		} 
-		
-		for (int i = 0; i < items.length; i++) {
-			System.out.println((i + 1) + ". " + items[i]);
 		}
-
+		
 		// Get input from the user
 		int item = getInput("Enter option number: ");
-
+		
 		// Attempt to purchase the selected item
 		item--;
 		String result = vender.purchaseItem(item);
@@ -175,6 +251,16 @@ public class VendingApp {
 		System.out.println();
 	}
 	
+	/**
+	 * Cancels the user's purchase and gives back the coins they inserted.
+	 */
+	private static void returnCoins() {
+		System.out.println("\nOK - Return Coins");
+		System.out.println("+++++++++++++++++\n");
+		System.out.println(vender.returnCoins());
+		System.out.println();
+	}
+	
 	/**
 	 * Allows the user to access the hidden maintenance menu.
 	 * The user must enter "snacks" as the password.
@@ -193,7 +279,7 @@ public class VendingApp {
 		String options[] = { "Get System Info", "Reset System", "Set Machine Status", "Restock an Item", "Add a New Item", "Return to Customer Menu" };
 		Menu serviceMenu = new Menu(title, options);
 		final int RETURN = options.length;
-
+		
 		int choice;
 		do {
 			choice = serviceMenu.getChoice();
@@ -201,7 +287,7 @@ public class VendingApp {
 				processServiceChoice(choice);
 			}
 		} while (choice != RETURN);
-
+		
 		System.out.println("\nConfirmed - Returning to customer menu\n");
 	}
 	
@@ -219,7 +305,7 @@ public class VendingApp {
 			default: System.out.println("\nError: Invalid Choice\n"); break;
 		}
 	}
-
+	
 	/**
 	 * Prints the system information.
 	 */
@@ -293,8 +379,18 @@ public class VendingApp {
 		char confirm = str.charAt(0);
 		
 		if (confirm == 'Y' || confirm == 'y') {
-			vender.setStatus(newMode);
-			System.out.println("\nYES - The machine is now in " + newMode.getStatus() + "\n");
+			if (newMode == Status.SERVICE_MODE) {
+				// Let a customer who has already inserted money finish before switching
+				vender.requestStatus(newMode);
+			} else {
+				vender.setStatus(newMode);
+			}
+			
+			if (vender.getMachineStatus() == Status.DRAINING) {
+				System.out.println("\nYES - The machine is draining and will switch to " + newMode.getStatus() + " once the current customer has finished\n");
+			} else {
+				System.out.println("\nYES - The machine is now in " + newMode.getStatus() + "\n");
+			}
 		} else if (confirm == 'N' || confirm == 'n') {
 			System.out.println("\nNO - The status has not been changed\n");
 		} else {
@@ -315,28 +411,24 @@ public class VendingApp {
 			return;
 		}
 		
-		String[] items = vender.listItems();
-		
-		if (items == null) {
+		if (vender.getItemCount() <= 0) {
 			System.out.println("Error: There are no items to restock\n");
 			return;
-		} 
+		}
 		
 		System.out.println("Items and their quantity listed below:\n");
-		for (int i = 0; i < items.length; i++) {
-			System.out.println((i + 1) + ". " + items[i]);
-		}
-
+		printItems();
+		
 		// Get input from the user
 		int item = getInput("Enter option number to select an item: ");
 		System.out.println();
 		
 		int quantity = getInput("Enter the quantity that you would like to add: ");
 		System.out.println();
-
+		
 		// Decrement due to zero indexing
 		item--;
-
+		
 		String res = "";
 		
 		if (item >= vender.getItemCount() || item < 0) {
@@ -346,7 +438,7 @@ public class VendingApp {
 		} else if (quantity < 1) {
 			res += "Failure: \"" + quantity + "\" is not a valid quantity";
 		} else {
-			boolean restock = vender.getVendItem(item).restock(quantity);
+			boolean restock = vender.restockItem(item, quantity);
 			if (!restock) {
 				res += "Failure: The maximum quantity for \"" + vender.getVendItem(item).getName() + "\" is 10" + "\n";
 				res += "         There are currently " + vender.getVendItem(item).getQty() + " in stock" + "\n";
@@ -374,16 +466,16 @@ public class VendingApp {
 			System.out.println("Failure: Enable \"SERVICE MODE\" to restock items\n");
 			return;
 		}
-			
+		
 		// Get input from the user
 		System.out.print("Enter the name of the item: ");
 		String name = in.nextLine();
 		name = name.trim();
 		System.out.println();
-
+		
 		int costInPence = getInput("Enter the cost of the item (in pence): ");
 		System.out.println();
-
+		
 		int quantity = getInput("Enter quantity of the item (0 if none): ");
 		
 		// Validate the user input
@@ -392,9 +484,8 @@ public class VendingApp {
 			return;
 		}
 		
-		if (costInPence > 200 || costInPence <= 0 || costInPence % 5 != 0) {
-			System.out.println("\nFailure: The item cost must be greater than 0p and a maximum of £2");
-			System.out.println("         The cost must also be a multiple of 5p\n");
+		if (!vender.getCurrency().isValidPrice(costInPence)) {
+			System.out.println("\nFailure: The item cost must be " + vender.getCurrency().describePrices() + "\n");
 			return;
 		}
 		
@@ -411,7 +502,7 @@ public class VendingApp {
 		if (itemAdded) {
 			String res = "\n";
 			res += "Success: Item \"" + name + "\" was added to the vending machine" + "\n";
-			res += "         The cost is set to " + String.format("£%.2f", costInPounds) + "\n";
+			res += "         The cost is set to " + vender.getCurrency().format(costInPounds) + "\n";
 			res += "         The quantity is set to " + quantity + "\n";
 			System.out.println(res);
 		} else {
@@ -451,223 +542,54 @@ public class VendingApp {
 		String csvOutPath = "machineData.csv";
 		
 		try {
-			PrintWriter myPw = new PrintWriter(csvOutPath);
-			
-			// The system information (user money is not restored)
-			myPw.println(vender.getOwner() + ", " + vender.getMaxItems() + ", " + vender.getStatus() + ", " + vender.getTotalMoney());
-			
-			// The coins inside the machine
-			myPw.println(vender.getCoinAmount(5) + ", " + vender.getCoinAmount(10) + ", " + vender.getCoinAmount(20) + ", " + vender.getCoinAmount(50) + ", " + vender.getCoinAmount(1) + ", " + vender.getCoinAmount(2));
-			
-			// The items inside the machine
-			for (int i = 0; i < vender.getItemCount(); i++) {
-				myPw.print(vender.getVendItem(i).getName() + ", ");
-				myPw.print(vender.getVendItem(i).getPrice() + ", ");
-				myPw.print(vender.getVendItem(i).getQty() + "\n");
-			}
-			
-			myPw.close();
+			MachineData.save(vender, new File(csvOutPath));
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
 		}
 	}
 	
+	/**
+	 * Reads any currencies other than sterling, euro and dollar from currencies.csv, if it exists.
+	 * Called before a machine is restored, as the machine may use one of them.
+	 * @param messages - Where to report a corrupt currency file
+	 */
+	private static void loadCurrencies(PrintStream messages) {
+		File currencyFile = new File("currencies.csv");
+		if (currencyFile.exists()) {
+			String error = CurrencySet.load(currencyFile);
+			if (error != null) {
+				messages.println("Corrupt currencies: " + error + "\n");
+			}
+		}
+	}
+	
 	/**
 	 * Restores the vending machine using data from a CSV file.
 	 * If the CSV file is corrupt or does not exist, a new vending machine will be returned.
 	 * @return - A VendingMachine object is returned
 	 */
 	private static VendingMachine restoreMachineData() {
-		VendingMachine machine;
 		String csvInPath = "machineData.csv";
+		File myFile = new File(csvInPath);
 		
-		try {
-			File myFile = new File(csvInPath);
-			Scanner scan = new Scanner(myFile);
-			
-			// Check for first line
-			if (!scan.hasNextLine()) {
-				System.out.println("Corrupt CSV: No first line");
-				System.out.println("Reverting to default settings\n");
-				scan.close();
-				return createVendItems();
-			}
-			
-			// The first line is system information
-			String info = scan.nextLine().trim();
-			if (!info.contains(",") || info.equals("")) {
-				System.out.println("Corrupt CSV: Invalid first line format");
-				System.out.println("Reverting to default settings\n");
-				scan.close();
-				return createVendItems();
-			}
-			
-			// Split and validate the first line
-			String[] infoParts = info.split(",");
-			
-			if (infoParts.length != 4) {
-				System.out.println("Corrupt CSV: Invalid first line length");
-				System.out.println("Reverting to default settings\n");
-				scan.close();
-				return createVendItems();
-			}
-			
-			if (infoParts[0].trim().equals("")) {
-				System.out.println("Corrupt CSV: Invalid owner name on first line");
-				System.out.println("Reverting to default settings\n");
-				scan.close();
-				return createVendItems();
-			}
-			
-			if (!isInteger(infoParts[1].trim()) || !isDouble(infoParts[3].trim())) {
-				System.out.println("Corrupt CSV: Invalid number value on first line");
-				System.out.println("Reverting to default settings\n");
-				scan.close();
-				return createVendItems();
-			}
-			
-			if (!infoParts[2].trim().equals("Vending Mode") && !infoParts[2].trim().equals("Service Mode")) {
-				System.out.println("Corrupt CSV: Invalid status on first line");
-				System.out.println("Reverting to default settings\n");
-				scan.close();
-				return createVendItems();
-			}
-				
-			// Initialise the VendingMachine
-			String owner = infoParts[0].trim();
-			int maxItems = Integer.parseInt(infoParts[1].trim());
-			machine = new VendingMachine(owner, maxItems);
-			
-			String status = infoParts[2].trim();
-			if (status.equals("Vending Mode")) {
-				machine.setStatus(Status.VENDING_MODE);
-			} else {
-				machine.setStatus(Status.SERVICE_MODE);
-			}
-			
-			double totalMoney = Double.parseDouble(infoParts[3].trim());
-			machine.setTotalMoney(totalMoney);
-			
-			// Check for second line
-			if (!scan.hasNextLine()) {
-				System.out.println("Corrupt CSV: No second line");
-				System.out.println("Reverting to default settings\n");
-				scan.close();
-				return createVendItems();
-			}
-			
-			// The second line is coin amounts
-			String coins = scan.nextLine().trim();
-			if (!coins.contains(",") || coins.equals("")) {
-				System.out.println("Corrupt CSV: Invalid second line format");
-				System.out.println("Reverting to default settings\n");
-				scan.close();
-				return createVendItems();
-			}
-			
-			// Split and validate the second line	
-			String[] coinParts = coins.split(",");
-
-			if (coinParts.length != 6) {
-				System.out.println("Corrupt CSV: Invalid second line length");
-				System.out.println("Reverting to default settings\n");
-				scan.close();
-				return createVendItems();
-			}
-			
-			for (int i = 0; i < coinParts.length; i++) {
-				if (!isInteger(coinParts[i].trim())) {
-					System.out.println("Corrupt CSV: Invalid number value on second line");
-					System.out.println("Reverting to default settings\n");
-					scan.close();
-					return createVendItems();
-				}
-			}
-			
-			// Validate total money
-			int fivePence = Integer.parseInt(coinParts[0].trim());
-			int tenPence = Integer.parseInt(coinParts[1].trim());
-			int twentyPence = Integer.parseInt(coinParts[2].trim());
-			int fiftyPence = Integer.parseInt(coinParts[3].trim());
-			int onePound = Integer.parseInt(coinParts[4].trim());
-			int twoPound = Integer.parseInt(coinParts[5].trim());
-			
-			int totalInPence = 0;
-			totalInPence += fivePence * 5;
-			totalInPence += tenPence * 10;
-			totalInPence += twentyPence * 20;
-			totalInPence += fiftyPence * 50;
-			totalInPence += onePound * 100;
-			totalInPence += twoPound * 200;
-			
-			double totalInPounds = (double)totalInPence / 100;
-			if (totalInPounds != totalMoney) {
-				System.out.println("Corrupt CSV: Total money is not correct");
-				System.out.println("Reverting to default settings\n");
-				scan.close();
-				return createVendItems();
-			}
-			
-			// Add coins to the VendingMachine
-			machine.setCoinAmount(5, fivePence);
-			machine.setCoinAmount(10, tenPence);
-			machine.setCoinAmount(20, twentyPence);
-			machine.setCoinAmount(50, fiftyPence);
-			machine.setCoinAmount(1, onePound);
-			machine.setCoinAmount(2, twoPound);
-			
-			// The remaining lines of the CSV file contain VendItems
-			int lineNum = 3;
-			while(scan.hasNextLine()) {
-				// Scan the item
-				String item = scan.nextLine().trim();
-				if (!item.contains(",") || item.equals("")) {
-					System.out.println("Corrupt CSV: Invalid vend item format on line " + lineNum);
-					System.out.println("Reverting to default settings\n");
-					scan.close();
-					return createVendItems();
-				}
-				
-				// Split and validate the line
-				String[] itemParts = item.split(",");
-				
-				if (itemParts.length != 3) {
-					System.out.println("Corrupt CSV: Invalid vend item length on line " + lineNum);
-					System.out.println("Reverting to default settings\n");
-					scan.close();
-					return createVendItems();
-				}
-				
-				if (itemParts[0].trim().equals("")) {
-					System.out.println("Corrupt CSV: Invalid vend item name on line " + lineNum);
-					System.out.println("Reverting to default settings\n");
-					scan.close();
-					return createVendItems();
-				}
-				
-				if (!isDouble(itemParts[1].trim()) || !isInteger(itemParts[2].trim())) {
-					System.out.println("Corrupt CSV: Invalid number value for vend item on line " + lineNum);
-					System.out.println("Reverting to default settings\n");
-					scan.close();
-					return createVendItems();
-				}
-				
-				// Add the item to the VendingMachine
-				String itemName = itemParts[0].trim();
-				double itemPrice = Double.parseDouble(itemParts[1].trim());
-				int itemQty = Integer.parseInt(itemParts[2].trim());
-				VendItem myItem = new VendItem(itemName, itemPrice, itemQty);
-				machine.addNewItem(myItem);
-				
-				lineNum++;
-			}
-			
-			scan.close();
-			return machine;	
-		} catch (FileNotFoundException e) {
-			// Create a new VendingMachine if the CSV file does not exist
+		loadCurrencies(System.out);
+		
+		// Create a new VendingMachine if the CSV file does not exist
+		if (!myFile.exists()) {
+			return createVendItems();
+		}
+		
+		RestoreResult result = MachineData.restore(myFile);
+		if (!result.isRestored()) {
+			System.out.println("Corrupt CSV: " + result.getError());
+			System.out.println("Reverting to default settings\n");
 			return createVendItems();
 		}
+		
+		for (String skipped : result.getSkipped()) {
+			System.out.println("Warning: " + skipped);
+		}
+		return result.getMachine();
 	}
 	
 	/**
@@ -676,15 +598,7 @@ public class VendingApp {
 	 * @return - A boolean is returned to indicate if the string can be parsed to a number
 	 */
 	public static boolean isInteger(String s) {
-	    try { 
-	        Integer.parseInt(s); 
-	    } catch(NumberFormatException e) { 
-	        return false; 
-	    } catch(NullPointerException e) {
-	        return false;
-	    }
-	    
-	    return true;
+	    return MachineData.isInteger(s);
 	}
 	
 	/**
@@ -693,16 +607,8 @@ public class VendingApp {
 	 * @return - A boolean is returned to indicate if the string can be parsed to a number
 	 */
 	public static boolean isDouble(String s) {
-	    try { 
-	        Double.parseDouble(s); 
-	    } catch(NumberFormatException e) { 
-	        return false; 
-	    } catch(NullPointerException e) {
-	        return false;
-	    }
-	    
-	    return true;
+	    return MachineData.isDouble(s);
 	}
-
+	
 }
 
@@ -1,5 +1,14 @@
 package vend;
 
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 /**
  * This class represents the VendingMachine object.
  * @author Fergal Bittles
@@ -7,43 +16,121 @@ package vend;
  */
 public class VendingMachine {
 
-	private String owner;
-	private int maxItems;
+	private volatile String owner;
+	private volatile int maxItems;
 	private int itemCount;
 	private VendItem[] stock;
-	private double totalMoney;
-	private double userMoney;
+	private ItemIndex index;
 	private Status vmStatus;
+	private Status drainTarget;
+	private final Map<Status, CompletableFuture<Void>> statusWaiters; // Completed when the machine reaches the status
+	
+	// Money is held in pence (or the minor unit of the machine's currency) to avoid rounding errors
+	private int totalMoney;
+	private int userMoney;
+	
+	// The amount of each coin in a vending machine, indexed by its position in the currency table
+	private CurrencySet currency;
+	private int[] coinCounts;
+	
+	// The coins inserted by the current customer, which are only added to the coins and total money when a purchase
+	// goes ahead, so that a cancelled purchase can hand back the same coins. The user money is always their value.
+	private CoinEscrow escrow;
+	
+	// The first time the total money stopped matching the value of the coins, which is checked after every change
+	private String cashDrift;
+	private CashDriftListener driftListener;
+	
+	// Told about every sale and fault, e.g. for telemetry and restock planning
+	private final List<MachineEventListener> eventListeners;
+	
+	// Sales and faults found part way through a change, which are only passed to the listeners once the whole change
+	// has finished, so that a listener can take a snapshot. Only used while holding the lock.
+	private final List<Runnable> pendingEvents;
+	
+	// Chooses the coins given as change
+	private volatile ChangePolicy changePolicy;
+	
+	// The answers the change policy has given for the coins as they are now, indexed by the change in pence:
+	// 0 if not asked yet, CHANGE_POSSIBLE or CHANGE_IMPOSSIBLE. Null if the coins have changed since the answers were given.
+	// Thrown away by coinsChanged whenever the machine's coins or the customer's inserted coins change, so a purchase
+	// can use the answers worked out while listing the items. Only used while holding the lock.
+	private byte[] changeTable;
+	private ChangePolicy changeTablePolicy;
+	private static final byte CHANGE_POSSIBLE = 1;
+	private static final byte CHANGE_IMPOSSIBLE = 2;
+	
+	// The prices currently in use, which can be swapped at any time by a PriceScheduler
+	private volatile PriceTable prices;
+	
+	// Sends card and mobile payments, or null if the machine only takes coins
+	private volatile PaymentProcessor payments;
+	private int cashlessMoney; // In pence
+	
+	// Expires reservations that are not used in time
+	private ReservationWheel reservationWheel;
+	
+	// Running totals for the whole fleet, or null if the machine is not part of one
+	private FleetCash fleetCash;
+	
+	// Odd while a change is being made, so that getSnapshot can tell if it read a half-finished change
+	private volatile long sequence;
+	
+	// The number of changes that have begun but not finished, as changes can call each other, e.g. setStatus.
+	// Only the outermost change moves the sequence, so it stays odd until the whole change is finished.
+	private int writeDepth;
+	private String writeOperation; // The name of the outermost change, for describing a cash drift
+	
+	// Logs every change to disk, or null if the machine is not journalled
+	private MachineJournal journal;
 	
-	// The amount of coins in a vending machine
-	private int fivePence;
-	private int tenPence;
-	private int twentyPence;
-	private int fiftyPence;
-	private int onePound;
-	private int twoPound;
+	// Shares the live state with other processes, or null if it is not shared
+	private MappedMachineState liveState;
+	
+	// Sends every change to replicas in other processes, or null if the machine is not replicated
+	private ReplicationPrimary replication;
 	
 	/**
-	 * Constructor for VendingMachine.
+	 * Constructor for VendingMachine. The machine will accept sterling.
 	 * @param owner - The owner of a vending machine
 	 * @param maxItems - The maximum amount of items allowed in a vending machine
 	 */
 	public VendingMachine(String owner, int maxItems) {
+		this(owner, maxItems, CurrencySet.STERLING);
+	}
+	
+	/**
+	 * Overloaded constructor for VendingMachine.
+	 * This constructor also takes the currency that the machine will accept.
+	 * @param owner - The owner of a vending machine
+	 * @param maxItems - The maximum amount of items allowed in a vending machine
+	 * @param currency - The currency accepted by the vending machine
+	 */
+	public VendingMachine(String owner, int maxItems, CurrencySet currency) {
 		setOwner(owner);
 		setMaxItems(maxItems);
 		this.stock = new VendItem[this.maxItems];
+		this.index = new ItemIndex(this.maxItems);
 		this.itemCount = 0;
-		this.userMoney = 0.0;
-		setStatus(Status.VENDING_MODE); // Vending Mode is the default status of a new machine
+		this.userMoney = 0;
+		this.prices = PriceTable.BASE_PRICES;
+		
+		this.currency = (currency != null) ? currency : CurrencySet.STERLING;
+		this.coinCounts = new int[this.currency.size()];
+		this.escrow = new CoinEscrow(this.coinCounts.length);
+		this.changePolicy = new BalancedChangePolicy();
+		this.eventListeners = new CopyOnWriteArrayList<MachineEventListener>();
+		this.pendingEvents = new ArrayList<Runnable>();
+		this.statusWaiters = new HashMap<Status, CompletableFuture<Void>>();
 		
 		// Every machine will be initialised with a float, so that users can receive change
-		this.totalMoney = 13.50;
-		this.fivePence = 10;
-		this.tenPence = 10;
-		this.twentyPence = 10;
-		this.fiftyPence = 10;
-		this.onePound = 5;
-		this.twoPound = 0;
+		for (int i = 0; i < this.coinCounts.length; i++) {
+			this.coinCounts[i] = this.currency.getStartingFloat(i);
+		}
+		this.totalMoney = countCoinValue();
+		
+		// Set last, as every change checks the cash
+		setStatus(Status.VENDING_MODE); // Vending Mode is the default status of a new machine
 	}
 	
 	/**
@@ -74,59 +161,357 @@ public class VendingMachine {
 	 * Sets the status of a vending machine.
 	 * @param stat - The status of a vending machine
 	 */
-	public void setStatus(Status stat) {
+	public synchronized void setStatus(Status stat) {
+		beginWrite("setStatus");
 		this.vmStatus = stat;
+		CompletableFuture<Void> waiter = this.statusWaiters.remove(stat);
+		if (waiter != null) {
+			report(() -> waiter.complete(null));
+		}
+		endWrite();
+		notifyAll();
+	}
+	
+	/**
+	 * Asks a vending machine to stop trading and move to Service Mode or Offline.
+	 * If a customer has money in the machine, or an item is reserved, the machine moves to Draining.
+	 * No new customers can start while draining, and the machine moves on to the target status
+	 * as soon as the last customer has finished.
+	 * @param target - Status.SERVICE_MODE or Status.OFFLINE
+	 * @return - A boolean is returned to indicate if the request was accepted
+	 */
+	public synchronized boolean requestStatus(Status target) {
+		if (target != Status.SERVICE_MODE && target != Status.OFFLINE) {
+			return false;
+		}
+		
+		if (this.vmStatus == Status.VENDING_MODE || this.vmStatus == Status.DRAINING) {
+			this.drainTarget = target;
+			setStatus(Status.DRAINING);
+			finishDrainIfIdle();
+		} else {
+			setStatus(target);
+		}
+		return true;
+	}
+	
+	/**
+	 * Waits for a vending machine to reach a particular status.
+	 * @param target - The status to wait for
+	 * @param timeoutMillis - The longest time to wait, in milliseconds
+	 * @return - A boolean is returned to indicate if the machine reached the status in time
+	 * @throws InterruptedException - If the waiting thread is interrupted
+	 */
+	public synchronized boolean awaitStatus(Status target, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		
+		while (this.vmStatus != target) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns a future that completes when a vending machine reaches a particular status, so many machines
+	 * can be waited on together without a thread for each.
+	 * @param target - The status to wait for
+	 * @return - The future, which has already completed if the machine has the status now
+	 */
+	public synchronized CompletableFuture<Void> whenStatus(Status target) {
+		if (this.vmStatus == target) {
+			return CompletableFuture.completedFuture(null);
+		}
+		return this.statusWaiters.computeIfAbsent(target, s -> new CompletableFuture<Void>());
+	}
+	
+	/**
+	 * Moves a draining machine on to its target status if nobody is using it.
+	 * Must be called while holding the machine's lock.
+	 */
+	private void finishDrainIfIdle() {
+		if (this.vmStatus != Status.DRAINING || this.userMoney != 0 || hasReservations()) {
+			return;
+		}
+		
+		setStatus(this.drainTarget);
+	}
+	
+	/**
+	 * Checks if any item in the machine is held by a reservation.
+	 * Must be called while holding the machine's lock.
+	 * @return - A boolean is returned to indicate if any item is reserved
+	 */
+	private boolean hasReservations() {
+		for (int i = 0; i < this.itemCount; i++) {
+			if (this.stock[i].getReservedQty() > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Replaces the prices used by a vending machine.
+	 * A purchase that has already started will finish using the prices it started with.
+	 * @param table - The new prices, or null to go back to each item's own unit price
+	 */
+	public synchronized void setPriceTable(PriceTable table) {
+		// Made as a change, so a MachineJournal or replica hears about it
+		beginWrite("setPriceTable");
+		this.prices = (table != null) ? table : PriceTable.BASE_PRICES;
+		endWrite();
+	}
+	
+	/**
+	 * Sets the ReservationWheel used to expire reservations on a vending machine.
+	 * If this is never called, the wheel shared by every machine in the program is used.
+	 * Reservations that have already been made stay on the wheel they were made on.
+	 * @param wheel - The wheel used to expire reservations
+	 */
+	public synchronized void setReservationWheel(ReservationWheel wheel) {
+		this.reservationWheel = wheel;
+	}
+	
+	/**
+	 * Called by FleetCash to add a vending machine to a fleet.
+	 * The money already inside the machine is added to the fleet totals.
+	 * @param cash - The fleet totals
+	 * @return - A boolean is returned to indicate if the machine was not already in a fleet
+	 */
+	synchronized boolean joinFleetCash(FleetCash cash) {
+		if (this.fleetCash != null) {
+			return false;
+		}
+		
+		this.fleetCash = cash;
+		for (int i = 0; i < this.coinCounts.length; i++) {
+			cash.recordCoins(i, this.coinCounts[i]);
+		}
+		cash.recordMoney(this.totalMoney - countCoinValue());
+		return true;
+	}
+	
+	/**
+	 * Passes a change in coins on to the fleet totals, if the machine is part of a fleet.
+	 * @param index - The position of the coin in the currency table
+	 * @param count - The number of coins added, or a negative number if coins were removed
+	 */
+	private void recordCoins(int index, int count) {
+		if (this.fleetCash != null && count != 0) {
+			this.fleetCash.recordCoins(index, count);
+		}
+	}
+	
+	/**
+	 * Passes a change in total money that did not involve any coins on to the fleet totals.
+	 * @param pence - The change to the total money, in pence
+	 */
+	private void recordMoney(int pence) {
+		if (this.fleetCash != null && pence != 0) {
+			this.fleetCash.recordMoney(pence);
+		}
+	}
+	
+	/**
+	 * Sets the policy used to choose the coins given as change.
+	 * Each machine needs its own policy, as a policy may learn from the machine's sales.
+	 * @param policy - The change policy, or null to go back to the default BalancedChangePolicy
+	 */
+	public void setChangePolicy(ChangePolicy policy) {
+		this.changePolicy = (policy != null) ? policy : new BalancedChangePolicy();
+	}
+	
+	/**
+	 * Sets the processor used for card and mobile payments. One processor can be shared by many machines.
+	 * @param processor - The payment processor, or null to only take coins
+	 */
+	public void setPaymentProcessor(PaymentProcessor processor) {
+		this.payments = processor;
+	}
+	
+	/**
+	 * Returns the policy used to choose the coins given as change.
+	 * @return - The change policy
+	 */
+	public ChangePolicy getChangePolicy() {
+		return this.changePolicy;
+	}
+	
+	/**
+	 * Sets the listener that is told as soon as the cash in a vending machine drifts out of balance.
+	 * @param listener - The listener, or null to only record the drift
+	 */
+	public void setCashDriftListener(CashDriftListener listener) {
+		this.driftListener = listener;
+	}
+	
+	/**
+	 * Adds a listener that is told about every sale and fault of a vending machine.
+	 * @param listener - The listener
+	 */
+	public void addEventListener(MachineEventListener listener) {
+		if (listener != null && !this.eventListeners.contains(listener)) {
+			this.eventListeners.add(listener);
+		}
+	}
+	
+	/**
+	 * Removes a listener added by addEventListener.
+	 * @param listener - The listener
+	 */
+	public void removeEventListener(MachineEventListener listener) {
+		this.eventListeners.remove(listener);
+	}
+	
+	/**
+	 * Tells every event listener about a fault.
+	 * @param fault - A short description of the fault
+	 */
+	private void reportFault(String fault) {
+		report(() -> {
+			for (MachineEventListener listener : this.eventListeners) {
+				listener.fault(this, fault);
+			}
+		});
+	}
+	
+	/**
+	 * Tells every event listener about a sale.
+	 * @param item - The item that was sold
+	 * @param pence - The price paid, in pence
+	 * @param cashless - True if the item was paid for by card or mobile
+	 */
+	private void reportSale(VendItem item, int pence, boolean cashless) {
+		report(() -> {
+			for (MachineEventListener listener : this.eventListeners) {
+				listener.sale(this, item, pence, cashless);
+			}
+		});
+	}
+	
+	/**
+	 * Passes an event on to the event listeners straight away, or once the change being made has finished.
+	 * Must be called while holding the machine's lock.
+	 * @param event - Tells every listener about the sale or fault
+	 */
+	private void report(Runnable event) {
+		this.pendingEvents.add(event);
+		if (this.writeDepth == 0) {
+			firePendingEvents();
+		}
+	}
+	
+	/**
+	 * Passes every waiting event on to the event listeners, in the order they happened.
+	 * A listener that makes another change to the machine has that change's events passed on as well.
+	 */
+	private void firePendingEvents() {
+		while (!this.pendingEvents.isEmpty()) {
+			this.pendingEvents.remove(0).run();
+		}
 	}
 	
 	/**
 	 * Sets the total amount of money that is inside a vending machine.
-	 * Called when restoring a vending machine using the data inside a CSV file.
+	 * The cash is checked straight afterwards, so use setCash to set the coins at the same time.
 	 * @param totalMoney - The total money within a vending machine
 	 */
-	public void setTotalMoney(double totalMoney) {
+	public synchronized void setTotalMoney(double totalMoney) {
+		int before = this.totalMoney;
+		beginWrite("setTotalMoney");
 		if (totalMoney > 0) {
-			this.totalMoney = totalMoney;
+			this.totalMoney = toPence(totalMoney);
 		} else {
 			this.totalMoney = 0;
 		}
+		endWrite();
+		recordMoney(this.totalMoney - before);
 	}
 	
 	/**
 	 * Sets the amount of each coin contained inside a vending machine.
 	 * Called when restoring a vending machine using the data inside a CSV file.
-	 * @param coin - The type of coin
+	 * @param coin - The type of coin, in pence (1 and 2 are used for the £1 and £2 coins)
 	 * @param amount - The amount of the coin inside a machine
 	 */
 	public void setCoinAmount(int coin, int amount) {
+		setCoinCount(indexOfCoin(coin), amount);
+	}
+	
+	/**
+	 * Sets the amount of a coin using its position in the currency table.
+	 * @param index - The position of the coin, 0 being the smallest
+	 * @param amount - The amount of the coin inside a machine
+	 */
+	public synchronized void setCoinCount(int index, int amount) {
+		if (index < 0 || index >= this.coinCounts.length) {
+			return;
+		}
+		
 		if (amount < 0) {
 			amount = 0;
 		}
 		
-		switch (coin) {
-		case 1: this.onePound = amount; break;
-		case 2: this.twoPound = amount; break;
-		case 5: this.fivePence = amount; break;
-		case 10: this.tenPence = amount; break;
-		case 20: this.twentyPence = amount; break;
-		case 50: this.fiftyPence = amount; break;
+		int before = this.coinCounts[index];
+		beginWrite("setCoinCount");
+		this.coinCounts[index] = amount;
+		coinsChanged();
+		endWrite();
+		recordCoins(index, amount - before);
+	}
+	
+	/**
+	 * Sets the total money and the amount of every coin in one change, so the cash is only checked once both are set.
+	 * Called when restoring a vending machine using the data inside a CSV file.
+	 * @param totalMoney - The total money within a vending machine
+	 * @param coins - The amount of each coin, indexed by position in the currency table
+	 */
+	synchronized void setCash(double totalMoney, int[] coins) {
+		beginWrite("setCash");
+		setTotalMoney(totalMoney);
+		for (int i = 0; i < coins.length; i++) {
+			setCoinCount(i, coins[i]);
 		}
+		endWrite();
 	}
 	
 	/**
 	 * Returns the amount of a particular coin type that is contained inside a machine.
-	 * @param coin - The type of coin
+	 * @param coin - The type of coin, in pence (1 and 2 are used for the £1 and £2 coins)
 	 * @return - The amount of the coin inside a vending machine
 	 */
 	public int getCoinAmount(int coin) {
-		switch (coin) {
-		case 1: return this.onePound;
-		case 2: return this.twoPound;
-		case 5: return this.fivePence;
-		case 10: return this.tenPence;
-		case 20: return this.twentyPence;
-		case 50: return this.fiftyPence;
-		default: return -1;
+		return getCoinCount(indexOfCoin(coin));
+	}
+	
+	/**
+	 * Returns the amount of a coin using its position in the currency table.
+	 * @param index - The position of the coin, 0 being the smallest
+	 * @return - The amount of the coin inside a vending machine, or -1 if the position is invalid
+	 */
+	public int getCoinCount(int index) {
+		if (index < 0 || index >= this.coinCounts.length) {
+			return -1;
+		}
+		
+		return this.coinCounts[index];
+	}
+	
+	/**
+	 * Converts a coin type into its position in the currency table.
+	 * The types 1 and 2 refer to the whole-unit coins, as used in the original CSV format.
+	 * @param coin - The type of coin
+	 * @return - The position of the coin, or -1 if the machine does not accept it
+	 */
+	private int indexOfCoin(int coin) {
+		if (coin == 1 || coin == 2) {
+			coin *= 100;
 		}
+		return this.currency.indexOf(coin);
 	}
 	
 	/**
@@ -145,12 +530,41 @@ public class VendingMachine {
 		return this.maxItems;
 	}
 	
+	/**
+	 * Returns the currency accepted by a vending machine.
+	 * @return - The currency of the vending machine
+	 */
+	public CurrencySet getCurrency() {
+		return this.currency;
+	}
+	
+	/**
+	 * Returns the prices currently used by a vending machine.
+	 * @return - The current PriceTable
+	 */
+	public PriceTable getPriceTable() {
+		return this.prices;
+	}
+	
+	/**
+	 * Returns the price that an item is currently sold at.
+	 * @param position - The position of the item within the stock array
+	 * @return - The current price of the item, or -1 if the position is invalid
+	 */
+	public double getPrice(int position) {
+		if (position < 0 || position >= this.itemCount) {
+			return -1;
+		}
+		
+		return this.prices.getPrice(this.stock[position]);
+	}
+	
 	/**
 	 * Returns the amount of money that a user has entered into a vending machine.
 	 * @return - The user money
 	 */
 	public double getUserMoney() {
-		return this.userMoney;
+		return this.userMoney / 100.0;
 	}
 	
 	/**
@@ -158,7 +572,7 @@ public class VendingMachine {
 	 * @return - The total money
 	 */
 	public double getTotalMoney() {
-		return this.totalMoney;
+		return this.totalMoney / 100.0;
 	}
 	
 	/**
@@ -169,6 +583,14 @@ public class VendingMachine {
 		return this.vmStatus.getStatus();
 	}
 	
+	/**
+	 * Returns the status of a vending machine as a Status value.
+	 * @return - The status of a vending machine
+	 */
+	public Status getMachineStatus() {
+		return this.vmStatus;
+	}
+	
 	/**
 	 * Returns the count of all items inside a vending machine.
 	 * @return - The item count
@@ -190,6 +612,19 @@ public class VendingMachine {
 		}
 	}
 	
+	/**
+	 * Works out how long it will be until every item has sold out, which puts the machine into service mode,
+	 * if each item keeps selling at its current rate.
+	 * @return - The time left, in milliseconds, 0 if nothing is left, or Long.MAX_VALUE if an item in stock is not selling
+	 */
+	public synchronized long getMillisToEmpty() {
+		long res = 0;
+		for (int i = 0; i < this.itemCount; i++) {
+			res = Math.max(res, this.stock[i].getMillisToEmpty());
+		}
+		return res;
+	}
+	
 	/**
 	 * Returns a lot of valuable information about a VendingMachine.
 	 * @return - A String containing information about a vending machine
@@ -203,18 +638,133 @@ public class VendingMachine {
 		res += "Status: " + this.getStatus() + "\n";
 		res += "Max Items: " + this.maxItems + "\n";
 		res += "Item Count: " + this.itemCount + "\n";
-		res += "User Money: " + String.format("£%.2f", this.getUserMoney()) + "\n";
-		res += "Total Money: " + String.format("£%.2f", this.totalMoney) + "\n";
-		res += "> 5p Coins: " + this.fivePence + "\n";
-		res += "> 10p Coins: " + this.tenPence + "\n";
-		res += "> 20p Coins: " + this.twentyPence + "\n";
-		res += "> 50p Coins: " + this.fiftyPence + "\n";
-		res += "> £1 Coins: " + this.onePound + "\n";
-		res += "> £2 Coins: " + this.twoPound + "\n";
+		res += "User Money: " + this.currency.format(this.getUserMoney()) + "\n";
+		res += "Total Money: " + this.currency.format(this.getTotalMoney()) + "\n";
+		for (int i = 0; i < this.coinCounts.length; i++) {
+			res += "> " + describeCoin(i) + ": " + this.coinCounts[i] + "\n";
+		}
 		
 		return res;
 	}
 	
+	/**
+	 * Returns the heading used when listing an amount of a coin, e.g. "50p Coins".
+	 * @param index - The position of the coin in the currency table
+	 * @return - The label of the coin followed by "Coins" or "Notes"
+	 */
+	private String describeCoin(int index) {
+		Denomination coin = this.currency.getDenomination(index);
+		return coin.getLabel() + (coin.isNote() ? " Notes" : " Coins");
+	}
+	
+	/**
+	 * Returns the version of the machine's state, in the same form as MachineSnapshot.getVersion.
+	 * Must be called while holding the machine's lock, outside of a change.
+	 * @return - The version
+	 */
+	long getVersion() {
+		return this.sequence;
+	}
+	
+	/**
+	 * Returns a consistent copy of the money, coins, status and item quantities of a vending machine.
+	 * This never waits for the lock used by purchases. If a change is made while the copy is being taken,
+	 * the copy is thrown away and taken again, so the total money always matches the coins.
+	 * @return - A MachineSnapshot of the vending machine
+	 */
+	public MachineSnapshot getSnapshot() {
+		while (true) {
+			long before = this.sequence;
+			
+			if ((before & 1) == 0) {
+				Status status = this.vmStatus;
+				int total = this.totalMoney;
+				int user = this.userMoney;
+				int[] coins = this.coinCounts.clone();
+				
+				VendItem[] items = this.stock;
+				int count = Math.min(this.itemCount, items.length);
+				int[] itemIds = new int[count];
+				int[] quantities = new int[count];
+				for (int i = 0; i < count; i++) {
+					if (items[i] != null) {
+						itemIds[i] = items[i].getItemId();
+						quantities[i] = items[i].readQty();
+					}
+				}
+				
+				// Make sure every read above has finished before checking the sequence again
+				VarHandle.loadLoadFence();
+				if (this.sequence == before) {
+					return new MachineSnapshot(before, this.currency, status, total, user, coins, itemIds, quantities);
+				}
+			}
+			
+			Thread.onSpinWait();
+		}
+	}
+	
+	/**
+	 * Marks the start of a change to the state of a vending machine. Must be called while holding the machine's lock.
+	 * A change made inside another change becomes part of it.
+	 * @param operation - The name of the method making the change
+	 */
+	private void beginWrite(String operation) {
+		if (this.writeDepth++ == 0) {
+			this.writeOperation = operation;
+			this.sequence++;
+			VarHandle.storeStoreFence();
+		}
+	}
+	
+	/**
+	 * Marks the end of a change to the state of a vending machine. Must be called while holding the machine's lock.
+	 * Once the outermost change has finished, its cash is checked, it is passed to the journal, the shared live state
+	 * and the replicas, and then the sales and faults found during the change are passed to the event listeners.
+	 */
+	private void endWrite() {
+		if (this.writeDepth == 1) {
+			checkCash(this.writeOperation);
+		}
+		if (--this.writeDepth == 0) {
+			this.sequence++;
+			if (this.journal != null) {
+				this.journal.record(this);
+			}
+			if (this.liveState != null) {
+				this.liveState.update(this);
+			}
+			if (this.replication != null) {
+				this.replication.record(this);
+			}
+			firePendingEvents();
+		}
+	}
+	
+	/**
+	 * Sets the memory-mapped file that the live state is shared through. Called by MappedMachineState.
+	 * @param state - The mapped state, or null to stop sharing
+	 */
+	synchronized void setLiveState(MappedMachineState state) {
+		this.liveState = state;
+	}
+	
+	/**
+	 * Sets the primary that every change is sent to replicas through. Called by ReplicationPrimary.
+	 * @param primary - The primary, or null to stop sending changes
+	 */
+	synchronized void setReplication(ReplicationPrimary primary) {
+		this.replication = primary;
+	}
+	
+	/**
+	 * Sets the journal that every change is logged to. Called by MachineJournal.
+	 * @param journal - The journal, or null to stop logging
+	 */
+	synchronized void setJournal(MachineJournal journal) {
+		this.journal = journal;
+	}
+	
 	/**
 	 * Returns a string containing information about a VendingMachine. Useful for testing the VendingMachine class.
 	 */
@@ -224,10 +774,15 @@ public class VendingMachine {
 	
 	/**
 	 * Adds a new item to a vending machine.
+	 * The item's price must be valid in the machine's currency, so that it can always be paid for.
 	 * @param item - The item to be added
 	 * @return - A boolean is returned to indicate failure or success
 	 */
-	public boolean addNewItem(VendItem item) {
+	public synchronized boolean addNewItem(VendItem item) {
+		if (item == null || !Product.isValidPrice(item.getPrice(), this.currency)) {
+			return false;
+		}
+		
 		// Check that the item doesn't exist in the machine already
 		for (int i = 0; i < this.itemCount; i++) {
 			if (this.stock[i].getItemId() == item.getItemId()) {
@@ -237,8 +792,12 @@ public class VendingMachine {
 		
 		// Check that there is enough space and that the item isn't null
 		if ((this.itemCount < this.maxItems) && (item != null)) {
+			beginWrite("addNewItem");
+			item.setMachine(this);
 			this.stock[this.itemCount] = item;
+			this.index.add(this.itemCount, item, toPence(this.index.getTable().getPrice(item)));
 			this.itemCount++;
+			endWrite();
 			return true;
 		} else {
 			return false;
@@ -249,81 +808,635 @@ public class VendingMachine {
 	 * Returns an array of strings with the name, quantity and price of each item.
 	 * @return - An array of strings containing information about each item
 	 */
-	public String[] listItems() {
+	public synchronized String[] listItems() {
 		if (this.itemCount <= 0) {
 			return null;
 		}
 		
-		String[] items = new String[this.itemCount];
-
-		for (int i = 0; i < this.itemCount; i++) {
-			items[i] = "";
-			items[i] += this.stock[i].getName();
-			items[i] += String.format("\n   Price: £%.2f", this.stock[i].getPrice());
-			items[i] += "\n   Quantity: " + this.stock[i].getQty() + "\n";
-		}
-
-		return items;
+		return listItems(0, this.itemCount);
 	}
 	
 	/**
-	 * Resets a VendingMachine by getting rid of all items and cash.
+	 * Returns an array of strings with the name, quantity and price of the items in one part of the stock array,
+	 * e.g. one screen of a long list. Only the items in that part are read, so the cost does not depend on how
+	 * many items the machine holds.
+	 * @param offset - The position of the first item to list
+	 * @param limit - The most items to list
+	 * @return - An array of strings containing information about each item, which is empty if there are no items from offset on
 	 */
-	public void reset() {
-		this.stock = new VendItem[this.maxItems];
-		this.itemCount = 0;
-		this.totalMoney = 0.0; 
-		this.userMoney = 0.0;
-		setStatus(Status.VENDING_MODE);
+	public synchronized String[] listItems(int offset, int limit) {
+		if (offset < 0 || limit <= 0 || offset >= this.itemCount) {
+			return new String[0];
+		}
+		
+		String[] items = new String[Math.min(limit, this.itemCount - offset)];
+		PriceTable table = this.prices;
+		
+		for (int i = 0; i < items.length; i++) {
+			VendItem item = this.stock[offset + i];
+			items[i] = "";
+			items[i] += item.getName();
+			items[i] += "\n   Price: " + this.currency.format(table.getPrice(item));
+			items[i] += "\n   Quantity: " + item.getAvailableQty();
+			if (isExactChangeOnly(offset + i, table)) {
+				items[i] += "\n   Exact change only";
+			}
+			items[i] += "\n";
+		}
 		
-		this.fivePence = 0;
-		this.tenPence = 0;
-		this.twentyPence = 0;
-		this.fiftyPence = 0;
-		this.onePound = 0;
-		this.twoPound = 0;
+		return items;
+	}
+	
+	/**
+	 * Finds the items that cost no more than a price, cheapest first, using the prices currently in use.
+	 * @param maxPrice - The highest price
+	 * @param inStockOnly - True to leave out items that have sold out, or whose remaining units are all reserved
+	 * @return - The positions of the items within the stock array
+	 */
+	public synchronized int[] findByPrice(double maxPrice, boolean inStockOnly) {
+		if (maxPrice < 0) {
+			return new int[0];
+		}
+		
+		updateIndex();
+		int[] matches = this.index.findByPrice(toPence(maxPrice));
+		if (!inStockOnly) {
+			return matches;
+		}
+		
+		int found = 0;
+		for (int position : matches) {
+			if (this.stock[position].getAvailableQty() > 0) {
+				matches[found] = position;
+				found++;
+			}
+		}
+		return Arrays.copyOf(matches, found);
+	}
+	
+	/**
+	 * Finds the items that have at least a certain quantity left that is not reserved, lowest quantity first.
+	 * @param minQty - The lowest quantity, 1 to find every item that can be bought
+	 * @return - The positions of the items within the stock array
+	 */
+	public synchronized int[] findByQty(int minQty) {
+		updateIndex();
+		return this.index.findByQty(Math.max(0, minQty));
+	}
+	
+	/**
+	 * Finds the items whose name begins with some text, in name order. Upper and lower case are treated the same.
+	 * @param prefix - The start of the name
+	 * @return - The positions of the items within the stock array
+	 */
+	public synchronized int[] findByName(String prefix) {
+		if (prefix == null) {
+			return new int[0];
+		}
+		
+		updateIndex();
+		return this.index.findByName(prefix);
+	}
+	
+	/**
+	 * Moves the items within the price and name indexes if a new PriceTable has been published, or a product
+	 * has been renamed or repriced in a ProductCatalog, since they were last used.
+	 * This is done here, rather than when the change is made, so publishing never waits for the machine's lock.
+	 */
+	private void updateIndex() {
+		PriceTable table = this.prices;
+		long edits = Product.getEditCount();
+		if (this.index.getTable() == table && this.index.getProductEdits() == edits) {
+			return;
+		}
+		
+		for (int i = 0; i < this.itemCount; i++) {
+			this.index.setPrice(i, toPence(table.getPrice(this.stock[i])));
+			this.index.setName(i, this.stock[i].getName());
+		}
+		this.index.setTable(table);
+		this.index.setProductEdits(edits);
+	}
+	
+	/**
+	 * Moves an item within the quantity index after its quantity, or the number of its units that are reserved, has changed.
+	 * The index holds the quantity that can be bought, as used by findByPrice.
+	 * @param position - The position of the item within the stock array
+	 */
+	private void indexQty(int position) {
+		this.index.setQty(position, this.stock[position].getAvailableQty());
+	}
+	
+	/**
+	 * Overloaded indexQty, which finds the position of the item first.
+	 * @param item - The item
+	 */
+	private void indexQty(VendItem item) {
+		for (int i = 0; i < this.itemCount; i++) {
+			if (this.stock[i] == item) {
+				indexQty(i);
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Restocks an item inside a vending machine.
+	 * @param position - The position of the item within the stock array
+	 * @param quantity - This 'restock' quantity will be added to the current quantity
+	 * @return - A boolean is returned to indicate failure or success
+	 */
+	public synchronized boolean restockItem(int position, int quantity) {
+		if (position < 0 || position >= this.itemCount) {
+			return false;
+		}
+		
+		beginWrite("restockItem");
+		try {
+			return this.stock[position].addQty(quantity);
+		} finally {
+			indexQty(position);
+			endWrite();
+		}
+	}
+	
+	/**
+	 * Overloaded restockItem, called by VendItem.restock for an item held by this machine.
+	 * @param item - The item
+	 * @param quantity - This 'restock' quantity will be added to the current quantity
+	 * @return - A boolean is returned to indicate failure or success
+	 */
+	synchronized boolean restockItem(VendItem item, int quantity) {
+		for (int i = 0; i < this.itemCount; i++) {
+			if (this.stock[i] == item) {
+				return restockItem(i, quantity);
+			}
+		}
+		
+		// The item has been taken out of the machine since it was added
+		return item.addQty(quantity);
+	}
+	
+	/**
+	 * Sets the quantity of an item inside a vending machine.
+	 * Called when replaying the changes logged by a MachineJournal.
+	 * @param position - The position of the item within the stock array
+	 * @param quantity - The new quantity of the item
+	 * @return - A boolean is returned to indicate failure or success
+	 */
+	synchronized boolean setItemQty(int position, int quantity) {
+		if (position < 0 || position >= this.itemCount) {
+			return false;
+		}
+		
+		beginWrite("setItemQty");
+		this.stock[position].setQty(quantity);
+		indexQty(position);
+		endWrite();
+		return true;
+	}
+	
+	/**
+	 * Applies a batch of change lines, from a MachineJournal, a ReplicationPrimary or another FleetNode, in one change,
+	 * so a snapshot never sees the batch half applied.
+	 * @param lines - The change lines, in the order they should be applied
+	 * @return - The first line that could not be applied, or null if every line was applied
+	 */
+	synchronized String applyChanges(List<String> lines) {
+		// The items are copies of items in another machine, which may have been in this process before
+		int invalid = applyChanges(lines, ProductCatalog.getDefault(), ItemIdAllocator.getDefault(), true);
+		return (invalid >= 0) ? lines.get(invalid) : null;
+	}
+	
+	/**
+	 * Overloaded applyChanges, which takes the products and item IDs of new items from a particular catalog and allocator.
+	 * The lines before one that can not be applied are kept, and a new item whose ID has already been issued can not be applied.
+	 * @param lines - The change lines, in the order they should be applied
+	 * @param catalog - The catalog that the products of new items are taken from
+	 * @param ids - The allocator that the IDs of new items are claimed from
+	 * @return - The position of the first line that could not be applied, or -1 if every line was applied
+	 */
+	synchronized int applyChanges(List<String> lines, ProductCatalog catalog, ItemIdAllocator ids) {
+		return applyChanges(lines, catalog, ids, false);
+	}
+	
+	/**
+	 * Overloaded applyChanges, which says whether the machine is a copy of another machine.
+	 * @param lines - The change lines, in the order they should be applied
+	 * @param catalog - The catalog that the products of new items are taken from
+	 * @param ids - The allocator that the IDs of new items are claimed from
+	 * @param copied - True if new items keep their IDs even if the IDs have already been claimed here
+	 * @return - The position of the first line that could not be applied, or -1 if every line was applied
+	 */
+	private synchronized int applyChanges(List<String> lines, ProductCatalog catalog, ItemIdAllocator ids, boolean copied) {
+		beginWrite("applyChanges");
+		try {
+			for (int i = 0; i < lines.size(); i++) {
+				if (!MachineChanges.apply(this, lines.get(i), catalog, ids, copied)) {
+					return i;
+				}
+			}
+			return -1;
+		} finally {
+			endWrite();
+		}
+	}
+	
+	/**
+	 * Applies a config to a running vending machine in one change, so the owner, capacity, new items and prices
+	 * are never seen half applied. Nothing is changed if the config can not be applied in full.
+	 *
+	 * Items are matched to the config by name. Items in the config that are not in the machine are added
+	 * with their starting quantity, and items whose price is different are given the config price through a new
+	 * PriceTable, so a purchase that has already started finishes at the old price. Items that are not in the
+	 * config are left alone, and the money inserted by a customer is never touched.
+	 * The config prices replace any PriceTable that was set before (e.g. by a PriceScheduler).
+	 * @param config - The config, read with MachineConfig.load
+	 * @return - A description of what was changed, or a string starting with "Failure: " if nothing was changed
+	 */
+	public synchronized String applyConfig(MachineConfig config) {
+		if (config == null || !config.isValid()) {
+			return "Failure: " + ((config != null) ? config.getError() : "No config");
+		}
+		
+		// Work out every change before making any of them
+		List<MachineConfig.Entry> added = new ArrayList<MachineConfig.Entry>();
+		Map<Integer, Double> configPrices = new HashMap<Integer, Double>();
+		int priceChanges = 0;
+		
+		for (MachineConfig.Entry entry : config.getItems()) {
+			if (!Product.isValidPrice(entry.getPrice(), this.currency)) {
+				return "Failure: The price of \"" + entry.getName() + "\" must be " + this.currency.describePrices();
+			}
+			
+			VendItem item = null;
+			for (int i = 0; i < this.itemCount && item == null; i++) {
+				if (this.stock[i].getName().equals(entry.getName())) {
+					item = this.stock[i];
+				}
+			}
+			
+			if (item == null) {
+				added.add(entry);
+				continue;
+			}
+			
+			// Only prices that differ from the item's own unit price need to be in the table
+			if (toPence(entry.getPrice()) != toPence(item.getPrice())) {
+				configPrices.put(item.getProduct().getProductId(), entry.getPrice());
+			}
+			if (toPence(entry.getPrice()) != toPence(this.prices.getPrice(item))) {
+				priceChanges++;
+			}
+		}
+		
+		if (config.getMaxItems() < this.itemCount + added.size()) {
+			return "Failure: The machine would hold " + (this.itemCount + added.size()) + " items, but the maximum is " + config.getMaxItems();
+		}
+		
+		String res = "";
+		beginWrite("applyConfig");
+		
+		if (!config.getOwner().equals(this.owner)) {
+			setOwner(config.getOwner());
+			res += "Owner set to " + this.owner + "\n";
+		}
+		
+		if (config.getMaxItems() != this.maxItems) {
+			resize(config.getMaxItems());
+			res += "Maximum items set to " + this.maxItems + "\n";
+		}
+		
+		if (priceChanges > 0) {
+			this.prices = new PriceTable("Config", configPrices, this.currency);
+			res += priceChanges + " price(s) changed\n";
+		}
+		
+		for (MachineConfig.Entry entry : added) {
+			VendItem item = new VendItem(entry.getName(), entry.getPrice(), entry.getQty());
+			item.setMachine(this);
+			this.stock[this.itemCount] = item;
+			this.index.add(this.itemCount, item, toPence(this.index.getTable().getPrice(item)));
+			this.itemCount++;
+			res += "\"" + item.getName() + "\" added as item " + this.itemCount + "\n";
+		}
+		
+		endWrite();
+		return res.equals("") ? "No changes" : res.trim();
+	}
+	
+	/**
+	 * Sets the owner of a vending machine. Called when replaying the changes logged by a MachineJournal.
+	 * @param owner - The name of the owner
+	 */
+	synchronized void changeOwner(String owner) {
+		beginWrite("changeOwner");
+		setOwner(owner);
+		endWrite();
+	}
+	
+	/**
+	 * Sets the maximum amount of items in a vending machine. Called when replaying the changes logged by a MachineJournal.
+	 * @param maxItems - The new maximum amount of items
+	 * @return - A boolean is returned to indicate failure or success
+	 */
+	synchronized boolean changeMaxItems(int maxItems) {
+		if (maxItems <= 0 || maxItems < this.itemCount) {
+			return false;
+		}
+		
+		beginWrite("changeMaxItems");
+		resize(maxItems);
+		endWrite();
+		return true;
+	}
+	
+	/**
+	 * Changes the size of the stock array and the item index. The items already in the machine must still fit.
+	 * @param maxItems - The new maximum amount of items
+	 */
+	private void resize(int maxItems) {
+		this.stock = Arrays.copyOf(this.stock, maxItems);
+		this.index.resize(maxItems);
+		this.maxItems = maxItems;
+	}
+	
+	/**
+	 * Returns the coins inserted by the current customer that have not been used for a purchase yet.
+	 * @return - The number of each coin, indexed by position in the currency table
+	 */
+	synchronized int[] getInsertedCoins() {
+		return this.escrow.getCounts();
+	}
+	
+	/**
+	 * Sets the coins inserted by the current customer. Called when a FleetNode receives a machine from another node.
+	 * @param coins - The number of each coin, indexed by position in the currency table
+	 */
+	synchronized void setInsertedCoins(int[] coins) {
+		beginWrite("setInsertedCoins");
+		this.escrow.set(coins, this.currency);
+		this.userMoney = this.escrow.getValue();
+		coinsChanged();
+		endWrite();
+	}
+	
+	/**
+	 * Resets a VendingMachine by getting rid of all items and cash.
+	 */
+	public synchronized void reset() {
+		for (int i = 0; i < this.coinCounts.length; i++) {
+			recordCoins(i, -this.coinCounts[i]);
+		}
+		recordMoney(-(this.totalMoney - countCoinValue()));
+		
+		beginWrite("reset");
+		for (int i = 0; i < this.itemCount; i++) {
+			this.stock[i].setMachine(null);
+		}
+		this.stock = new VendItem[this.maxItems];
+		this.index = new ItemIndex(this.maxItems);
+		this.itemCount = 0;
+		this.totalMoney = 0;
+		this.userMoney = 0;
+		this.escrow.take();
+		setStatus(Status.VENDING_MODE);
+		
+		Arrays.fill(this.coinCounts, 0);
+		coinsChanged();
+		endWrite();
 	}
 	
 	/**
 	 * Called when a user inserts a coin into a vending machine.
-	 * The value of the coin is added to the total money, and also to the user money.
-	 * @param option - This corresponds with the type of coin that the user has inserted
+	 * The coin is held apart from the machine's coins, and its value is added to the user money.
+	 * It is only added to the machine's coins and total money when a purchase goes ahead.
+	 * @param option - This corresponds with the type of coin that the user has inserted, 1 being the smallest
 	 * @return - A boolean is returned to indicate failure or success
 	 */
-	public boolean insertCoin(int option) {
-		if (option == 1) {
-			this.userMoney += 0.05;
-			this.totalMoney += 0.05;
-			this.fivePence++;
-			return true;
-		} else if (option == 2) {
-			this.userMoney += 0.1;
-			this.totalMoney += 0.1;
-			this.tenPence++;
-			return true;
-		} else if (option == 3) {
-			this.userMoney += 0.2;
-			this.totalMoney += 0.2;
-			this.twentyPence++;
-			return true;
-		} else if (option == 4) {
-			this.userMoney += 0.5;
-			this.totalMoney += 0.5;
-			this.fiftyPence++;
-			return true;
-		} else if (option == 5) {
-			this.userMoney += 1.0;
-			this.totalMoney += 1.0;
-			this.onePound++;
-			return true;
-		} else if (option == 6) {
-			this.userMoney += 2.0;
-			this.totalMoney += 2.0;
-			this.twoPound++;
-			return true;
-		} else {
+	public synchronized boolean insertCoin(int option) {
+		int index = option - 1;
+		
+		if (index < 0 || index >= this.coinCounts.length) {
+			return false;
+		}
+		
+		// An offline machine takes no coins, and a draining machine only takes coins from a customer who has already started,
+		// either by inserting coins or by reserving an item they have still to pay for
+		if (this.vmStatus == Status.OFFLINE || (this.vmStatus == Status.DRAINING && this.userMoney == 0 && !hasReservations())) {
+			return false;
+		}
+		
+		int value = this.currency.getDenomination(index).getValue();
+		beginWrite("insertCoin");
+		this.escrow.add(index, value);
+		this.userMoney += value;
+		coinsChanged();
+		endWrite();
+		return true;
+	}
+	
+	/**
+	 * Cancels the current customer's purchase and hands back exactly the coins they inserted.
+	 * @return - A String listing the coins returned, or explaining that there were none
+	 */
+	public synchronized String returnCoins() {
+		if (this.escrow.isEmpty()) {
+			return "Failure: No coins to return";
+		}
+		
+		beginWrite("returnCoins");
+		String res = "Coins returned: " + this.currency.format(this.userMoney / 100.0);
+		int[] coins = this.escrow.take();
+		this.userMoney = 0;
+		coinsChanged();
+		endWrite();
+		
+		for (int i = coins.length - 1; i >= 0; i--) {
+			if (coins[i] != 0) {
+				res += "\n" + "> " + describeCoin(i) + ": " + coins[i];
+			}
+		}
+		
+		finishDrainIfIdle();
+		return res;
+	}
+	
+	/**
+	 * Moves the coins inserted by the customer into the machine's coins and total money, once a purchase is going ahead.
+	 * This takes one step for each type of coin, however many coins were inserted.
+	 * The answers remembered by canGiveChange still hold, as they already counted the inserted coins.
+	 */
+	private void commitEscrow() {
+		int[] coins = this.escrow.take();
+		for (int i = 0; i < coins.length; i++) {
+			if (coins[i] != 0) {
+				this.coinCounts[i] += coins[i];
+				this.totalMoney += coins[i] * this.currency.getDenomination(i).getValue();
+				recordCoins(i, coins[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Holds one unit of an item for a user while they pay, so that nobody else can buy it.
+	 * The item is released again if it is not purchased before the reservation expires.
+	 * @param position - The position of the item within the stock array
+	 * @param seconds - How long the item should be held for
+	 * @return - The Reservation, or null if the item could not be reserved
+	 */
+	public synchronized Reservation reserveItem(int position, int seconds) {
+		if (position < 0 || position >= this.itemCount || this.vmStatus != Status.VENDING_MODE || seconds <= 0) {
+			return null;
+		}
+		
+		VendItem item = this.stock[position];
+		if (!item.reserve()) {
+			return null;
+		}
+		indexQty(position);
+		
+		if (this.reservationWheel == null) {
+			this.reservationWheel = ReservationWheel.getShared();
+		}
+		
+		Reservation res = new Reservation(this, item, this.reservationWheel);
+		this.reservationWheel.schedule(res, seconds * 1000L);
+		return res;
+	}
+	
+	/**
+	 * Cancels a reservation so that the item can be sold to someone else.
+	 * @param res - The reservation to be cancelled
+	 * @return - A boolean is returned to indicate if the reservation was still active
+	 */
+	public synchronized boolean cancelReservation(Reservation res) {
+		if (res == null || res.getMachine() != this || !res.finish()) {
 			return false;
 		}
+		
+		res.getWheel().cancel(res);
+		res.getItem().release();
+		indexQty(res.getItem());
+		finishDrainIfIdle();
+		return true;
+	}
+	
+	/**
+	 * Purchases an item with a card or mobile payment. The item is reserved straight away, the payment is
+	 * sent without holding the machine's lock, and the item is delivered when the payment is approved,
+	 * so other customers can use the machine while the payment is in progress.
+	 * No coins are taken or given, and the customer's inserted money is left alone.
+	 * @param position - The position of the item within the stock array
+	 * @param account - The card or mobile account token
+	 * @return - A future that is completed with a String thanking the user for their purchase,
+	 *           or giving them information on why their purchase failed
+	 */
+	public CompletableFuture<String> purchaseCashless(int position, String account) {
+		PaymentProcessor processor = this.payments;
+		if (processor == null) {
+			return CompletableFuture.completedFuture("Failure: Card payments are not accepted");
+		}
+		
+		Reservation res;
+		int pence;
+		synchronized (this) {
+			if (position < 0 || position >= this.itemCount) {
+				return CompletableFuture.completedFuture("Failure: Invalid selection");
+			}
+			
+			// Held for a little longer than the payment can take, so an approved payment always finds its item
+			res = reserveItem(position, (int) (processor.getTimeoutMillis() / 1000) + 2);
+			if (res == null) {
+				if (this.vmStatus != Status.VENDING_MODE) {
+					return CompletableFuture.completedFuture("Failure: Machine is not vending");
+				}
+				return CompletableFuture.completedFuture("Failure: Item \"" + this.stock[position].getName() + "\" is out of stock");
+			}
+			pence = toPence(this.prices.getPrice(this.stock[position]));
+		}
+		
+		return processor.authorise(account, pence).thenApply(result -> finishCashless(processor, res, result, account, pence));
+	}
+	
+	/**
+	 * Delivers a reserved item once its card or mobile payment has been answered, or releases it if the payment failed.
+	 * @param processor - The payment processor that sent the payment
+	 * @param res - The reservation for the item
+	 * @param result - The answer to the payment
+	 * @param account - The card or mobile account token
+	 * @param pence - The amount paid, in pence
+	 * @return - A String thanking the user for their purchase, or giving them information on why their purchase failed
+	 */
+	private synchronized String finishCashless(PaymentProcessor processor, Reservation res, PaymentResult result, String account, int pence) {
+		if (!result.isApproved()) {
+			cancelReservation(res);
+			if (!result.isDeclined()) {
+				reportFault("Payment failed");
+			}
+			return "Failure: Payment " + (result.isDeclined() ? "declined" : "failed") + " (" + result.getMessage() + ")";
+		}
+		
+		if (!res.finish()) {
+			// The reservation ran out before the answer arrived, so the customer is given their money back
+			processor.refund(account, result.getCode(), pence);
+			return "Failure: Your reservation for \"" + res.getItem().getName() + "\" has expired" + "\n" + "Your payment will be refunded";
+		}
+		res.getWheel().cancel(res);
+		
+		beginWrite("finishCashless");
+		String delivered = res.getItem().deliverReserved();
+		this.cashlessMoney += pence;
+		
+		int totalQuantity = 0;
+		for (int i = 0; i < this.itemCount; i++) {
+			totalQuantity += this.stock[i].getQty();
+		}
+		indexQty(res.getItem());
+		if (totalQuantity == 0 && this.vmStatus == Status.VENDING_MODE) {
+			this.setStatus(Status.SERVICE_MODE);
+		}
+		endWrite();
+		reportSale(res.getItem(), pence, true);
+		finishDrainIfIdle();
+		
+		return delivered + "\n" + "Paid by card: " + this.currency.format(pence / 100.0);
+	}
+	
+	/**
+	 * Returns the money taken by card and mobile payments, which is not part of the total money as no coins are held for it.
+	 * @return - The money taken
+	 */
+	public synchronized double getCashlessMoney() {
+		return this.cashlessMoney / 100.0;
+	}
+	
+	/**
+	 * Sets the money taken by card and mobile payments, when a MachineJournal or ReplicationPrimary says it has changed.
+	 * @param pence - The money taken, in pence
+	 * @return - A boolean is returned to indicate if the amount was valid
+	 */
+	synchronized boolean setCashlessMoney(int pence) {
+		if (pence < 0) {
+			return false;
+		}
+		
+		beginWrite("setCashlessMoney");
+		this.cashlessMoney = pence;
+		endWrite();
+		return true;
+	}
+	
+	/**
+	 * Called by the ReservationWheel when a reservation has not been used in time.
+	 * @param res - The reservation that has expired
+	 */
+	synchronized void expireReservation(Reservation res) {
+		if (res.finish()) {
+			res.getItem().release();
+			indexQty(res.getItem());
+			finishDrainIfIdle();
+		}
 	}
 	
 	/**
@@ -332,6 +1445,58 @@ public class VendingMachine {
 	 * @return - A String thanking the user for their purchase, or giving them information on why their purchase failed
 	 */
 	public String purchaseItem(int item) {
+		return purchaseItem(item, null);
+	}
+	
+	/**
+	 * Allows the user to purchase an item that they have reserved.
+	 * @param res - The reservation made for the item
+	 * @return - A String thanking the user for their purchase, or giving them information on why their purchase failed
+	 */
+	public String purchaseReserved(Reservation res) {
+		if (res == null || res.getMachine() != this) {
+			return "Failure: Invalid reservation";
+		}
+		
+		for (int i = 0; i < this.itemCount; i++) {
+			if (this.stock[i] == res.getItem()) {
+				return purchaseItem(i, res);
+			}
+		}
+		
+		return "Failure: Invalid reservation";
+	}
+	
+	/**
+	 * Purchases an item, either from the stock that is free or from a unit held by a reservation.
+	 * @param item - The position of the item within the stock array
+	 * @param reservation - The reservation for the item, or null if the item was not reserved
+	 * @return - A String thanking the user for their purchase, or giving them information on why their purchase failed
+	 */
+	private synchronized String purchaseItem(int item, Reservation reservation) {
+		beginWrite("purchaseItem");
+		try {
+			return attemptPurchase(item, reservation);
+		} finally {
+			if (item >= 0 && item < this.itemCount) {
+				indexQty(item);
+			}
+			endWrite();
+			finishDrainIfIdle();
+		}
+	}
+	
+	/**
+	 * Carries out the checks for a purchase and, if they pass, delivers the item and gives change.
+	 * Called by purchaseItem while it holds the machine's lock.
+	 * @param item - The position of the item within the stock array
+	 * @param reservation - The reservation for the item, or null if the item was not reserved
+	 * @return - A String thanking the user for their purchase, or giving them information on why their purchase failed
+	 */
+	private String attemptPurchase(int item, Reservation reservation) {
+		// Read the prices once, so the whole purchase uses the same table even if a new one is published
+		PriceTable table = this.prices;
+		
 		if (item >= this.itemCount || item < 0) {
 			
 			// The user has made an invalid selection
@@ -342,27 +1507,55 @@ public class VendingMachine {
 			// The vending machine is in service mode
 			return "Failure: Machine is in service mode";
 			
+		} else if (this.vmStatus == Status.OFFLINE) {
+			
+			// The vending machine is offline
+			return "Failure: Machine is offline";
+			
 		} else if (this.itemCount == 0) {
 			
 			// There are no items in the vending machine
 			return "Failure: The vending machine does not contain any items";
 			
-		} else if (this.stock[item].getPrice() > this.userMoney) {
+		} else if (reservation != null && !reservation.isActive()) {
+			
+			// The reservation has expired or has already been used
+			return "Failure: Your reservation for \"" + this.stock[item].getName() + "\" has expired";
+			
+		} else if (toPence(table.getPrice(this.stock[item])) > this.userMoney) {
 			
 			// The user has not entered enough money
 			String insFunds = "";
 			insFunds += "Failure: Insufficient funds" + "\n";
-			insFunds += "This item costs: " + String.format("£%.2f", this.stock[item].getPrice()) + "\n";
-			insFunds += "You entered: " + String.format("£%.2f", this.userMoney);
+			insFunds += "This item costs: " + this.currency.format(table.getPrice(this.stock[item])) + "\n";
+			insFunds += "You entered: " + this.currency.format(this.getUserMoney());
 			return insFunds;
 			
+		} else if ((reservation != null || this.stock[item].getAvailableQty() > 0) && !canGiveChange(this.userMoney - toPence(table.getPrice(this.stock[item])))) {
+			
+			// The machine can not give change, so nothing is dispensed and the user keeps their credit
+			reportFault("No change");
+			String noChange = "";
+			noChange += "Failure: Unable to give change for \"" + this.stock[item].getName() + "\"" + "\n";
+			noChange += "Please enter the exact amount or select a different item";
+			return noChange;
+			
 		} else {
 			
-			String res = this.stock[item].deliver();
+			String res;
+			if (reservation == null) {
+				res = this.stock[item].deliver();
+			} else if (reservation.finish()) {
+				reservation.getWheel().cancel(reservation);
+				res = this.stock[item].deliverReserved();
+			} else {
+				return "Failure: Your reservation for \"" + this.stock[item].getName() + "\" has expired";
+			}
 			
 			if (res == null) {
 				
 				// The item is out of stock
+				reportFault("Out of stock");
 				String noStock = "";
 				noStock += "Failure: Item \"" + this.stock[item].getName() + "\" is out of stock" + "\n";
 				noStock += "Please select a different item";
@@ -377,96 +1570,213 @@ public class VendingMachine {
 				for(int i = 0; i < this.itemCount; i++) {
 					totalQuantity += this.stock[i].getQty();
 				}
-				if (totalQuantity == 0) {
+				if (totalQuantity == 0 && this.vmStatus == Status.VENDING_MODE) {
 					this.setStatus(Status.SERVICE_MODE);
 				}
 				
+				// The purchase is going ahead, so the inserted coins become part of the machine's coins
+				commitEscrow();
+				
 				// Calculate change
-				double changeBeforeRounding = this.userMoney - this.stock[item].getPrice();
-				double change = Math.round(changeBeforeRounding * 100.0) / 100.0;
+				double price = table.getPrice(this.stock[item]);
+				int change = this.userMoney - toPence(price);
 				
 				// Calculate the various coins needed to give the user their change
-				res += calculateChange(change, item);
+				res += calculateChange(change, price);
+				reportSale(this.stock[item], toPence(price), false);
 				return res;
 				
 			}
-		}	
+		}
+	}
+	
+	/**
+	 * Checks if an item should display an "exact change only" warning.
+	 * If the user has already entered enough money, the change due on that money is checked.
+	 * Otherwise, every amount of change that could be due after the user inserts one coin too many is checked.
+	 * @param position - The position of the item within the stock array
+	 * @return - A boolean is returned to indicate if only exact change can be accepted for the item
+	 */
+	public synchronized boolean isExactChangeOnly(int position) {
+		return isExactChangeOnly(position, this.prices);
+	}
+	
+	/**
+	 * Checks if an item should display an "exact change only" warning, using a particular set of prices.
+	 * @param position - The position of the item within the stock array
+	 * @param table - The prices to check against
+	 * @return - A boolean is returned to indicate if only exact change can be accepted for the item
+	 */
+	private boolean isExactChangeOnly(int position, PriceTable table) {
+		if (position < 0 || position >= this.itemCount) {
+			return false;
+		}
+		
+		int price = toPence(table.getPrice(this.stock[position]));
+		
+		if (this.userMoney >= price) {
+			return !canGiveChange(this.userMoney - price);
+		}
+		
+		return isChangeLow();
+	}
+	
+	/**
+	 * Checks if there are too few coins to give change for any overpayment of up to one coin.
+	 * The largest overpayment possible is the largest coin or note, when only the smallest coin was still owed.
+	 * @return - A boolean is returned to indicate if the user should be asked to enter the exact amount
+	 */
+	public synchronized boolean isChangeLow() {
+		int smallest = this.currency.getDenomination(0).getValue();
+		int largest = this.currency.getDenomination(this.coinCounts.length - 1).getValue();
+		
+		for (int change = smallest; change < largest; change += smallest) {
+			if (!canGiveChange(change)) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Checks if the coins inside a vending machine, with the coins the customer has inserted, can be used to give a particular amount of change.
+	 * The change policy agrees with calculateChange, but this does not choose or remove any coins.
+	 * Must be called while holding the machine's lock.
+	 * @param change - The change to be given, in pence
+	 * @return - A boolean is returned to indicate if the change can be given
+	 */
+	private boolean canGiveChange(int change) {
+		if (change < 0) {
+			return false;
+		}
+		
+		ChangePolicy policy = this.changePolicy;
+		if (this.changeTable == null || this.changeTablePolicy != policy) {
+			// Big enough for the change on any item, and for any overpayment of up to one coin
+			int largest = this.currency.getDenomination(this.coinCounts.length - 1).getValue();
+			this.changeTable = new byte[Math.max(largest, this.userMoney) + 1];
+			this.changeTablePolicy = policy;
+		}
+		
+		if (change >= this.changeTable.length) {
+			return policy.canGiveChange(change, this.currency, changeCoins());
+		}
+		
+		// Each amount is only worked out once until the coins change, e.g. when listItems checks every item and the
+		// customer then buys one of them
+		if (this.changeTable[change] == 0) {
+			boolean possible = policy.canGiveChange(change, this.currency, changeCoins());
+			this.changeTable[change] = possible ? CHANGE_POSSIBLE : CHANGE_IMPOSSIBLE;
+		}
+		return this.changeTable[change] == CHANGE_POSSIBLE;
+	}
+	
+	/**
+	 * Throws away the answers remembered by canGiveChange. Must be called whenever the machine's coins or the coins
+	 * inserted by the customer change, while holding the machine's lock.
+	 */
+	private void coinsChanged() {
+		this.changeTable = null;
+	}
+	
+	/**
+	 * Returns the coins that change could be given from if the customer's purchase went ahead,
+	 * which are the machine's coins and the coins the customer has inserted.
+	 * @return - The number of each coin, indexed by position in the currency table
+	 */
+	private int[] changeCoins() {
+		return this.escrow.isEmpty() ? this.coinCounts : this.escrow.addTo(this.coinCounts);
+	}
+	
+	/**
+	 * Checks that the total money still matches the value of the coins at the end of a change.
+	 * The first drift is recorded, and the listener, if there is one, is told as soon as the change has finished.
+	 * @param operation - The name of the operation that is finishing
+	 */
+	private void checkCash(String operation) {
+		int total = this.totalMoney;
+		int coins = countCoinValue();
+		if (total == coins) {
+			return;
+		}
+		
+		if (this.cashDrift == null) {
+			this.cashDrift = operation + ": total money " + this.currency.format(total / 100.0)
+					+ " but coins add up to " + this.currency.format(coins / 100.0);
+			reportFault("Cash drift");
+		}
+		
+		CashDriftListener listener = this.driftListener;
+		if (listener != null) {
+			report(() -> listener.cashDrift(this, operation, total / 100.0, coins / 100.0));
+		}
+	}
+	
+	/**
+	 * Adds up the value of the coins inside a vending machine from the amount of each coin.
+	 * Must be called while holding the machine's lock.
+	 * @return - The value of the coins, in pence
+	 */
+	private int countCoinValue() {
+		int res = 0;
+		for (int i = 0; i < this.coinCounts.length; i++) {
+			res += this.coinCounts[i] * this.currency.getDenomination(i).getValue();
+		}
+		return res;
+	}
+	
+	/**
+	 * Checks that the total money inside a vending machine matches the value of its coins.
+	 * @return - A boolean is returned to indicate if the cash balances
+	 */
+	public synchronized boolean isCashBalanced() {
+		return this.totalMoney == countCoinValue();
+	}
+	
+	/**
+	 * Returns a description of the first time the cash drifted out of balance.
+	 * @return - The operation and amounts involved, or null if the cash has never drifted
+	 */
+	public synchronized String getCashDrift() {
+		return this.cashDrift;
+	}
+	
+	/**
+	 * Converts an amount of money in pounds to pence, rounding away any floating point error.
+	 * @param pounds - The amount of money in pounds
+	 * @return - The amount of money in pence
+	 */
+	private static int toPence(double pounds) {
+		return (int)Math.round(pounds * 100);
 	}
 	
 	/**
 	 * Calculates the coins that will be needed for the users change.
-	 * If there are sufficient coins to give change, this method will call the changeGiver method.
+	 * If there are sufficient coins to give change, this method will call the giveChange method.
 	 * If there are not enough coins to give change, a string will be returned indicating this.
 	 * @return - A string displaying the change, or declaring that the change can not be given
 	 */
-	private String calculateChange(double change, int item) {
+	private String calculateChange(int change, double price) {
 		String res = "";
 		
-		// Work out the coin combination used to give change
-		int numOf5p = 0;
-		int numOf10p = 0;
-		int numOf20p = 0;
-		int numOf50p = 0;
-		int numOf1Pound = 0;
-		int numOf2Pound = 0;
-		int totalCoinUsed = 0;
-		double changeInPenceDouble = change*100;
-		double mathRound = Math.round(changeInPenceDouble);
-		int changeInPence = (int)mathRound;
-		
-		while(changeInPence != 0) {
-			if (((changeInPence % 200) < changeInPence) && (this.twoPound > 0)) {
-				this.twoPound--;
-				changeInPence -= 200;
-				numOf2Pound++; 
-				totalCoinUsed++;
-			} else if (((changeInPence % 100) < changeInPence) && (this.onePound > 0)) {
-				this.onePound--;
-				changeInPence -= 100;
-				numOf1Pound++; 
-				totalCoinUsed++; 
-			} else if (((changeInPence % 50) < changeInPence) && (this.fiftyPence > 0)) {
-				this.fiftyPence--;
-				changeInPence -= 50;
-				numOf50p++; 
-				totalCoinUsed++;
-			} else if (((changeInPence % 20) < changeInPence) && (this.twentyPence > 0)) {
-				this.twentyPence--;
-				changeInPence -= 20;
-				numOf20p++; 
-				totalCoinUsed++; 
-			} else if (((changeInPence % 10) < changeInPence) && (this.tenPence > 0)) {
-				this.tenPence--;
-				changeInPence -= 10;
-				numOf10p++; 
-				totalCoinUsed++;
-			} else if (((changeInPence % 5) < changeInPence) && (this.fivePence > 0)) {
-				this.fivePence--;
-				changeInPence -= 5;
-				numOf5p++; 
-				totalCoinUsed++;
-			} else {
-
-				// There are not enough coins to give the user the correct change
-				this.userMoney = 0.0;
-				
-				// All coins will stay in the machine
-				this.fivePence += numOf5p;
-				this.tenPence += numOf10p;
-				this.twentyPence += numOf20p;
-				this.fiftyPence += numOf50p;
-				this.onePound += numOf1Pound;
-				this.twoPound += numOf2Pound; 
-				
-				res += "\nCost: " + String.format("£%.2f", this.stock[item].getPrice());
-				res += "\nChange: Insufficient coins, no change given";
-				return res;
-				
-			}
+		// Ask the change policy for the coin combination used to give change
+		int[] coinsUsed = this.changePolicy.chooseCoins(change, this.currency, this.coinCounts);
+		
+		if (coinsUsed == null) {
+			
+			// There are not enough coins to give the user the correct change, so all coins will stay in the machine
+			this.userMoney = 0;
+			
+			res += "\nCost: " + this.currency.format(price);
+			res += "\nChange: Insufficient coins, no change given";
+			return res;
+			
 		}
 		
 		// Calculation complete, give the user their change
-		res += giveChange(change, item, numOf5p, numOf10p, numOf20p, numOf50p, numOf1Pound, numOf2Pound, totalCoinUsed);
+		res += giveChange(change, price, coinsUsed);
+		this.changePolicy.changeGiven(change, this.currency, coinsUsed);
 		return res;
 	}
 	
@@ -474,48 +1784,24 @@ public class VendingMachine {
 	 * Gives the user the various coin denominations needed for their change.
 	 * @return - A string displaying the change
 	 */
-	private String giveChange(double change, int item, int numOf5p, int numOf10p, int numOf20p, int numOf50p, int numOf1Pound, int numOf2Pound, int totalCoinUsed) {		
+	private String giveChange(int change, double price, int[] coinsUsed) {
 		String res = "";
 		
-		res += "\nCost: " + String.format("£%.2f", this.stock[item].getPrice());
-		res += "\nChange: " + String.format("£%.2f", change);
+		res += "\nCost: " + this.currency.format(price);
+		res += "\nChange: " + this.currency.format(change / 100.0);
 		
-		while (totalCoinUsed!=0) {
-			if (numOf2Pound != 0) {
-				res += "\n";
-				res += "> £2 Coins: " + numOf2Pound;
-				totalCoinUsed -= numOf2Pound;
-				numOf2Pound = 0;
-			} else if (numOf1Pound != 0) {
-				res += "\n";
-				res += "> £1 Coins: " + numOf1Pound;
-				totalCoinUsed -= numOf1Pound;
-				numOf1Pound = 0;
-			} else if (numOf50p != 0) {
-				res += "\n";
-				res += "> 50p Coins: " + numOf50p;
-				totalCoinUsed -= numOf50p;
-				numOf50p = 0;
-			} else if (numOf20p != 0) {
-				res += "\n";
-				res += "> 20p Coins: " + numOf20p;
-				totalCoinUsed -= numOf20p;
-				numOf20p = 0;
-			} else if (numOf10p != 0) {
-				res += "\n";
-				res += "> 10p Coins: " + numOf10p;
-				totalCoinUsed -= numOf10p;
-				numOf10p = 0;
-			} else if (numOf5p != 0) {
+		for (int i = coinsUsed.length - 1; i >= 0; i--) {
+			if (coinsUsed[i] != 0) {
 				res += "\n";
-				res += "> 5p Coins: " + numOf5p;
-				totalCoinUsed -= numOf5p;
-				numOf5p = 0;
+				res += "> " + describeCoin(i) + ": " + coinsUsed[i];
+				this.coinCounts[i] -= coinsUsed[i];
+				coinsChanged();
+				recordCoins(i, -coinsUsed[i]);
 			}
 		}
 		
 		// Reduce user money and total money
-		this.userMoney = 0.0;
+		this.userMoney = 0;
 		this.totalMoney -= change;
 		
 		return res;
@@ -0,0 +1,207 @@
+package vend;
+
+import java.util.Random;
+
+/**
+ * Checks that a purchase is refused before anything is dispensed when change can not be given,
+ * that the machine's remembered answers follow the coins as they change and are reused by a purchase,
+ * and that the change policies agree with working out every mix of coins by hand.
+ *
+ * Run with: javac -encoding UTF-8 -d out src/vend/*.java test/vend/*.java && java -cp out vend.ChangeFeasibilityTest
+ * @author Fergal Bittles
+ *
+ */
+public class ChangeFeasibilityTest {
+
+	private static int checks = 0;
+	private static int failures = 0;
+	
+	public static void main(String[] args) {
+		refusedBeforeDelivery();
+		insertedCoinsCanBeChange();
+		purchaseReusesListedAnswers();
+		policiesMatchEveryMix();
+		finish("ChangeFeasibilityTest");
+	}
+	
+	/**
+	 * An empty machine can not give 30p change from £1, so the item stays and the customer keeps their credit.
+	 * Once 10p coins are added, the same purchase goes ahead.
+	 */
+	private static void refusedBeforeDelivery() {
+		VendingMachine machine = emptyMachine();
+		
+		machine.insertCoin(5); // £1
+		check(machine.isExactChangeOnly(0), "the item shows exact change only");
+		
+		String res = machine.purchaseItem(0);
+		check(res.startsWith("Failure: Unable to give change"), "the purchase is refused (" + res + ")");
+		check(machine.getVendItem(0).getQty() == 5, "nothing is dispensed");
+		check(Math.round(machine.getUserMoney() * 100) == 100, "the customer keeps their £1 credit");
+		check(machine.isCashBalanced(), "the machine is still balanced");
+		
+		// The coins have changed, so the answer worked out above must not be used again
+		machine.setCoinCount(1, 3); // Three 10p coins
+		machine.setTotalMoney(0.3);
+		check(!machine.isExactChangeOnly(0), "the warning goes once there are coins for the change");
+		
+		res = machine.purchaseItem(0);
+		check(res.startsWith("Thanks"), "the purchase goes ahead with 10p coins in the machine (" + res + ")");
+		check(machine.getVendItem(0).getQty() == 4, "one item is dispensed");
+		check(machine.getCoinCount(1) == 0, "all three 10p coins are given as change");
+		check(machine.isCashBalanced(), "the machine is balanced after the sale");
+	}
+	
+	/**
+	 * The coins the customer inserts join the machine's coins when the purchase goes ahead,
+	 * so they can be used to make up the change.
+	 */
+	private static void insertedCoinsCanBeChange() {
+		VendingMachine machine = emptyMachine();
+		
+		// 50p + 20p + 20p + 20p for a 70p item, so the change is two of the customer's own 20p coins
+		machine.insertCoin(4);
+		machine.insertCoin(3);
+		machine.insertCoin(3);
+		machine.insertCoin(3);
+		
+		String res = machine.purchaseItem(0);
+		check(res.startsWith("Thanks"), "the change is made from the inserted coins (" + res + ")");
+		check(machine.getCoinCount(2) == 1, "one 20p coin is left in the machine");
+		check(machine.isCashBalanced(), "the machine is balanced after the sale");
+	}
+	
+	/**
+	 * Lists the items after the customer has inserted their coins, and then buys one.
+	 * The purchase must use the answer worked out while listing, rather than asking the change policy again.
+	 */
+	private static void purchaseReusesListedAnswers() {
+		int[] asked = new int[1];
+		ChangePolicy balanced = new BalancedChangePolicy();
+		VendingMachine machine = new VendingMachine("Change Test", 5);
+		machine.addNewItem(new VendItem("Crisps", 0.7, 5));
+		machine.setChangePolicy(new ChangePolicy() {
+			public boolean canGiveChange(int change, CurrencySet currency, int[] coinCounts) {
+				asked[0]++;
+				return balanced.canGiveChange(change, currency, coinCounts);
+			}
+			
+			public int[] chooseCoins(int change, CurrencySet currency, int[] coinCounts) {
+				return balanced.chooseCoins(change, currency, coinCounts);
+			}
+			
+			public void changeGiven(int change, CurrencySet currency, int[] coinsUsed) {
+				balanced.changeGiven(change, currency, coinsUsed);
+			}
+		});
+		
+		machine.insertCoin(5); // £1
+		machine.listItems();
+		int listed = asked[0];
+		check(listed > 0, "listing the items asks the change policy");
+		
+		String res = machine.purchaseItem(0);
+		check(res.startsWith("Thanks"), "the purchase goes ahead (" + res + ")");
+		check(asked[0] == listed, "the purchase reuses the answer worked out while listing (" + (asked[0] - listed) + " more asked)");
+		
+		machine.insertCoin(5);
+		machine.listItems();
+		check(asked[0] > listed, "the change policy is asked again once the coins have changed");
+	}
+	
+	/**
+	 * Compares each policy against every mix of coins for random coin counts.
+	 * The balanced policy must find a mix whenever one exists, and the greedy policy must never claim a mix that does not.
+	 */
+	private static void policiesMatchEveryMix() {
+		CurrencySet currency = CurrencySet.STERLING;
+		ChangePolicy balanced = new BalancedChangePolicy();
+		ChangePolicy greedy = new GreedyChangePolicy();
+		Random random = new Random(26);
+		int largest = currency.getDenomination(currency.size() - 1).getValue();
+		
+		int mismatches = 0;
+		int greedyWrong = 0;
+		for (int trial = 0; trial < 500; trial++) {
+			int[] coins = new int[currency.size()];
+			for (int i = 0; i < coins.length; i++) {
+				coins[i] = random.nextInt(4);
+			}
+			
+			for (int change = 0; change <= largest; change += 5) {
+				boolean possible = canMake(change, currency, coins, coins.length - 1);
+				if (balanced.canGiveChange(change, currency, coins) != possible) {
+					mismatches++;
+				}
+				if (greedy.canGiveChange(change, currency, coins) && !possible) {
+					greedyWrong++;
+				}
+			}
+		}
+		
+		check(mismatches == 0, "the balanced policy finds a mix exactly when one exists (" + mismatches + " mismatches)");
+		check(greedyWrong == 0, "the greedy policy never claims a mix that does not exist (" + greedyWrong + " times)");
+	}
+	
+	/**
+	 * Works out by hand if an amount can be made from some of the coins, trying every count of every coin.
+	 * @param amount - The amount, in pence
+	 * @param currency - The currency
+	 * @param coins - The number of each coin
+	 * @param index - The largest coin that may be used
+	 * @return - A boolean is returned to indicate if the amount can be made
+	 */
+	private static boolean canMake(int amount, CurrencySet currency, int[] coins, int index) {
+		if (amount == 0) {
+			return true;
+		}
+		if (index < 0) {
+			return false;
+		}
+		
+		Denomination coin = currency.getDenomination(index);
+		int most = coin.isNote() ? 0 : Math.min(coins[index], amount / coin.getValue());
+		for (int used = most; used >= 0; used--) {
+			if (canMake(amount - used * coin.getValue(), currency, coins, index - 1)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Creates a machine with no coins at all, holding one 70p item.
+	 * @return - The vending machine
+	 */
+	private static VendingMachine emptyMachine() {
+		VendingMachine machine = new VendingMachine("Change Test", 5);
+		machine.reset();
+		machine.addNewItem(new VendItem("Crisps", 0.7, 5));
+		return machine;
+	}
+	
+	/**
+	 * Records the result of one check, and prints it if it failed.
+	 * @param passed - True if the check passed
+	 * @param description - What was checked
+	 */
+	private static void check(boolean passed, String description) {
+		checks++;
+		if (!passed) {
+			failures++;
+			System.out.println("FAIL " + description);
+		}
+	}
+	
+	/**
+	 * Prints the result of the test, and exits with 1 if any check failed.
+	 * @param name - The name of the test
+	 */
+	private static void finish(String name) {
+		System.out.println((failures == 0 ? "PASS " : "FAIL ") + name + ": " + (checks - failures) + "/" + checks + " checks passed");
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+	
+}
@@ -0,0 +1,199 @@
+package vend;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks that the change lines used by the journal and replicas describe the whole of a machine:
+ * a copy built from them matches the machine, including its PriceTable and cashless money,
+ * and a line that can not be applied is reported.
+ *
+ * Run with: javac -encoding UTF-8 -d out src/vend/*.java test/vend/*.java && java -cp out vend.ChangeLinesTest
+ * @author Fergal Bittles
+ *
+ */
+public class ChangeLinesTest {
+
+	private static int checks = 0;
+	private static int failures = 0;
+	
+	public static void main(String[] args) {
+		wholeMachine();
+		pricesAndCashless();
+		invalidLines();
+		finish("ChangeLinesTest");
+	}
+	
+	/**
+	 * Describes a machine as change lines from empty, applies them to a new machine, and compares the two.
+	 * Then makes more changes and checks that only those changes are needed to keep the copy the same.
+	 */
+	private static void wholeMachine() {
+		// The owner can hold a comma in a change line, although not in a CSV file
+		VendingMachine machine = sampleMachine("Smith, Jones & Co");
+		machine.insertCoin(4); // A customer part way through a purchase
+		
+		MachineChanges changes = new MachineChanges(machine.getCurrency().size());
+		List<String> lines = changes.diff(machine);
+		VendingMachine copy = new VendingMachine("Copy", 5, CurrencySet.EURO);
+		check(copy.applyChanges(lines) == null, "every change line applies");
+		check(sameMachine(machine, copy), "the copy matches the machine");
+		check(Arrays.equals(machine.getInsertedCoins(), copy.getInsertedCoins()), "the copy holds the customer's coins");
+		
+		machine.insertCoin(3);
+		machine.purchaseItem(1);
+		machine.restockItem(0, 2);
+		machine.setStatus(Status.SERVICE_MODE);
+		
+		lines = changes.diff(machine);
+		check(copy.applyChanges(lines) == null, "the later change lines apply");
+		check(sameMachine(machine, copy), "the copy still matches after a sale, a restock and a status change");
+		check(changes.diff(machine).isEmpty(), "nothing is written when nothing has changed");
+	}
+	
+	/**
+	 * Gives a machine a PriceTable and cashless takings, and checks that a copy follows both.
+	 */
+	private static void pricesAndCashless() {
+		VendingMachine machine = sampleMachine("Smith & Co");
+		MachineChanges changes = new MachineChanges(machine.getCurrency().size());
+		VendingMachine copy = new VendingMachine("Copy", 5, CurrencySet.EURO);
+		copy.applyChanges(changes.diff(machine));
+		
+		// The offer includes a product that is not in the machine, which the copy has no need of
+		Map<Integer, Double> offer = new HashMap<Integer, Double>();
+		offer.put(machine.getVendItem(2).getProduct().getProductId(), 0.9);
+		offer.put(ProductCatalog.getDefault().getProduct("Not Stocked", 1.0).getProductId(), 0.5);
+		machine.setPriceTable(new PriceTable("Lunchtime, Weekdays", offer, CurrencySet.EURO));
+		machine.setCashlessMoney(150);
+		
+		List<String> lines = changes.diff(machine);
+		check(copy.applyChanges(lines) == null, "the price and cashless lines apply (" + lines + ")");
+		check(samePrices(machine, copy), "the copy sells at the table's prices");
+		check(copy.getPriceTable().getName().equals("Lunchtime, Weekdays"), "the table's name is kept");
+		check(Math.round(copy.getCashlessMoney() * 100) == 150, "the copy holds the cashless money");
+		
+		// A new item whose product the table already includes must be sold at the table's price as well
+		machine.addNewItem(new VendItem("Chocolate", 1.15, 2));
+		copy.applyChanges(changes.diff(machine));
+		check(samePrices(machine, copy), "a new item is sold at the table's price");
+		
+		machine.setPriceTable(null);
+		copy.applyChanges(changes.diff(machine));
+		check(copy.getPriceTable() == PriceTable.BASE_PRICES, "going back to the unit prices is copied");
+		
+		// A MachineData file leaves the prices and cashless money out, so a journal starts each segment with them
+		machine.setPriceTable(new PriceTable("Evening", offer, CurrencySet.EURO));
+		VendingMachine fresh = new VendingMachine("Fresh", 5, CurrencySet.EURO);
+		fresh.applyChanges(new MachineChanges(machine.getCurrency().size()).diff(machine));
+		fresh.setPriceTable(null);
+		fresh.setCashlessMoney(0);
+		check(fresh.applyChanges(MachineChanges.unsavedLines(machine)) == null, "the lines a file leaves out apply");
+		check(samePrices(machine, fresh) && Math.round(fresh.getCashlessMoney() * 100) == 150, "they restore the prices and cashless money");
+	}
+	
+	/**
+	 * Applies lines that must be refused.
+	 */
+	private static void invalidLines() {
+		VendingMachine machine = sampleMachine("Smith & Co");
+		VendingMachine copy = new VendingMachine("Copy", 5, CurrencySet.EURO);
+		copy.applyChanges(new MachineChanges(machine.getCurrency().size()).diff(machine));
+		
+		check(copy.applyChanges(Arrays.asList("Z,1")) != null, "an unknown change line is rejected");
+		check(copy.applyChanges(Arrays.asList("I,1,2")) != null, "inserted coins for the wrong currency are rejected");
+		check(copy.applyChanges(Arrays.asList("P,9=50,Offer")) != null, "a price for an item that is not in the machine is rejected");
+		check(copy.applyChanges(Arrays.asList("L,-5")) != null, "negative cashless money is rejected");
+		
+		VendItem first = machine.getVendItem(0);
+		String again = "A," + first.getItemId() + ",1," + first.getPrice() + "," + first.getName();
+		check(copy.applyChanges(Arrays.asList(again)) != null, "an item that is already in the machine is rejected");
+		check(copy.getItemCount() == machine.getItemCount(), "the rejected item is not added");
+	}
+	
+	/**
+	 * Creates a machine in euros with three items and a sale.
+	 * @param owner - The owner of the machine
+	 * @return - The vending machine
+	 */
+	private static VendingMachine sampleMachine(String owner) {
+		VendingMachine machine = new VendingMachine(owner, 5, CurrencySet.EURO);
+		machine.addNewItem(new VendItem("Water", 0.5, 3));
+		machine.addNewItem(new VendItem("Crisps", 0.7, 6));
+		machine.addNewItem(new VendItem("Chocolate", 1.15, 10));
+		machine.insertCoin(5);
+		machine.purchaseItem(2);
+		return machine;
+	}
+	
+	/**
+	 * Compares the owner, size, money, coins and items of two machines.
+	 * @param a - The first vending machine
+	 * @param b - The second vending machine
+	 * @return - A boolean is returned to indicate if the machines match
+	 */
+	private static boolean sameMachine(VendingMachine a, VendingMachine b) {
+		if (!a.getOwner().equals(b.getOwner()) || a.getMaxItems() != b.getMaxItems() || a.getMachineStatus() != b.getMachineStatus()
+				|| Math.round(a.getTotalMoney() * 100) != Math.round(b.getTotalMoney() * 100) || a.getItemCount() != b.getItemCount()) {
+			return false;
+		}
+		for (int i = 0; i < a.getCurrency().size(); i++) {
+			if (a.getCoinCount(i) != b.getCoinCount(i)) {
+				return false;
+			}
+		}
+		for (int i = 0; i < a.getItemCount(); i++) {
+			VendItem x = a.getVendItem(i);
+			VendItem y = b.getVendItem(i);
+			if (!x.getName().equals(y.getName()) || x.getQty() != y.getQty() || Math.round(x.getPrice() * 100) != Math.round(y.getPrice() * 100)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Compares the price that each item is currently sold at in two machines.
+	 * @param a - The first vending machine
+	 * @param b - The second vending machine
+	 * @return - A boolean is returned to indicate if every price matches
+	 */
+	private static boolean samePrices(VendingMachine a, VendingMachine b) {
+		if (a.getItemCount() != b.getItemCount()) {
+			return false;
+		}
+		for (int i = 0; i < a.getItemCount(); i++) {
+			if (Math.round(a.getPrice(i) * 100) != Math.round(b.getPrice(i) * 100)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Records the result of one check, and prints it if it failed.
+	 * @param passed - True if the check passed
+	 * @param description - What was checked
+	 */
+	private static void check(boolean passed, String description) {
+		checks++;
+		if (!passed) {
+			failures++;
+			System.out.println("FAIL " + description);
+		}
+	}
+	
+	/**
+	 * Prints the result of the test, and exits with 1 if any check failed.
+	 * @param name - The name of the test
+	 */
+	private static void finish(String name) {
+		System.out.println((failures == 0 ? "PASS " : "FAIL ") + name + ": " + (checks - failures) + "/" + checks + " checks passed");
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+	
+}
@@ -0,0 +1,112 @@
+package vend;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Checks that a machine handed to a FleetNode keeps its currency, prices, coins and items,
+ * and that it moves to a second node with them when the ring changes.
+ *
+ * Run with: javac -encoding UTF-8 -d out src/vend/*.java test/vend/*.java && java -cp out vend.FleetHandoffTest
+ * @author Fergal Bittles
+ *
+ */
+public class FleetHandoffTest {
+
+	private static final long TIMEOUT_MILLIS = 10000;
+	
+	private static int checks = 0;
+	private static int failures = 0;
+	
+	public static void main(String[] args) throws IOException, InterruptedException {
+		VendingMachine machine = new VendingMachine("Café", 5, CurrencySet.EURO);
+		machine.addNewItem(new VendItem("Water", 0.5, 3));
+		machine.addNewItem(new VendItem("Crisps", 0.7, 6));
+		Map<Integer, Double> offer = new HashMap<Integer, Double>();
+		offer.put(machine.getVendItem(1).getProduct().getProductId(), 0.6);
+		machine.setPriceTable(new PriceTable("Offer", offer, CurrencySet.EURO));
+		machine.insertCoin(4); // A customer part way through a purchase
+		
+		FleetNode first = FleetNode.start(0);
+		FleetNode second = FleetNode.start(0);
+		FleetRouter router = new FleetRouter(Arrays.asList(first.getName()));
+		try {
+			router.addMachine("cafe", machine);
+			VendingMachine held = first.getMachine("cafe");
+			check(held != null, "the first node holds the machine");
+			if (held != null) {
+				check(sameMachine(machine, held), "the machine arrives with its currency, prices, coins and items");
+			}
+			
+			router.setNodes(Arrays.asList(second.getName()));
+			long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+			while (second.getMachine("cafe") == null && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			VendingMachine moved = second.getMachine("cafe");
+			check(moved != null, "the machine moves to the second node when the ring changes");
+			if (moved != null) {
+				check(sameMachine(machine, moved), "the moved machine keeps its currency, prices, coins and items");
+			}
+		} finally {
+			router.close();
+			first.close();
+			second.close();
+		}
+		
+		finish("FleetHandoffTest");
+	}
+	
+	/**
+	 * Compares the currency, money, coins, inserted coins and item prices of two machines.
+	 * @param a - The first vending machine
+	 * @param b - The second vending machine
+	 * @return - A boolean is returned to indicate if the machines match
+	 */
+	private static boolean sameMachine(VendingMachine a, VendingMachine b) {
+		synchronized (b) {
+			if (a.getCurrency() != b.getCurrency() || Math.round(a.getTotalMoney() * 100) != Math.round(b.getTotalMoney() * 100)
+					|| !Arrays.equals(a.getInsertedCoins(), b.getInsertedCoins()) || a.getItemCount() != b.getItemCount()) {
+				return false;
+			}
+			for (int i = 0; i < a.getCurrency().size(); i++) {
+				if (a.getCoinCount(i) != b.getCoinCount(i)) {
+					return false;
+				}
+			}
+			for (int i = 0; i < a.getItemCount(); i++) {
+				if (a.getVendItem(i).getQty() != b.getVendItem(i).getQty() || Math.round(a.getPrice(i) * 100) != Math.round(b.getPrice(i) * 100)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * Records the result of one check, and prints it if it failed.
+	 * @param passed - True if the check passed
+	 * @param description - What was checked
+	 */
+	private static void check(boolean passed, String description) {
+		checks++;
+		if (!passed) {
+			failures++;
+			System.out.println("FAIL " + description);
+		}
+	}
+	
+	/**
+	 * Prints the result of the test, and exits with 1 if any check failed.
+	 * @param name - The name of the test
+	 */
+	private static void finish(String name) {
+		System.out.println((failures == 0 ? "PASS " : "FAIL ") + name + ": " + (checks - failures) + "/" + checks + " checks passed");
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+	
+}
@@ -0,0 +1,162 @@
+package vend;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Checks that item IDs are unique when many threads create items at once,
+ * that an ID claimed by a restore is never handed out, even when it falls inside a leased block,
+ * and that an ID can not be claimed once it has been handed out or claimed.
+ *
+ * Run with: javac -encoding UTF-8 -d out src/vend/*.java test/vend/*.java && java -cp out vend.ItemIdTest
+ * @author Fergal Bittles
+ *
+ */
+public class ItemIdTest {
+
+	private static final int THREADS = 8;
+	private static final int ITEMS = 20000; // For each thread
+	
+	private static int checks = 0;
+	private static int failures = 0;
+	
+	public static void main(String[] args) throws InterruptedException {
+		concurrentItems();
+		claimInsideBlock();
+		claimAhead();
+		finish("ItemIdTest");
+	}
+	
+	/**
+	 * Creates items on several threads at once, while another thread restores items with saved IDs.
+	 */
+	private static void concurrentItems() throws InterruptedException {
+		Set<Integer> ids = ConcurrentHashMap.newKeySet();
+		int[] duplicates = new int[1];
+		int[] refused = new int[1];
+		
+		Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++) {
+			threads[t] = new Thread(() -> {
+				for (int n = 0; n < ITEMS; n++) {
+					if (!ids.add(new VendItem("Test", 0.5).getItemId())) {
+						synchronized (duplicates) {
+							duplicates[0]++;
+						}
+					}
+				}
+			});
+		}
+		
+		// Saved IDs well above anything handed out so far, as a restore would claim them. They are claimed highest first,
+		// as claiming one only moves the high-water mark to the ID after it, which another thread may lease straight away
+		int saved = ItemIdAllocator.getDefault().getHighWaterMark() + THREADS * ITEMS * 2;
+		Thread restorer = new Thread(() -> {
+			for (int n = 999; n >= 0; n--) {
+				try {
+					new VendItem(ProductCatalog.getDefault().getProduct("Saved", 0.5), 1, saved + n);
+				} catch (IllegalArgumentException e) {
+					refused[0]++;
+				}
+			}
+		});
+		
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		restorer.start();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		restorer.join();
+		
+		check(duplicates[0] == 0, "no ID is handed out twice (" + duplicates[0] + " were)");
+		check(ids.size() == THREADS * ITEMS, "every item has its own ID");
+		check(refused[0] == 0, "every saved ID can be claimed (" + refused[0] + " were refused)");
+		for (int n = 0; n < 1000; n++) {
+			if (ids.contains(saved + n)) {
+				check(false, "saved ID " + (saved + n) + " is never handed out to a new item");
+				break;
+			}
+		}
+		check(ItemIdAllocator.getDefault().getHighWaterMark() > saved + 999, "the high-water mark is past every saved ID");
+		
+		// A second restore of the same items would give two items the same ID
+		boolean thrown = false;
+		try {
+			new VendItem(ProductCatalog.getDefault().getProduct("Saved", 0.5), 1, saved);
+		} catch (IllegalArgumentException e) {
+			thrown = true;
+		}
+		check(thrown, "an item can not be restored with an ID that has already been claimed");
+	}
+	
+	/**
+	 * Claims an ID in the middle of the block this thread is using, which must cut the block short.
+	 */
+	private static void claimInsideBlock() {
+		ItemIdAllocator ids = new ItemIdAllocator(10);
+		
+		int first = ids.nextId();
+		check(first == 1, "the first ID is 1");
+		check(ids.claim(5), "an ID in the block that has not been handed out can be claimed");
+		check(!ids.claim(5), "an ID can not be claimed twice");
+		check(!ids.claim(first), "an ID that has been handed out can not be claimed");
+		check(ids.claim(7), "an ID after the claimed ID in the block can still be claimed");
+		
+		for (int n = 0; n < 20; n++) {
+			int id = ids.nextId();
+			check(id < 5 || id > 10, "IDs 5 to 10 are never handed out once 5 is claimed (got " + id + ")");
+		}
+	}
+	
+	/**
+	 * Claims IDs that have not been leased yet, which must move the high-water mark past them.
+	 */
+	private static void claimAhead() {
+		ItemIdAllocator ids = new ItemIdAllocator(10);
+		
+		ids.claim(100);
+		check(ids.getHighWaterMark() == 101, "claiming 100 moves the high-water mark to 101");
+		check(!ids.claim(100), "claiming 100 again fails");
+		
+		int id = ids.nextId();
+		check(id > 100, "the next ID (" + id + ") is after the claimed ID");
+		
+		check(!ids.claim(id), "an ID that has been handed out can not be claimed");
+		
+		// The IDs below 100 were skipped over rather than handed out, so they can still be claimed, once each
+		int before = ids.getHighWaterMark();
+		check(ids.claim(3), "an ID that was skipped over can be claimed");
+		check(!ids.claim(3), "an ID that was skipped over can only be claimed once");
+		check(ids.claim(2) && ids.claim(4), "the IDs either side of a claimed ID can still be claimed");
+		check(ids.getHighWaterMark() == before, "claiming an old ID does not move the high-water mark");
+		check(ids.nextId() == id + 1, "the block carries on after claiming an old ID");
+		check(!ids.claim(0), "0 is never a valid ID");
+	}
+	
+	/**
+	 * Records the result of one check, and prints it if it failed.
+	 * @param passed - True if the check passed
+	 * @param description - What was checked
+	 */
+	private static void check(boolean passed, String description) {
+		checks++;
+		if (!passed) {
+			failures++;
+			System.out.println("FAIL " + description);
+		}
+	}
+	
+	/**
+	 * Prints the result of the test, and exits with 1 if any check failed.
+	 * @param name - The name of the test
+	 */
+	private static void finish(String name) {
+		System.out.println((failures == 0 ? "PASS " : "FAIL ") + name + ": " + (checks - failures) + "/" + checks + " checks passed");
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+	
+}
@@ -0,0 +1,181 @@
+package vend;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks that a machine saved to a CSV file restores the same, that a file saved while customers are buying
+ * is never half way through a sale, and that an item whose ID has already been issued is left out of a restore.
+ *
+ * Run with: javac -encoding UTF-8 -d out src/vend/*.java test/vend/*.java && java -cp out vend.MachineDataTest
+ * @author Fergal Bittles
+ *
+ */
+public class MachineDataTest {
+
+	private static final int PURCHASES = 50000;
+	
+	private static int checks = 0;
+	private static int failures = 0;
+	
+	public static void main(String[] args) throws IOException, InterruptedException {
+		roundTrip();
+		issuedIds();
+		saveWhileSelling();
+		finish("MachineDataTest");
+	}
+	
+	/**
+	 * Saves a machine and restores it with its own catalog and allocator, as the saved IDs are still in use here.
+	 */
+	private static void roundTrip() throws IOException {
+		VendingMachine machine = sampleMachine();
+		File file = tempFile();
+		MachineData.save(machine, file);
+		
+		RestoreResult result = MachineData.restore(file, new ProductCatalog(CurrencySet.EURO), new ItemIdAllocator(1));
+		check(result.isRestored(), "the saved file restores (" + result + ")");
+		check(result.getSkipped().isEmpty(), "no item is left out");
+		if (result.isRestored()) {
+			VendingMachine copy = result.getMachine();
+			check(sameMachine(machine, copy), "the restored machine matches");
+			check(copy.getCurrency() == machine.getCurrency(), "the currency is restored");
+			check(copy.getVendItem(2).getItemId() == machine.getVendItem(2).getItemId(), "item IDs are kept");
+		}
+	}
+	
+	/**
+	 * Restores a file whose items are still in use, so every one of their IDs has already been issued.
+	 */
+	private static void issuedIds() throws IOException {
+		VendingMachine machine = sampleMachine();
+		File file = tempFile();
+		MachineData.save(machine, file);
+		
+		RestoreResult result = MachineData.restore(file);
+		check(result.isRestored(), "a file whose IDs are in use still restores (" + result + ")");
+		check(result.getSkipped().size() == machine.getItemCount(), "every item whose ID is in use is left out and reported");
+		if (result.isRestored()) {
+			check(result.getMachine().getItemCount() == 0, "no two items share an ID");
+		}
+	}
+	
+	/**
+	 * Saves a machine over and over while another thread buys from it, and checks that every file balances.
+	 */
+	private static void saveWhileSelling() throws IOException, InterruptedException {
+		VendingMachine machine = sampleMachine();
+		AtomicBoolean done = new AtomicBoolean();
+		
+		Thread buyer = new Thread(() -> {
+			Random random = new Random(39);
+			for (int n = 0; n < PURCHASES; n++) {
+				machine.insertCoin(5 + random.nextInt(2)); // €1 or €2, so change is given
+				if (machine.purchaseItem(random.nextInt(machine.getItemCount())).startsWith("Failure")) {
+					machine.returnCoins();
+					machine.restockItem(random.nextInt(machine.getItemCount()), 5);
+					if (machine.getMachineStatus() == Status.SERVICE_MODE) {
+						machine.setStatus(Status.VENDING_MODE);
+					}
+				}
+			}
+			done.set(true);
+		});
+		buyer.start();
+		
+		File file = tempFile();
+		int saves = 0;
+		String problem = null;
+		while (!done.get() && problem == null) {
+			MachineData.save(machine, file);
+			RestoreResult result = MachineData.restore(file, new ProductCatalog(CurrencySet.EURO), new ItemIdAllocator(1));
+			if (!result.isRestored()) {
+				problem = result.toString();
+			} else if (!result.getMachine().isCashBalanced()) {
+				problem = "total money does not match the coins (" + result.getMachine().getCashDrift() + ")";
+			}
+			saves++;
+		}
+		buyer.join();
+		
+		check(saves > 0, "the machine was saved while it was selling");
+		check(problem == null, "every file saved while selling balances (" + problem + ")");
+	}
+	
+	/**
+	 * Creates a temporary file that is deleted when the test ends.
+	 * @return - The file
+	 */
+	private static File tempFile() throws IOException {
+		File file = File.createTempFile("machinedata", ".csv");
+		file.deleteOnExit();
+		return file;
+	}
+	
+	/**
+	 * Creates a machine in euros with three items and a sale.
+	 * @return - The vending machine
+	 */
+	private static VendingMachine sampleMachine() {
+		VendingMachine machine = new VendingMachine("Smith & Co", 5, CurrencySet.EURO);
+		machine.addNewItem(new VendItem("Water", 0.5, 3));
+		machine.addNewItem(new VendItem("Crisps", 0.7, 6));
+		machine.addNewItem(new VendItem("Chocolate", 1.15, 10));
+		machine.insertCoin(5);
+		machine.purchaseItem(2);
+		return machine;
+	}
+	
+	/**
+	 * Compares the owner, size, money, coins and items of two machines.
+	 * @param a - The first vending machine
+	 * @param b - The second vending machine
+	 * @return - A boolean is returned to indicate if the machines match
+	 */
+	private static boolean sameMachine(VendingMachine a, VendingMachine b) {
+		if (!a.getOwner().equals(b.getOwner()) || a.getMaxItems() != b.getMaxItems() || a.getMachineStatus() != b.getMachineStatus()
+				|| Math.round(a.getTotalMoney() * 100) != Math.round(b.getTotalMoney() * 100) || a.getItemCount() != b.getItemCount()) {
+			return false;
+		}
+		for (int i = 0; i < a.getCurrency().size(); i++) {
+			if (a.getCoinCount(i) != b.getCoinCount(i)) {
+				return false;
+			}
+		}
+		for (int i = 0; i < a.getItemCount(); i++) {
+			VendItem x = a.getVendItem(i);
+			VendItem y = b.getVendItem(i);
+			if (!x.getName().equals(y.getName()) || x.getQty() != y.getQty() || Math.round(x.getPrice() * 100) != Math.round(y.getPrice() * 100)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Records the result of one check, and prints it if it failed.
+	 * @param passed - True if the check passed
+	 * @param description - What was checked
+	 */
+	private static void check(boolean passed, String description) {
+		checks++;
+		if (!passed) {
+			failures++;
+			System.out.println("FAIL " + description);
+		}
+	}
+	
+	/**
+	 * Prints the result of the test, and exits with 1 if any check failed.
+	 * @param name - The name of the test
+	 */
+	private static void finish(String name) {
+		System.out.println((failures == 0 ? "PASS " : "FAIL ") + name + ": " + (checks - failures) + "/" + checks + " checks passed");
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+	
+}
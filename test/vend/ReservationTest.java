@@ -0,0 +1,121 @@
+package vend;
+
+/**
+ * Checks that a reserved unit can only be bought with its reservation, that a reservation expires when its wheel
+ * moves past it, and that a reservation stays on its own wheel when the machine is given a new one.
+ *
+ * Run with: javac -encoding UTF-8 -d out src/vend/*.java test/vend/*.java && java -cp out vend.ReservationTest
+ * @author Fergal Bittles
+ *
+ */
+public class ReservationTest {
+
+	private static int checks = 0;
+	private static int failures = 0;
+	
+	public static void main(String[] args) {
+		reservedUnitIsHeld();
+		expiry();
+		swappedWheel();
+		finish("ReservationTest");
+	}
+	
+	/**
+	 * Reserves the last unit of an item, so only the reservation can buy it.
+	 */
+	private static void reservedUnitIsHeld() {
+		VendingMachine machine = sampleMachine(new ReservationWheel(8, 1000));
+		
+		Reservation res = machine.reserveItem(0, 5);
+		check(res != null && res.isActive(), "the last unit can be reserved");
+		check(machine.reserveItem(0, 5) == null, "a unit that is already reserved can not be reserved again");
+		check(machine.findByQty(1).length == 0, "the reserved unit can not be found by quantity");
+		
+		machine.insertCoin(4);
+		machine.insertCoin(3);
+		check(machine.purchaseItem(0).startsWith("Failure"), "the reserved unit can not be bought without the reservation");
+		String bought = machine.purchaseReserved(res);
+		check(bought.startsWith("Thanks"), "the reservation buys the unit (" + bought + ")");
+		check(!res.isActive(), "the reservation has been used");
+		check(res.getWheel().getPending() == 0, "the used reservation is taken off the wheel");
+	}
+	
+	/**
+	 * Moves a wheel on by hand until a reservation expires.
+	 */
+	private static void expiry() {
+		ReservationWheel wheel = new ReservationWheel(4, 1000);
+		VendingMachine machine = sampleMachine(wheel);
+		
+		// Ten ticks on a wheel of four buckets, so the reservation goes round the wheel more than once
+		Reservation res = machine.reserveItem(0, 10);
+		for (int n = 0; n < 9; n++) {
+			wheel.tick();
+		}
+		check(res.isActive(), "the reservation is still held before it is due");
+		check(wheel.tick() == 1, "the reservation expires when it is due");
+		check(!res.isActive(), "the expired reservation can not be used");
+		check(machine.getVendItem(0).getAvailableQty() == 1, "the expired unit can be bought again");
+		check(machine.findByQty(1).length == 1, "the expired unit can be found by quantity again");
+	}
+	
+	/**
+	 * Gives a machine a new wheel while a reservation is held on the old one.
+	 */
+	private static void swappedWheel() {
+		ReservationWheel first = new ReservationWheel(8, 1000);
+		ReservationWheel second = new ReservationWheel(8, 1000);
+		VendingMachine machine = sampleMachine(first);
+		machine.restockItem(0, 1);
+		
+		Reservation old = machine.reserveItem(0, 5);
+		machine.setReservationWheel(second);
+		Reservation current = machine.reserveItem(0, 5);
+		check(old.getWheel() == first && current.getWheel() == second, "each reservation is on the wheel it was made on");
+		
+		check(!second.cancel(old), "a wheel does not cancel a reservation from another wheel");
+		check(machine.cancelReservation(old), "the old reservation can be cancelled");
+		check(first.getPending() == 0, "the old reservation is taken off the old wheel");
+		check(second.getPending() == 1, "the new reservation is left on the new wheel");
+		check(machine.cancelReservation(current), "the new reservation can be cancelled");
+		check(second.getPending() == 0, "the new reservation is taken off the new wheel");
+		check(machine.getVendItem(0).getAvailableQty() == 2, "both units can be bought again");
+	}
+	
+	/**
+	 * Creates a machine with one unit of one item, whose reservations are expired by a wheel that is moved on by hand.
+	 * @param wheel - The wheel used to expire reservations
+	 * @return - The vending machine
+	 */
+	private static VendingMachine sampleMachine(ReservationWheel wheel) {
+		VendingMachine machine = new VendingMachine("Reservation Test", 5);
+		machine.setReservationWheel(wheel);
+		machine.addNewItem(new VendItem("Crisps", 0.7, 1));
+		return machine;
+	}
+	
+	/**
+	 * Records the result of one check, and prints it if it failed.
+	 * @param passed - True if the check passed
+	 * @param description - What was checked
+	 */
+	private static void check(boolean passed, String description) {
+		checks++;
+		if (!passed) {
+			failures++;
+			System.out.println("FAIL " + description);
+		}
+	}
+	
+	/**
+	 * Prints the result of the test, and exits with 1 if any check failed.
+	 * @param name - The name of the test
+	 */
+	private static void finish(String name) {
+		System.out.println((failures == 0 ? "PASS " : "FAIL ") + name + ": " + (checks - failures) + "/" + checks + " checks passed");
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+	
+}
@@ -0,0 +1,122 @@
+package vend;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks that a RestockPlanner can be asked for forecasts while the machines it plans for are selling,
+ * without either side waiting for the other for ever, and that its forecasts follow the machine's stock.
+ *
+ * Run with: javac -encoding UTF-8 -d out src/vend/*.java test/vend/*.java && java -cp out vend.RestockPlannerTest
+ * @author Fergal Bittles
+ *
+ */
+public class RestockPlannerTest {
+
+	private static final int ITEMS = 5;
+	private static final int PURCHASES = 3000;
+	private static final long TIMEOUT_MILLIS = 30000;
+	
+	private static int checks = 0;
+	private static int failures = 0;
+	
+	public static void main(String[] args) throws InterruptedException {
+		VendingMachine machine = new VendingMachine("Planner Test", ITEMS);
+		for (int i = 0; i < ITEMS; i++) {
+			machine.addNewItem(new VendItem("Snack " + i, 0.7, 10));
+		}
+		
+		RestockPlanner planner = new RestockPlanner();
+		planner.addMachine("Library", machine);
+		
+		AtomicBoolean done = new AtomicBoolean();
+		int[] forecasts = new int[1];
+		
+		// Sales tell the planner about themselves while holding the machine's lock,
+		// and the planner takes a snapshot of the machine when asked for forecasts
+		Thread buyer = new Thread(() -> {
+			Random random = new Random(47);
+			for (int n = 0; n < PURCHASES; n++) {
+				machine.insertCoin(4);
+				machine.insertCoin(3);
+				int item = random.nextInt(ITEMS);
+				if (machine.purchaseItem(item).startsWith("Failure")) {
+					machine.returnCoins();
+					machine.restockItem(item, 10);
+					if (machine.getMachineStatus() == Status.SERVICE_MODE) {
+						machine.setStatus(Status.VENDING_MODE);
+					}
+				}
+			}
+			done.set(true);
+		});
+		Thread reader = new Thread(() -> {
+			while (!done.get()) {
+				planner.getSoonest(3);
+				machine.getSnapshot();
+				forecasts[0]++;
+			}
+		});
+		buyer.setDaemon(true);
+		reader.setDaemon(true);
+		
+		buyer.start();
+		reader.start();
+		buyer.join(TIMEOUT_MILLIS);
+		reader.join(TIMEOUT_MILLIS);
+		
+		if (buyer.isAlive() || reader.isAlive()) {
+			check(false, "the sales and the forecasts finish within " + (TIMEOUT_MILLIS / 1000) + " seconds");
+			finish("RestockPlannerTest");
+		}
+		check(forecasts[0] > 0, "forecasts were made while the machine was selling");
+		
+		List<RestockPlanner.Forecast> soonest = planner.getSoonest(ITEMS);
+		check(soonest.size() == ITEMS, "every item that has sold is forecast (" + soonest.size() + ")");
+		boolean ordered = true;
+		boolean matches = true;
+		for (int i = 0; i < soonest.size(); i++) {
+			RestockPlanner.Forecast forecast = soonest.get(i);
+			if (i > 0 && forecast.getEmptyAt() < soonest.get(i - 1).getEmptyAt()) {
+				ordered = false;
+			}
+			for (int j = 0; j < machine.getItemCount(); j++) {
+				VendItem item = machine.getVendItem(j);
+				if (item.getItemId() == forecast.getItemId() && item.getQty() != forecast.getQty()) {
+					matches = false;
+				}
+			}
+		}
+		check(ordered, "the forecasts are soonest first");
+		check(matches, "each forecast has the item's quantity");
+		check(soonest.isEmpty() || soonest.get(0).getMachine().equals("Library"), "forecasts use the machine's route name");
+		
+		finish("RestockPlannerTest");
+	}
+	
+	/**
+	 * Records the result of one check, and prints it if it failed.
+	 * @param passed - True if the check passed
+	 * @param description - What was checked
+	 */
+	private static void check(boolean passed, String description) {
+		checks++;
+		if (!passed) {
+			failures++;
+			System.out.println("FAIL " + description);
+		}
+	}
+	
+	/**
+	 * Prints the result of the test, and exits with 1 if any check failed.
+	 * @param name - The name of the test
+	 */
+	private static void finish(String name) {
+		System.out.println((failures == 0 ? "PASS " : "FAIL ") + name + ": " + (checks - failures) + "/" + checks + " checks passed");
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+	
+}
@@ -0,0 +1,162 @@
+package vend;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks that a MachineSnapshot taken while other threads are buying, restocking and returning coins
+ * always has total money that matches its coins, and quantities that are in range.
+ * Also checks that an event listener can take a snapshot when it is told about a sale or fault.
+ *
+ * Run with: javac -encoding UTF-8 -d out src/vend/*.java test/vend/*.java && java -cp out vend.SnapshotBalanceTest
+ * @author Fergal Bittles
+ *
+ */
+public class SnapshotBalanceTest {
+
+	private static final int BUYERS = 4;
+	private static final int PURCHASES = 5000; // For each buyer
+	
+	private static int checks = 0;
+	private static int failures = 0;
+	
+	public static void main(String[] args) throws InterruptedException {
+		VendingMachine machine = new VendingMachine("Snapshot Test", 20);
+		for (int i = 0; i < 20; i++) {
+			machine.addNewItem(new VendItem("Snack " + i, 0.7, 10));
+		}
+		check(machine.getSnapshot().isBalanced(), "a new machine is balanced");
+		
+		// Told about sales and faults while the machine's lock is held, so a snapshot taken part way through a change would never finish
+		int[] heard = new int[1];
+		String[] listenerProblem = new String[1];
+		machine.addEventListener(new MachineEventListener() {
+			public void sale(VendingMachine vm, VendItem item, int pence, boolean cashless) {
+				heard(vm.getSnapshot());
+			}
+			
+			public void fault(VendingMachine vm, String fault) {
+				heard(vm.getSnapshot());
+			}
+			
+			private void heard(MachineSnapshot snap) {
+				String problem = findProblem(snap);
+				if (problem != null && listenerProblem[0] == null) {
+					listenerProblem[0] = problem + ": " + snap;
+				}
+				heard[0]++;
+			}
+		});
+		
+		AtomicBoolean done = new AtomicBoolean();
+		int[] snapshots = new int[1];
+		String[] firstProblem = new String[1];
+		
+		Thread reader = new Thread(() -> {
+			while (!done.get()) {
+				MachineSnapshot snap = machine.getSnapshot();
+				String problem = findProblem(snap);
+				if (problem != null && firstProblem[0] == null) {
+					firstProblem[0] = problem + ": " + snap;
+				}
+				snapshots[0]++;
+			}
+		});
+		reader.start();
+		
+		Thread[] buyers = new Thread[BUYERS];
+		for (int b = 0; b < BUYERS; b++) {
+			long seed = b;
+			buyers[b] = new Thread(() -> buy(machine, new Random(seed)));
+			buyers[b].start();
+		}
+		for (Thread buyer : buyers) {
+			buyer.join();
+		}
+		done.set(true);
+		reader.join();
+		
+		check(snapshots[0] > 0, "the reader took at least one snapshot");
+		check(firstProblem[0] == null, "every snapshot is consistent (" + firstProblem[0] + ")");
+		check(heard[0] > 0, "the listener was told about sales and faults");
+		check(listenerProblem[0] == null, "every snapshot taken by the listener is consistent (" + listenerProblem[0] + ")");
+		check(findProblem(machine.getSnapshot()) == null, "the final snapshot is consistent");
+		check(machine.isCashBalanced(), "the machine's own cash check passes (" + machine.getCashDrift() + ")");
+		
+		finish("SnapshotBalanceTest");
+	}
+	
+	/**
+	 * Buys random items with random coins, restocking and putting the machine back into Vending Mode as needed.
+	 * @param machine - The vending machine
+	 * @param random - The source of random choices
+	 */
+	private static void buy(VendingMachine machine, Random random) {
+		for (int n = 0; n < PURCHASES; n++) {
+			// 50p + 20p is exact, and a £1 or £2 coin needs change
+			int choice = random.nextInt(3);
+			if (choice == 0) {
+				machine.insertCoin(4);
+				machine.insertCoin(3);
+			} else {
+				machine.insertCoin(4 + choice);
+			}
+			
+			int item = random.nextInt(machine.getItemCount());
+			String res = machine.purchaseItem(item);
+			if (res.startsWith("Failure")) {
+				machine.returnCoins();
+				machine.restockItem(item, 1);
+				if (machine.getMachineStatus() == Status.SERVICE_MODE) {
+					machine.setStatus(Status.VENDING_MODE);
+				}
+			}
+		}
+		machine.returnCoins();
+	}
+	
+	/**
+	 * Looks for anything in a snapshot that could never be true of a machine at rest.
+	 * @param snap - The snapshot
+	 * @return - A description of the problem, or null if there is none
+	 */
+	private static String findProblem(MachineSnapshot snap) {
+		if (!snap.isBalanced()) {
+			return "total money does not match the coins";
+		}
+		if (snap.getUserMoney() < 0) {
+			return "user money is negative";
+		}
+		for (int i = 0; i < snap.getItemCount(); i++) {
+			if (snap.getQty(i) < 0 || snap.getQty(i) > 10) {
+				return "item " + i + " has quantity " + snap.getQty(i);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Records the result of one check, and prints it if it failed.
+	 * @param passed - True if the check passed
+	 * @param description - What was checked
+	 */
+	private static void check(boolean passed, String description) {
+		checks++;
+		if (!passed) {
+			failures++;
+			System.out.println("FAIL " + description);
+		}
+	}
+	
+	/**
+	 * Prints the result of the test, and exits with 1 if any check failed.
+	 * @param name - The name of the test
+	 */
+	private static void finish(String name) {
+		System.out.println((failures == 0 ? "PASS " : "FAIL ") + name + ": " + (checks - failures) + "/" + checks + " checks passed");
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+	
+}
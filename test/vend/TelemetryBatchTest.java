@@ -0,0 +1,86 @@
+package vend;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that a telemetry batch reads back the same as it was written, including negative cash changes,
+ * buckets out of order and machine names outside ASCII, and that bytes that are not a batch are rejected.
+ *
+ * Run with: javac -encoding UTF-8 -d out src/vend/*.java test/vend/*.java && java -cp out vend.TelemetryBatchTest
+ * @author Fergal Bittles
+ *
+ */
+public class TelemetryBatchTest {
+
+	private static int checks = 0;
+	private static int failures = 0;
+	
+	public static void main(String[] args) throws IOException {
+		Random random = new Random(26);
+		String[] machines = { "Library", "Sports Hall", "Café €" };
+		
+		List<TelemetryBatch.Record> records = new ArrayList<TelemetryBatch.Record>();
+		for (int n = 0; n < 300; n++) {
+			int[] coins = new int[6];
+			for (int i = 0; i < coins.length; i++) {
+				coins[i] = random.nextInt(50);
+			}
+			records.add(new TelemetryBatch.Record(machines[random.nextInt(machines.length)], 28000000L + random.nextInt(1000) - 500,
+					random.nextInt(20), random.nextInt(5000), random.nextInt(3), random.nextInt(100000), coins));
+		}
+		
+		TelemetryBatch batch = new TelemetryBatch(60000, records);
+		TelemetryBatch copy = TelemetryBatch.decode(batch.encode());
+		
+		check(copy.getBucketMillis() == 60000, "the bucket length reads back");
+		check(copy.getRecords().size() == batch.getRecords().size(), "every record reads back");
+		boolean same = true;
+		for (int i = 0; i < batch.getRecords().size() && same; i++) {
+			TelemetryBatch.Record a = batch.getRecords().get(i);
+			TelemetryBatch.Record b = copy.getRecords().get(i);
+			same = a.getMachine().equals(b.getMachine()) && a.getBucket() == b.getBucket() && a.getSales() == b.getSales()
+					&& a.getTakings() == b.getTakings() && a.getFaults() == b.getFaults() && a.getTotalMoney() == b.getTotalMoney()
+					&& Arrays.equals(a.getCoinCounts(), b.getCoinCounts());
+		}
+		check(same, "every field of every record reads back the same");
+		
+		boolean rejected = false;
+		try {
+			TelemetryBatch.decode(new byte[] { 1, 2, 3 });
+		} catch (IOException e) {
+			rejected = true;
+		}
+		check(rejected, "bytes that are not a batch are rejected");
+		
+		finish("TelemetryBatchTest");
+	}
+	
+	/**
+	 * Records the result of one check, and prints it if it failed.
+	 * @param passed - True if the check passed
+	 * @param description - What was checked
+	 */
+	private static void check(boolean passed, String description) {
+		checks++;
+		if (!passed) {
+			failures++;
+			System.out.println("FAIL " + description);
+		}
+	}
+	
+	/**
+	 * Prints the result of the test, and exits with 1 if any check failed.
+	 * @param name - The name of the test
+	 */
+	private static void finish(String name) {
+		System.out.println((failures == 0 ? "PASS " : "FAIL ") + name + ": " + (checks - failures) + "/" + checks + " checks passed");
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+	
+}